@@ -24,6 +24,14 @@ sealed class NodeComponent {
         INFLUENCE_SOURCE(
             requireMesh = false,
             singleInstanceOnly = false,
+        ),
+        SPRING_BONE(
+            requireMesh = false,
+            singleInstanceOnly = false,
+        ),
+        RIGID_BODY_PHYSICS(
+            requireMesh = false,
+            singleInstanceOnly = true,
         );
 
         companion object {
@@ -64,4 +72,20 @@ sealed class NodeComponent {
         override val type: Type
             get() = Type.INFLUENCE_SOURCE
     }
-}
\ No newline at end of file
+
+    data class SpringBoneComponent(
+        val springBone: SpringBone,
+        val transformId: TransformId,
+    ): NodeComponent() {
+        override val type: Type
+            get() = Type.SPRING_BONE
+    }
+
+    data class RigidBodyPhysicsComponent(
+        val physics: RigidBodyPhysics,
+        val transformId: TransformId,
+    ): NodeComponent() {
+        override val type: Type
+            get() = Type.RIGID_BODY_PHYSICS
+    }
+}
@@ -0,0 +1,69 @@
+package top.fifthlight.blazerod.model
+
+import org.joml.Quaternionfc
+import org.joml.Vector3fc
+
+// Positions and rotations are at bind pose, in the space of the node holding this component
+data class RigidBodyPhysics(
+    val rigidBodies: List<RigidBody>,
+    val joints: List<Joint>,
+) {
+    data class RigidBody(
+        val name: String?,
+        // Bone the body follows or moves, or null for a body on its own
+        val nodeId: NodeId?,
+        val group: Int,
+        // Bit set of the groups this body collides with
+        val collisionMask: Int,
+        val shape: Shape,
+        val position: Vector3fc,
+        val rotation: Quaternionfc,
+        val mass: Float,
+        val linearDamping: Float,
+        val angularDamping: Float,
+        val restitution: Float,
+        val friction: Float,
+        val mode: Mode,
+    ) {
+        enum class Mode {
+            // Moved by the bone, pushing simulated bodies
+            FOLLOW_BONE,
+
+            // Simulated, moving the bone
+            PHYSICS,
+
+            // Simulated, only rotating the bone
+            PHYSICS_ROTATION,
+        }
+    }
+
+    sealed class Shape {
+        data class Sphere(
+            val radius: Float,
+        ) : Shape()
+
+        data class Box(
+            val halfExtents: Vector3fc,
+        ) : Shape()
+
+        // Along the Y axis, height not counting the caps
+        data class Capsule(
+            val radius: Float,
+            val height: Float,
+        ) : Shape()
+    }
+
+    data class Joint(
+        val name: String?,
+        val rigidBodyA: Int,
+        val rigidBodyB: Int,
+        val position: Vector3fc,
+        val rotation: Quaternionfc,
+        val positionMin: Vector3fc,
+        val positionMax: Vector3fc,
+        val rotationMin: Vector3fc,
+        val rotationMax: Vector3fc,
+        val positionSpring: Vector3fc,
+        val rotationSpring: Vector3fc,
+    )
+}
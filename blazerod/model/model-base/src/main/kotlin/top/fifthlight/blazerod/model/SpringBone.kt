@@ -0,0 +1,42 @@
+package top.fifthlight.blazerod.model
+
+import org.joml.Vector3fc
+
+// Joints are listed parents first. Without a tail node, the tail is 7 cm further along the bone.
+data class SpringBone(
+    val joints: List<Joint>,
+    val colliders: List<Collider>,
+) {
+    data class Joint(
+        val nodeId: NodeId,
+        val tailNodeId: NodeId?,
+        // Index of the joint this one hangs from, or -1 if its parent node is not a joint of this spring
+        val parentJoint: Int,
+        val hitRadius: Float,
+        val stiffness: Float,
+        val gravityPower: Float,
+        val gravityDir: Vector3fc,
+        val dragForce: Float,
+    )
+
+    data class Collider(
+        val nodeId: NodeId,
+        val shape: Shape,
+    )
+
+    sealed class Shape {
+        abstract val offset: Vector3fc
+        abstract val radius: Float
+
+        data class Sphere(
+            override val offset: Vector3fc,
+            override val radius: Float,
+        ) : Shape()
+
+        data class Capsule(
+            override val offset: Vector3fc,
+            override val radius: Float,
+            val tail: Vector3fc,
+        ) : Shape()
+    }
+}
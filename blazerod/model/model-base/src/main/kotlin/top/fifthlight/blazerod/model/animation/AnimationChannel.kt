@@ -58,6 +58,10 @@ interface AnimationChannel<T : Any, D> : AnimationChannelComponentContainer {
     val interpolation: AnimationInterpolation
     val interpolator: AnimationInterpolator<T>
     fun getKeyFrameData(time: Float, result: T)
+
+    // Search keyframes from the caller's cursor instead of the one shared by all users of this channel
+    fun getKeyFrameData(time: Float, result: T, cursor: AnimationKeyFrameIndexer.FindResult) =
+        getKeyFrameData(time, result)
 }
 
 data class SimpleAnimationChannel<T : Any, D>(
@@ -93,20 +97,27 @@ data class SimpleAnimationChannel<T : Any, D>(
     override fun <T : AnimationChannelComponent.Type<C, T>, C> getComponent(type: T): C? =
         componentOfTypes[type] as C?
 
-    override fun getKeyFrameData(time: Float, result: T) {
-        indexer.findKeyFrames(time, indexResult)
-        if (indexResult.startFrame == indexResult.endFrame || indexResult.startTime > time || indexResult.endTime < time) {
-            keyframeData.get(indexResult.startFrame, startValues)
+    override fun getKeyFrameData(time: Float, result: T) = getKeyFrameData(time, result, indexResult)
+
+    override fun getKeyFrameData(time: Float, result: T, cursor: AnimationKeyFrameIndexer.FindResult) {
+        indexer.findKeyFrames(time, cursor)
+        interpolateKeyFrames(time, cursor, result)
+    }
+
+    // Value at time between keyframes already found by indexer, for channels sharing one search
+    fun interpolateKeyFrames(time: Float, frames: AnimationKeyFrameIndexer.FindResult, result: T) {
+        if (frames.startFrame == frames.endFrame || frames.startTime > time || frames.endTime < time) {
+            keyframeData.get(frames.startFrame, startValues)
             interpolator.set(startValues, result)
             return
         }
-        val delta = (time - indexResult.startTime) / (indexResult.endTime - indexResult.startTime)
-        keyframeData.get(indexResult.startFrame, startValues)
-        keyframeData.get(indexResult.endFrame, endValues)
+        val delta = (time - frames.startTime) / (frames.endTime - frames.startTime)
+        keyframeData.get(frames.startFrame, startValues)
+        keyframeData.get(frames.endFrame, endValues)
         interpolator.interpolate(
             delta = delta,
-            startFrame = indexResult.startFrame,
-            endFrame = indexResult.endFrame,
+            startFrame = frames.startFrame,
+            endFrame = frames.endFrame,
             type = interpolation,
             startValue = startValues,
             endValue = endValues,
@@ -4,9 +4,9 @@ import it.unimi.dsi.fastutil.floats.FloatList
 import org.joml.Quaternionf
 import org.joml.Vector3f
 import top.fifthlight.blazerod.model.Accessor
+import top.fifthlight.blazerod.model.read
 import top.fifthlight.blazerod.model.util.MutableFloat
 import java.nio.ByteBuffer
-import java.nio.ByteOrder
 
 interface AnimationKeyFrameData<T> {
     val frames: Int
@@ -16,110 +16,140 @@ interface AnimationKeyFrameData<T> {
     companion object
 }
 
-class FloatListAnimationKeyFrameData<T>(
-    private val values: FloatList,
-    override val elements: Int,
-    private val componentCount: Int,
-    private val elementGetter: (list: FloatList, offset: Int, result: T) -> Unit,
+// One final class per value type, so reading a keyframe is a plain array read
+sealed class PackedAnimationKeyFrameData<T>(
+    val values: FloatArray,
+    final override val elements: Int,
+    componentCount: Int,
 ) : AnimationKeyFrameData<T> {
     init {
+        require(elements > 0) { "Invalid elements: $elements" }
         require(values.size % (elements * componentCount) == 0) {
-            "Invalid data size ${values.size} for elements $elements (requires multiple of ${elements * componentCount})"
+            "Invalid data size ${values.size} for elements $elements " +
+                    "(requires multiple of ${elements * componentCount})"
         }
     }
 
-    override val frames = values.size / (elements * componentCount)
+    final override val frames = values.size / (elements * componentCount)
+}
+
+class Vector3fAnimationKeyFrameData(
+    values: FloatArray,
+    elements: Int,
+) : PackedAnimationKeyFrameData<Vector3f>(values, elements, 3) {
+    override fun get(index: Int, data: List<Vector3f>) {
+        var offset = index * elements * 3
+        for (i in 0 until elements) {
+            data[i].set(values[offset], values[offset + 1], values[offset + 2])
+            offset += 3
+        }
+    }
+}
+
+class QuaternionfAnimationKeyFrameData(
+    values: FloatArray,
+    elements: Int,
+) : PackedAnimationKeyFrameData<Quaternionf>(values, elements, 4) {
+    override fun get(index: Int, data: List<Quaternionf>) {
+        var offset = index * elements * 4
+        for (i in 0 until elements) {
+            data[i].set(values[offset], values[offset + 1], values[offset + 2], values[offset + 3])
+            offset += 4
+        }
+    }
+}
 
-    override fun get(index: Int, data: List<T>) {
-        val baseOffset = index * elements * componentCount
+class FloatAnimationKeyFrameData(
+    values: FloatArray,
+    elements: Int,
+) : PackedAnimationKeyFrameData<MutableFloat>(values, elements, 1) {
+    override fun get(index: Int, data: List<MutableFloat>) {
+        val offset = index * elements
         for (i in 0 until elements) {
-            val offset = baseOffset + i * componentCount
-            elementGetter(values, offset, data[i])
+            data[i].value = values[offset + i]
         }
     }
 }
 
+fun AnimationKeyFrameData.Companion.ofVector3f(values: FloatArray, elements: Int) =
+    Vector3fAnimationKeyFrameData(values, elements)
+
+fun AnimationKeyFrameData.Companion.ofQuaternionf(values: FloatArray, elements: Int) =
+    QuaternionfAnimationKeyFrameData(values, elements)
+
+fun AnimationKeyFrameData.Companion.ofFloat(values: FloatArray, elements: Int) =
+    FloatAnimationKeyFrameData(values, elements)
+
+fun AnimationKeyFrameData.Companion.ofVector3f(values: FloatList, elements: Int) =
+    ofVector3f(values.toFloatArray(), elements)
+
+fun AnimationKeyFrameData.Companion.ofQuaternionf(values: FloatList, elements: Int) =
+    ofQuaternionf(values.toFloatArray(), elements)
+
+fun AnimationKeyFrameData.Companion.ofFloat(values: FloatList, elements: Int) =
+    ofFloat(values.toFloatArray(), elements)
+
+// Decode every accessor item with elementGetter, which reads one item from a buffer positioned at it
+private inline fun <T> Accessor.decodeKeyFrameValues(
+    elements: Int,
+    componentCount: Int,
+    value: T,
+    crossinline elementGetter: (buffer: ByteBuffer, result: T) -> Unit,
+    crossinline store: (value: T, values: FloatArray, offset: Int) -> Unit,
+): FloatArray {
+    require(count % elements == 0) { "Invalid data size $count for elements $elements" }
+    val values = FloatArray(count * componentCount)
+    if (bufferView == null) {
+        // Accessors without buffer view are zero filled
+        return values
+    }
+    var offset = 0
+    read { buffer ->
+        elementGetter(buffer, value)
+        store(value, values, offset)
+        offset += componentCount
+    }
+    return values
+}
+
 fun AnimationKeyFrameData.Companion.ofVector3f(
-    values: FloatList,
+    accessor: Accessor,
     elements: Int,
-) = FloatListAnimationKeyFrameData<Vector3f>(
-    values = values,
-    elements = elements,
-    componentCount = 3,
-    elementGetter = { list, offset, result -> result.set(list.getFloat(offset), list.getFloat(offset + 1), list.getFloat(offset + 2)) },
+    elementGetter: (buffer: ByteBuffer, result: Vector3f) -> Unit,
+) = ofVector3f(
+    accessor.decodeKeyFrameValues(elements, 3, Vector3f(), elementGetter) { value, values, offset ->
+        values[offset] = value.x
+        values[offset + 1] = value.y
+        values[offset + 2] = value.z
+    },
+    elements,
 )
 
 fun AnimationKeyFrameData.Companion.ofQuaternionf(
-    values: FloatList,
+    accessor: Accessor,
     elements: Int,
-) = FloatListAnimationKeyFrameData<Quaternionf>(
-    values = values,
-    elements = elements,
-    componentCount = 4,
-    elementGetter = { list, offset, result ->
-        result.set(
-            list.getFloat(offset),
-            list.getFloat(offset + 1),
-            list.getFloat(offset + 2),
-            list.getFloat(offset + 3)
-        )
+    elementGetter: (buffer: ByteBuffer, result: Quaternionf) -> Unit,
+) = ofQuaternionf(
+    accessor.decodeKeyFrameValues(elements, 4, Quaternionf(), elementGetter) { value, values, offset ->
+        values[offset] = value.x
+        values[offset + 1] = value.y
+        values[offset + 2] = value.z
+        values[offset + 3] = value.w
     },
+    elements,
 )
 
 fun AnimationKeyFrameData.Companion.ofFloat(
-    values: FloatList,
+    accessor: Accessor,
     elements: Int,
-) = FloatListAnimationKeyFrameData<MutableFloat>(
-    values = values,
-    elements = elements,
-    componentCount = 1,
-    elementGetter = { list, offset, result -> result.value = list.getFloat(offset) },
+    elementGetter: (buffer: ByteBuffer, result: MutableFloat) -> Unit,
+) = ofFloat(
+    accessor.decodeKeyFrameValues(elements, 1, MutableFloat(), elementGetter) { value, values, offset ->
+        values[offset] = value.value
+    },
+    elements,
 )
 
-class AccessorAnimationKeyFrameData<T>(
-    private val accessor: Accessor,
-    override val elements: Int,
-    private val elementGetter: (buffer: ByteBuffer, result: T) -> Unit,
-) : AnimationKeyFrameData<T> {
-    init {
-        require(accessor.count % elements == 0) { "Invalid data size ${accessor.count} for elements $elements" }
-    }
-
-    override val frames = accessor.count / elements
-
-    private val isZeroFilled = accessor.bufferView == null
-    private val itemLength = accessor.componentType.byteLength * accessor.type.components
-    private val itemStride = accessor.bufferView?.byteStride?.takeIf { it != 0 } ?: itemLength
-    private val elementStride = itemStride * elements
-    private val slice = accessor.bufferView?.let { bufferView ->
-        bufferView.buffer.buffer
-            .slice(accessor.byteOffset + bufferView.byteOffset, accessor.totalByteLength)
-            .asReadOnlyBuffer()
-            .order(ByteOrder.LITTLE_ENDIAN)
-    } ?: run {
-        ByteBuffer
-            .allocateDirect(itemLength)
-            .asReadOnlyBuffer()
-            .order(ByteOrder.LITTLE_ENDIAN)
-    }
-
-    override fun get(index: Int, data: List<T>) {
-        var position = index * elementStride
-        for (i in 0 until elements) {
-            if (isZeroFilled) {
-                slice.clear()
-                elementGetter(slice, data[i])
-            } else {
-                slice.clear()
-                slice.position(position)
-                slice.limit(position + itemLength)
-                elementGetter(slice, data[i])
-                position += itemStride
-            }
-        }
-    }
-}
-
 fun <T, R> AnimationKeyFrameData<T>.map(
     defaultValue: () -> T,
     transform: (T, R) -> Unit,
@@ -1,6 +1,7 @@
 package top.fifthlight.blazerod.model.animation
 
 import it.unimi.dsi.fastutil.floats.AbstractFloatList
+import it.unimi.dsi.fastutil.floats.FloatArrayList
 import it.unimi.dsi.fastutil.floats.FloatList
 import top.fifthlight.blazerod.model.Accessor
 
@@ -16,12 +17,16 @@ interface AnimationKeyFrameIndexer {
     // Total indices
     val indices: Int
 
+    // Also the search cursor: the next search starts from the frames found last time, so keep one for each playback
     data class FindResult(
         var startFrame: Int = 0,
         var endFrame: Int = 0,
         var startTime: Float = 0f,
         var endTime: Float = 0f,
     ) {
+        // Times the cursor missed and a full binary search was done
+        var searches: Int = 0
+
         fun clear() {
             startFrame = 0
             endFrame = 0
@@ -61,7 +66,7 @@ private fun FloatList.binarySearch(element: Float, fromIndex: Int = 0, toIndex:
     return -(low + 1)  // key not found
 }
 
-class ListAnimationKeyFrameIndexer(private val times: FloatList) : AnimationKeyFrameIndexer {
+class ListAnimationKeyFrameIndexer(val times: FloatList) : AnimationKeyFrameIndexer {
     override val startTime: Float = if (times.isEmpty()) 0f else times.first()
     override val lastTime: Float = if (times.isEmpty()) 0f else times.last()
     override val indices = times.size
@@ -116,6 +121,7 @@ class ListAnimationKeyFrameIndexer(private val times: FloatList) : AnimationKeyF
             currentIndex++
         }
 
+        result.searches++
         val searchResult = times.binarySearch(time)
         val foundIndex = if (searchResult >= 0) {
             searchResult
@@ -149,5 +155,8 @@ private class FloatAccessorList(private val accessor: Accessor) : AbstractFloatL
     override fun getFloat(index: Int): Float = slice?.getFloat(index * 4) ?: 0f
 }
 
-class AccessorAnimationKeyFrameIndexer(private val accessor: Accessor) :
-    AnimationKeyFrameIndexer by ListAnimationKeyFrameIndexer(FloatAccessorList(accessor))
\ No newline at end of file
+// Times are copied out of the accessor once, so searches read a plain array
+class AccessorAnimationKeyFrameIndexer private constructor(val times: FloatList) :
+    AnimationKeyFrameIndexer by ListAnimationKeyFrameIndexer(times) {
+    constructor(accessor: Accessor) : this(FloatArrayList(FloatAccessorList(accessor)))
+}
\ No newline at end of file
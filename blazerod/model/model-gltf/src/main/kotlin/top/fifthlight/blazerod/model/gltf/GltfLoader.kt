@@ -50,6 +50,7 @@ internal class GltfLoader(
     private lateinit var skins: List<Skin>
     private lateinit var cameras: List<Camera>
     private val nodes = mutableMapOf<Int, Node>()
+    private lateinit var springBones: Map<Int, List<SpringBone>>
     private lateinit var scenes: List<Scene>
     private lateinit var animations: List<Animation>
     private lateinit var expressions: List<Expression>
@@ -376,6 +377,118 @@ internal class GltfLoader(
         } ?: listOf()
     }
 
+    private fun loadSpringBones() {
+        val nodeCount = gltf.nodes?.size ?: 0
+        fun nodeIdOf(index: Int): NodeId {
+            if (index !in 0 until nodeCount) {
+                throw GltfLoadException("Bad spring bone: unknown node $index")
+            }
+            return NodeId(modelId = uuid, index = index)
+        }
+
+        // Springs by the node of their first joint
+        val springs = mutableListOf<Pair<Int, SpringBone>>()
+        val vrmV1 = gltf.extensions?.vrmSpringBone
+        val vrmV0 = gltf.extensions?.vrmV0?.secondaryAnimation
+        if (vrmV1 != null) {
+            val colliders = vrmV1.colliders?.map { collider ->
+                val shape = collider.shape.sphere?.let {
+                    SpringBone.Shape.Sphere(
+                        offset = it.offset ?: Vector3f(),
+                        radius = it.radius ?: 0f,
+                    )
+                } ?: collider.shape.capsule?.let {
+                    SpringBone.Shape.Capsule(
+                        offset = it.offset ?: Vector3f(),
+                        radius = it.radius ?: 0f,
+                        tail = it.tail ?: Vector3f(),
+                    )
+                } ?: throw GltfLoadException("Bad spring bone collider: no shape")
+                SpringBone.Collider(nodeId = nodeIdOf(collider.node), shape = shape)
+            } ?: listOf()
+            val colliderGroups = vrmV1.colliderGroups?.map { group ->
+                group.colliders.map {
+                    colliders.getOrNull(it) ?: throw GltfLoadException("Bad spring bone: unknown collider $it")
+                }
+            } ?: listOf()
+            vrmV1.springs?.forEach { spring ->
+                val joints = spring.joints
+                if (joints.isEmpty()) {
+                    return@forEach
+                }
+                // The last joint is only the tail of the joint before it
+                val simulatedJoints = if (joints.size > 1) joints.size - 1 else 1
+                springs.add(
+                    Pair(
+                        joints.first().node, SpringBone(
+                            joints = (0 until simulatedJoints).map { index ->
+                                val joint = joints[index]
+                                SpringBone.Joint(
+                                    nodeId = nodeIdOf(joint.node),
+                                    tailNodeId = joints.getOrNull(index + 1)?.let { nodeIdOf(it.node) },
+                                    parentJoint = index - 1,
+                                    hitRadius = joint.hitRadius ?: 0f,
+                                    stiffness = joint.stiffness ?: 1f,
+                                    gravityPower = joint.gravityPower ?: 0f,
+                                    gravityDir = joint.gravityDir ?: Vector3f(0f, -1f, 0f),
+                                    dragForce = joint.dragForce ?: .5f,
+                                )
+                            },
+                            colliders = spring.colliderGroups?.flatMap {
+                                colliderGroups.getOrNull(it)
+                                    ?: throw GltfLoadException("Bad spring bone: unknown collider group $it")
+                            } ?: listOf(),
+                        )
+                    )
+                )
+            }
+        } else if (vrmV0 != null) {
+            val colliderGroups = vrmV0.colliderGroups?.map { group ->
+                val nodeId = nodeIdOf(group.node)
+                group.colliders?.map {
+                    SpringBone.Collider(
+                        nodeId = nodeId,
+                        shape = SpringBone.Shape.Sphere(
+                            offset = it.offset?.vector ?: Vector3f(),
+                            radius = it.radius ?: 0f,
+                        ),
+                    )
+                } ?: listOf()
+            } ?: listOf()
+            vrmV0.boneGroups?.forEach { group ->
+                val colliders = group.colliderGroups?.flatMap {
+                    colliderGroups.getOrNull(it)
+                        ?: throw GltfLoadException("Bad spring bone: unknown collider group $it")
+                } ?: listOf()
+                val gravityDir = group.gravityDir?.vector ?: Vector3f(0f, -1f, 0f)
+                group.bones?.forEach { rootBone ->
+                    // Every node below a root bone swings, towards its first child
+                    val joints = mutableListOf<SpringBone.Joint>()
+                    fun addJoint(index: Int, parentJoint: Int) {
+                        val children = gltf.nodes?.getOrNull(index)?.children ?: listOf()
+                        val jointIndex = joints.size
+                        joints.add(
+                            SpringBone.Joint(
+                                nodeId = nodeIdOf(index),
+                                tailNodeId = children.firstOrNull()?.let(::nodeIdOf),
+                                parentJoint = parentJoint,
+                                hitRadius = group.hitRadius ?: .02f,
+                                stiffness = group.stiffiness ?: 1f,
+                                gravityPower = group.gravityPower ?: 0f,
+                                gravityDir = gravityDir,
+                                dragForce = group.dragForce ?: .4f,
+                            )
+                        )
+                        children.forEach { addJoint(it, jointIndex) }
+                    }
+                    addJoint(rootBone, -1)
+                    springs.add(Pair(rootBone, SpringBone(joints = joints, colliders = colliders)))
+                }
+            }
+        }
+        springBones = springs.groupBy({ it.first }, { it.second })
+    }
+
     private fun loadNode(index: Int): Node = nodes.getOrPut(index) {
         // TODO avoid stack overflow on bad models
         val node = gltf.nodes?.getOrNull(index) ?: throw GltfLoadException("No node at index $index")
@@ -418,6 +531,9 @@ internal class GltfLoader(
                         )
                     )
                 }
+                springBones[index]?.forEach {
+                    add(NodeComponent.SpringBoneComponent(springBone = it, transformId = TransformId.PHYSICS))
+                }
             },
         )
     }
@@ -459,7 +575,7 @@ internal class GltfLoader(
                                 transformId = TransformId.ABSOLUTE,
                             ),
                             indexer = AccessorAnimationKeyFrameIndexer(inputAccessor),
-                            keyframeData = AccessorAnimationKeyFrameData(
+                            keyframeData = AnimationKeyFrameData.ofVector3f(
                                 accessor = outputAccessor,
                                 elements = sampler.interpolation.elements,
                                 elementGetter = { buffer, result -> buffer.getVector3f(result) },
@@ -478,7 +594,7 @@ internal class GltfLoader(
                                 transformId = TransformId.ABSOLUTE,
                             ),
                             indexer = AccessorAnimationKeyFrameIndexer(inputAccessor),
-                            keyframeData = AccessorAnimationKeyFrameData(
+                            keyframeData = AnimationKeyFrameData.ofVector3f(
                                 accessor = outputAccessor,
                                 elements = sampler.interpolation.elements,
                                 elementGetter = { buffer, result -> buffer.getVector3f(result) },
@@ -497,7 +613,7 @@ internal class GltfLoader(
                                 transformId = TransformId.ABSOLUTE,
                             ),
                             indexer = AccessorAnimationKeyFrameIndexer(inputAccessor),
-                            keyframeData = AccessorAnimationKeyFrameData(
+                            keyframeData = AnimationKeyFrameData.ofQuaternionf(
                                 accessor = outputAccessor,
                                 elements = sampler.interpolation.elements,
                                 elementGetter = when (outputAccessor.componentType) {
@@ -617,6 +733,7 @@ internal class GltfLoader(
         loadMeshes()
         loadSkins()
         loadCameras()
+        loadSpringBones()
         loadScenes()
         loadAnimations()
         loadExpressions()
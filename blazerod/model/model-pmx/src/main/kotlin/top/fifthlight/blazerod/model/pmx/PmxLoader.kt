@@ -75,6 +75,8 @@ class PmxLoader : ModelFileLoader {
         private val sourceToInheritMap = mutableMapOf<Int, MutableList<PmxBone.InheritData>>()
         private lateinit var morphTargets: List<PmxMorph>
         private lateinit var morphTargetGroups: List<PmxMorphGroup>
+        private lateinit var rigidBodies: List<PmxRigidBody>
+        private lateinit var joints: List<PmxJoint>
         private val childBoneMap = mutableMapOf<Int, MutableList<Int>>()
         private val rootBones = mutableListOf<Int>()
 
@@ -181,6 +183,13 @@ class PmxLoader : ModelFileLoader {
             else -> throw PmxLoadException("Bad morph index size: ${globals.boneIndexSize}")
         }
 
+        private fun loadRigidBodyIndex(buffer: ByteBuffer): Int = when (globals.rigidBodyIndexSize) {
+            1 -> buffer.get().toInt()
+            2 -> buffer.getShort().toInt()
+            4 -> buffer.getInt()
+            else -> throw PmxLoadException("Bad rigid body index size: ${globals.rigidBodyIndexSize}")
+        }
+
         private fun loadVertexIndex(buffer: ByteBuffer): Int = when (globals.vertexIndexSize) {
             1 -> buffer.get().toUByte().toInt()
             2 -> buffer.getShort().toUShort().toInt()
@@ -546,6 +555,48 @@ class PmxLoader : ModelFileLoader {
             }
         }
 
+        // Whether the texture file may have transparent pixels, true for formats not checked here
+        private fun mayHaveAlpha(texture: Texture): Boolean {
+            val buffer = texture.bufferView?.buffer?.buffer?.slice() ?: return true
+            val pngMagic = Texture.TextureType.PNG.magic
+            val jpegMagic = Texture.TextureType.JPEG.magic
+            fun startsWith(magic: ByteArray) =
+                buffer.remaining() >= magic.size && magic.indices.all { buffer.get(it) == magic[it] }
+            return when {
+                startsWith(pngMagic) -> {
+                    // Color types with alpha, or a tRNS chunk before the image data
+                    var offset = pngMagic.size
+                    while (offset + 8 <= buffer.remaining()) {
+                        val length = buffer.getInt(offset)
+                        val type = buffer.getInt(offset + 4)
+                        when (type) {
+                            0x49484452 -> if (offset + 17 < buffer.remaining()) {
+                                val colorType = buffer.get(offset + 17).toInt()
+                                if (colorType == 4 || colorType == 6) {
+                                    return true
+                                }
+                            }
+
+                            0x74524E53 -> return true
+                            0x49444154, 0x49454E44 -> return false
+                        }
+                        if (length < 0) {
+                            return true
+                        }
+                        offset += 12 + length
+                    }
+                    true
+                }
+
+                startsWith(jpegMagic) -> false
+                // 32 bit BMP
+                buffer.remaining() >= 30 && buffer.get(0) == 'B'.code.toByte() && buffer.get(1) == 'M'.code.toByte() ->
+                    buffer.order(ByteOrder.LITTLE_ENDIAN).getShort(28).toInt() == 32
+
+                else -> true
+            }
+        }
+
         private fun loadMaterials(buffer: ByteBuffer) {
             val materialCount = buffer.getInt()
 
@@ -840,6 +891,152 @@ class PmxLoader : ModelFileLoader {
             morphTargetGroups = morphGroups
         }
 
+        private fun skipDisplayFrames(buffer: ByteBuffer) {
+            val displayFrameCount = buffer.getInt()
+            if (displayFrameCount < 0) {
+                throw PmxLoadException("Bad PMX model: display frames count less than zero")
+            }
+            repeat(displayFrameCount) {
+                loadString(buffer)
+                loadString(buffer)
+                // Special frame flag
+                buffer.get()
+                val itemCount = buffer.getInt()
+                if (itemCount < 0) {
+                    throw PmxLoadException("Bad PMX model: display frame items count less than zero")
+                }
+                repeat(itemCount) {
+                    when (val type = buffer.get().toInt()) {
+                        0 -> loadBoneIndex(buffer)
+                        1 -> loadMorphIndex(buffer)
+                        else -> throw PmxLoadException("Bad display frame item type: $type")
+                    }
+                }
+            }
+        }
+
+        // Euler angles of rigid bodies and joints are applied in Y, X, Z order
+        private fun Vector3f.toRotation() = Quaternionf().rotateY(-y).rotateX(-x).rotateZ(z)
+
+        private fun loadRigidBodies(buffer: ByteBuffer) {
+            val rigidBodyCount = buffer.getInt()
+            if (rigidBodyCount < 0) {
+                throw PmxLoadException("Bad PMX model: rigid bodies count less than zero")
+            }
+            rigidBodies = (0 until rigidBodyCount).map {
+                PmxRigidBody(
+                    nameLocal = loadString(buffer),
+                    nameUniversal = loadString(buffer),
+                    boneIndex = loadBoneIndex(buffer).takeIf { it >= 0 },
+                    group = buffer.get().toUByte().toInt(),
+                    nonCollisionGroup = buffer.getShort().toUShort().toInt(),
+                    shapeType = buffer.get().toInt()
+                        .let { type -> PmxRigidBodyShapeType.entries.firstOrNull { it.value == type } }
+                        ?: throw PmxLoadException("Unknown rigid body shape"),
+                    shapeSize = loadVector3f(buffer),
+                    shapePosition = loadVector3f(buffer).invertZ(),
+                    shapeRotation = loadVector3f(buffer),
+                    mass = buffer.getFloat(),
+                    moveAttenuation = buffer.getFloat(),
+                    rotationDamping = buffer.getFloat(),
+                    repulsion = buffer.getFloat(),
+                    friction = buffer.getFloat(),
+                    physicsMode = buffer.get().toInt()
+                        .let { mode -> PmxRigidBodyPhysicsMode.entries.firstOrNull { it.value == mode } }
+                        ?: throw PmxLoadException("Unknown rigid body physics mode"),
+                )
+            }
+        }
+
+        private fun loadJoints(buffer: ByteBuffer) {
+            val jointCount = buffer.getInt()
+            if (jointCount < 0) {
+                throw PmxLoadException("Bad PMX model: joints count less than zero")
+            }
+            joints = (0 until jointCount).map {
+                val nameLocal = loadString(buffer)
+                val nameUniversal = loadString(buffer)
+                // PMX 2.1 joint types share the layout of the 6DOF spring joint, and are simulated like it
+                buffer.get()
+                val rigidBodyIndexA = loadRigidBodyIndex(buffer)
+                val rigidBodyIndexB = loadRigidBodyIndex(buffer)
+                val position = loadVector3f(buffer).invertZ()
+                val rotation = loadVector3f(buffer)
+                val positionMin = loadVector3f(buffer)
+                val positionMax = loadVector3f(buffer)
+                val rotationMin = loadVector3f(buffer)
+                val rotationMax = loadVector3f(buffer)
+                PmxJoint(
+                    nameLocal = nameLocal,
+                    nameUniversal = nameUniversal,
+                    rigidBodyIndexA = rigidBodyIndexA,
+                    rigidBodyIndexB = rigidBodyIndexB,
+                    position = position,
+                    rotation = rotation,
+                    // Flipping Z flips the range of Z offsets, and of rotations around X and Y
+                    positionMin = Vector3f(positionMin.x, positionMin.y, -positionMax.z),
+                    positionMax = Vector3f(positionMax.x, positionMax.y, -positionMin.z),
+                    rotationMin = Vector3f(-rotationMax.x, -rotationMax.y, rotationMin.z),
+                    rotationMax = Vector3f(-rotationMin.x, -rotationMin.y, rotationMax.z),
+                    positionSpring = loadVector3f(buffer),
+                    rotationSpring = loadVector3f(buffer),
+                )
+            }
+        }
+
+        private fun loadPhysics(modelId: UUID): RigidBodyPhysics? {
+            if (rigidBodies.isEmpty()) {
+                return null
+            }
+            return RigidBodyPhysics(
+                rigidBodies = rigidBodies.map { body ->
+                    RigidBodyPhysics.RigidBody(
+                        name = body.nameLocal,
+                        nodeId = body.boneIndex?.takeIf { it in bones.indices }?.let { NodeId(modelId, it) },
+                        group = body.group,
+                        collisionMask = body.nonCollisionGroup,
+                        shape = when (body.shapeType) {
+                            PmxRigidBodyShapeType.SPHERE -> RigidBodyPhysics.Shape.Sphere(body.shapeSize.x)
+                            PmxRigidBodyShapeType.BOX -> RigidBodyPhysics.Shape.Box(Vector3f(body.shapeSize))
+                            PmxRigidBodyShapeType.CAPSULE ->
+                                RigidBodyPhysics.Shape.Capsule(body.shapeSize.x, body.shapeSize.y)
+                        },
+                        position = body.shapePosition,
+                        rotation = body.shapeRotation.toRotation(),
+                        mass = body.mass,
+                        linearDamping = body.moveAttenuation,
+                        angularDamping = body.rotationDamping,
+                        restitution = body.repulsion,
+                        friction = body.friction,
+                        mode = when (body.physicsMode) {
+                            PmxRigidBodyPhysicsMode.FOLLOW_BONE -> RigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE
+                            PmxRigidBodyPhysicsMode.PHYSICS -> RigidBodyPhysics.RigidBody.Mode.PHYSICS
+                            PmxRigidBodyPhysicsMode.PHYSICS_AND_BONE ->
+                                RigidBodyPhysics.RigidBody.Mode.PHYSICS_ROTATION
+                        },
+                    )
+                },
+                joints = joints.mapNotNull { joint ->
+                    if (joint.rigidBodyIndexA !in rigidBodies.indices || joint.rigidBodyIndexB !in rigidBodies.indices) {
+                        return@mapNotNull null
+                    }
+                    RigidBodyPhysics.Joint(
+                        name = joint.nameLocal,
+                        rigidBodyA = joint.rigidBodyIndexA,
+                        rigidBodyB = joint.rigidBodyIndexB,
+                        position = joint.position,
+                        rotation = joint.rotation.toRotation(),
+                        positionMin = joint.positionMin,
+                        positionMax = joint.positionMax,
+                        rotationMin = joint.rotationMin,
+                        rotationMax = joint.rotationMax,
+                        positionSpring = joint.positionSpring,
+                        rotationSpring = joint.rotationSpring,
+                    )
+                },
+            )
+        }
+
         fun load(buffer: ByteBuffer): ModelFileLoader.LoadResult {
             val header = loadHeader(buffer)
             loadVertices(buffer)
@@ -848,6 +1045,16 @@ class PmxLoader : ModelFileLoader {
             loadMaterials(buffer)
             loadBones(buffer)
             loadMorphTargets(buffer)
+            // Display frames and physics come last and are optional, so bad data there shouldn't fail the model
+            try {
+                skipDisplayFrames(buffer)
+                loadRigidBodies(buffer)
+                loadJoints(buffer)
+            } catch (ex: Exception) {
+                logger.warn("Failed to load PMX physics, loading model without it", ex)
+                rigidBodies = listOf()
+                joints = listOf()
+            }
 
             val modelId = UUID.randomUUID()
             val rootNodes = mutableListOf<Node>()
@@ -957,16 +1164,21 @@ class PmxLoader : ModelFileLoader {
                 val meshId = MeshId(modelId, nodeIndex)
                 materialToMeshIds[materialIndex] = meshId
 
+                val texture = pmxMaterial.textureIndex.takeIf {
+                    it >= 0 && it in textures.indices
+                }?.let {
+                    textures.getOrNull(it)
+                }
+                // MMD blends every material in material order. Opaque ones look the same in any order, so only
+                // possibly transparent materials are blended.
+                val transparent = pmxMaterial.diffuseColor.a < 1f || texture?.let { mayHaveAlpha(it) } == true
                 val material = Material.Unlit(
                     name = pmxMaterial.nameLocal,
                     baseColor = pmxMaterial.diffuseColor,
-                    baseColorTexture = pmxMaterial.textureIndex.takeIf {
-                        it >= 0 && it in textures.indices
-                    }?.let {
-                        textures.getOrNull(it)
-                    }?.let {
+                    baseColorTexture = texture?.let {
                         Material.TextureInfo(it)
                     },
+                    alphaMode = if (transparent) Material.AlphaMode.BLEND else Material.AlphaMode.OPAQUE,
                     doubleSided = pmxMaterial.drawingFlags.noCull,
                 )
 
@@ -1020,6 +1232,21 @@ class PmxLoader : ModelFileLoader {
                 )
             )
 
+            loadPhysics(modelId)?.let { physics ->
+                rootNodes.add(
+                    Node(
+                        name = "MMD Physics",
+                        id = NodeId(modelId, nextNodeIndex++),
+                        components = listOf(
+                            NodeComponent.RigidBodyPhysicsComponent(
+                                physics = physics,
+                                transformId = TransformId.PHYSICS,
+                            )
+                        )
+                    )
+                )
+            }
+
             val scene = Scene(
                 nodes = rootNodes,
                 initialTransform = NodeTransform.Decomposed(
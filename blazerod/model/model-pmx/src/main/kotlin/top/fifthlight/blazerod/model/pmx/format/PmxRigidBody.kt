@@ -0,0 +1,48 @@
+package top.fifthlight.blazerod.model.pmx.format
+
+import org.joml.Vector3f
+
+data class PmxRigidBody(
+    val nameLocal: String,
+    val nameUniversal: String,
+    val boneIndex: Int?,
+    val group: Int,
+    val nonCollisionGroup: Int,
+    val shapeType: PmxRigidBodyShapeType,
+    val shapeSize: Vector3f,
+    val shapePosition: Vector3f,
+    val shapeRotation: Vector3f,
+    val mass: Float,
+    val moveAttenuation: Float,
+    val rotationDamping: Float,
+    val repulsion: Float,
+    val friction: Float,
+    val physicsMode: PmxRigidBodyPhysicsMode,
+)
+
+enum class PmxRigidBodyShapeType(val value: Int) {
+    SPHERE(0),
+    BOX(1),
+    CAPSULE(2),
+}
+
+enum class PmxRigidBodyPhysicsMode(val value: Int) {
+    FOLLOW_BONE(0),
+    PHYSICS(1),
+    PHYSICS_AND_BONE(2),
+}
+
+data class PmxJoint(
+    val nameLocal: String,
+    val nameUniversal: String,
+    val rigidBodyIndexA: Int,
+    val rigidBodyIndexB: Int,
+    val position: Vector3f,
+    val rotation: Vector3f,
+    val positionMin: Vector3f,
+    val positionMax: Vector3f,
+    val rotationMin: Vector3f,
+    val rotationMax: Vector3f,
+    val positionSpring: Vector3f,
+    val rotationSpring: Vector3f,
+)
@@ -0,0 +1,112 @@
+package top.fifthlight.blazerod.model.vmd
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
+import kotlin.math.abs
+
+// Deduplicated VMD curves. The t sampled at evenly spaced x is the initial guess and bracket for Newton iterations.
+// Curves are only added while loading, after which the table can be shared between threads.
+class VmdBezierCurveTable {
+    companion object {
+        const val SAMPLES = 32
+
+        // Curves with both control points on the diagonal are straight lines, and need no table
+        const val LINEAR_CURVE = -1
+
+        private const val MAX_ITERATIONS = 6
+        private const val TOLERANCE = 1e-6f
+
+        private fun bezier(p1: Float, p2: Float, t: Float): Float {
+            val t_ = 1 - t
+            return 3 * t_ * t_ * t * p1 + 3 * t_ * t * t * p2 + t * t * t
+        }
+
+        private fun bezierDerivative(p1: Float, p2: Float, t: Float): Float {
+            val t_ = 1 - t
+            return 3 * t_ * t_ * p1 + 6 * t_ * t * (p2 - p1) + 3 * t * t * (1 - p2)
+        }
+
+        // Only used when building tables, so it can afford a full bisection
+        private fun solveT(x1: Float, x2: Float, x: Float): Float {
+            var low = 0f
+            var high = 1f
+            repeat(32) {
+                val t = (low + high) / 2f
+                if (bezier(x1, x2, t) < x) {
+                    low = t
+                } else {
+                    high = t
+                }
+            }
+            return (low + high) / 2f
+        }
+    }
+
+    private val curveIndices = Int2IntOpenHashMap().apply { defaultReturnValue(LINEAR_CURVE) }
+    private val controlPoints = FloatArrayList()
+    private val samples = FloatArrayList()
+
+    val size: Int
+        get() = controlPoints.size / 4
+
+    fun add(p1X: UByte, p1Y: UByte, p2X: UByte, p2Y: UByte): Int {
+        if (p1X == p1Y && p2X == p2Y) {
+            return LINEAR_CURVE
+        }
+        val key = (p1X.toInt() shl 24) or (p1Y.toInt() shl 16) or (p2X.toInt() shl 8) or p2Y.toInt()
+        val existing = curveIndices.get(key)
+        if (existing != LINEAR_CURVE) {
+            return existing
+        }
+
+        val index = size
+        val x1 = p1X.toFloat() / 127f
+        val x2 = p2X.toFloat() / 127f
+        controlPoints.add(x1)
+        controlPoints.add(p1Y.toFloat() / 127f)
+        controlPoints.add(x2)
+        controlPoints.add(p2Y.toFloat() / 127f)
+        samples.add(0f)
+        for (i in 1 until SAMPLES) {
+            samples.add(solveT(x1, x2, i.toFloat() / SAMPLES))
+        }
+        samples.add(1f)
+        curveIndices.put(key, index)
+        return index
+    }
+
+    fun resolve(curve: Int, delta: Float): Float {
+        if (curve == LINEAR_CURVE) {
+            return delta
+        }
+        val x = delta.coerceIn(0f, 1f)
+        val x1 = controlPoints.getFloat(curve * 4)
+        val y1 = controlPoints.getFloat(curve * 4 + 1)
+        val x2 = controlPoints.getFloat(curve * 4 + 2)
+        val y2 = controlPoints.getFloat(curve * 4 + 3)
+
+        val position = x * SAMPLES
+        val sample = position.toInt().coerceAtMost(SAMPLES - 1)
+        val sampleOffset = curve * (SAMPLES + 1) + sample
+        var low = samples.getFloat(sampleOffset)
+        var high = samples.getFloat(sampleOffset + 1)
+        var t = low + (high - low) * (position - sample)
+
+        // x(t) is monotonic, so t always stays in [low, high]; fall back to bisection where Newton leaves it,
+        // which happens near vertical tangents
+        for (i in 0 until MAX_ITERATIONS) {
+            val error = bezier(x1, x2, t) - x
+            if (abs(error) < TOLERANCE) {
+                break
+            }
+            if (error < 0) {
+                low = t
+            } else {
+                high = t
+            }
+            val next = t - error / bezierDerivative(x1, x2, t)
+            t = if (next > low && next < high) next else (low + high) / 2f
+        }
+        return bezier(y1, y2, t)
+    }
+}
@@ -3,7 +3,7 @@ package top.fifthlight.blazerod.model.vmd
 import it.unimi.dsi.fastutil.bytes.ByteArrayList
 import it.unimi.dsi.fastutil.floats.FloatArrayList
 import it.unimi.dsi.fastutil.ints.IntArrayList
-import it.unimi.dsi.fastutil.ints.IntIterable
+import it.unimi.dsi.fastutil.ints.IntArrays
 import org.joml.Quaternionf
 import org.joml.Vector3f
 import top.fifthlight.blazerod.model.HumanoidTag
@@ -21,16 +21,11 @@ import java.nio.charset.Charset
 import java.nio.charset.CodingErrorAction
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
+import java.util.stream.IntStream
 
 class VmdLoadException(message: String) : Exception(message)
 
-private inline fun IntIterable.forEachInt(action: (Int) -> Unit) {
-    val iterator = intIterator()
-    while (iterator.hasNext()) {
-        action(iterator.nextInt())
-    }
-}
-
+// The first pass indexes the records of each track by name, the second decodes tracks in parallel for large files
 class VmdLoader : ModelFileLoader {
     companion object {
         private val OLD_VMD_SIGNATURE = "Vocaloid Motion Data file".toByteArray()
@@ -38,6 +33,16 @@ class VmdLoader : ModelFileLoader {
         private val VMD_SIGNATURES = listOf(OLD_VMD_SIGNATURE, NEW_VMD_SIGNATURE)
 
         private const val FRAME_TIME_SEC = 1f / 30f
+
+        private const val NAME_LENGTH = 15
+        private const val BONE_RECORD_SIZE = NAME_LENGTH + 4 + 12 + 16 + 64
+        private const val FACE_RECORD_SIZE = NAME_LENGTH + 4 + 4
+        private const val CAMERA_RECORD_SIZE = 4 + 4 + 12 + 12 + 24 + 4 + 1
+
+        // Below this many records, decoding is faster than handing tracks to other threads
+        private const val PARALLEL_RECORDS = 8192
+
+        private val SHIFT_JIS = Charset.forName("Shift-JIS")
     }
 
     override val extensions = mapOf(
@@ -54,22 +59,6 @@ class VmdLoader : ModelFileLoader {
         signatureBytes.contentEquals(signature)
     }
 
-    private val SHIFT_JIS = Charset.forName("Shift-JIS")
-    private val decoder = SHIFT_JIS.newDecoder()
-        .onMalformedInput(CodingErrorAction.REPORT)
-        .onUnmappableCharacter(CodingErrorAction.REPORT)
-
-    private fun loadString(buffer: ByteBuffer, maxLength: Int): String {
-        val bytes = ByteBuffer.allocate(maxLength)
-        bytes.put(buffer.slice(buffer.position(), maxLength))
-        buffer.position(buffer.position() + maxLength)
-        val nullIndex = (0 until maxLength)
-            .indexOfFirst { bytes.get(it) == 0.toByte() }
-            .takeIf { it != -1 } ?: maxLength
-        val stringBytes = bytes.slice(0, nullIndex).order(ByteOrder.LITTLE_ENDIAN)
-        return decoder.decode(stringBytes).toString()
-    }
-
     private fun loadHeader(buffer: ByteBuffer) {
         val signature = ByteArray(30)
         buffer.get(signature)
@@ -95,339 +84,300 @@ class VmdLoader : ModelFileLoader {
         }
     }
 
-    private data class ChannelData(
-        val frameIndexer: AnimationKeyFrameIndexer,
-        val translation: AnimationKeyFrameData<Vector3f>,
-        val rotation: AnimationKeyFrameData<Quaternionf>,
-        val translationCurve: VmdBezierChannelComponent,
-        val rotationCurve: VmdBezierChannelComponent,
-    )
-
-    private class BoneChannel {
-        val frameList = IntArrayList()
-        val translationData = FloatArrayList()
-        val rotationData = FloatArrayList()
-        val translationCurveData = ByteArrayList()
-        val rotationCurveData = ByteArrayList()
-
-        fun toData(): ChannelData {
-            val indices = IntArrayList(frameList.size)
-            repeat(frameList.size) { indices.add(it) }
-            indices.sort { a, b -> frameList.getInt(a) - frameList.getInt(b) }
-
-            val sortedTimeList = FloatArrayList(frameList.size)
-            val sortedTranslationList = FloatArrayList(translationData.size)
-            val sortedRotationList = FloatArrayList(rotationData.size)
-            val sortedTranslationCurveList = ByteArrayList(translationCurveData.size)
-            val sortedRotationCurveList = ByteArrayList(rotationCurveData.size)
-            indices.forEachInt { i ->
-                sortedTimeList.add(frameList.getInt(i) * FRAME_TIME_SEC)
-                repeat(3) {
-                    sortedTranslationList.add(translationData.getFloat(i * 3 + it))
-                }
-                repeat(4) {
-                    sortedRotationList.add(rotationData.getFloat(i * 4 + it))
-                }
-                repeat(12) {
-                    sortedTranslationCurveList.add(translationCurveData.getByte(i * 12 + it))
-                }
-                repeat(4) {
-                    sortedRotationCurveList.add(rotationCurveData.getByte(i * 4 + it))
-                }
+    // Raw name bytes, so records are grouped without decoding every name. Lookups reuse one probe key.
+    private class NameKey(val bytes: ByteArray, var length: Int) {
+        override fun equals(other: Any?): Boolean {
+            if (other !is NameKey || length != other.length) return false
+            for (i in 0 until length) {
+                if (bytes[i] != other.bytes[i]) return false
             }
+            return true
+        }
 
-            return ChannelData(
-                frameIndexer = ListAnimationKeyFrameIndexer(sortedTimeList),
-                translation = AnimationKeyFrameData.ofVector3f(sortedTranslationList, 1),
-                rotation = AnimationKeyFrameData.ofQuaternionf(sortedRotationList, 1),
-                translationCurve = VmdBezierChannelComponent(
-                    values = sortedTranslationCurveList,
-                    frames = sortedTimeList.size,
-                    channels = 3,
-                    cameraOrder = false,
-                ),
-                rotationCurve = VmdBezierChannelComponent(
-                    values = sortedRotationCurveList,
-                    frames = sortedTimeList.size,
-                    channels = 1,
-                    cameraOrder = false,
-                ),
-            )
+        override fun hashCode(): Int {
+            var hash = 1
+            for (i in 0 until length) {
+                hash = 31 * hash + bytes[i]
+            }
+            return hash
         }
     }
 
-    private fun loadBone(buffer: ByteBuffer): List<AnimationChannel<*, *>> {
-        val channels = mutableMapOf<String, BoneChannel>()
-        val boneKeyframeCount = buffer.getInt()
+    private class TrackIndex(val name: String) {
+        // Record offsets in the file
+        val records = IntArrayList()
+    }
 
-        repeat(boneKeyframeCount) {
-            val boneName = loadString(buffer, 15)
-            val channel = channels.getOrPut(boneName, ::BoneChannel)
+    private class SectionIndex(
+        val tracks: List<TrackIndex>,
+        val end: Int,
+    )
 
-            val frameNumber = buffer.getInt()
-            channel.frameList.add(frameNumber)
-            // translation, invert Z axis
-            channel.translationData.add(buffer.getFloat())
-            channel.translationData.add(buffer.getFloat())
-            channel.translationData.add(-buffer.getFloat())
-            // rotation, invert X and Y
-            channel.rotationData.add(-buffer.getFloat())
-            channel.rotationData.add(-buffer.getFloat())
-            channel.rotationData.add(buffer.getFloat())
-            channel.rotationData.add(buffer.getFloat())
-
-            // translation curve data
-            repeat(12) {
-                channel.translationCurveData.add(buffer.get())
-            }
-            // rotation curve data
-            repeat(4) {
-                channel.rotationCurveData.add(buffer.get())
+    // Group the records of a section by name, keeping the order tracks first appear in
+    private fun indexSection(
+        buffer: ByteBuffer,
+        start: Int,
+        recordSize: Int,
+    ): SectionIndex {
+        val count = buffer.getInt(start)
+        val recordsStart = start + 4
+        if (count < 0 || (buffer.limit() - recordsStart).toLong() < count.toLong() * recordSize) {
+            throw VmdLoadException("VMD section of $count records is truncated")
+        }
+        val decoder = SHIFT_JIS.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT)
+
+        val tracks = LinkedHashMap<NameKey, TrackIndex>()
+        val probe = NameKey(ByteArray(NAME_LENGTH), 0)
+        for (i in 0 until count) {
+            val offset = recordsStart + i * recordSize
+            buffer.get(offset, probe.bytes, 0, NAME_LENGTH)
+            probe.length = probe.bytes.indexOf(0.toByte()).takeIf { it != -1 } ?: NAME_LENGTH
+            val track = tracks[probe] ?: run {
+                val name = decoder.decode(ByteBuffer.wrap(probe.bytes, 0, probe.length)).toString()
+                TrackIndex(name).also { tracks[NameKey(probe.bytes.copyOf(), probe.length)] = it }
             }
-            buffer.position(buffer.position() + 48)
+            track.records.add(offset)
         }
+        return SectionIndex(tracks.values.toList(), recordsStart + count * recordSize)
+    }
 
-        return channels.flatMap { (name, channel) ->
-            val channelData = channel.toData()
-            listOf(
-                SimpleAnimationChannel(
-                    type = AnimationChannel.Type.Translation,
-                    data = AnimationChannel.Type.TransformData(
-                        node = AnimationChannel.Type.NodeData(
-                            targetNode = null,
-                            targetNodeName = name,
-                            targetHumanoidTag = HumanoidTag.fromPmxJapanese(name),
-                        ),
-                        transformId = TransformId.RELATIVE_ANIMATION,
-                    ),
-                    indexer = channelData.frameIndexer,
-                    keyframeData = channelData.translation,
-                    interpolation = VmdBezierInterpolation,
-                    interpolator = VmdBezierVector3fInterpolator(),
-                    components = listOf(channelData.translationCurve),
-                    defaultValue = ::Vector3f,
-                ),
-                SimpleAnimationChannel(
-                    type = AnimationChannel.Type.Rotation,
-                    data = AnimationChannel.Type.TransformData(
-                        node = AnimationChannel.Type.NodeData(
-                            targetNode = null,
-                            targetNodeName = name,
-                            targetHumanoidTag = HumanoidTag.fromPmxJapanese(name),
-                        ),
-                        transformId = TransformId.RELATIVE_ANIMATION,
-                    ),
-                    indexer = channelData.frameIndexer,
-                    keyframeData = channelData.rotation,
-                    interpolation = VmdBezierInterpolation,
-                    interpolator = VmdBezierQuaternionfInterpolator(),
-                    components = listOf(channelData.rotationCurve),
-                    defaultValue = ::Quaternionf,
-                ),
-            )
+    // Record offsets of a track by frame number, stable like the file order for equal frames
+    private fun sortRecords(buffer: ByteBuffer, records: IntArrayList, frameOffset: Int): IntArray {
+        val offsets = records.toIntArray()
+        val frames = IntArray(offsets.size) { buffer.getInt(offsets[it] + frameOffset) }
+        if ((1 until frames.size).all { frames[it - 1] <= frames[it] }) {
+            return offsets
         }
+        val order = IntArray(offsets.size) { it }
+        IntArrays.mergeSort(order) { a, b -> frames[a].compareTo(frames[b]) }
+        return IntArray(order.size) { offsets[order[it]] }
     }
 
-    private class WeightChannel {
-        val frameList = IntArrayList()
-        val weightList = FloatArrayList()
-
-        fun toData(): Pair<AnimationKeyFrameIndexer, AnimationKeyFrameData<MutableFloat>> {
-            val indices = IntArrayList(frameList.size)
-            repeat(frameList.size) { indices.add(it) }
-            indices.sort { a, b -> frameList.getInt(a) - frameList.getInt(b) }
-
-            val sortedTimeList = FloatArrayList(frameList.size)
-            val sortedWeightList = FloatArrayList(weightList.size)
-
-            indices.forEachInt { i ->
-                sortedTimeList.add(frameList.getInt(i) * FRAME_TIME_SEC)
-                sortedWeightList.add(weightList.getFloat(i))
-            }
+    private class BoneTrack(
+        val name: String,
+        val times: FloatArray,
+        val translations: FloatArray,
+        val rotations: FloatArray,
+        val translationCurves: ByteArray,
+        val rotationCurves: ByteArray,
+    )
 
-            return Pair(
-                ListAnimationKeyFrameIndexer(sortedTimeList),
-                AnimationKeyFrameData.ofFloat(sortedWeightList, 1)
-            )
+    private fun decodeBone(buffer: ByteBuffer, track: TrackIndex): BoneTrack {
+        val records = sortRecords(buffer, track.records, NAME_LENGTH)
+        val frames = records.size
+        val times = FloatArray(frames)
+        val translations = FloatArray(frames * 3)
+        val rotations = FloatArray(frames * 4)
+        val translationCurves = ByteArray(frames * 12)
+        val rotationCurves = ByteArray(frames * 4)
+        for ((i, record) in records.withIndex()) {
+            var offset = record + NAME_LENGTH
+            times[i] = buffer.getInt(offset) * FRAME_TIME_SEC
+            offset += 4
+            // translation, invert Z axis
+            translations[i * 3] = buffer.getFloat(offset)
+            translations[i * 3 + 1] = buffer.getFloat(offset + 4)
+            translations[i * 3 + 2] = -buffer.getFloat(offset + 8)
+            offset += 12
+            // rotation, invert X and Y
+            rotations[i * 4] = -buffer.getFloat(offset)
+            rotations[i * 4 + 1] = -buffer.getFloat(offset + 4)
+            rotations[i * 4 + 2] = buffer.getFloat(offset + 8)
+            rotations[i * 4 + 3] = buffer.getFloat(offset + 12)
+            offset += 16
+            buffer.get(offset, translationCurves, i * 12, 12)
+            buffer.get(offset + 12, rotationCurves, i * 4, 4)
         }
+        return BoneTrack(track.name, times, translations, rotations, translationCurves, rotationCurves)
     }
 
-    private fun loadFace(buffer: ByteBuffer): List<AnimationChannel<*, *>> {
-        val channels = mutableMapOf<String, WeightChannel>()
-        val faceKeyframeCount = buffer.getInt()
-        repeat(faceKeyframeCount) {
-            val faceName = loadString(buffer, 15)
-            val channel = channels.getOrPut(faceName, ::WeightChannel)
-
-            val frameNumber = buffer.getInt()
-            channel.frameList.add(frameNumber)
-
-            val weight = buffer.getFloat()
-            channel.weightList.add(weight)
-        }
+    private class FaceTrack(
+        val name: String,
+        val times: FloatArray,
+        val weights: FloatArray,
+    )
 
-        return channels.flatMap { (name, channel) ->
-            val (indexer, data) = channel.toData()
-            listOf(
-                SimpleAnimationChannel(
-                    type = AnimationChannel.Type.Expression,
-                    data = AnimationChannel.Type.ExpressionData(name = name),
-                    indexer = indexer,
-                    keyframeData = data,
-                    interpolation = AnimationInterpolation.linear,
-                ),
-            )
+    private fun decodeFace(buffer: ByteBuffer, track: TrackIndex): FaceTrack {
+        val records = sortRecords(buffer, track.records, NAME_LENGTH)
+        val times = FloatArray(records.size)
+        val weights = FloatArray(records.size)
+        for ((i, record) in records.withIndex()) {
+            times[i] = buffer.getInt(record + NAME_LENGTH) * FRAME_TIME_SEC
+            weights[i] = buffer.getFloat(record + NAME_LENGTH + 4)
         }
+        return FaceTrack(track.name, times, weights)
     }
 
-    private fun loadCamera(buffer: ByteBuffer): List<AnimationChannel<*, *>> {
-        val cameraKeyframeCount = buffer.getInt().takeIf { it > 0 } ?: return emptyList()
-        val frameList = IntArrayList()
-        val distanceList = FloatArrayList()
-        val positionList = FloatArrayList()
-        val rotationList = FloatArrayList()
-        val fovList = FloatArrayList()
-        val distanceCurveData = ByteArrayList()
-        val positionCurveData = ByteArrayList()
-        val rotationCurveData = ByteArrayList()
-        val fovCurveData = ByteArrayList()
-
-        repeat(cameraKeyframeCount) {
-            frameList.add(buffer.getInt())
-            distanceList.add(buffer.getFloat() * MMD_SCALE)
+    private class CameraTrack(
+        val times: FloatArray,
+        val distances: FloatArray,
+        val positions: FloatArray,
+        val rotations: FloatArray,
+        val fovs: FloatArray,
+        val distanceCurves: ByteArray,
+        val positionCurves: ByteArray,
+        val rotationCurves: ByteArray,
+        val fovCurves: ByteArray,
+    )
+
+    private fun decodeCamera(buffer: ByteBuffer, track: TrackIndex): CameraTrack {
+        val records = sortRecords(buffer, track.records, 0)
+        val frames = records.size
+        val times = FloatArray(frames)
+        val distances = FloatArray(frames)
+        val positions = FloatArray(frames * 3)
+        val rotations = FloatArray(frames * 3)
+        val fovs = FloatArray(frames)
+        val distanceCurves = ByteArray(frames * 4)
+        val positionCurves = ByteArray(frames * 12)
+        val rotationCurves = ByteArray(frames * 4)
+        val fovCurves = ByteArray(frames * 4)
+        for ((i, record) in records.withIndex()) {
+            times[i] = buffer.getInt(record) * FRAME_TIME_SEC
+            distances[i] = buffer.getFloat(record + 4) * MMD_SCALE
 
             // XYZ, invert X and Z
-            positionList.add(-buffer.getFloat() * MMD_SCALE)
-            positionList.add(buffer.getFloat() * MMD_SCALE)
-            positionList.add(-buffer.getFloat() * MMD_SCALE)
+            positions[i * 3] = -buffer.getFloat(record + 8) * MMD_SCALE
+            positions[i * 3 + 1] = buffer.getFloat(record + 12) * MMD_SCALE
+            positions[i * 3 + 2] = -buffer.getFloat(record + 16) * MMD_SCALE
 
             // Invert Y
-            rotationList.add(buffer.getFloat())
-            rotationList.add(Math.PI.toFloat() + buffer.getFloat())
-            rotationList.add(buffer.getFloat())
+            rotations[i * 3] = buffer.getFloat(record + 20)
+            rotations[i * 3 + 1] = Math.PI.toFloat() + buffer.getFloat(record + 24)
+            rotations[i * 3 + 2] = buffer.getFloat(record + 28)
 
-            repeat(4) {
-                distanceCurveData.add(buffer.get())
-            }
-            repeat(12) {
-                positionCurveData.add(buffer.get())
-            }
-            repeat(4) {
-                rotationCurveData.add(buffer.get())
-            }
-            repeat(4) {
-                fovCurveData.add(buffer.get())
-            }
-
-            fovList.add(buffer.getInt().toUInt().toFloat().toRadian())
+            buffer.get(record + 32, distanceCurves, i * 4, 4)
+            buffer.get(record + 36, positionCurves, i * 12, 12)
+            buffer.get(record + 48, rotationCurves, i * 4, 4)
+            buffer.get(record + 52, fovCurves, i * 4, 4)
 
+            fovs[i] = buffer.getInt(record + 56).toUInt().toFloat().toRadian()
             // Skip perspective
-            buffer.position(buffer.position() + 1)
-        }
-
-        val indices = IntArrayList(frameList.size)
-        repeat(frameList.size) { indices.add(it) }
-        indices.sort { a, b -> frameList.getInt(a) - frameList.getInt(b) }
-
-        val sortedTimeList = FloatArrayList(frameList.size)
-        val sortedDistanceList = FloatArrayList(distanceList.size)
-        val sortedPositionList = FloatArrayList(positionList.size)
-        val sortedRotationList = FloatArrayList(rotationList.size)
-        val sortedFovList = FloatArrayList(fovList.size)
-        val sortedDistanceCurveData = ByteArrayList(distanceCurveData.size)
-        val sortedPositionCurveData = ByteArrayList(positionCurveData.size)
-        val sortedRotationCurveData = ByteArrayList(rotationCurveData.size)
-        val sortedFovCurveData = ByteArrayList(fovCurveData.size)
-
-        indices.forEachInt { i ->
-            sortedTimeList.add(frameList.getInt(i) * FRAME_TIME_SEC)
-            sortedDistanceList.add(distanceList.getFloat(i))
-            repeat(3) {
-                sortedPositionList.add(positionList.getFloat(i * 3 + it))
-            }
-            repeat(3) {
-                sortedRotationList.add(rotationList.getFloat(i * 3 + it))
-            }
-            sortedFovList.add(fovList.getFloat(i))
-            repeat(4) {
-                sortedDistanceCurveData.add(distanceCurveData.getByte(i * 4 + it))
-            }
-            repeat(12) {
-                sortedPositionCurveData.add(positionCurveData.getByte(i * 12 + it))
-            }
-            repeat(4) {
-                sortedRotationCurveData.add(rotationCurveData.getByte(i * 4 + it))
-            }
-            repeat(4) {
-                sortedFovCurveData.add(fovCurveData.getByte(i * 4 + it))
-            }
         }
+        return CameraTrack(
+            times,
+            distances,
+            positions,
+            rotations,
+            fovs,
+            distanceCurves,
+            positionCurves,
+            rotationCurves,
+            fovCurves,
+        )
+    }
 
+    private fun boneChannels(track: BoneTrack, curveTable: VmdBezierCurveTable): List<AnimationChannel<*, *>> {
+        val frames = track.times.size
+        val indexer = ListAnimationKeyFrameIndexer(FloatArrayList.wrap(track.times))
+        val data = AnimationChannel.Type.TransformData(
+            node = AnimationChannel.Type.NodeData(
+                targetNode = null,
+                targetNodeName = track.name,
+                targetHumanoidTag = HumanoidTag.fromPmxJapanese(track.name),
+            ),
+            transformId = TransformId.RELATIVE_ANIMATION,
+        )
         return listOf(
             SimpleAnimationChannel(
-                type = AnimationChannel.Type.MMDCameraDistance,
-                data = AnimationChannel.Type.CameraData(cameraName = "MMD Camera"),
-                indexer = ListAnimationKeyFrameIndexer(sortedTimeList),
-                keyframeData = AnimationKeyFrameData.ofFloat(sortedDistanceList, 1),
+                type = AnimationChannel.Type.Translation,
+                data = data,
+                indexer = indexer,
+                keyframeData = AnimationKeyFrameData.ofVector3f(track.translations, 1),
+                interpolation = VmdBezierInterpolation,
+                interpolator = VmdBezierVector3fInterpolator(),
+                components = listOf(
+                    VmdBezierChannelComponent(
+                        values = ByteArrayList.wrap(track.translationCurves),
+                        frames = frames,
+                        channels = 3,
+                        cameraOrder = false,
+                        curveTable = curveTable,
+                    )
+                ),
+                defaultValue = ::Vector3f,
+            ),
+            SimpleAnimationChannel(
+                type = AnimationChannel.Type.Rotation,
+                data = data,
+                indexer = indexer,
+                keyframeData = AnimationKeyFrameData.ofQuaternionf(track.rotations, 1),
+                interpolation = VmdBezierInterpolation,
+                interpolator = VmdBezierQuaternionfInterpolator(),
                 components = listOf(
                     VmdBezierChannelComponent(
-                        values = sortedDistanceCurveData,
-                        frames = sortedTimeList.size,
+                        values = ByteArrayList.wrap(track.rotationCurves),
+                        frames = frames,
                         channels = 1,
-                        cameraOrder = true,
-                    ),
+                        cameraOrder = false,
+                        curveTable = curveTable,
+                    )
                 ),
+                defaultValue = ::Quaternionf,
+            ),
+        )
+    }
+
+    private fun faceChannel(track: FaceTrack) = SimpleAnimationChannel(
+        type = AnimationChannel.Type.Expression,
+        data = AnimationChannel.Type.ExpressionData(name = track.name),
+        indexer = ListAnimationKeyFrameIndexer(FloatArrayList.wrap(track.times)),
+        keyframeData = AnimationKeyFrameData.ofFloat(track.weights, 1),
+        interpolation = AnimationInterpolation.linear,
+    )
+
+    private fun cameraChannels(track: CameraTrack, curveTable: VmdBezierCurveTable): List<AnimationChannel<*, *>> {
+        val frames = track.times.size
+        val indexer = ListAnimationKeyFrameIndexer(FloatArrayList.wrap(track.times))
+        val data = AnimationChannel.Type.CameraData(cameraName = "MMD Camera")
+        fun curve(values: ByteArray, channels: Int) = listOf(
+            VmdBezierChannelComponent(
+                values = ByteArrayList.wrap(values),
+                frames = frames,
+                channels = channels,
+                cameraOrder = true,
+                curveTable = curveTable,
+            ),
+        )
+        return listOf(
+            SimpleAnimationChannel(
+                type = AnimationChannel.Type.MMDCameraDistance,
+                data = data,
+                indexer = indexer,
+                keyframeData = AnimationKeyFrameData.ofFloat(track.distances, 1),
+                components = curve(track.distanceCurves, 1),
                 interpolation = VmdBezierInterpolation,
                 interpolator = VmdBezierFloatInterpolator(),
                 defaultValue = ::MutableFloat,
             ),
             SimpleAnimationChannel(
                 type = AnimationChannel.Type.MMDCameraTarget,
-                data = AnimationChannel.Type.CameraData(cameraName = "MMD Camera"),
-                indexer = ListAnimationKeyFrameIndexer(sortedTimeList),
-                keyframeData = AnimationKeyFrameData.ofVector3f(sortedPositionList, 1),
-                components = listOf(
-                    VmdBezierChannelComponent(
-                        values = sortedPositionCurveData,
-                        frames = sortedTimeList.size,
-                        channels = 3,
-                        cameraOrder = true,
-                    ),
-                ),
+                data = data,
+                indexer = indexer,
+                keyframeData = AnimationKeyFrameData.ofVector3f(track.positions, 1),
+                components = curve(track.positionCurves, 3),
                 interpolation = VmdBezierInterpolation,
                 interpolator = VmdBezierVector3fInterpolator(),
                 defaultValue = ::Vector3f,
             ),
             SimpleAnimationChannel(
                 type = AnimationChannel.Type.MMDCameraRotation,
-                data = AnimationChannel.Type.CameraData(cameraName = "MMD Camera"),
-                indexer = ListAnimationKeyFrameIndexer(sortedTimeList),
-                keyframeData = AnimationKeyFrameData.ofVector3f(sortedRotationList, 1),
-                components = listOf(
-                    VmdBezierChannelComponent(
-                        values = sortedRotationCurveData,
-                        frames = sortedTimeList.size,
-                        channels = 1,
-                        cameraOrder = true,
-                    ),
-                ),
+                data = data,
+                indexer = indexer,
+                keyframeData = AnimationKeyFrameData.ofVector3f(track.rotations, 1),
+                components = curve(track.rotationCurves, 1),
                 interpolation = VmdBezierInterpolation,
                 interpolator = VmdBezierSimpleVector3fInterpolator(),
                 defaultValue = ::Vector3f,
             ),
             SimpleAnimationChannel(
                 type = AnimationChannel.Type.CameraFov,
-                data = AnimationChannel.Type.CameraData(cameraName = "MMD Camera"),
-                indexer = ListAnimationKeyFrameIndexer(sortedTimeList),
-                keyframeData = AnimationKeyFrameData.ofFloat(sortedFovList, 1),
-                components = listOf(
-                    VmdBezierChannelComponent(
-                        values = sortedFovCurveData,
-                        frames = sortedTimeList.size,
-                        channels = 1,
-                        cameraOrder = true,
-                    ),
-                ),
+                data = data,
+                indexer = indexer,
+                keyframeData = AnimationKeyFrameData.ofFloat(track.fovs, 1),
+                components = curve(track.fovCurves, 1),
                 interpolation = VmdBezierInterpolation,
                 interpolator = VmdBezierFloatInterpolator(),
                 defaultValue = ::MutableFloat,
@@ -437,29 +387,59 @@ class VmdLoader : ModelFileLoader {
 
     private fun load(buffer: ByteBuffer): ModelFileLoader.LoadResult {
         loadHeader(buffer)
-        val boneChannels = loadBone(buffer)
-        val faceChannels = if (buffer.hasRemaining()) {
-            loadFace(buffer)
+
+        val bones = indexSection(buffer, buffer.position(), BONE_RECORD_SIZE)
+        val faces = if (bones.end < buffer.limit()) {
+            indexSection(buffer, bones.end, FACE_RECORD_SIZE)
         } else {
-            listOf()
+            null
         }
-        val cameraChannels = if (buffer.hasRemaining()) {
-            loadCamera(buffer)
-        } else {
-            listOf()
+        // Camera records have no name, all of them belong to one track
+        val camera = faces?.takeIf { it.end < buffer.limit() }?.let { faces ->
+            val count = buffer.getInt(faces.end)
+            if (count < 0 || (buffer.limit() - faces.end - 4).toLong() < count.toLong() * CAMERA_RECORD_SIZE) {
+                throw VmdLoadException("VMD camera section of $count records is truncated")
+            }
+            TrackIndex("").takeIf { count > 0 }?.apply {
+                for (i in 0 until count) {
+                    records.add(faces.end + 4 + i * CAMERA_RECORD_SIZE)
+                }
+            }
+        }
+
+        // Tracks only read the buffer with absolute offsets, so they can be decoded at the same time
+        val tasks = buildList<() -> Any> {
+            bones.tracks.forEach { add { decodeBone(buffer, it) } }
+            faces?.tracks?.forEach { add { decodeFace(buffer, it) } }
+            camera?.let { add { decodeCamera(buffer, it) } }
+        }
+        val records = bones.tracks.sumOf { it.records.size } +
+                (faces?.tracks?.sumOf { it.records.size } ?: 0) +
+                (camera?.records?.size ?: 0)
+        val decoded = arrayOfNulls<Any>(tasks.size)
+        IntStream.range(0, tasks.size)
+            .let { if (records >= PARALLEL_RECORDS) it.parallel() else it }
+            .forEach { decoded[it] = tasks[it]() }
+
+        // The curve table is not thread safe, so channels are created in file order afterwards
+        val curveTable = VmdBezierCurveTable()
+        val channels = decoded.flatMap { track ->
+            when (track) {
+                is BoneTrack -> boneChannels(track, curveTable)
+                is FaceTrack -> listOf(faceChannel(track))
+                is CameraTrack -> cameraChannels(track, curveTable)
+                else -> error("Unknown VMD track: $track")
+            }
         }
 
         return ModelFileLoader.LoadResult(
             metadata = null,
             model = null,
-            animations = listOf(Animation(channels = boneChannels + faceChannels + cameraChannels)),
+            animations = listOf(Animation(channels = channels)),
         )
     }
 
-    override fun load(
-        path: Path,
-        basePath: Path,
-    ) = FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+    private fun map(path: Path) = FileChannel.open(path, StandardOpenOption.READ).use { channel ->
         val fileSize = channel.size()
         val buffer = runCatching {
             channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
@@ -474,6 +454,10 @@ class VmdLoader : ModelFileLoader {
             buffer
         }
         buffer.order(ByteOrder.LITTLE_ENDIAN)
-        load(buffer)
     }
-}
\ No newline at end of file
+
+    override fun load(
+        path: Path,
+        basePath: Path,
+    ) = load(map(path))
+}
@@ -0,0 +1,46 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.BakedTransformItem
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.test.animation.AnimationBakeTest
+import top.fifthlight.blazerod.test.animation.AnimationBakeTest.Companion.FRAMES
+import top.fifthlight.blazerod.test.animation.AnimationBakeTest.Companion.FRAME_RATE
+import kotlin.random.Random
+
+class AnimationBakeBenchmark {
+    companion object {
+        private const val WARMUP_ROUNDS = 3
+        private const val MEASURE_ROUNDS = 10
+    }
+
+    @Test
+    fun bakedPlayback(reporter: TestReporter) {
+        val scene = AnimationBakeTest.createScene()
+        val (animation, rawBytes) = AnimationBakeTest.createVmdAnimation(Random(2))
+        val baked = animation.bake(scene, FRAME_RATE)
+        val bakedBytes = baked.channels.sumOf { (it as BakedTransformItem).track.byteSize }
+
+        fun measure(item: AnimationItem): String {
+            val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+            val round = measureAverage(WARMUP_ROUNDS, MEASURE_ROUNDS) {
+                for (frame in 0..FRAMES) {
+                    item.apply(instance, frame / FRAME_RATE + .01f)
+                }
+            }
+            return (round / (FRAMES + 1)).toString()
+        }
+
+        reporter.publishEntry(
+            mapOf(
+                "raw size" to "${rawBytes / 1024} KiB",
+                "raw per apply" to measure(animation),
+                "baked size" to "${bakedBytes / 1024} KiB",
+                "baked per apply" to measure(baked),
+            )
+        )
+    }
+}
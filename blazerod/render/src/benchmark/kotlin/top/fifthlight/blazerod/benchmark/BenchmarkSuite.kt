@@ -0,0 +1,18 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.platform.suite.api.SelectClasses
+import org.junit.platform.suite.api.Suite
+
+@Suite
+@SelectClasses(
+    UpdatePlanBenchmark::class,
+    VmdBezierCurveTableBenchmark::class,
+    AnimationBakeBenchmark::class,
+    KeyFrameDataBenchmark::class,
+    VmdLoaderBenchmark::class,
+    IkSolverBenchmark::class,
+    SpringBoneBenchmark::class,
+    RigidBodyPhysicsBenchmark::class,
+    DrawListCompilerBenchmark::class,
+)
+class BenchmarkSuite
@@ -0,0 +1,40 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.renderer.DrawList
+import top.fifthlight.blazerod.model.renderer.DrawListCompiler
+import top.fifthlight.blazerod.test.model.renderer.DrawListCompilerTest
+import top.fifthlight.blazerod.test.model.renderer.DrawListCompilerTest.Companion.MODELS
+import top.fifthlight.blazerod.test.model.renderer.DrawListCompilerTest.Companion.PLAYERS
+
+class DrawListCompilerBenchmark {
+    companion object {
+        private const val WARMUP_ITERATIONS = 200
+        private const val MEASURE_ITERATIONS = 1000
+    }
+
+    @Test
+    fun playerScene(reporter: TestReporter) {
+        val draws = DrawListCompilerTest.playerSceneDraws()
+        val compiler = DrawListCompiler()
+        for (draw in draws) {
+            compiler.addDraw(draw.batch, draw.pipeline, draw.texture, draw.material, draw.blended)
+        }
+        val list = DrawList()
+        compiler.compile(list)
+
+        reporter.publishEntry(
+            mapOf(
+                "scene" to "$PLAYERS players, $MODELS models, ${draws.size} draws",
+                "pipeline changes" to list.pipelineChanges.toString(),
+                "batch changes" to list.batchChanges.toString(),
+                "texture changes" to list.textureChanges.toString(),
+                "material changes" to list.materialChanges.toString(),
+                "compile" to measureAverage(WARMUP_ITERATIONS, MEASURE_ITERATIONS) {
+                    compiler.compile(list)
+                }.toString(),
+            )
+        )
+    }
+}
@@ -0,0 +1,48 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.joml.Vector3f
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.component.IkTarget
+import top.fifthlight.blazerod.test.model.node.IkSolverTest
+
+class IkSolverBenchmark {
+    companion object {
+        private const val TARGETS = 32
+        private const val WARMUP_ROUNDS = 20
+        private const val MEASURE_ROUNDS = 50
+
+        private fun measure(bones: Int, solver: IkTarget.Solver, targets: List<Vector3f>): String {
+            val instance = ModelInstance(IkSolverTest.createChain(bones, solver), TransformStorage.Type.MAP)
+            val goal = bones + 1
+            // Targets change every solve, so no solve is reused from the IK cache
+            val round = measureAverage(WARMUP_ROUNDS, MEASURE_ROUNDS) {
+                for (target in targets) {
+                    instance.setTransformDecomposed(goal, TransformId.RELATIVE_ANIMATION) {
+                        translation.set(target)
+                    }
+                    instance.updateRenderData()
+                }
+            }
+            return (round / targets.size).toString()
+        }
+
+        private fun compare(bones: Int, solvers: List<IkTarget.Solver>, reporter: TestReporter) {
+            val targets = IkSolverTest.reachableTargets(bones, TARGETS)
+            reporter.publishEntry(solvers.associate { solver ->
+                "$bones bones, $solver per solve" to measure(bones, solver, targets)
+            })
+        }
+    }
+
+    @Test
+    fun twoBone(reporter: TestReporter) =
+        compare(2, listOf(IkTarget.Solver.CCD, IkTarget.Solver.TWO_BONE), reporter)
+
+    @Test
+    fun fabrik(reporter: TestReporter) =
+        compare(6, listOf(IkTarget.Solver.CCD, IkTarget.Solver.FABRIK), reporter)
+}
@@ -0,0 +1,49 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.test.animation.KeyFrameDataTest
+
+class KeyFrameDataBenchmark {
+    companion object {
+        private const val WARMUP_ROUNDS = 5
+        private const val MEASURE_ROUNDS = 10
+
+        private fun <T : Any> measure(channel: AnimationChannel<T, *>, result: T): String {
+            val times = KeyFrameDataTest.sampleTimes()
+            val round = measureAverage(WARMUP_ROUNDS, MEASURE_ROUNDS) {
+                for (time in times) {
+                    channel.getKeyFrameData(time, result)
+                }
+            }
+            return (round / times.size).toString()
+        }
+    }
+
+    @Test
+    fun vmdTranslation(reporter: TestReporter) {
+        val (before, after) = KeyFrameDataTest.vmdTranslationChannels()
+        reporter.publishEntry(
+            mapOf(
+                "keyframes" to KeyFrameDataTest.KEYFRAMES.toString(),
+                "float list per sample" to measure(before, Vector3f()),
+                "float array per sample" to measure(after, Vector3f()),
+            )
+        )
+    }
+
+    @Test
+    fun gltfRotation(reporter: TestReporter) {
+        val (before, after) = KeyFrameDataTest.gltfRotationChannels()
+        reporter.publishEntry(
+            mapOf(
+                "keyframes" to KeyFrameDataTest.KEYFRAMES.toString(),
+                "accessor per sample" to measure(before, Quaternionf()),
+                "float array per sample" to measure(after, Quaternionf()),
+            )
+        )
+    }
+}
@@ -0,0 +1,12 @@
+package top.fifthlight.blazerod.benchmark
+
+import kotlin.time.Duration
+import kotlin.time.measureTime
+
+/**
+ * Run [block] [warmupRounds] times, then return the average duration of [rounds] more runs.
+ */
+internal inline fun measureAverage(warmupRounds: Int, rounds: Int, block: () -> Unit): Duration {
+    repeat(warmupRounds) { block() }
+    return measureTime { repeat(rounds) { block() } } / rounds
+}
@@ -0,0 +1,77 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.joml.Matrix4f
+import org.joml.Vector3f
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.test.model.node.RigidBodyPhysicsTest.Companion.body
+import top.fifthlight.blazerod.test.model.node.RigidBodyPhysicsTest.Companion.createScene
+import top.fifthlight.blazerod.test.model.node.RigidBodyPhysicsTest.Companion.joint
+import kotlin.math.sin
+import top.fifthlight.blazerod.model.RigidBodyPhysics as ModelRigidBodyPhysics
+
+class RigidBodyPhysicsBenchmark {
+    companion object {
+        private const val FRAME_TIME = 1f / 60f
+        private const val MAX_STEPS = 3
+        private const val BODIES = 16
+        private const val WARMUP_FRAMES = 60
+        private const val MEASURE_FRAMES = 240
+        private val INSTANCES = listOf(1, 10, 30)
+    }
+
+    @Test
+    fun instanceScaling(reporter: TestReporter) {
+        // A strand of capsules hanging from a swaying bone, brushing against a sphere
+        val bones = List(BODIES) { index -> Vector3f(0f, if (index == 0) 0f else -1f, 0f) }
+        val bodies = List(BODIES) { index ->
+            body(
+                nodeIndex = index,
+                position = Vector3f(0f, -index.toFloat(), 0f),
+                shape = ModelRigidBodyPhysics.Shape.Capsule(radius = .2f, height = .6f),
+                mode = if (index == 0) {
+                    ModelRigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE
+                } else {
+                    ModelRigidBodyPhysics.RigidBody.Mode.PHYSICS
+                },
+                group = 1,
+                collisionMask = 0b01,
+            )
+        } + body(
+            nodeIndex = -1,
+            position = Vector3f(1f, -BODIES / 2f, 0f),
+            shape = ModelRigidBodyPhysics.Shape.Sphere(1f),
+            mode = ModelRigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE,
+            group = 0,
+            collisionMask = 0b10,
+        )
+        val joints = (1 until BODIES).map { index ->
+            joint(
+                rigidBodyA = index - 1,
+                rigidBodyB = index,
+                position = Vector3f(0f, .5f - index, 0f),
+                rotationLimit = Vector3f(.5f),
+                rotationSpring = Vector3f(10f),
+            )
+        }
+        val scene = createScene(bones, bodies, joints)
+        val sway = Matrix4f()
+
+        reporter.publishEntry(INSTANCES.associate { count ->
+            val instances = List(count) { ModelInstance(scene, TransformStorage.Type.MAP) }
+            var frame = 0
+            val time = measureAverage(WARMUP_FRAMES, MEASURE_FRAMES) {
+                sway.rotationZ(sin(frame++ * FRAME_TIME * 4f) * .5f)
+                for (instance in instances) {
+                    instance.setTransformMatrix(0, TransformId.RELATIVE_ANIMATION, sway)
+                    instance.advancePhysics(FRAME_TIME, MAX_STEPS)
+                    instance.updateRenderData()
+                }
+            }
+            "$count instances of $BODIES rigid bodies per frame" to time.toString()
+        })
+    }
+}
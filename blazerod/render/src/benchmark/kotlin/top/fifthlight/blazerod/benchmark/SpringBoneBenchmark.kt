@@ -0,0 +1,36 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.test.model.node.SpringBoneTest
+
+class SpringBoneBenchmark {
+    companion object {
+        private const val FRAME_TIME = 1f / 60f
+        private const val MAX_STEPS = 3
+        private const val INSTANCES = 48
+        private const val BONES = 8
+        private const val WARMUP_FRAMES = 60
+        private const val MEASURE_FRAMES = 240
+    }
+
+    @Test
+    fun manyInstances(reporter: TestReporter) {
+        val scene = SpringBoneTest.createChain(BONES)
+        val instances = List(INSTANCES) { ModelInstance(scene, TransformStorage.Type.MAP) }
+        val frame = measureAverage(WARMUP_FRAMES, MEASURE_FRAMES) {
+            for (instance in instances) {
+                instance.advancePhysics(FRAME_TIME, MAX_STEPS)
+                instance.updateRenderData()
+            }
+        }
+        reporter.publishEntry(
+            mapOf(
+                "$INSTANCES instances of $BONES spring bones per frame" to frame.toString(),
+                "per instance" to (frame / INSTANCES).toString(),
+            )
+        )
+    }
+}
@@ -0,0 +1,38 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.node.RenderNode
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.forEach
+import top.fifthlight.blazerod.test.model.node.UpdatePlanTest
+
+class UpdatePlanBenchmark {
+    companion object {
+        private const val WARMUP_FRAMES = 2000
+        private const val MEASURE_FRAMES = 5000
+    }
+
+    @Test
+    fun update400Bones(reporter: TestReporter) {
+        val scene = UpdatePlanTest.createSkeleton()
+        val sortedNodes = mutableListOf<RenderNode>().also { list -> scene.rootNode.forEach { list.add(it) } }
+
+        fun measure(update: (ModelInstance) -> Unit): String {
+            val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+            var frame = 0
+            return measureAverage(WARMUP_FRAMES, MEASURE_FRAMES) {
+                UpdatePlanTest.animate(instance, frame++)
+                update(instance)
+            }.toString()
+        }
+
+        reporter.publishEntry(
+            mapOf(
+                "legacy walk per instance" to measure { UpdatePlanTest.legacyUpdateRenderData(it, sortedNodes) },
+                "update plan per instance" to measure { it.updateRenderData() },
+            )
+        )
+    }
+}
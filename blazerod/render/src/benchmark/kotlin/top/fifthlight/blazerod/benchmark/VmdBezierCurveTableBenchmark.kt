@@ -0,0 +1,77 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import top.fifthlight.blazerod.model.vmd.VmdBezierCurveTable
+import top.fifthlight.blazerod.test.model.vmd.VmdBezierCurveTableTest
+import kotlin.math.abs
+
+class VmdBezierCurveTableBenchmark {
+    companion object {
+        private const val DELTA_STEPS = VmdBezierCurveTableTest.DELTA_STEPS
+        private const val WARMUP_ROUNDS = 20
+        private const val MEASURE_ROUNDS = 50
+
+        // The solver VmdBezierChannelComponent used before the curve table
+        private fun legacyResolve(p1X: UByte, p1Y: UByte, p2X: UByte, p2Y: UByte, delta: Float): Float {
+            val x1 = p1X.toFloat() / 127f
+            val y1 = p1Y.toFloat() / 127f
+            val x2 = p2X.toFloat() / 127f
+            val y2 = p2Y.toFloat() / 127f
+
+            fun bezier(p1: Float, p2: Float, t: Float): Float {
+                val t_ = 1 - t
+                return 3 * t_ * t_ * t * p1 + 3 * t_ * t * t * p2 + t * t * t
+            }
+
+            var low = 0f
+            var high = 1f
+            var t = 0f
+            for (i in 0 until 100) {
+                t = (low + high) / 2f
+                val currentX = bezier(x1, x2, t)
+                if (abs(currentX - delta) < 1e-6f) {
+                    break
+                }
+                if (currentX < delta) {
+                    low = t
+                } else {
+                    high = t
+                }
+            }
+            return bezier(y1, y2, t)
+        }
+    }
+
+    @Test
+    fun resolve(reporter: TestReporter) {
+        val curves = VmdBezierCurveTableTest.curves
+        val table = VmdBezierCurveTable()
+        val indices = curves.map { table.add(it[0].toUByte(), it[1].toUByte(), it[2].toUByte(), it[3].toUByte()) }
+        val bytes = curves.map { curve -> curve.map { it.toUByte() } }
+        var sink = 0f
+
+        fun measure(resolve: (Int, Float) -> Float): String {
+            val round = measureAverage(WARMUP_ROUNDS, MEASURE_ROUNDS) {
+                for (curve in curves.indices) {
+                    for (step in 0..DELTA_STEPS) {
+                        sink += resolve(curve, step.toFloat() / DELTA_STEPS)
+                    }
+                }
+            }
+            return (round / (curves.size * (DELTA_STEPS + 1))).toString()
+        }
+
+        reporter.publishEntry(
+            mapOf(
+                "bisection per resolve" to measure { curve, delta ->
+                    val (p1X, p1Y, p2X, p2Y) = bytes[curve]
+                    legacyResolve(p1X, p1Y, p2X, p2Y, delta)
+                },
+                "curve table per resolve" to measure { curve, delta -> table.resolve(indices[curve], delta) },
+                // Keeps the results alive, so the JIT can't drop the calls
+                "checksum" to sink.toString(),
+            )
+        )
+    }
+}
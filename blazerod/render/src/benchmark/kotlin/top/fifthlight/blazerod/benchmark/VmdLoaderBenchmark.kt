@@ -0,0 +1,34 @@
+package top.fifthlight.blazerod.benchmark
+
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.junit.jupiter.api.io.TempDir
+import top.fifthlight.blazerod.model.vmd.VmdLoader
+import top.fifthlight.blazerod.test.model.vmd.VmdLoaderTest
+import java.nio.file.Path
+import kotlin.random.Random
+
+class VmdLoaderBenchmark {
+    companion object {
+        private const val BONES = 200
+        private const val FRAMES = 1000
+        private const val WARMUP_ROUNDS = 3
+        private const val MEASURE_ROUNDS = 5
+    }
+
+    @Test
+    fun largeFile(@TempDir directory: Path, reporter: TestReporter) {
+        val file = directory.resolve("stage.vmd")
+        VmdLoaderTest.writeVmd(file, VmdLoaderTest.randomBones(Random(2), BONES, FRAMES), listOf(), 0)
+
+        val loader = VmdLoader()
+        reporter.publishEntry(
+            mapOf(
+                "bone keyframes" to (BONES * FRAMES).toString(),
+                "load" to measureAverage(WARMUP_ROUNDS, MEASURE_ROUNDS) {
+                    loader.load(file, file.parent)
+                }.toString(),
+            )
+        )
+    }
+}
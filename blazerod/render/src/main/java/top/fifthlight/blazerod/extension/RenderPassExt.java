@@ -11,5 +11,7 @@ public interface RenderPassExt {
 
     void blazerod$setStorageBuffer(@NotNull String name, GpuBufferSlice buffer);
 
+    void blazerod$removeStorageBuffer(@NotNull String name);
+
     void blazerod$draw(int baseVertex, int firstIndex, int count, int instanceCount);
 }
\ No newline at end of file
@@ -68,6 +68,11 @@ public abstract class RenderPassImplMixin implements RenderPassExtInternal {
         storageBuffers.put(name, buffer);
     }
 
+    @Override
+    public void blazerod$removeStorageBuffer(@NotNull String name) {
+        storageBuffers.remove(name);
+    }
+
     @NotNull
     @Override
     public Map<String, GpuBufferSlice> blazerod$getStorageBuffers() {
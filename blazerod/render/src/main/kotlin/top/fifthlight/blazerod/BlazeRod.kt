@@ -9,6 +9,7 @@ import net.minecraft.client.gl.RenderPassImpl
 import top.fifthlight.armorstand.debug.ResourceCountTrackerFrame
 import top.fifthlight.blazerod.debug.*
 import top.fifthlight.blazerod.event.RenderEvents
+import top.fifthlight.blazerod.model.node.TransformStorage
 import top.fifthlight.blazerod.model.resource.RenderTexture
 import top.fifthlight.blazerod.model.uniform.UniformBuffer
 import top.fifthlight.blazerod.util.ThreadExecutorDispatcher
@@ -24,10 +25,22 @@ object BlazeRod: ClientModInitializer {
 
     lateinit var mainDispatcher: CoroutineDispatcher
     var debug = false
+    var transformStorageType = TransformStorage.Type.MAP
+
+    // Let IK use the two bone and FABRIK solvers where a chain allows, instead of CCD everywhere
+    var fastIkSolvers = false
 
     override fun onInitializeClient() {
         mainDispatcher = ThreadExecutorDispatcher(MinecraftClient.getInstance())
 
+        if (System.getProperty("blazerod.transform.soa") == "true") {
+            transformStorageType = TransformStorage.Type.SOA
+        }
+
+        if (System.getProperty("blazerod.ik.fast") == "true") {
+            fastIkSolvers = true
+        }
+
         if (System.getProperty("blazerod.debug") == "true") {
             debug = true
             RenderPassImpl.IS_DEVELOPMENT = true
@@ -5,74 +5,135 @@ import org.joml.Vector3f
 import top.fifthlight.blazerod.model.ModelInstance
 import top.fifthlight.blazerod.model.TransformId
 import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameIndexer
 import top.fifthlight.blazerod.model.resource.CameraTransform
 import top.fifthlight.blazerod.model.resource.RenderExpression
 import top.fifthlight.blazerod.model.resource.RenderExpressionGroup
 import top.fifthlight.blazerod.model.util.MutableFloat
 
-sealed class AnimationChannelItem<T : Any, D>(
-    val channel: AnimationChannel<T, D>
-) {
+sealed class AnimationChannelItem {
+    abstract val duration: Float
+
     abstract fun apply(instance: ModelInstance, time: Float)
 
+    /**
+     * Apply with a keyframe search cursor owned by the caller, see [AnimationPlayback].
+     */
+    open fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) =
+        apply(instance, time)
+
+    // Returns false if the item doesn't animate a node transform, and must be applied instead
+    open fun sample(pose: PoseBuffer, time: Float, cursor: AnimationKeyFrameIndexer.FindResult): Boolean = false
+
+    // Items sampling a source channel on every apply
+    sealed class Sampled<T : Any, D>(
+        val channel: AnimationChannel<T, D>,
+    ) : AnimationChannelItem() {
+        override val duration: Float
+            get() = channel.duration
+
+        // Cursor for callers without their own, shared by every instance playing this item
+        private val sharedCursor = AnimationKeyFrameIndexer.FindResult()
+
+        override fun apply(instance: ModelInstance, time: Float) = apply(instance, time, sharedCursor)
+
+        abstract override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult)
+    }
+
     class TranslationItem(
-        private val index: Int,
-        private val transformId: TransformId,
+        val index: Int,
+        val transformId: TransformId,
         channel: AnimationChannel<Vector3f, Unit>,
-    ) : AnimationChannelItem<Vector3f, Unit>(channel) {
+    ) : Sampled<Vector3f, Unit>(channel) {
         init {
             require(channel.type == AnimationChannel.Type.Translation) { "Unmatched animation channel: want translation, but got ${channel.type}" }
         }
 
-        override fun apply(instance: ModelInstance, time: Float) {
+        private val value = Vector3f()
+
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
             instance.setTransformDecomposed(index, transformId) {
-                channel.getKeyFrameData(time, translation)
+                channel.getKeyFrameData(time, translation, cursor)
+            }
+        }
+
+        override fun sample(pose: PoseBuffer, time: Float, cursor: AnimationKeyFrameIndexer.FindResult): Boolean {
+            val slot = pose.slotOf(index, transformId)
+            if (slot < 0) {
+                return false
             }
+            channel.getKeyFrameData(time, value, cursor)
+            pose.setTranslation(slot, value)
+            return true
         }
     }
 
     class ScaleItem(
-        private val index: Int,
-        private val transformId: TransformId,
+        val index: Int,
+        val transformId: TransformId,
         channel: AnimationChannel<Vector3f, Unit>,
-    ) : AnimationChannelItem<Vector3f, Unit>(channel) {
+    ) : Sampled<Vector3f, Unit>(channel) {
         init {
             require(channel.type == AnimationChannel.Type.Scale) { "Unmatched animation channel: want scale, but got ${channel.type}" }
         }
 
-        override fun apply(instance: ModelInstance, time: Float) {
+        private val value = Vector3f()
+
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
             instance.setTransformDecomposed(index, transformId) {
-                channel.getKeyFrameData(time, scale)
+                channel.getKeyFrameData(time, scale, cursor)
+            }
+        }
+
+        override fun sample(pose: PoseBuffer, time: Float, cursor: AnimationKeyFrameIndexer.FindResult): Boolean {
+            val slot = pose.slotOf(index, transformId)
+            if (slot < 0) {
+                return false
             }
+            channel.getKeyFrameData(time, value, cursor)
+            pose.setScale(slot, value)
+            return true
         }
     }
 
     class RotationItem(
-        private val index: Int,
-        private val transformId: TransformId,
+        val index: Int,
+        val transformId: TransformId,
         channel: AnimationChannel<Quaternionf, Unit>,
-    ) : AnimationChannelItem<Quaternionf, Unit>(channel) {
+    ) : Sampled<Quaternionf, Unit>(channel) {
         init {
             require(channel.type == AnimationChannel.Type.Rotation) { "Unmatched animation channel: want rotation, but got ${channel.type}" }
         }
 
-        override fun apply(instance: ModelInstance, time: Float) {
+        private val value = Quaternionf()
+
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
             instance.setTransformDecomposed(index, transformId) {
-                channel.getKeyFrameData(time, rotation)
+                channel.getKeyFrameData(time, rotation, cursor)
                 rotation.normalize()
             }
         }
+
+        override fun sample(pose: PoseBuffer, time: Float, cursor: AnimationKeyFrameIndexer.FindResult): Boolean {
+            val slot = pose.slotOf(index, transformId)
+            if (slot < 0) {
+                return false
+            }
+            channel.getKeyFrameData(time, value, cursor)
+            pose.setRotation(slot, value.normalize())
+            return true
+        }
     }
 
     class MorphItem(
         private val primitiveIndex: Int,
         private val targetGroupIndex: Int,
         channel: AnimationChannel<MutableFloat, AnimationChannel.Type.MorphData>,
-    ) : AnimationChannelItem<MutableFloat, AnimationChannel.Type.MorphData>(channel) {
+    ) : Sampled<MutableFloat, AnimationChannel.Type.MorphData>(channel) {
         private val data = MutableFloat()
 
-        override fun apply(instance: ModelInstance, time: Float) {
-            channel.getKeyFrameData(time, data)
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
+            channel.getKeyFrameData(time, data, cursor)
             instance.setGroupWeight(primitiveIndex, targetGroupIndex, data.value)
         }
     }
@@ -88,11 +149,11 @@ sealed class AnimationChannelItem<T : Any, D>(
     class ExpressionItem(
         val expression: RenderExpression,
         channel: AnimationChannel<MutableFloat, AnimationChannel.Type.ExpressionData>,
-    ) : AnimationChannelItem<MutableFloat, AnimationChannel.Type.ExpressionData>(channel) {
+    ) : Sampled<MutableFloat, AnimationChannel.Type.ExpressionData>(channel) {
         private val data = MutableFloat()
 
-        override fun apply(instance: ModelInstance, time: Float) {
-            channel.getKeyFrameData(time, data)
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
+            channel.getKeyFrameData(time, data, cursor)
             expression.apply(instance, data.value)
         }
     }
@@ -100,11 +161,11 @@ sealed class AnimationChannelItem<T : Any, D>(
     class ExpressionGroupItem(
         val group: RenderExpressionGroup,
         channel: AnimationChannel<MutableFloat, AnimationChannel.Type.ExpressionData>,
-    ) : AnimationChannelItem<MutableFloat, AnimationChannel.Type.ExpressionData>(channel) {
+    ) : Sampled<MutableFloat, AnimationChannel.Type.ExpressionData>(channel) {
         private val data = MutableFloat()
 
-        override fun apply(instance: ModelInstance, time: Float) {
-            channel.getKeyFrameData(time, data)
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
+            channel.getKeyFrameData(time, data, cursor)
             for (item in group.items) {
                 val expression = instance.scene.expressions[item.expressionIndex]
                 expression.apply(instance, data.value * item.influence)
@@ -115,11 +176,11 @@ sealed class AnimationChannelItem<T : Any, D>(
     class CameraFovItem(
         val cameraIndex: Int,
         channel: AnimationChannel<MutableFloat, AnimationChannel.Type.CameraData>,
-    ) : AnimationChannelItem<MutableFloat, AnimationChannel.Type.CameraData>(channel) {
+    ) : Sampled<MutableFloat, AnimationChannel.Type.CameraData>(channel) {
         private val data = MutableFloat()
 
-        override fun apply(instance: ModelInstance, time: Float) {
-            channel.getKeyFrameData(time, data)
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
+            channel.getKeyFrameData(time, data, cursor)
             val camera = instance.modelData.cameraTransforms[cameraIndex]
             when (camera) {
                 is CameraTransform.MMD -> camera.fov = data.value
@@ -132,11 +193,11 @@ sealed class AnimationChannelItem<T : Any, D>(
     class MMDCameraDistanceItem(
         val cameraIndex: Int,
         channel: AnimationChannel<MutableFloat, AnimationChannel.Type.CameraData>,
-    ) : AnimationChannelItem<MutableFloat, AnimationChannel.Type.CameraData>(channel) {
+    ) : Sampled<MutableFloat, AnimationChannel.Type.CameraData>(channel) {
         private val data = MutableFloat()
 
-        override fun apply(instance: ModelInstance, time: Float) {
-            channel.getKeyFrameData(time, data)
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
+            channel.getKeyFrameData(time, data, cursor)
             val camera = instance.modelData.cameraTransforms[cameraIndex] as? CameraTransform.MMD ?: return
             camera.distance = data.value
         }
@@ -145,20 +206,20 @@ sealed class AnimationChannelItem<T : Any, D>(
     class MMDCameraTargetItem(
         val cameraIndex: Int,
         channel: AnimationChannel<Vector3f, AnimationChannel.Type.CameraData>,
-    ) : AnimationChannelItem<Vector3f, AnimationChannel.Type.CameraData>(channel) {
-        override fun apply(instance: ModelInstance, time: Float) {
+    ) : Sampled<Vector3f, AnimationChannel.Type.CameraData>(channel) {
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
             val camera = instance.modelData.cameraTransforms[cameraIndex] as? CameraTransform.MMD ?: return
-            channel.getKeyFrameData(time, camera.targetPosition)
+            channel.getKeyFrameData(time, camera.targetPosition, cursor)
         }
     }
 
     class MMDCameraRotationItem(
         val cameraIndex: Int,
         channel: AnimationChannel<Vector3f, AnimationChannel.Type.CameraData>,
-    ) : AnimationChannelItem<Vector3f, AnimationChannel.Type.CameraData>(channel) {
-        override fun apply(instance: ModelInstance, time: Float) {
+    ) : Sampled<Vector3f, AnimationChannel.Type.CameraData>(channel) {
+        override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
             val camera = instance.modelData.cameraTransforms[cameraIndex] as? CameraTransform.MMD ?: return
-            channel.getKeyFrameData(time, camera.rotationEulerAngles)
+            channel.getKeyFrameData(time, camera.rotationEulerAngles, cursor)
         }
     }
 }
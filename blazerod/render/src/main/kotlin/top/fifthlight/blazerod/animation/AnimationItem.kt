@@ -1,15 +1,115 @@
 package top.fifthlight.blazerod.animation
 
+import org.joml.Quaternionf
+import org.joml.Vector3f
 import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import kotlin.math.ceil
 import kotlin.math.min
 
 data class AnimationItem(
     val name: String? = null,
-    val channels: List<AnimationChannelItem<*, *>>,
+    val channels: List<AnimationChannelItem>,
 ) {
-    val duration: Float = channels.takeIf { it.isNotEmpty() }?.maxOf { it.channel.duration } ?: 0f
+    val duration: Float = channels.takeIf { it.isNotEmpty() }?.maxOf { it.duration } ?: 0f
 
     fun apply(instance: ModelInstance, time: Float) = channels.forEach {
         it.apply(instance, min(time, duration))
     }
-}
\ No newline at end of file
+
+    // Resample node transform channels into BakedTransformItems, ordered like the nodes in the update plan
+    fun bake(scene: RenderScene, sampleRate: Float): AnimationItem {
+        require(sampleRate > 0f) { "Bad sample rate: $sampleRate" }
+
+        class NodeChannels(val index: Int, val transformId: TransformId) {
+            var translation: AnimationChannel<Vector3f, *>? = null
+            var rotation: AnimationChannel<Quaternionf, *>? = null
+            var scale: AnimationChannel<Vector3f, *>? = null
+        }
+
+        val nodeChannels = mutableMapOf<Pair<Int, TransformId>, NodeChannels>()
+        val otherChannels = mutableListOf<AnimationChannelItem>()
+        for (channel in channels) {
+            val (index, transformId) = when (channel) {
+                is AnimationChannelItem.TranslationItem -> Pair(channel.index, channel.transformId)
+                is AnimationChannelItem.RotationItem -> Pair(channel.index, channel.transformId)
+                is AnimationChannelItem.ScaleItem -> Pair(channel.index, channel.transformId)
+                is NodeTrackItem -> Pair(channel.index, channel.transformId)
+                else -> {
+                    otherChannels.add(channel)
+                    continue
+                }
+            }
+            require(index in scene.nodes.indices) { "Animation channel targets node $index, which is not in the scene" }
+            val node = nodeChannels.getOrPut(Pair(index, transformId)) { NodeChannels(index, transformId) }
+            when (channel) {
+                is AnimationChannelItem.TranslationItem -> node.translation = channel.channel
+                is AnimationChannelItem.RotationItem -> node.rotation = channel.channel
+                is AnimationChannelItem.ScaleItem -> node.scale = channel.channel
+                is NodeTrackItem -> {
+                    channel.translation?.let { node.translation = it }
+                    channel.rotation?.let { node.rotation = it }
+                    channel.scale?.let { node.scale = it }
+                }
+
+                else -> Unit
+            }
+        }
+
+        val sampleCount = ceil(duration * sampleRate).toInt() + 1
+        val vector = Vector3f()
+        val quaternion = Quaternionf()
+        fun sampleTime(sample: Int) = min(sample / sampleRate, duration)
+
+        val bakedChannels = nodeChannels.values
+            .sortedWith(compareBy({ scene.updatePlan.nodePositions[it.index] }, { it.transformId }))
+            .map { node ->
+                val translations = node.translation?.let { channel ->
+                    FloatArray(sampleCount * 3).also { values ->
+                        for (sample in 0 until sampleCount) {
+                            channel.getKeyFrameData(sampleTime(sample), vector)
+                            values[sample * 3] = vector.x
+                            values[sample * 3 + 1] = vector.y
+                            values[sample * 3 + 2] = vector.z
+                        }
+                    }
+                }
+                val rotations = node.rotation?.let { channel ->
+                    FloatArray(sampleCount * 4).also { values ->
+                        for (sample in 0 until sampleCount) {
+                            channel.getKeyFrameData(sampleTime(sample), quaternion)
+                            quaternion.normalize()
+                            values[sample * 4] = quaternion.x
+                            values[sample * 4 + 1] = quaternion.y
+                            values[sample * 4 + 2] = quaternion.z
+                            values[sample * 4 + 3] = quaternion.w
+                        }
+                    }
+                }
+                val scales = node.scale?.let { channel ->
+                    FloatArray(sampleCount * 3).also { values ->
+                        for (sample in 0 until sampleCount) {
+                            channel.getKeyFrameData(sampleTime(sample), vector)
+                            values[sample * 3] = vector.x
+                            values[sample * 3 + 1] = vector.y
+                            values[sample * 3 + 2] = vector.z
+                        }
+                    }
+                }
+                BakedTransformItem(
+                    index = node.index,
+                    transformId = node.transformId,
+                    sampleRate = sampleRate,
+                    duration = duration,
+                    track = BakedTransformTrack.of(sampleCount, translations, rotations, scales),
+                )
+            }
+
+        return AnimationItem(
+            name = name,
+            channels = bakedChannels + otherChannels,
+        )
+    }
+}
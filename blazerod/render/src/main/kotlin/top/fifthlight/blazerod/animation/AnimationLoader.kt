@@ -3,16 +3,48 @@ package top.fifthlight.blazerod.animation
 import org.joml.Quaternionf
 import org.joml.Vector3f
 import top.fifthlight.blazerod.animation.AnimationChannelItem.*
+import top.fifthlight.blazerod.model.Expression
 import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
 import top.fifthlight.blazerod.model.animation.Animation
 import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
 import top.fifthlight.blazerod.model.util.MutableFloat
 
 object AnimationLoader {
-    fun load(
-        scene: RenderScene,
-        animation: Animation,
-    ): AnimationItem {
+    // Channels with this target are not played on the scene
+    const val NO_TARGET = -1
+
+    // Bump when retarget gives different targets for the same scene and animation, so cached targets are dropped
+    const val RETARGET_VERSION = 1
+
+    // First index of each name and tag, so lookups pick the same item as a linear search from the start
+    private class NameIndex(names: List<Pair<String?, Expression.Tag?>>) {
+        private val byName = HashMap<String, Int>()
+        private val byTag = HashMap<Expression.Tag, Int>()
+
+        init {
+            for ((index, entry) in names.withIndex()) {
+                val (name, tag) = entry
+                name?.let { byName.putIfAbsent(it, index) }
+                tag?.let { byTag.putIfAbsent(it, index) }
+            }
+        }
+
+        fun find(name: String?, tag: Expression.Tag?): Int? {
+            val nameIndex = name?.let { byName[it] }
+            val tagIndex = tag?.let { byTag[it] }
+            return when {
+                nameIndex == null -> tagIndex
+                tagIndex == null -> nameIndex
+                else -> minOf(nameIndex, tagIndex)
+            }
+        }
+    }
+
+    // Expression groups are indexed after all expressions. Only depends on the scene and animation, so it is cached.
+    fun retarget(scene: RenderScene, animation: Animation): IntArray {
         fun AnimationChannel.Type.NodeData.findTargetTransformIndex(): Int? {
             val node = targetNode?.id.let { nodeId -> scene.nodeIdMap[nodeId] }
                 ?: targetNodeName?.let { name -> scene.nodeNameMap[name] }
@@ -22,104 +54,224 @@ object AnimationLoader {
             return node?.nodeIndex
         }
 
-        @Suppress("UNCHECKED_CAST")
-        fun mapAnimationChannel(channel: AnimationChannel<*, *>): AnimationChannelItem<*, *>? {
-            return when (channel.type) {
-                AnimationChannel.Type.Translation -> {
-                    val data = channel.data as AnimationChannel.Type.TransformData
-                    TranslationItem(
-                        index = data.node.findTargetTransformIndex() ?: return null,
-                        transformId = data.transformId,
-                        channel = channel as AnimationChannel<Vector3f, Unit>,
-                    )
-                }
-
-                AnimationChannel.Type.Scale -> {
-                    val data = channel.data as AnimationChannel.Type.TransformData
-                    ScaleItem(
-                        index = data.node.findTargetTransformIndex() ?: return null,
-                        transformId = data.transformId,
-                        channel = channel as AnimationChannel<Vector3f, Unit>,
-                    )
+        val expressions by lazy { NameIndex(scene.expressions.map { Pair(it.name, it.tag) }) }
+        val expressionGroups by lazy { NameIndex(scene.expressionGroups.map { Pair(it.name, it.tag) }) }
+        val cameras by lazy {
+            HashMap<String?, Int>().also { cameras ->
+                for ((index, camera) in scene.cameras.withIndex()) {
+                    cameras.putIfAbsent(camera.camera.name, index)
                 }
+            }
+        }
 
+        return IntArray(animation.channels.size) { channelIndex ->
+            val channel = animation.channels[channelIndex]
+            val target = when (channel.type) {
+                AnimationChannel.Type.Translation,
+                AnimationChannel.Type.Scale,
                 AnimationChannel.Type.Rotation -> {
-                    val data = channel.data as AnimationChannel.Type.TransformData
-                    RotationItem(
-                        index = data.node.findTargetTransformIndex() ?: return null,
-                        transformId = data.transformId,
-                        channel = channel as AnimationChannel<Quaternionf, Unit>,
-                    )
+                    (channel.data as AnimationChannel.Type.TransformData).node.findTargetTransformIndex()
                 }
 
                 AnimationChannel.Type.Morph -> {
-                    val data = channel.data as AnimationChannel.Type.MorphData
-                    MorphItem(
-                        primitiveIndex = data.nodeData.findTargetTransformIndex() ?: return null,
-                        targetGroupIndex = data.targetMorphGroupIndex,
-                        channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.MorphData>,
-                    )
+                    (channel.data as AnimationChannel.Type.MorphData).nodeData.findTargetTransformIndex()
                 }
 
                 AnimationChannel.Type.Expression -> {
-                    val channel =
-                        channel as AnimationChannel<MutableFloat, AnimationChannel.Type.ExpressionData>
-                    val data = channel.data
-                    scene.expressions.firstOrNull { (it.name != null && it.name == data.name) || (it.tag != null && it.tag == data.tag) }
-                        ?.let { ExpressionItem(it, channel) }
-                        ?: scene.expressionGroups.firstOrNull { (it.name != null && it.name == data.name) || (it.tag != null && it.tag == data.tag) }
-                            ?.let { ExpressionGroupItem(it, channel) }
+                    val data = channel.data as AnimationChannel.Type.ExpressionData
+                    expressions.find(data.name, data.tag)
+                        ?: expressionGroups.find(data.name, data.tag)?.let { scene.expressions.size + it }
+                }
+
+                AnimationChannel.Type.CameraFov,
+                AnimationChannel.Type.MMDCameraDistance,
+                AnimationChannel.Type.MMDCameraRotation,
+                AnimationChannel.Type.MMDCameraTarget -> {
+                    cameras[(channel.data as AnimationChannel.Type.CameraData).cameraName]
                 }
+            }
+            target ?: NO_TARGET
+        }
+    }
 
-                AnimationChannel.Type.CameraFov -> {
-                    val data = channel.data as AnimationChannel.Type.CameraData
-                    val cameraIndex =
-                        scene.cameras.indexOfFirst { it.camera.name == data.cameraName }.takeIf { it >= 0 }
-                            ?: return null
-                    CameraFovItem(
-                        cameraIndex = cameraIndex,
-                        channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.CameraData>,
-                    )
+    // Check targets cached elsewhere still point at items with the channel's node ID, name or tag
+    fun isValidTargets(scene: RenderScene, animation: Animation, targets: IntArray): Boolean {
+        fun AnimationChannel.Type.NodeData.matches(target: Int): Boolean {
+            val node = scene.nodes.getOrNull(target) ?: return false
+            return targetNode?.let { node.nodeId == it.id } == true ||
+                    targetNodeName?.let { node.nodeName == it } == true ||
+                    targetHumanoidTag?.let { it in node.humanoidTags } == true
+        }
+
+        fun matchesExpression(name: String?, tag: Expression.Tag?, itemName: String?, itemTag: Expression.Tag?) =
+            (name != null && itemName == name) || (tag != null && itemTag == tag)
+
+        if (targets.size != animation.channels.size) {
+            return false
+        }
+        for ((index, channel) in animation.channels.withIndex()) {
+            val target = targets[index]
+            if (target == NO_TARGET) {
+                continue
+            }
+            if (target < 0) {
+                return false
+            }
+            val valid = when (channel.type) {
+                AnimationChannel.Type.Translation,
+                AnimationChannel.Type.Scale,
+                AnimationChannel.Type.Rotation -> {
+                    (channel.data as AnimationChannel.Type.TransformData).node.matches(target)
                 }
 
-                AnimationChannel.Type.MMDCameraDistance -> {
-                    val data = channel.data as AnimationChannel.Type.CameraData
-                    val cameraIndex =
-                        scene.cameras.indexOfFirst { it.camera.name == data.cameraName }.takeIf { it >= 0 }
-                            ?: return null
-                    MMDCameraDistanceItem(
-                        cameraIndex = cameraIndex,
-                        channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.CameraData>,
-                    )
+                AnimationChannel.Type.Morph -> {
+                    (channel.data as AnimationChannel.Type.MorphData).nodeData.matches(target)
                 }
 
-                AnimationChannel.Type.MMDCameraRotation -> {
-                    val data = channel.data as AnimationChannel.Type.CameraData
-                    val cameraIndex =
-                        scene.cameras.indexOfFirst { it.camera.name == data.cameraName }.takeIf { it >= 0 }
-                            ?: return null
-                    MMDCameraRotationItem(
-                        cameraIndex = cameraIndex,
-                        channel = channel as AnimationChannel<Vector3f, AnimationChannel.Type.CameraData>,
-                    )
+                AnimationChannel.Type.Expression -> {
+                    val data = channel.data as AnimationChannel.Type.ExpressionData
+                    if (target < scene.expressions.size) {
+                        val expression = scene.expressions[target]
+                        matchesExpression(data.name, data.tag, expression.name, expression.tag)
+                    } else {
+                        scene.expressionGroups.getOrNull(target - scene.expressions.size)?.let { group ->
+                            matchesExpression(data.name, data.tag, group.name, group.tag)
+                        } ?: false
+                    }
                 }
 
+                AnimationChannel.Type.CameraFov,
+                AnimationChannel.Type.MMDCameraDistance,
+                AnimationChannel.Type.MMDCameraRotation,
                 AnimationChannel.Type.MMDCameraTarget -> {
-                    val data = channel.data as AnimationChannel.Type.CameraData
-                    val cameraIndex =
-                        scene.cameras.indexOfFirst { it.camera.name == data.cameraName }.takeIf { it >= 0 }
-                            ?: return null
-                    MMDCameraTargetItem(
-                        cameraIndex = cameraIndex,
-                        channel = channel as AnimationChannel<Vector3f, AnimationChannel.Type.CameraData>,
-                    )
+                    val cameraName = (channel.data as AnimationChannel.Type.CameraData).cameraName
+                    scene.cameras.getOrNull(target)?.camera?.name == cameraName
                 }
             }
+            if (!valid) {
+                return false
+            }
+        }
+        return true
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun mapAnimationChannel(
+        scene: RenderScene,
+        channel: AnimationChannel<*, *>,
+        target: Int,
+    ): AnimationChannelItem? {
+        if (target == NO_TARGET) {
+            return null
         }
+        return when (channel.type) {
+            AnimationChannel.Type.Translation -> TranslationItem(
+                index = target,
+                transformId = (channel.data as AnimationChannel.Type.TransformData).transformId,
+                channel = channel as AnimationChannel<Vector3f, Unit>,
+            )
+
+            AnimationChannel.Type.Scale -> ScaleItem(
+                index = target,
+                transformId = (channel.data as AnimationChannel.Type.TransformData).transformId,
+                channel = channel as AnimationChannel<Vector3f, Unit>,
+            )
+
+            AnimationChannel.Type.Rotation -> RotationItem(
+                index = target,
+                transformId = (channel.data as AnimationChannel.Type.TransformData).transformId,
+                channel = channel as AnimationChannel<Quaternionf, Unit>,
+            )
+
+            AnimationChannel.Type.Morph -> MorphItem(
+                primitiveIndex = target,
+                targetGroupIndex = (channel.data as AnimationChannel.Type.MorphData).targetMorphGroupIndex,
+                channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.MorphData>,
+            )
+
+            AnimationChannel.Type.Expression -> {
+                val channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.ExpressionData>
+                if (target < scene.expressions.size) {
+                    ExpressionItem(scene.expressions[target], channel)
+                } else {
+                    ExpressionGroupItem(scene.expressionGroups[target - scene.expressions.size], channel)
+                }
+            }
+
+            AnimationChannel.Type.CameraFov -> CameraFovItem(
+                cameraIndex = target,
+                channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.CameraData>,
+            )
+
+            AnimationChannel.Type.MMDCameraDistance -> MMDCameraDistanceItem(
+                cameraIndex = target,
+                channel = channel as AnimationChannel<MutableFloat, AnimationChannel.Type.CameraData>,
+            )
+
+            AnimationChannel.Type.MMDCameraRotation -> MMDCameraRotationItem(
+                cameraIndex = target,
+                channel = channel as AnimationChannel<Vector3f, AnimationChannel.Type.CameraData>,
+            )
 
+            AnimationChannel.Type.MMDCameraTarget -> MMDCameraTargetItem(
+                cameraIndex = target,
+                channel = channel as AnimationChannel<Vector3f, AnimationChannel.Type.CameraData>,
+            )
+        }
+    }
+
+    private fun AnimationChannelItem.trackKey(): Triple<AnimationKeyFrameIndexer, Int, TransformId>? {
+        val (channel, index, transformId) = when (this) {
+            is TranslationItem -> Triple(channel, index, transformId)
+            is RotationItem -> Triple(channel, index, transformId)
+            is ScaleItem -> Triple(channel, index, transformId)
+            else -> return null
+        }
+        val indexer = (channel as? SimpleAnimationChannel<*, *>)?.indexer ?: return null
+        return Triple(indexer, index, transformId)
+    }
+
+    // Transform channels of one node sharing an indexer are played as one track, in place of the first of them
+    @Suppress("UNCHECKED_CAST")
+    private fun fuseNodeTracks(items: List<AnimationChannelItem>): List<AnimationChannelItem> {
+        val groups = items.groupBy { it.trackKey() }
+        return items.mapNotNull { item ->
+            val key = item.trackKey() ?: return@mapNotNull item
+            val group = groups.getValue(key)
+            when {
+                group.size == 1 || group.distinctBy { it::class }.size != group.size -> item
+                group.first() !== item -> null
+                else -> NodeTrackItem(
+                    index = key.second,
+                    transformId = key.third,
+                    indexer = key.first,
+                    translation = group.firstNotNullOfOrNull { (it as? TranslationItem)?.channel }
+                            as SimpleAnimationChannel<Vector3f, *>?,
+                    rotation = group.firstNotNullOfOrNull { (it as? RotationItem)?.channel }
+                            as SimpleAnimationChannel<Quaternionf, *>?,
+                    scale = group.firstNotNullOfOrNull { (it as? ScaleItem)?.channel }
+                            as SimpleAnimationChannel<Vector3f, *>?,
+                )
+            }
+        }
+    }
+
+    /**
+     * Bind [animation] to [scene], with channel targets from [retarget].
+     */
+    fun load(
+        scene: RenderScene,
+        animation: Animation,
+        targets: IntArray = retarget(scene, animation),
+    ): AnimationItem {
+        require(targets.size == animation.channels.size) {
+            "Got ${targets.size} targets for ${animation.channels.size} channels"
+        }
         return AnimationItem(
             name = animation.name,
-            channels = animation.channels.mapNotNull(::mapAnimationChannel)
+            channels = fuseNodeTracks(animation.channels.mapIndexedNotNull { index, channel ->
+                mapAnimationChannel(scene, channel, targets[index])
+            }),
         )
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package top.fifthlight.blazerod.animation
+
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameIndexer
+import kotlin.math.min
+
+// Keyframe cursors of one instance, as instances playing a shared AnimationItem at different times move its cursors
+class AnimationPlayback(val item: AnimationItem) {
+    private val cursors = Array(item.channels.size) { AnimationKeyFrameIndexer.FindResult() }
+
+    // Lookups which fell back to a binary search
+    val searches: Int
+        get() {
+            var searches = 0
+            for (cursor in cursors) {
+                searches += cursor.searches
+            }
+            return searches
+        }
+
+    fun apply(instance: ModelInstance, time: Float) {
+        val time = min(time, item.duration)
+        val channels = item.channels
+        for (i in channels.indices) {
+            channels[i].apply(instance, time, cursors[i])
+        }
+    }
+
+    fun sample(pose: PoseBuffer, time: Float, instance: ModelInstance?) {
+        val time = min(time, item.duration)
+        val channels = item.channels
+        for (i in channels.indices) {
+            val channel = channels[i]
+            if (!channel.sample(pose, time, cursors[i])) {
+                instance?.let { channel.apply(it, time, cursors[i]) }
+            }
+        }
+    }
+}
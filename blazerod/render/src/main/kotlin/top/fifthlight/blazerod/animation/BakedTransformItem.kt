@@ -0,0 +1,272 @@
+package top.fifthlight.blazerod.animation
+
+import org.joml.Quaternionf
+import org.joml.Quaternionfc
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameIndexer
+import kotlin.math.abs
+import kotlin.math.floor
+import kotlin.math.sqrt
+
+// Node transform sampled at a fixed rate. Rotations use smallest-three in 20 bits, translations 16-bit fixed point
+class BakedTransformTrack private constructor(
+    val translationSamples: Int,
+    private val translations: ShortArray?,
+    private val translationMin: Vector3fc,
+    private val translationStep: Vector3fc,
+    val rotationSamples: Int,
+    private val rotations: LongArray?,
+    val scaleSamples: Int,
+    private val scales: FloatArray?,
+) {
+    companion object {
+        private const val ROTATION_BITS = 20
+        private const val ROTATION_MASK = (1L shl ROTATION_BITS) - 1
+        private const val ROTATION_RANGE = 0.70710677f
+        private const val TRANSLATION_STEPS = 65535f
+
+        fun encodeRotation(rotation: Quaternionfc): Long {
+            val x = rotation.x()
+            val y = rotation.y()
+            val z = rotation.z()
+            val w = rotation.w()
+            var largest = 0
+            var largestValue = abs(x)
+            if (abs(y) > largestValue) {
+                largest = 1
+                largestValue = abs(y)
+            }
+            if (abs(z) > largestValue) {
+                largest = 2
+                largestValue = abs(z)
+            }
+            if (abs(w) > largestValue) {
+                largest = 3
+            }
+            // q and -q are the same rotation, so the dropped component is always made positive
+            val sign = if (rotation[largest] < 0) -1f else 1f
+            var packed = largest.toLong()
+            var shift = 2
+            for (component in 0 until 4) {
+                if (component == largest) {
+                    continue
+                }
+                val normalized = (rotation[component] * sign / ROTATION_RANGE).coerceIn(-1f, 1f) * .5f + .5f
+                val quantized = (normalized * ROTATION_MASK + .5f).toLong()
+                packed = packed or (quantized shl shift)
+                shift += ROTATION_BITS
+            }
+            return packed
+        }
+
+        private fun decodeComponent(packed: Long, shift: Int): Float {
+            val quantized = (packed ushr shift) and ROTATION_MASK
+            return (quantized.toFloat() / ROTATION_MASK * 2f - 1f) * ROTATION_RANGE
+        }
+
+        fun decodeRotation(packed: Long, result: Quaternionf): Quaternionf {
+            val a = decodeComponent(packed, 2)
+            val b = decodeComponent(packed, 2 + ROTATION_BITS)
+            val c = decodeComponent(packed, 2 + ROTATION_BITS * 2)
+            val largest = sqrt((1f - a * a - b * b - c * c).coerceAtLeast(0f))
+            return when ((packed and 3L).toInt()) {
+                0 -> result.set(largest, a, b, c)
+                1 -> result.set(a, largest, b, c)
+                2 -> result.set(a, b, largest, c)
+                else -> result.set(a, b, c, largest)
+            }
+        }
+
+        private operator fun Quaternionfc.get(component: Int) = when (component) {
+            0 -> x()
+            1 -> y()
+            2 -> z()
+            else -> w()
+        }
+
+        private fun isConstant(values: FloatArray, components: Int): Boolean {
+            for (i in components until values.size) {
+                if (values[i] != values[i % components]) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        fun of(
+            sampleCount: Int,
+            translations: FloatArray?,
+            rotations: FloatArray?,
+            scales: FloatArray?,
+        ): BakedTransformTrack {
+            require(sampleCount > 0) { "Baked track must have at least one sample" }
+            translations?.let { require(it.size == sampleCount * 3) { "Bad translation sample size: ${it.size}" } }
+            rotations?.let { require(it.size == sampleCount * 4) { "Bad rotation sample size: ${it.size}" } }
+            scales?.let { require(it.size == sampleCount * 3) { "Bad scale sample size: ${it.size}" } }
+
+            val translationSamples = when {
+                translations == null -> 0
+                isConstant(translations, 3) -> 1
+                else -> sampleCount
+            }
+            val translationMin = Vector3f(Float.POSITIVE_INFINITY)
+            val translationMax = Vector3f(Float.NEGATIVE_INFINITY)
+            val translationStep = Vector3f()
+            val quantizedTranslations = translations?.let {
+                for (i in 0 until translationSamples) {
+                    for (axis in 0 until 3) {
+                        val value = translations[i * 3 + axis]
+                        translationMin.setComponent(axis, minOf(translationMin[axis], value))
+                        translationMax.setComponent(axis, maxOf(translationMax[axis], value))
+                    }
+                }
+                translationMax.sub(translationMin, translationStep).div(TRANSLATION_STEPS)
+                ShortArray(translationSamples * 3) { index ->
+                    val axis = index % 3
+                    val step = translationStep[axis]
+                    if (step == 0f) {
+                        0
+                    } else {
+                        ((translations[index] - translationMin[axis]) / step + .5f).toInt().toShort()
+                    }
+                }
+            }
+
+            val rotationSamples = when {
+                rotations == null -> 0
+                isConstant(rotations, 4) -> 1
+                else -> sampleCount
+            }
+            val encodedRotations = rotations?.let {
+                val rotation = Quaternionf()
+                LongArray(rotationSamples) { index ->
+                    rotation.set(
+                        rotations[index * 4],
+                        rotations[index * 4 + 1],
+                        rotations[index * 4 + 2],
+                        rotations[index * 4 + 3],
+                    ).normalize()
+                    encodeRotation(rotation)
+                }
+            }
+
+            val scaleSamples = when {
+                scales == null -> 0
+                isConstant(scales, 3) -> 1
+                else -> sampleCount
+            }
+            val scaleValues = scales?.copyOf(scaleSamples * 3)
+
+            return BakedTransformTrack(
+                translationSamples = translationSamples,
+                translations = quantizedTranslations,
+                translationMin = translationMin,
+                translationStep = translationStep,
+                rotationSamples = rotationSamples,
+                rotations = encodedRotations,
+                scaleSamples = scaleSamples,
+                scales = scaleValues,
+            )
+        }
+    }
+
+    val byteSize: Int
+        get() = (translations?.size ?: 0) * 2 + (rotations?.size ?: 0) * 8 + (scales?.size ?: 0) * 4
+
+    fun getTranslation(index: Int, result: Vector3f): Vector3f {
+        val translations = translations ?: return result
+        val offset = index.coerceAtMost(translationSamples - 1) * 3
+        return result.set(
+            translationMin.x() + (translations[offset].toInt() and 0xFFFF) * translationStep.x(),
+            translationMin.y() + (translations[offset + 1].toInt() and 0xFFFF) * translationStep.y(),
+            translationMin.z() + (translations[offset + 2].toInt() and 0xFFFF) * translationStep.z(),
+        )
+    }
+
+    fun getRotation(index: Int, result: Quaternionf): Quaternionf {
+        val rotations = rotations ?: return result
+        return decodeRotation(rotations[index.coerceAtMost(rotationSamples - 1)], result)
+    }
+
+    fun getScale(index: Int, result: Vector3f): Vector3f {
+        val scales = scales ?: return result
+        val offset = index.coerceAtMost(scaleSamples - 1) * 3
+        return result.set(scales[offset], scales[offset + 1], scales[offset + 2])
+    }
+
+    val hasTranslation: Boolean
+        get() = translations != null
+
+    val hasRotation: Boolean
+        get() = rotations != null
+
+    val hasScale: Boolean
+        get() = scales != null
+}
+
+class BakedTransformItem(
+    val index: Int,
+    val transformId: TransformId,
+    val sampleRate: Float,
+    override val duration: Float,
+    val track: BakedTransformTrack,
+) : AnimationChannelItem() {
+    private val startVector = Vector3f()
+    private val endVector = Vector3f()
+    private val endRotation = Quaternionf()
+    private val sampledVector = Vector3f()
+    private val sampledRotation = Quaternionf()
+
+    override fun apply(instance: ModelInstance, time: Float) {
+        val position = (time * sampleRate).coerceAtLeast(0f)
+        val sample = floor(position).toInt()
+        val factor = position - sample
+        instance.setTransformDecomposed(index, transformId) {
+            if (track.hasTranslation) {
+                track.getTranslation(sample, startVector)
+                track.getTranslation(sample + 1, endVector)
+                startVector.lerp(endVector, factor, translation)
+            }
+            if (track.hasRotation) {
+                track.getRotation(sample, rotation)
+                track.getRotation(sample + 1, endRotation)
+                rotation.nlerp(endRotation, factor)
+            }
+            if (track.hasScale) {
+                track.getScale(sample, startVector)
+                track.getScale(sample + 1, endVector)
+                startVector.lerp(endVector, factor, scale)
+            }
+        }
+    }
+
+    // Samples are found from the time directly, so no cursor is needed
+    override fun sample(pose: PoseBuffer, time: Float, cursor: AnimationKeyFrameIndexer.FindResult): Boolean {
+        val slot = pose.slotOf(index, transformId)
+        if (slot < 0) {
+            return false
+        }
+        val position = (time * sampleRate).coerceAtLeast(0f)
+        val sample = floor(position).toInt()
+        val factor = position - sample
+        if (track.hasTranslation) {
+            track.getTranslation(sample, startVector)
+            track.getTranslation(sample + 1, endVector)
+            pose.setTranslation(slot, startVector.lerp(endVector, factor, sampledVector))
+        }
+        if (track.hasRotation) {
+            track.getRotation(sample, sampledRotation)
+            track.getRotation(sample + 1, endRotation)
+            pose.setRotation(slot, sampledRotation.nlerp(endRotation, factor))
+        }
+        if (track.hasScale) {
+            track.getScale(sample, startVector)
+            track.getScale(sample + 1, endVector)
+            pose.setScale(slot, startVector.lerp(endVector, factor, sampledVector))
+        }
+        return true
+    }
+}
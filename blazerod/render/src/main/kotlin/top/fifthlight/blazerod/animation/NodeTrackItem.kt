@@ -0,0 +1,69 @@
+package top.fifthlight.blazerod.animation
+
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+
+// Channels of one node sharing an indexer, searching keyframes and writing the node transform once
+class NodeTrackItem(
+    val index: Int,
+    val transformId: TransformId,
+    val indexer: AnimationKeyFrameIndexer,
+    val translation: SimpleAnimationChannel<Vector3f, *>?,
+    val rotation: SimpleAnimationChannel<Quaternionf, *>?,
+    val scale: SimpleAnimationChannel<Vector3f, *>?,
+) : AnimationChannelItem() {
+    init {
+        for (channel in listOfNotNull(translation, rotation, scale)) {
+            require(channel.indexer === indexer) { "Channels of a node track must share the indexer" }
+        }
+    }
+
+    override val duration: Float
+        get() = indexer.lastTime
+
+    private val sharedCursor = AnimationKeyFrameIndexer.FindResult()
+    private val vector = Vector3f()
+    private val quaternion = Quaternionf()
+
+    override fun apply(instance: ModelInstance, time: Float) = apply(instance, time, sharedCursor)
+
+    override fun apply(instance: ModelInstance, time: Float, cursor: AnimationKeyFrameIndexer.FindResult) {
+        indexer.findKeyFrames(time, cursor)
+        val translationChannel = translation
+        val rotationChannel = rotation
+        val scaleChannel = scale
+        instance.setTransformDecomposed(index, transformId) {
+            translationChannel?.interpolateKeyFrames(time, cursor, translation)
+            rotationChannel?.let {
+                it.interpolateKeyFrames(time, cursor, rotation)
+                rotation.normalize()
+            }
+            scaleChannel?.interpolateKeyFrames(time, cursor, scale)
+        }
+    }
+
+    override fun sample(pose: PoseBuffer, time: Float, cursor: AnimationKeyFrameIndexer.FindResult): Boolean {
+        val slot = pose.slotOf(index, transformId)
+        if (slot < 0) {
+            return false
+        }
+        indexer.findKeyFrames(time, cursor)
+        translation?.let {
+            it.interpolateKeyFrames(time, cursor, vector)
+            pose.setTranslation(slot, vector)
+        }
+        rotation?.let {
+            it.interpolateKeyFrames(time, cursor, quaternion)
+            pose.setRotation(slot, quaternion.normalize())
+        }
+        scale?.let {
+            it.interpolateKeyFrames(time, cursor, vector)
+            pose.setScale(slot, vector)
+        }
+        return true
+    }
+}
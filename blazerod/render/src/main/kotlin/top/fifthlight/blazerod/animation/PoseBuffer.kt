@@ -0,0 +1,88 @@
+package top.fifthlight.blazerod.animation
+
+import org.joml.Quaternionf
+import org.joml.Quaternionfc
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.util.LongBitSet
+
+// Node transforms of one pose in flat arrays, with one slot for ABSOLUTE (glTF) and one for RELATIVE_ANIMATION (VMD)
+class PoseBuffer(val nodeCount: Int) {
+    companion object {
+        const val LAYERS = 2
+
+        fun layerOf(transformId: TransformId) = when (transformId) {
+            TransformId.ABSOLUTE -> 0
+            TransformId.RELATIVE_ANIMATION -> 1
+            else -> -1
+        }
+
+        fun isAbsolute(slot: Int) = slot % LAYERS == 0
+
+        fun transformIdOf(slot: Int) = if (isAbsolute(slot)) {
+            TransformId.ABSOLUTE
+        } else {
+            TransformId.RELATIVE_ANIMATION
+        }
+
+        fun nodeOf(slot: Int) = slot / LAYERS
+    }
+
+    val slotCount = nodeCount * LAYERS
+
+    internal val translations = FloatArray(slotCount * 3)
+    internal val rotations = FloatArray(slotCount * 4)
+    internal val scales = FloatArray(slotCount * 3)
+    internal val translationWritten = LongBitSet(slotCount)
+    internal val rotationWritten = LongBitSet(slotCount)
+    internal val scaleWritten = LongBitSet(slotCount)
+
+    // -1 if the transform layer can't be stored
+    fun slotOf(nodeIndex: Int, transformId: TransformId): Int {
+        val layer = layerOf(transformId)
+        return if (layer < 0) -1 else nodeIndex * LAYERS + layer
+    }
+
+    fun clear() {
+        translationWritten.clearAll()
+        rotationWritten.clearAll()
+        scaleWritten.clearAll()
+    }
+
+    fun hasTranslation(slot: Int) = translationWritten[slot]
+    fun hasRotation(slot: Int) = rotationWritten[slot]
+    fun hasScale(slot: Int) = scaleWritten[slot]
+    fun isWritten(slot: Int) = translationWritten[slot] || rotationWritten[slot] || scaleWritten[slot]
+
+    fun setTranslation(slot: Int, value: Vector3fc) {
+        translations[slot * 3] = value.x()
+        translations[slot * 3 + 1] = value.y()
+        translations[slot * 3 + 2] = value.z()
+        translationWritten.set(slot)
+    }
+
+    fun setRotation(slot: Int, value: Quaternionfc) {
+        rotations[slot * 4] = value.x()
+        rotations[slot * 4 + 1] = value.y()
+        rotations[slot * 4 + 2] = value.z()
+        rotations[slot * 4 + 3] = value.w()
+        rotationWritten.set(slot)
+    }
+
+    fun setScale(slot: Int, value: Vector3fc) {
+        scales[slot * 3] = value.x()
+        scales[slot * 3 + 1] = value.y()
+        scales[slot * 3 + 2] = value.z()
+        scaleWritten.set(slot)
+    }
+
+    fun getTranslation(slot: Int, dest: Vector3f): Vector3f =
+        dest.set(translations[slot * 3], translations[slot * 3 + 1], translations[slot * 3 + 2])
+
+    fun getRotation(slot: Int, dest: Quaternionf): Quaternionf =
+        dest.set(rotations[slot * 4], rotations[slot * 4 + 1], rotations[slot * 4 + 2], rotations[slot * 4 + 3])
+
+    fun getScale(slot: Int, dest: Vector3f): Vector3f =
+        dest.set(scales[slot * 3], scales[slot * 3 + 1], scales[slot * 3 + 2])
+}
@@ -0,0 +1,236 @@
+package top.fifthlight.blazerod.animation
+
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.NodeTransform
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.util.LongBitSet
+import kotlin.math.sqrt
+
+// Blends animation layers into preallocated pose buffers, and writes each node to the instance once.
+// Morphs, expressions and cameras can't be blended, they are applied from layers with a weight of at least one half.
+class PoseLayerBlender(val scene: RenderScene, maxLayers: Int = DEFAULT_MAX_LAYERS) {
+    companion object {
+        const val DEFAULT_MAX_LAYERS = 4
+
+        fun subtreeMask(scene: RenderScene, nodeIndex: Int): LongBitSet {
+            val plan = scene.updatePlan
+            val mask = LongBitSet(scene.nodes.size)
+            val position = plan.nodePositions[nodeIndex]
+            for (i in position until plan.subtreeEnds[position]) {
+                mask.set(plan.propagationOrder[i])
+            }
+            return mask
+        }
+    }
+
+    enum class Mode {
+        OVERRIDE,
+        ADDITIVE,
+    }
+
+    class Layer internal constructor(nodeCount: Int) {
+        var clip: AnimationItem? = null
+            private set
+        var time: Float = 0f
+        var weight: Float = 1f
+        var mode: Mode = Mode.OVERRIDE
+
+        // Nodes this layer affects, or null for all nodes
+        var mask: LongBitSet? = null
+
+        internal val pose = PoseBuffer(nodeCount)
+
+        // Kept while the layer plays the same clip, so keyframe cursors follow this layer's time
+        internal var playback: AnimationPlayback? = null
+            private set
+
+        fun set(
+            clip: AnimationItem?,
+            time: Float,
+            weight: Float = 1f,
+            mode: Mode = Mode.OVERRIDE,
+            mask: LongBitSet? = null,
+        ) {
+            if (clip !== this.clip) {
+                this.clip = clip
+                playback = clip?.let(::AnimationPlayback)
+            }
+            this.time = time
+            this.weight = weight
+            this.mode = mode
+            this.mask = mask
+        }
+
+        fun clear() {
+            clip = null
+            playback = null
+            mask = null
+        }
+    }
+
+    val layers = Array(maxLayers) { Layer(scene.nodes.size) }
+
+    private val output = PoseBuffer(scene.nodes.size)
+
+    // Rest pose for ABSOLUTE slots and identity for RELATIVE_ANIMATION slots, used where a pose has no value
+    private val defaults = PoseBuffer(scene.nodes.size).also { defaults ->
+        val translation = Vector3f()
+        val rotation = Quaternionf()
+        val scale = Vector3f()
+        for (slot in 0 until defaults.slotCount) {
+            val rest = if (PoseBuffer.isAbsolute(slot)) {
+                scene.nodes[PoseBuffer.nodeOf(slot)].absoluteTransform
+            } else {
+                null
+            }
+            defaults.setTranslation(slot, rest?.getTranslation(translation) ?: translation.zero())
+            defaults.setRotation(slot, rest?.getRotation(rotation) ?: rotation.identity())
+            defaults.setScale(slot, rest?.getScale(scale) ?: scale.set(1f))
+        }
+    }
+
+    private val lastWritten = LongBitSet(output.slotCount)
+    private val transform = NodeTransform.Decomposed()
+    private val additiveRotation = Quaternionf()
+    private val baseRotation = Quaternionf()
+
+    private fun blendVector(
+        mode: Mode,
+        weight: Float,
+        slot: Int,
+        layerValues: FloatArray,
+        layerWritten: LongBitSet,
+        outputValues: FloatArray,
+        outputWritten: LongBitSet,
+        defaultValues: FloatArray,
+        // Additive scale multiplies, additive translation adds
+        multiply: Boolean,
+    ) {
+        val hasLayer = layerWritten[slot]
+        val hasOutput = outputWritten[slot]
+        if (!hasLayer && (mode == Mode.ADDITIVE || !hasOutput)) {
+            return
+        }
+        val base = if (hasOutput) outputValues else defaultValues
+        for (i in slot * 3 until slot * 3 + 3) {
+            val from = base[i]
+            val to = if (hasLayer) layerValues[i] else defaultValues[i]
+            outputValues[i] = when {
+                mode == Mode.OVERRIDE -> from + (to - from) * weight
+                multiply -> from * (1f + (to - 1f) * weight)
+                else -> from + to * weight
+            }
+        }
+        outputWritten.set(slot)
+    }
+
+    private fun blendRotation(mode: Mode, weight: Float, slot: Int, layer: PoseBuffer) {
+        val hasLayer = layer.rotationWritten[slot]
+        val hasOutput = output.rotationWritten[slot]
+        if (!hasLayer && (mode == Mode.ADDITIVE || !hasOutput)) {
+            return
+        }
+        val base = if (hasOutput) output else defaults
+        val offset = slot * 4
+        if (mode == Mode.ADDITIVE) {
+            base.getRotation(slot, baseRotation)
+            val rotation = layer.getRotation(slot, additiveRotation)
+            // nlerp from identity to the layer rotation
+            val sign = if (rotation.w < 0f) -weight else weight
+            rotation.set(rotation.x * sign, rotation.y * sign, rotation.z * sign, 1f - weight + rotation.w * sign)
+            output.setRotation(slot, baseRotation.mul(rotation.normalize()).normalize())
+            return
+        }
+        val target = if (hasLayer) layer.rotations else defaults.rotations
+        val fromValues = base.rotations
+        // nlerp along the shorter arc
+        var dot = 0f
+        for (i in offset until offset + 4) {
+            dot += fromValues[i] * target[i]
+        }
+        val sign = if (dot < 0f) -1f else 1f
+        var length = 0f
+        for (i in offset until offset + 4) {
+            val from = fromValues[i]
+            val value = from + (target[i] * sign - from) * weight
+            output.rotations[i] = value
+            length += value * value
+        }
+        val inverseLength = 1f / sqrt(length)
+        for (i in offset until offset + 4) {
+            output.rotations[i] *= inverseLength
+        }
+        output.rotationWritten.set(slot)
+    }
+
+    private fun blend(layer: Layer) {
+        val pose = layer.pose
+        val mask = layer.mask
+        val weight = layer.weight.coerceAtMost(1f)
+        for (slot in 0 until output.slotCount) {
+            if (mask != null && !mask[PoseBuffer.nodeOf(slot)]) {
+                continue
+            }
+            // Additive absolute transforms have no meaning, blend them like overrides
+            val mode = if (PoseBuffer.isAbsolute(slot)) Mode.OVERRIDE else layer.mode
+            blendVector(
+                mode = mode,
+                weight = weight,
+                slot = slot,
+                layerValues = pose.translations,
+                layerWritten = pose.translationWritten,
+                outputValues = output.translations,
+                outputWritten = output.translationWritten,
+                defaultValues = defaults.translations,
+                multiply = false,
+            )
+            blendRotation(mode, weight, slot, pose)
+            blendVector(
+                mode = mode,
+                weight = weight,
+                slot = slot,
+                layerValues = pose.scales,
+                layerWritten = pose.scaleWritten,
+                outputValues = output.scales,
+                outputWritten = output.scaleWritten,
+                defaultValues = defaults.scales,
+                multiply = true,
+            )
+        }
+    }
+
+    fun apply(instance: ModelInstance) {
+        require(instance.scene === scene) { "Instance has a different scene" }
+        output.clear()
+        for (layer in layers) {
+            val playback = layer.playback ?: continue
+            if (layer.weight <= 0f) {
+                continue
+            }
+            layer.pose.clear()
+            playback.sample(layer.pose, layer.time, instance.takeIf { layer.weight >= .5f })
+            blend(layer)
+        }
+
+        for (slot in 0 until output.slotCount) {
+            val written = output.isWritten(slot)
+            if (!written && !lastWritten[slot]) {
+                continue
+            }
+            (if (output.hasTranslation(slot)) output else defaults).getTranslation(slot, transform.translation)
+            (if (output.hasRotation(slot)) output else defaults).getRotation(slot, transform.rotation)
+            (if (output.hasScale(slot)) output else defaults).getScale(slot, transform.scale)
+            instance.setTransformDecomposed(PoseBuffer.nodeOf(slot), PoseBuffer.transformIdOf(slot), transform)
+            if (written) {
+                lastWritten.set(slot)
+            } else {
+                lastWritten.clear(slot)
+            }
+        }
+    }
+
+    // Call after the instance transforms were cleared elsewhere
+    fun reset() = lastWritten.clearAll()
+}
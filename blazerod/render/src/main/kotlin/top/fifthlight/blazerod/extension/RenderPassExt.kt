@@ -13,5 +13,8 @@ fun RenderPass.setVertexFormatMode(mode: VertexFormat.DrawMode) =
 fun RenderPass.setStorageBuffer(name: String, buffer: GpuBufferSlice) =
     (this as RenderPassExt).`blazerod$setStorageBuffer`(name, buffer)
 
+fun RenderPass.removeStorageBuffer(name: String) =
+    (this as RenderPassExt).`blazerod$removeStorageBuffer`(name)
+
 fun RenderPass.draw(baseVertex: Int, firstIndex: Int, count: Int, instanceCount: Int) =
     (this as RenderPassExt).`blazerod$draw`(baseVertex, firstIndex, count, instanceCount)
\ No newline at end of file
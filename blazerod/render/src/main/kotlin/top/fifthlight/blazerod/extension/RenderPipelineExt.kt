@@ -0,0 +1,6 @@
+package top.fifthlight.blazerod.extension
+
+import com.mojang.blaze3d.pipeline.RenderPipeline
+
+val RenderPipeline.storageBuffers: Set<String>
+    get() = (this as RenderPipelineExt).`blazerod$getStorageBuffers`()
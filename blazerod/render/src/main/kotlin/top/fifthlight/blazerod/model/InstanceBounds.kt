@@ -0,0 +1,136 @@
+package top.fifthlight.blazerod.model
+
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import top.fifthlight.blazerod.model.resource.PrimitiveBounds
+
+// Skinned primitives are bounded by spheres around their joints, so the bounds hold however the joints move
+class InstanceBounds(scene: RenderScene) {
+    companion object {
+        private const val PRIMITIVE_STRIDE = 6
+        private const val JOINT_STRIDE = 4
+    }
+
+    // Min and max of each primitive, indexed by primitive index
+    private val primitiveBounds = FloatArray(scene.primitiveComponents.size * PRIMITIVE_STRIDE)
+    private val primitiveValid = BooleanArray(scene.primitiveComponents.size)
+
+    // World position and largest axis scale of each joint, per skin
+    private val jointSpheres = scene.skins.map { FloatArray(it.jointSize * JOINT_STRIDE) }
+
+    private val _min = Vector3f()
+    private val _max = Vector3f()
+    val min: Vector3fc
+        get() = _min
+    val max: Vector3fc
+        get() = _max
+
+    var valid = false
+        private set
+
+    private val cacheMin = Vector3f()
+    private val cacheMax = Vector3f()
+    private val cacheVector = Vector3f()
+
+    fun getPrimitive(primitiveIndex: Int, min: Vector3f, max: Vector3f): Boolean {
+        if (!primitiveValid[primitiveIndex]) {
+            return false
+        }
+        val offset = primitiveIndex * PRIMITIVE_STRIDE
+        min.set(primitiveBounds[offset], primitiveBounds[offset + 1], primitiveBounds[offset + 2])
+        max.set(primitiveBounds[offset + 3], primitiveBounds[offset + 4], primitiveBounds[offset + 5])
+        return true
+    }
+
+    private fun updateJointSpheres(instance: ModelInstance) {
+        val scene = instance.scene
+        val worldTransforms = instance.modelData.worldTransforms
+        for (skinIndex in jointSpheres.indices) {
+            val spheres = jointSpheres[skinIndex]
+            val jointNodes = scene.skinJointNodeIndices[skinIndex]
+            for (joint in jointNodes.indices) {
+                val offset = joint * JOINT_STRIDE
+                val node = jointNodes[joint]
+                if (node < 0) {
+                    spheres[offset + 3] = Float.NaN
+                    continue
+                }
+                val matrix = worldTransforms[node]
+                matrix.getTranslation(cacheVector)
+                spheres[offset] = cacheVector.x
+                spheres[offset + 1] = cacheVector.y
+                spheres[offset + 2] = cacheVector.z
+                // Exact for rotation and scale, which is all joints usually have
+                matrix.getScale(cacheVector)
+                spheres[offset + 3] = maxOf(cacheVector.x, cacheVector.y, cacheVector.z)
+            }
+        }
+    }
+
+    private fun skinnedBounds(bounds: PrimitiveBounds, spheres: FloatArray): Boolean {
+        val radii = bounds.jointRadii ?: return false
+        if (bounds.usedJoints.isEmpty()) {
+            return false
+        }
+        cacheMin.set(Float.POSITIVE_INFINITY)
+        cacheMax.set(Float.NEGATIVE_INFINITY)
+        for (joint in bounds.usedJoints) {
+            val offset = joint * JOINT_STRIDE
+            if (offset >= spheres.size) {
+                return false
+            }
+            val scale = spheres[offset + 3]
+            if (scale.isNaN()) {
+                return false
+            }
+            val radius = radii[joint] * scale
+            val x = spheres[offset]
+            val y = spheres[offset + 1]
+            val z = spheres[offset + 2]
+            cacheMin.set(minOf(cacheMin.x, x - radius), minOf(cacheMin.y, y - radius), minOf(cacheMin.z, z - radius))
+            cacheMax.set(maxOf(cacheMax.x, x + radius), maxOf(cacheMax.y, y + radius), maxOf(cacheMax.z, z + radius))
+        }
+        return true
+    }
+
+    fun update(instance: ModelInstance) {
+        val scene = instance.scene
+        val worldTransforms = instance.modelData.worldTransforms
+        updateJointSpheres(instance)
+
+        var valid = true
+        _min.set(Float.POSITIVE_INFINITY)
+        _max.set(Float.NEGATIVE_INFINITY)
+        val primitiveComponents = scene.primitiveComponents
+        for (i in primitiveComponents.indices) {
+            val component = primitiveComponents[i]
+            val index = component.primitiveIndex
+            val bounds = component.primitive.bounds
+            val skinIndex = component.skinIndex
+            val known = when {
+                bounds == null -> false
+                skinIndex != null -> skinnedBounds(bounds, jointSpheres[skinIndex])
+                else -> {
+                    val matrix = worldTransforms[scene.primitiveNodeIndices[index]]
+                    matrix.transformAab(bounds.min, bounds.max, cacheMin, cacheMax)
+                    true
+                }
+            }
+            primitiveValid[index] = known
+            if (!known) {
+                valid = false
+                continue
+            }
+            val offset = index * PRIMITIVE_STRIDE
+            primitiveBounds[offset] = cacheMin.x
+            primitiveBounds[offset + 1] = cacheMin.y
+            primitiveBounds[offset + 2] = cacheMin.z
+            primitiveBounds[offset + 3] = cacheMax.x
+            primitiveBounds[offset + 4] = cacheMax.y
+            primitiveBounds[offset + 5] = cacheMax.z
+            _min.min(cacheMin)
+            _max.max(cacheMax)
+        }
+        this.valid = valid && primitiveComponents.isNotEmpty()
+    }
+}
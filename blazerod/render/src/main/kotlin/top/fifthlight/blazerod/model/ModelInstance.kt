@@ -4,21 +4,28 @@ import net.minecraft.client.render.VertexConsumerProvider
 import net.minecraft.util.Identifier
 import org.joml.Matrix4f
 import org.joml.Matrix4fc
+import org.joml.Quaternionf
+import top.fifthlight.blazerod.BlazeRod
 import top.fifthlight.blazerod.model.data.ModelMatricesBuffer
 import top.fifthlight.blazerod.model.data.MorphTargetBuffer
 import top.fifthlight.blazerod.model.data.RenderSkinBuffer
 import top.fifthlight.blazerod.model.node.RenderNode
-import top.fifthlight.blazerod.model.node.TransformMap
-import top.fifthlight.blazerod.model.node.UpdatePhase
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.component.IkTarget
+import top.fifthlight.blazerod.model.node.component.RigidBodyPhysics
+import top.fifthlight.blazerod.model.node.component.SpringBone
 import top.fifthlight.blazerod.model.node.markNodeTransformDirty
 import top.fifthlight.blazerod.model.resource.CameraTransform
 import top.fifthlight.blazerod.util.AbstractRefCount
 import top.fifthlight.blazerod.util.CowBuffer
+import top.fifthlight.blazerod.util.LongBitSet
 import top.fifthlight.blazerod.util.copy
-import top.fifthlight.blazerod.util.mapToArray
 import java.util.function.Consumer
 
-class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
+class ModelInstance @JvmOverloads constructor(
+    val scene: RenderScene,
+    transformStorageType: TransformStorage.Type = BlazeRod.transformStorageType,
+) : AbstractRefCount() {
     companion object {
         private val TYPE_ID = Identifier.of("blazerod", "model_instance")
     }
@@ -26,20 +33,20 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
     override val typeId: Identifier
         get() = TYPE_ID
 
-    val modelData = ModelData(scene)
+    val modelData = ModelData(scene, transformStorageType)
 
     init {
         scene.increaseReferenceCount()
     }
 
-    class ModelData(scene: RenderScene) : AutoCloseable {
-        var undirtyNodeCount = 0
+    class ModelData(
+        scene: RenderScene,
+        transformStorageType: TransformStorage.Type,
+    ) : AutoCloseable {
+        val transforms = TransformStorage.create(transformStorageType, scene)
 
-        val transformMaps = scene.nodes.mapToArray { node ->
-            TransformMap(node.absoluteTransform)
-        }
-
-        val transformDirty = Array(scene.nodes.size) { true }
+        // Indexed by pre-order position in scene.updatePlan, so every subtree is a contiguous range
+        val transformDirty = LongBitSet(scene.nodes.size).also { it.setAll() }
 
         val worldTransforms = Array(scene.nodes.size) { Matrix4f() }
 
@@ -75,6 +82,65 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
 
         val ikEnabled = Array(scene.ikTargetComponents.size) { true }
 
+        // Iterations the last solve of each IK target took, 0 for disabled targets
+        val ikIterations = IntArray(scene.ikTargetComponents.size)
+
+        // Last solve of each IK target, reused while its inputs stay the same
+        val ikCaches = scene.ikTargetComponents.map { IkTarget.Cache(it) }
+
+        // Time step shared by spring bones and rigid bodies
+        val physicsClock = PhysicsClock()
+
+        // Verlet state of all spring bones
+        val springBoneState = SpringBone.State(scene)
+
+        val rigidBodyStates = scene.rigidBodyPhysicsComponents.map { RigidBodyPhysics.State(scene, it) }
+
+        // Model space bounds in the current pose
+        val bounds = InstanceBounds(scene)
+
+        // Primitives left after culling, which renderers skip the others of
+        val visiblePrimitives = LongBitSet(scene.primitiveComponents.size).also { it.setAll() }
+
+        // Mesh LOD level to draw, 0 for the full meshes
+        var lodLevel = 0
+
+        // Set while world transforms are copied from a SharedPose. The local layers are not, so physics can't run
+        // on them until clearTransform.
+        var poseShared = false
+            internal set
+
+        // Changes whenever skin matrices, model matrices or morph weights actually change, so renderers can
+        // reuse data uploaded in previous frames while it stays the same. Morph weights are compared when a
+        // render task is created.
+        var poseVersion = 0L
+            internal set
+
+        // Scratch for components, kept per instance so different instances can be updated concurrently
+        internal val cacheMatrix = Matrix4f()
+        internal val cacheRotation = Quaternionf()
+        internal val ikScratch = IkTarget.Scratch(scene.ikTargetComponents.maxOfOrNull { it.chains.size } ?: 0)
+
+        // Whether no render task or other copy still holds the content of any buffer, so updating render data
+        // writes nothing another holder may read
+        internal val buffersExclusive: Boolean
+            get() {
+                if (!modelMatricesBuffer.isExclusive) {
+                    return false
+                }
+                for (i in skinBuffers.indices) {
+                    if (!skinBuffers[i].isExclusive) {
+                        return false
+                    }
+                }
+                for (i in targetBuffers.indices) {
+                    if (!targetBuffers[i].isExclusive) {
+                        return false
+                    }
+                }
+                return true
+            }
+
         override fun close() {
             modelMatricesBuffer.decreaseReferenceCount()
             skinBuffers.forEach { it.decreaseReferenceCount() }
@@ -83,23 +149,25 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
     }
 
     fun clearTransform() {
-        modelData.undirtyNodeCount = 0
+        modelData.poseShared = false
+        modelData.transformDirty.setAll()
+        modelData.ikCaches.forEach { it.invalidate() }
+        modelData.physicsClock.reset()
+        modelData.springBoneState.reset()
+        modelData.rigidBodyStates.forEach { it.reset() }
         for (i in scene.nodes.indices) {
-            modelData.transformMaps[i].clearFrom(TransformId.ABSOLUTE.next)
-            modelData.transformDirty[i] = true
+            modelData.transforms.clearFrom(i, TransformId.ABSOLUTE.next)
         }
     }
 
     fun setTransformMatrix(nodeIndex: Int, transformId: TransformId, matrix: Matrix4f) {
         markNodeTransformDirty(scene.nodes[nodeIndex])
-        val transform = modelData.transformMaps[nodeIndex]
-        transform.setMatrix(transformId, matrix)
+        modelData.transforms.setMatrix(nodeIndex, transformId, matrix)
     }
 
     fun setTransformDecomposed(nodeIndex: Int, transformId: TransformId, decomposed: NodeTransformView.Decomposed) {
         markNodeTransformDirty(scene.nodes[nodeIndex])
-        val transform = modelData.transformMaps[nodeIndex]
-        transform.setMatrix(transformId, decomposed)
+        modelData.transforms.setMatrix(nodeIndex, transformId, decomposed)
     }
 
     fun setTransformDecomposed(nodeIndex: Int, transformId: TransformId, updater: Consumer<NodeTransform.Decomposed>) =
@@ -107,8 +175,7 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
 
     fun setTransformDecomposed(nodeIndex: Int, transformId: TransformId, updater: NodeTransform.Decomposed.() -> Unit) {
         markNodeTransformDirty(scene.nodes[nodeIndex])
-        val transform = modelData.transformMaps[nodeIndex]
-        transform.updateDecomposed(transformId, updater)
+        modelData.transforms.updateDecomposed(nodeIndex, transformId, updater)
     }
 
     fun setIkEnabled(index: Int, enabled: Boolean) {
@@ -118,8 +185,31 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
             val component = scene.ikTargetComponents[index]
             for (chain in component.chains) {
                 markNodeTransformDirty(scene.nodes[chain.nodeIndex])
-                val transform = modelData.transformMaps[chain.nodeIndex]
-                transform.clearFrom(component.transformId)
+                modelData.transforms.clearFrom(chain.nodeIndex, component.transformId)
+            }
+        }
+    }
+
+    // Rigid bodies drop the steps left once they took budgetNanos in an update
+    @JvmOverloads
+    fun advancePhysics(seconds: Float, maxSteps: Int, budgetNanos: Long = Long.MAX_VALUE) {
+        if (modelData.poseShared) {
+            return
+        }
+        if (scene.springBoneComponents.isEmpty() && scene.rigidBodyPhysicsComponents.isEmpty()) {
+            return
+        }
+        val clock = modelData.physicsClock
+        clock.advance(seconds, maxSteps, budgetNanos)
+        if (clock.steps > 0) {
+            // Index loops, as this runs every frame and iterators would allocate
+            val springBones = scene.springBoneComponents
+            for (i in springBones.indices) {
+                markNodeTransformDirty(springBones[i].node)
+            }
+            val rigidBodies = scene.rigidBodyPhysicsComponents
+            for (i in rigidBodies.indices) {
+                markNodeTransformDirty(rigidBodies[i].node)
             }
         }
     }
@@ -138,6 +228,16 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
         }
     }
 
+    fun resetMorphWeights() {
+        val components = scene.morphedPrimitiveComponents
+        for (morphedPrimitiveIndex in components.indices) {
+            val groups = components[morphedPrimitiveIndex].primitive.targetGroups
+            for (groupIndex in groups.indices) {
+                setGroupWeight(morphedPrimitiveIndex, groupIndex, groups[groupIndex].weight)
+            }
+        }
+    }
+
     fun updateCamera() {
         scene.updateCamera(this)
     }
@@ -151,24 +251,24 @@ class ModelInstance(val scene: RenderScene) : AbstractRefCount() {
     }
 
     internal fun updateNodeTransform(nodeIndex: Int) {
-        val node = scene.nodes[nodeIndex]
-        updateNodeTransform(node)
-    }
-
-    internal fun updateNodeTransform(node: RenderNode) {
-        if (modelData.undirtyNodeCount == scene.nodes.size) {
+        if (modelData.transformDirty.isEmpty()) {
             return
         }
-        node.update(UpdatePhase.GlobalTransformPropagation, node, this)
-        for (child in node.children) {
-            updateNodeTransform(child)
-        }
+        scene.updatePlan.propagate(this, nodeIndex)
     }
 
+    internal fun updateNodeTransform(node: RenderNode) = updateNodeTransform(node.nodeIndex)
+
     fun createRenderTask(
         modelViewMatrix: Matrix4fc,
         light: Int,
     ): RenderTask {
+        val targetBuffers = modelData.targetBuffers
+        for (i in targetBuffers.indices) {
+            if (targetBuffers[i].content.commitWeights()) {
+                modelData.poseVersion++
+            }
+        }
         return RenderTask.acquire(
             instance = this,
             modelViewMatrix = modelViewMatrix,
@@ -0,0 +1,47 @@
+package top.fifthlight.blazerod.model
+
+import kotlin.math.min
+
+// Fixed time step shared by all physics of one model instance
+class PhysicsClock {
+    companion object {
+        // Simulated time of one step, in seconds
+        const val STEP_TIME = 1f / 60f
+    }
+
+    private var pendingTime = 0f
+
+    // Steps the next update simulates
+    var steps = 0
+        private set
+
+    // Steps the last update simulated
+    var lastSteps = 0
+        private set
+
+    // Wall time the next update may spend on rigid bodies, in nanoseconds
+    var budgetNanos = Long.MAX_VALUE
+        private set
+
+    // Time over maxSteps is dropped, so a slow frame doesn't slow down the next ones
+    fun advance(seconds: Float, maxSteps: Int, budgetNanos: Long = Long.MAX_VALUE) {
+        require(maxSteps >= 0) { "Bad max steps: $maxSteps" }
+        require(budgetNanos > 0) { "Bad budget: $budgetNanos" }
+        val maxTime = (maxSteps - steps) * STEP_TIME
+        pendingTime = min(pendingTime + seconds.coerceAtLeast(0f), maxTime.coerceAtLeast(0f))
+        val newSteps = (pendingTime / STEP_TIME).toInt()
+        pendingTime -= newSteps * STEP_TIME
+        steps += newSteps
+        this.budgetNanos = budgetNanos
+    }
+
+    internal fun finishSteps() {
+        lastSteps = steps
+        steps = 0
+    }
+
+    fun reset() {
+        pendingTime = 0f
+        steps = 0
+    }
+}
@@ -0,0 +1,73 @@
+package top.fifthlight.blazerod.model
+
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import top.fifthlight.blazerod.model.node.UpdatePhase
+
+// Extrapolates world transforms from the last two evaluated poses. Call restore before the next evaluation.
+class PoseExtrapolator(val scene: RenderScene) {
+    private val previousTranslations = Array(scene.nodes.size) { Vector3f() }
+    private val previousRotations = Array(scene.nodes.size) { Quaternionf() }
+    private val currentTranslations = Array(scene.nodes.size) { Vector3f() }
+    private val currentRotations = Array(scene.nodes.size) { Quaternionf() }
+    private val currentScales = Array(scene.nodes.size) { Vector3f() }
+    private val translation = Vector3f()
+    private val rotation = Quaternionf()
+    private val rotationStep = Quaternionf()
+    private var previousTime = 0L
+    private var currentTime = 0L
+    private var samples = 0
+    private var extrapolated = false
+
+    fun record(instance: ModelInstance, time: Long) {
+        require(instance.scene === scene) { "Instance has a different scene" }
+        if (time == currentTime && samples > 0) {
+            return
+        }
+        val worldTransforms = instance.modelData.worldTransforms
+        for (i in worldTransforms.indices) {
+            previousTranslations[i].set(currentTranslations[i])
+            previousRotations[i].set(currentRotations[i])
+            val transform = worldTransforms[i]
+            transform.getTranslation(currentTranslations[i])
+            transform.getNormalizedRotation(currentRotations[i])
+            transform.getScale(currentScales[i])
+        }
+        previousTime = currentTime
+        currentTime = time
+        samples = (samples + 1).coerceAtMost(2)
+    }
+
+    // Returns false without enough recorded poses
+    fun extrapolate(instance: ModelInstance, time: Long): Boolean {
+        require(instance.scene === scene) { "Instance has a different scene" }
+        if (samples < 2 || currentTime <= previousTime) {
+            return false
+        }
+        // Extrapolate at most one interval ahead, so a long stall doesn't throw the model away
+        val factor = ((time - currentTime).toFloat() / (currentTime - previousTime).toFloat()).coerceIn(0f, 1f)
+        val worldTransforms = instance.modelData.worldTransforms
+        for (i in worldTransforms.indices) {
+            val currentRotation = currentRotations[i]
+            previousTranslations[i].lerp(currentTranslations[i], 1f + factor, translation)
+            // Rotation from the previous pose to the current one, taking the shorter way around
+            currentRotation.mul(previousRotations[i].conjugate(rotationStep), rotationStep)
+            if (rotationStep.w < 0f) {
+                rotationStep.set(-rotationStep.x, -rotationStep.y, -rotationStep.z, -rotationStep.w)
+            }
+            rotation.identity().slerp(rotationStep, factor).mul(currentRotation).normalize()
+            worldTransforms[i].translationRotateScale(translation, rotation, currentScales[i])
+        }
+        instance.modelData.transformDirty.clearAll()
+        scene.updatePlan.execute(instance, UpdatePhase.RenderDataUpdate)
+        extrapolated = true
+        return true
+    }
+
+    fun restore(instance: ModelInstance) {
+        if (extrapolated) {
+            instance.modelData.transformDirty.setAll()
+            extrapolated = false
+        }
+    }
+}
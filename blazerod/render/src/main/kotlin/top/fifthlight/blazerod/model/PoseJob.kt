@@ -0,0 +1,96 @@
+package top.fifthlight.blazerod.model
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.joml.Matrix4f
+import org.joml.Matrix4fc
+
+// Instances with buffers still held elsewhere are evaluated on the calling thread, so workers only write buffers
+// nothing else holds. Render tasks are created there too, as the object pools are not thread safe.
+class PoseJob {
+    companion object {
+        // Evaluating a pose is cheap, so don't split jobs smaller than this
+        private const val MIN_INSTANCES_PER_JOB = 2
+    }
+
+    private class Entry {
+        var instance: ModelInstance? = null
+        val modelViewMatrix = Matrix4f()
+        var light: Int = -1
+    }
+
+    private val entries = mutableListOf<Entry>()
+    private var entrySize = 0
+    private val instances = LinkedHashSet<ModelInstance>()
+    private val parallelInstances = mutableListOf<ModelInstance>()
+
+    val size: Int
+        get() = entrySize
+
+    fun add(instance: ModelInstance, modelViewMatrix: Matrix4fc, light: Int) {
+        val entry = if (entrySize < entries.size) {
+            entries[entrySize]
+        } else {
+            Entry().also { entries.add(it) }
+        }
+        entrySize++
+        instance.increaseReferenceCount()
+        entry.instance = instance
+        entry.modelViewMatrix.set(modelViewMatrix)
+        entry.light = light
+        instances.add(instance)
+    }
+
+    private fun evaluate() {
+        val processorCount = Runtime.getRuntime().availableProcessors()
+        if (instances.size < MIN_INSTANCES_PER_JOB * 2 || processorCount == 1) {
+            instances.forEach { it.updateRenderData() }
+            return
+        }
+        parallelInstances.clear()
+        for (instance in instances) {
+            if (instance.modelData.buffersExclusive) {
+                parallelInstances.add(instance)
+            } else {
+                instance.updateRenderData()
+            }
+        }
+        val jobSize = maxOf(MIN_INSTANCES_PER_JOB, (parallelInstances.size + processorCount - 1) / processorCount)
+        runBlocking {
+            parallelInstances.chunked(jobSize).map { chunk ->
+                async(Dispatchers.Default) {
+                    for (instance in chunk) {
+                        instance.updateRenderData()
+                    }
+                }
+            }.awaitAll()
+        }
+    }
+
+    fun execute(consumer: (RenderTask) -> Unit) {
+        try {
+            evaluate()
+            for (i in 0 until entrySize) {
+                val entry = entries[i]
+                val instance = entry.instance ?: continue
+                consumer(instance.createRenderTask(entry.modelViewMatrix, entry.light))
+            }
+        } finally {
+            clear()
+        }
+    }
+
+    fun clear() {
+        for (i in 0 until entrySize) {
+            val entry = entries[i]
+            entry.instance?.decreaseReferenceCount()
+            entry.instance = null
+            entry.light = -1
+        }
+        entrySize = 0
+        instances.clear()
+        parallelInstances.clear()
+    }
+}
@@ -1,14 +1,18 @@
 package top.fifthlight.blazerod.model
 
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
 import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap
 import net.minecraft.client.render.VertexConsumerProvider
 import net.minecraft.util.Identifier
 import org.joml.Matrix4fc
 import top.fifthlight.blazerod.model.node.RenderNode
 import top.fifthlight.blazerod.model.node.UpdatePhase
+import top.fifthlight.blazerod.model.node.UpdatePlan
 import top.fifthlight.blazerod.model.node.component.IkTarget
 import top.fifthlight.blazerod.model.node.component.Primitive
 import top.fifthlight.blazerod.model.node.component.RenderNodeComponent
+import top.fifthlight.blazerod.model.node.component.RigidBodyPhysics
+import top.fifthlight.blazerod.model.node.component.SpringBone
 import top.fifthlight.blazerod.model.node.forEach
 import top.fifthlight.blazerod.model.resource.RenderCamera
 import top.fifthlight.blazerod.model.resource.RenderExpression
@@ -31,35 +35,42 @@ class RenderScene(
     override val typeId: Identifier
         get() = TYPE_ID
 
-    private val sortedNodes: List<RenderNode>
-    private val debugRenderNodes: List<RenderNode>
+    val updatePlan: UpdatePlan
     val primitiveComponents: List<Primitive>
     val morphedPrimitiveComponents: List<Primitive>
     val ikTargetComponents: List<IkTarget>
+    val springBoneComponents: List<SpringBone>
+    val rigidBodyPhysicsComponents: List<RigidBodyPhysics>
     val nodeIdMap: Map<NodeId, RenderNode>
     val nodeNameMap: Map<String, RenderNode>
     val humanoidTagMap: Map<HumanoidTag, RenderNode>
+
+    // Node holding each primitive, indexed by primitive index
+    val primitiveNodeIndices: IntArray
+
+    // Node of each joint of each skin, -1 for joints without a node
+    val skinJointNodeIndices: List<IntArray>
+
     init {
         rootNode.increaseReferenceCount()
-        val nodes = mutableListOf<RenderNode>()
-        val debugRenderNodes = mutableListOf<RenderNode>()
         val primitiveComponents = mutableListOf<Primitive>()
         val morphedPrimitives = Int2ReferenceOpenHashMap<Primitive>()
         val ikTargets = Int2ReferenceOpenHashMap<IkTarget>()
+        val springBones = Int2ReferenceOpenHashMap<SpringBone>()
+        val rigidBodyPhysics = Int2ReferenceOpenHashMap<RigidBodyPhysics>()
         val nodeIdMap = mutableMapOf<NodeId, RenderNode>()
         val nodeNameMap = mutableMapOf<String, RenderNode>()
         val humanoidTagMap = mutableMapOf<HumanoidTag, RenderNode>()
+        val primitiveNodes = Int2IntOpenHashMap().apply { defaultReturnValue(-1) }
+        val skinJointNodeIndices = skins.map { IntArray(it.jointSize) { -1 } }
         rootNode.forEach { node ->
-            nodes.add(node)
             node.nodeId?.let { nodeIdMap.put(it, node) }
             node.nodeName?.let { nodeNameMap.put(it, node) }
             node.humanoidTags.forEach { humanoidTagMap[it] = node }
-            if (node.hasPhase(UpdatePhase.Type.DEBUG_RENDER)) {
-                debugRenderNodes.add(node)
-            }
             node.getComponentsOfType(RenderNodeComponent.Type.Primitive).let { components ->
                 primitiveComponents.addAll(components)
                 for (component in components) {
+                    primitiveNodes.put(component.primitiveIndex, node.nodeIndex)
                     component.morphedPrimitiveIndex?.let { index ->
                         if (morphedPrimitives.containsKey(index)) {
                             throw IllegalStateException("Duplicate morphed primitive index: $index")
@@ -68,35 +79,53 @@ class RenderScene(
                     }
                 }
             }
+            node.getComponentsOfType(RenderNodeComponent.Type.Joint).forEach { component ->
+                skinJointNodeIndices.getOrNull(component.skinIndex)?.let { joints ->
+                    if (component.jointIndex in joints.indices) {
+                        joints[component.jointIndex] = node.nodeIndex
+                    }
+                }
+            }
             node.getComponentsOfType(RenderNodeComponent.Type.IkTarget).forEach { component ->
                 ikTargets.put(component.ikIndex, component)
             }
+            node.getComponentsOfType(RenderNodeComponent.Type.SpringBone).forEach { component ->
+                springBones.put(component.springIndex, component)
+            }
+            node.getComponentsOfType(RenderNodeComponent.Type.RigidBodyPhysics).forEach { component ->
+                rigidBodyPhysics.put(component.physicsIndex, component)
+            }
         }
-        this.sortedNodes = nodes
-        this.debugRenderNodes = debugRenderNodes
+        this.updatePlan = UpdatePlan(rootNode, nodes.size)
         this.primitiveComponents = primitiveComponents
+        this.primitiveNodeIndices = IntArray(primitiveComponents.size) {
+            primitiveNodes.get(it).also { node -> check(node >= 0) { "Primitive index not found: $it" } }
+        }
+        this.skinJointNodeIndices = skinJointNodeIndices
         this.morphedPrimitiveComponents = (0 until morphedPrimitives.size).map {
             morphedPrimitives.get(it) ?: error("Morphed primitive index not found: $it")
         }
         this.ikTargetComponents = (0 until ikTargets.size).map {
             ikTargets.get(it) ?: error("Ik target index not found: $it")
         }
+        this.springBoneComponents = (0 until springBones.size).map {
+            springBones.get(it) ?: error("Spring bone index not found: $it")
+        }
+        this.rigidBodyPhysicsComponents = (0 until rigidBodyPhysics.size).map {
+            rigidBodyPhysics.get(it) ?: error("Rigid body physics index not found: $it")
+        }
         this.nodeIdMap = nodeIdMap
         this.nodeNameMap = nodeNameMap
         this.humanoidTagMap = humanoidTagMap
     }
 
-    private fun executePhase(instance: ModelInstance, phase: UpdatePhase) {
-        for (node in sortedNodes) {
-            node.update(phase, node, instance)
-        }
-    }
+    private fun executePhase(instance: ModelInstance, phase: UpdatePhase) = updatePlan.execute(instance, phase)
 
     fun updateCamera(instance: ModelInstance) {
         if (cameras.isEmpty()) {
             return
         }
-        if (instance.modelData.undirtyNodeCount == nodes.size) {
+        if (instance.modelData.transformDirty.isEmpty()) {
             return
         }
         executePhase(instance, UpdatePhase.GlobalTransformPropagation)
@@ -107,10 +136,10 @@ class RenderScene(
     }
 
     fun debugRender(instance: ModelInstance, viewProjectionMatrix: Matrix4fc, consumers: VertexConsumerProvider) {
-        if (debugRenderNodes.isEmpty()) {
+        if (!updatePlan.hasPhase(UpdatePhase.Type.DEBUG_RENDER)) {
             return
         }
-        if (instance.modelData.undirtyNodeCount != nodes.size) {
+        if (!instance.modelData.transformDirty.isEmpty()) {
             executePhase(instance, UpdatePhase.GlobalTransformPropagation)
             executePhase(instance, UpdatePhase.IkUpdate)
             executePhase(instance, UpdatePhase.InfluenceTransformUpdate)
@@ -122,14 +151,19 @@ class RenderScene(
     }
 
     fun updateRenderData(instance: ModelInstance) {
-        if (instance.modelData.undirtyNodeCount == nodes.size) {
+        if (instance.modelData.transformDirty.isEmpty()) {
             return
         }
         executePhase(instance, UpdatePhase.GlobalTransformPropagation)
         executePhase(instance, UpdatePhase.IkUpdate)
         executePhase(instance, UpdatePhase.InfluenceTransformUpdate)
         executePhase(instance, UpdatePhase.GlobalTransformPropagation)
+        if (updatePlan.hasPhase(UpdatePhase.Type.PHYSICS_UPDATE)) {
+            executePhase(instance, UpdatePhase.PhysicsUpdate)
+            instance.modelData.physicsClock.finishSteps()
+        }
         executePhase(instance, UpdatePhase.RenderDataUpdate)
+        instance.modelData.bounds.update(instance)
     }
 
     override fun onClosed() {
@@ -8,6 +8,7 @@ import top.fifthlight.blazerod.model.data.ModelMatricesBuffer
 import top.fifthlight.blazerod.model.data.MorphTargetBuffer
 import top.fifthlight.blazerod.model.data.RenderSkinBuffer
 import top.fifthlight.blazerod.util.CowBuffer
+import top.fifthlight.blazerod.util.LongBitSet
 import top.fifthlight.blazerod.util.ObjectPool
 
 class RenderTask private constructor(
@@ -17,6 +18,9 @@ class RenderTask private constructor(
     private var _modelMatricesBuffer: CowBuffer<ModelMatricesBuffer>? = null,
     private var _skinBuffer: List<CowBuffer<RenderSkinBuffer>>? = null,
     private var _morphTargetBuffer: List<CowBuffer<MorphTargetBuffer>>? = null,
+    private var _poseVersion: Long = -1,
+    private var _visiblePrimitives: LongBitSet? = null,
+    private var _lodLevel: Int = 0,
     private var released: Boolean = true,
 ) {
     val instance: ModelInstance
@@ -31,6 +35,12 @@ class RenderTask private constructor(
         get() = checkNotNull(_skinBuffer) { "Bad RenderTask" }
     val morphTargetBuffer: List<CowBuffer<MorphTargetBuffer>>
         get() = checkNotNull(_morphTargetBuffer) { "Bad RenderTask" }
+    val poseVersion: Long
+        get() = _poseVersion
+    val visiblePrimitives: LongBitSet
+        get() = checkNotNull(_visiblePrimitives) { "Bad RenderTask" }
+    val lodLevel: Int
+        get() = _lodLevel
 
     private fun clear() {
         _instance?.decreaseReferenceCount()
@@ -43,6 +53,8 @@ class RenderTask private constructor(
         _modelMatricesBuffer = null
         _skinBuffer = null
         _morphTargetBuffer = null
+        _poseVersion = -1
+        _lodLevel = 0
     }
 
     fun release() {
@@ -84,6 +96,12 @@ class RenderTask private constructor(
             this._modelMatricesBuffer = modelMatricesBuffer
             this._skinBuffer = skinBuffer
             this._morphTargetBuffer = morphTargetBuffer
+            this._poseVersion = instance.modelData.poseVersion
+            this._lodLevel = instance.modelData.lodLevel
+            // Kept across reuses, reallocated only when the primitive count differs
+            val visiblePrimitives = instance.modelData.visiblePrimitives
+            this._visiblePrimitives = (_visiblePrimitives?.takeIf { it.size == visiblePrimitives.size }
+                ?: LongBitSet(visiblePrimitives.size)).also { it.copyFrom(visiblePrimitives) }
             released = false
         }
     }
@@ -100,16 +118,34 @@ class TaskMap: AutoCloseable {
         tasks.getOrPut(task.instance.scene) { mutableListOf() }.add(task)
     }
 
-    fun executeTasks(executor: (RenderScene, List<RenderTask>) -> Unit) {
+    // Calls the executor for each scene and LOD level with at most INSTANCE_SIZE of its tasks, keeping the tasks until
+    // clear(). Tasks in a batch draw the same index buffers, so they always share the LOD level.
+    fun forEachBatch(executor: (RenderScene, List<RenderTask>) -> Unit) {
         checkNotClosed()
         for ((scene, tasks) in tasks) {
-            if (tasks.size > BlazeRod.INSTANCE_SIZE) {
-                for (chunk in tasks.chunked(BlazeRod.INSTANCE_SIZE)) {
-                    executor(scene, chunk)
+            if (tasks.any { it.lodLevel != tasks[0].lodLevel }) {
+                tasks.sortBy { it.lodLevel }
+            }
+            var start = 0
+            while (start < tasks.size) {
+                val lodLevel = tasks[start].lodLevel
+                var end = start + 1
+                while (end < tasks.size && end - start < BlazeRod.INSTANCE_SIZE && tasks[end].lodLevel == lodLevel) {
+                    end++
                 }
-            } else {
-                executor(scene, tasks)
+                executor(scene, if (start == 0 && end == tasks.size) tasks else tasks.subList(start, end))
+                start = end
             }
+        }
+    }
+
+    fun executeTasks(executor: (RenderScene, List<RenderTask>) -> Unit) {
+        forEachBatch(executor)
+        clear()
+    }
+
+    fun clear() {
+        for ((_, tasks) in tasks) {
             for (task in tasks) {
                 task.release()
             }
@@ -122,11 +158,6 @@ class TaskMap: AutoCloseable {
             return
         }
         closed = true
-        for ((_, tasks) in tasks) {
-            for (task in tasks) {
-                task.release()
-            }
-        }
-        tasks.clear()
+        clear()
     }
-}
\ No newline at end of file
+}
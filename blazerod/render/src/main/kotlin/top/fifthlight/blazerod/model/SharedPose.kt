@@ -0,0 +1,128 @@
+package top.fifthlight.blazerod.model
+
+import org.joml.Matrix4f
+import org.joml.Quaternionf
+import org.joml.Quaternionfc
+import top.fifthlight.blazerod.model.node.UpdatePhase
+
+// A pose evaluated once and copied to other instances of the scene, with per-instance RELATIVE_ANIMATION rotations
+class SharedPose(val scene: RenderScene) : AutoCloseable {
+    companion object {
+        const val MAX_OVERRIDES = 8
+    }
+
+    val instance = ModelInstance(scene).also { it.increaseReferenceCount() }
+
+    class RotationOverrides(capacity: Int) {
+        internal val nodeIndices = IntArray(capacity)
+        internal val rotations = Array(capacity) { Quaternionf() }
+        internal var size = 0
+            private set
+
+        fun clear() {
+            size = 0
+        }
+
+        fun add(nodeIndex: Int, rotation: Quaternionfc) {
+            check(size < nodeIndices.size) { "Too many rotation overrides, capacity is ${nodeIndices.size}" }
+            nodeIndices[size] = nodeIndex
+            rotations[size].set(rotation)
+            size++
+        }
+    }
+
+    private val overridePositions = IntArray(MAX_OVERRIDES)
+    private val overrideOrder = IntArray(MAX_OVERRIDES)
+    private val overrideDeltas = Array(MAX_OVERRIDES) { Matrix4f() }
+    private val deltaStack = IntArray(MAX_OVERRIDES)
+    private val prefixMatrix = Matrix4f()
+    private val suffixMatrix = Matrix4f()
+    private val localMatrix = Matrix4f()
+    private val parentMatrix = Matrix4f()
+
+    // Local transform of the node with the rotation of RELATIVE_ANIMATION layer replaced
+    private fun overriddenLocal(nodeIndex: Int, rotation: Quaternionfc, dest: Matrix4f): Matrix4f {
+        val transforms = instance.modelData.transforms
+        prefixMatrix.set(transforms.getSum(nodeIndex, TransformId.RELATIVE_ANIMATION.prev))
+        suffixMatrix.set(transforms.getSum(nodeIndex, TransformId.RELATIVE_ANIMATION)).invert()
+        suffixMatrix.mul(transforms.getSum(nodeIndex, TransformId.LAST))
+        when (val animation = transforms.get(nodeIndex, TransformId.RELATIVE_ANIMATION)) {
+            is NodeTransformView.Decomposed -> localMatrix.translationRotateScale(
+                animation.translation,
+                rotation,
+                animation.scale,
+            )
+
+            else -> localMatrix.rotation(rotation)
+        }
+        return prefixMatrix.mul(localMatrix, dest).mul(suffixMatrix)
+    }
+
+    // The shared instance must be updated before. Physics of the target is paused until clearTransform.
+    fun applyTo(target: ModelInstance, overrides: RotationOverrides) {
+        require(target.scene === scene) { "Target instance has a different scene" }
+        val plan = scene.updatePlan
+        val source = instance.modelData
+        val dest = target.modelData
+
+        // Sort overrides in pre-order, so an override inside another one's subtree sees its parent moved
+        val count = overrides.size
+        require(count <= MAX_OVERRIDES) { "At most $MAX_OVERRIDES rotation overrides are supported" }
+        for (i in 0 until count) {
+            overridePositions[i] = plan.nodePositions[overrides.nodeIndices[i]]
+            var j = i
+            while (j > 0 && overridePositions[overrideOrder[j - 1]] > overridePositions[i]) {
+                overrideOrder[j] = overrideOrder[j - 1]
+                j--
+            }
+            overrideOrder[j] = i
+        }
+
+        var nextOverride = 0
+        var stackSize = 0
+        for (position in plan.propagationOrder.indices) {
+            while (stackSize > 0 && position >= plan.subtreeEnds[overridePositions[deltaStack[stackSize - 1]]]) {
+                stackSize--
+            }
+            val nodeIndex = plan.propagationOrder[position]
+            val sourceWorld = source.worldTransforms[nodeIndex]
+            val destWorld = dest.worldTransforms[nodeIndex]
+            if (nextOverride < count && overridePositions[overrideOrder[nextOverride]] == position) {
+                val override = overrideOrder[nextOverride++]
+                val parentIndex = plan.propagationParents[position]
+                if (parentIndex >= 0) {
+                    parentMatrix.set(dest.worldTransforms[parentIndex])
+                } else {
+                    parentMatrix.identity()
+                }
+                overriddenLocal(nodeIndex, overrides.rotations[override], destWorld).mulLocal(parentMatrix)
+                // Delta from the shared world transform to the overridden one, applied to the whole subtree
+                sourceWorld.invert(overrideDeltas[override]).mulLocal(destWorld)
+                deltaStack[stackSize++] = override
+            } else if (stackSize > 0) {
+                overrideDeltas[deltaStack[stackSize - 1]].mul(sourceWorld, destWorld)
+            } else {
+                destWorld.set(sourceWorld)
+            }
+        }
+        dest.transformDirty.clearAll()
+        dest.poseShared = true
+
+        // Weights are compared when render tasks are created, so per instance expressions applied after this
+        // don't count as a change every frame
+        for (index in dest.targetBuffers.indices) {
+            val sourceBuffer = source.targetBuffers[index].content
+            dest.targetBuffers[index].edit {
+                copyFrom(sourceBuffer)
+            }
+        }
+        plan.execute(target, UpdatePhase.RenderDataUpdate)
+        if (scene.cameras.isNotEmpty()) {
+            plan.execute(target, UpdatePhase.CameraUpdate)
+        }
+    }
+
+    override fun close() {
+        instance.decreaseReferenceCount()
+    }
+}
@@ -6,6 +6,7 @@ import org.joml.Matrix4fc
 import top.fifthlight.blazerod.model.RenderScene
 import top.fifthlight.blazerod.util.AbstractRefCount
 import top.fifthlight.blazerod.util.CowBuffer
+import top.fifthlight.blazerod.util.equalsStored
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 
@@ -31,8 +32,16 @@ class ModelMatricesBuffer private constructor(val primitiveNodesSize: Int) : Cow
         buffer.clear()
     }
 
-    fun setMatrix(index: Int, src: Matrix4fc) {
-        src.get(index * MAT4X4_SIZE, buffer)
+    /**
+     * Returns whether the stored matrix changed.
+     */
+    fun setMatrix(index: Int, src: Matrix4fc): Boolean {
+        val offset = index * MAT4X4_SIZE
+        if (src.equalsStored(buffer, offset)) {
+            return false
+        }
+        src.get(offset, buffer)
+        return true
     }
 
     fun getMatrix(index: Int, dest: Matrix4f) {
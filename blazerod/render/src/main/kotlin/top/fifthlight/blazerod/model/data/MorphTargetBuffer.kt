@@ -59,6 +59,10 @@ class MorphTargetBuffer private constructor(
     val weightsBuffer: ByteBuffer =
         ByteBuffer.allocateDirect(4 * (positionTargets + colorTargets + texCoordTargets)).order(ByteOrder.nativeOrder())
 
+    // Weights at the last commitWeights call
+    private val committedWeights: ByteBuffer =
+        ByteBuffer.allocate(weightsBuffer.capacity()).order(ByteOrder.nativeOrder())
+
     // MorphTargetIndices
     val indicesBuffer: ByteBuffer =
         ByteBuffer.allocateDirect(INDICES_ENTRY_SIZE).order(ByteOrder.nativeOrder())
@@ -129,6 +133,15 @@ class MorphTargetBuffer private constructor(
                 target[it] = this[it]
             }
         }
+
+        fun copyFrom(source: WeightChannelImpl) {
+            for (index in 0 until targetsSize) {
+                val weight = source[index]
+                if (this[index] != weight) {
+                    this[index] = weight
+                }
+            }
+        }
     }
 
     fun uploadIndices() {
@@ -137,6 +150,29 @@ class MorphTargetBuffer private constructor(
         texCoordChannel.uploadIndices()
     }
 
+    /**
+     * Copy all weights from another buffer of the same primitive.
+     */
+    fun copyFrom(source: MorphTargetBuffer) {
+        require(
+            source.positionTargets == positionTargets &&
+                    source.colorTargets == colorTargets &&
+                    source.texCoordTargets == texCoordTargets
+        ) { "Morph target buffer size mismatch" }
+        _positionChannel.copyFrom(source._positionChannel)
+        _colorChannel.copyFrom(source._colorChannel)
+        _texCoordChannel.copyFrom(source._texCoordChannel)
+    }
+
+    // Weights may be written several times in a frame, so only the final ones tell whether they changed
+    fun commitWeights(): Boolean {
+        if (weightsBuffer.mismatch(committedWeights) == -1) {
+            return false
+        }
+        committedWeights.put(0, weightsBuffer, 0, weightsBuffer.capacity())
+        return true
+    }
+
     override fun copy() = MorphTargetBuffer(
         positionTargets = positionTargets,
         colorTargets = colorTargets,
@@ -0,0 +1,139 @@
+package top.fifthlight.blazerod.model.load
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.sqrt
+import kotlin.time.Duration.Companion.nanoseconds
+
+// Vertices moved by morph targets are kept, and vertices are only merged into ones mainly moved by the same joint
+class MeshLodGenerator(
+    val levels: List<Level> = DEFAULT_LEVELS,
+    // Primitives with fewer triangles are left alone
+    val minTriangles: Int = 2048,
+) {
+    // maxError is relative to the bounding box diagonal of the primitive
+    data class Level(
+        val triangleRatio: Float,
+        val maxError: Float,
+    )
+
+    companion object {
+        val DEFAULT_LEVELS = listOf(
+            Level(triangleRatio = 0.5f, maxError = 0.005f),
+            Level(triangleRatio = 0.25f, maxError = 0.01f),
+            Level(triangleRatio = 0.125f, maxError = 0.02f),
+        )
+    }
+
+    class Report(levels: Int) {
+        var primitives = 0
+            private set
+        var triangles = 0L
+            private set
+
+        // Triangles of each level, for primitives reaching it. Others keep drawing their coarsest level.
+        val levelTriangles = LongArray(levels)
+
+        // Primitives are simplified in parallel, so the time spent on all of them adds up to more than the stage took
+        var cpuNanos = 0L
+            private set
+        private var firstStartTime = Long.MAX_VALUE
+        private var lastEndTime = Long.MIN_VALUE
+
+        // Wall time from the first primitive starting to the last one finishing
+        val wallNanos: Long
+            @Synchronized
+            get() = if (primitives == 0) 0L else lastEndTime - firstStartTime
+
+        @Synchronized
+        internal fun add(sourceTriangles: Int, lodTriangles: List<Int>, startTime: Long, endTime: Long) {
+            primitives++
+            triangles += sourceTriangles
+            for ((level, count) in lodTriangles.withIndex()) {
+                levelTriangles[level] += count.toLong()
+            }
+            cpuNanos += endTime - startTime
+            firstStartTime = minOf(firstStartTime, startTime)
+            lastEndTime = maxOf(lastEndTime, endTime)
+        }
+
+        @Synchronized
+        override fun toString() = buildString {
+            append("$primitives primitives, $triangles triangles")
+            for ((level, count) in levelTriangles.withIndex()) {
+                append(", LOD ${level + 1}: $count")
+            }
+            append(", took ${wallNanos.nanoseconds} (${cpuNanos.nanoseconds} CPU time)")
+        }
+    }
+
+    val report = Report(levels.size)
+
+    private fun readIndices(data: IndexBufferLoadData): IntArray {
+        val buffer = data.buffer.duplicate().order(ByteOrder.nativeOrder())
+        return IntArray(data.length) { index ->
+            when (data.type.size) {
+                2 -> buffer.getShort(index * 2).toInt() and 0xFFFF
+                else -> buffer.getInt(index * 4)
+            }
+        }
+    }
+
+    private fun writeIndices(source: IndexBufferLoadData, indices: IntArray): IndexBufferLoadData {
+        val size = source.type.size
+        val buffer = ByteBuffer.allocateDirect(indices.size * size).order(ByteOrder.nativeOrder())
+        for ((index, value) in indices.withIndex()) {
+            when (size) {
+                2 -> buffer.putShort(index * 2, value.toShort())
+                else -> buffer.putInt(index * 4, value)
+            }
+        }
+        return IndexBufferLoadData(
+            type = source.type,
+            length = indices.size,
+            buffer = buffer,
+        )
+    }
+
+    // groups holds the main joint of each vertex for skinned primitives
+    fun generate(
+        indexBuffer: IndexBufferLoadData,
+        positions: FloatArray,
+        locked: BooleanArray?,
+        groups: IntArray?,
+    ): List<IndexBufferLoadData> {
+        val startTime = System.nanoTime()
+        val indices = readIndices(indexBuffer)
+        val triangles = indices.size / 3
+
+        var minX = Float.POSITIVE_INFINITY
+        var minY = Float.POSITIVE_INFINITY
+        var minZ = Float.POSITIVE_INFINITY
+        var maxX = Float.NEGATIVE_INFINITY
+        var maxY = Float.NEGATIVE_INFINITY
+        var maxZ = Float.NEGATIVE_INFINITY
+        for (vertex in 0 until positions.size / 3) {
+            minX = minOf(minX, positions[vertex * 3])
+            minY = minOf(minY, positions[vertex * 3 + 1])
+            minZ = minOf(minZ, positions[vertex * 3 + 2])
+            maxX = maxOf(maxX, positions[vertex * 3])
+            maxY = maxOf(maxY, positions[vertex * 3 + 1])
+            maxZ = maxOf(maxZ, positions[vertex * 3 + 2])
+        }
+        val sizeX = maxX - minX
+        val sizeY = maxY - minY
+        val sizeZ = maxZ - minZ
+        val diagonal = sqrt(sizeX * sizeX + sizeY * sizeY + sizeZ * sizeZ)
+
+        val simplifier = MeshSimplifier(positions, indices, locked, groups)
+        val lods = simplifier.simplify(levels.map { level ->
+            val distance = level.maxError * diagonal
+            MeshSimplifier.Target(
+                triangles = (triangles * level.triangleRatio).toInt(),
+                maxError = distance * distance,
+            )
+        })
+        report.add(triangles, lods.map { it.size / 3 }, startTime, System.nanoTime())
+        return lods.map { writeIndices(indexBuffer, it) }
+    }
+}
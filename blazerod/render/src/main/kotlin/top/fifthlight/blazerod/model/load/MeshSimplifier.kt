@@ -0,0 +1,327 @@
+package top.fifthlight.blazerod.model.load
+
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap
+import java.util.*
+import kotlin.math.sqrt
+
+// Quadric error half-edge collapse, so simplified meshes keep using the original vertex buffer.
+// Locked and boundary vertices are kept, and vertices of different groups are never merged.
+class MeshSimplifier(
+    // x, y, z of each vertex
+    private val positions: FloatArray,
+    indices: IntArray,
+    locked: BooleanArray? = null,
+    private val groups: IntArray? = null,
+) {
+    // maxError is the sum of squared distances from the moved vertex to the planes merged into it
+    data class Target(
+        val triangles: Int,
+        val maxError: Float,
+    )
+
+    private class Candidate(
+        val cost: Double,
+        val from: Int,
+        val to: Int,
+        val fromVersion: Int,
+        val toVersion: Int,
+    )
+
+    private val vertexCount = positions.size / 3
+    private val triangles = indices.copyOf()
+    private val triangleAlive = BooleanArray(triangles.size / 3) { true }
+    private var triangleCount = triangleAlive.size
+
+    private val removed = BooleanArray(vertexCount)
+    private val locked = locked?.copyOf() ?: BooleanArray(vertexCount)
+    private val versions = IntArray(vertexCount)
+
+    // Symmetric 4x4 quadric of each vertex: a², ab, ac, ad, b², bc, bd, c², cd, d²
+    private val quadrics = DoubleArray(vertexCount * QUADRIC_SIZE)
+
+    // Triangles around each vertex, may contain dead triangles until compacted
+    private val vertexTriangles = Array(vertexCount) { IntArrayList(6) }
+
+    private val queue = PriorityQueue<Candidate> { a, b -> a.cost.compareTo(b.cost) }
+    private val neighbourSet = IntOpenHashSet()
+
+    companion object {
+        private const val QUADRIC_SIZE = 10
+
+        // Collapses turning a triangle by more than this (cosine of the angle) are rejected
+        private const val MIN_NORMAL_DOT = 0.2
+    }
+
+    init {
+        require(indices.size % 3 == 0) { "Index count ${indices.size} is not a multiple of 3" }
+        val edgeUses = Long2IntOpenHashMap()
+        for (triangle in 0 until triangleAlive.size) {
+            val a = triangles[triangle * 3]
+            val b = triangles[triangle * 3 + 1]
+            val c = triangles[triangle * 3 + 2]
+            if (a == b || b == c || a == c) {
+                triangleAlive[triangle] = false
+                triangleCount--
+                continue
+            }
+            vertexTriangles[a].add(triangle)
+            vertexTriangles[b].add(triangle)
+            vertexTriangles[c].add(triangle)
+            addPlaneQuadric(a, b, c)
+            edgeUses.addTo(edgeKey(a, b), 1)
+            edgeUses.addTo(edgeKey(b, c), 1)
+            edgeUses.addTo(edgeKey(c, a), 1)
+        }
+        // Boundary and non-manifold edges can't move without changing the silhouette or tearing seams
+        val iterator = edgeUses.long2IntEntrySet().fastIterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.intValue != 2) {
+                this.locked[(entry.longKey ushr 32).toInt()] = true
+                this.locked[entry.longKey.toInt()] = true
+            }
+        }
+        for (vertex in 0 until vertexCount) {
+            pushCandidates(vertex)
+        }
+    }
+
+    private fun edgeKey(a: Int, b: Int): Long {
+        val min = minOf(a, b)
+        val max = maxOf(a, b)
+        return (min.toLong() shl 32) or max.toLong()
+    }
+
+    private fun addPlaneQuadric(a: Int, b: Int, c: Int) {
+        val ax = positions[a * 3].toDouble()
+        val ay = positions[a * 3 + 1].toDouble()
+        val az = positions[a * 3 + 2].toDouble()
+        val e1x = positions[b * 3] - ax
+        val e1y = positions[b * 3 + 1] - ay
+        val e1z = positions[b * 3 + 2] - az
+        val e2x = positions[c * 3] - ax
+        val e2y = positions[c * 3 + 1] - ay
+        val e2z = positions[c * 3 + 2] - az
+        var nx = e1y * e2z - e1z * e2y
+        var ny = e1z * e2x - e1x * e2z
+        var nz = e1x * e2y - e1y * e2x
+        val length = sqrt(nx * nx + ny * ny + nz * nz)
+        if (length == 0.0) {
+            return
+        }
+        nx /= length
+        ny /= length
+        nz /= length
+        val d = -(nx * ax + ny * ay + nz * az)
+        addQuadric(a, nx, ny, nz, d)
+        addQuadric(b, nx, ny, nz, d)
+        addQuadric(c, nx, ny, nz, d)
+    }
+
+    private fun addQuadric(vertex: Int, nx: Double, ny: Double, nz: Double, d: Double) {
+        val offset = vertex * QUADRIC_SIZE
+        quadrics[offset] += nx * nx
+        quadrics[offset + 1] += nx * ny
+        quadrics[offset + 2] += nx * nz
+        quadrics[offset + 3] += nx * d
+        quadrics[offset + 4] += ny * ny
+        quadrics[offset + 5] += ny * nz
+        quadrics[offset + 6] += ny * d
+        quadrics[offset + 7] += nz * nz
+        quadrics[offset + 8] += nz * d
+        quadrics[offset + 9] += d * d
+    }
+
+    private fun quadricError(vertex: Int, x: Double, y: Double, z: Double): Double {
+        val q = vertex * QUADRIC_SIZE
+        return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z +
+                2 * quadrics[q + 3] * x + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z +
+                2 * quadrics[q + 6] * y + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z + quadrics[q + 9]
+    }
+
+    // Error of moving both vertices to the position of "to"
+    private fun collapseCost(from: Int, to: Int): Double {
+        val x = positions[to * 3].toDouble()
+        val y = positions[to * 3 + 1].toDouble()
+        val z = positions[to * 3 + 2].toDouble()
+        return maxOf(quadricError(from, x, y, z) + quadricError(to, x, y, z), 0.0)
+    }
+
+    private fun canCollapse(from: Int, to: Int) =
+        !locked[from] && (groups == null || groups[from] == groups[to])
+
+    private fun collectNeighbours(vertex: Int, dest: IntOpenHashSet) {
+        dest.clear()
+        val list = vertexTriangles[vertex]
+        var write = 0
+        for (read in 0 until list.size) {
+            val triangle = list.getInt(read)
+            if (!triangleAlive[triangle]) {
+                continue
+            }
+            list.set(write++, triangle)
+            for (corner in 0 until 3) {
+                val other = triangles[triangle * 3 + corner]
+                if (other != vertex) {
+                    dest.add(other)
+                }
+            }
+        }
+        list.size(write)
+    }
+
+    // Queue the cheapest collapse of each edge around the vertex
+    private fun pushCandidates(vertex: Int) {
+        if (removed[vertex]) {
+            return
+        }
+        collectNeighbours(vertex, neighbourSet)
+        val iterator = neighbourSet.iterator()
+        while (iterator.hasNext()) {
+            val other = iterator.nextInt()
+            val forward = if (canCollapse(vertex, other)) collapseCost(vertex, other) else Double.POSITIVE_INFINITY
+            val backward = if (canCollapse(other, vertex)) collapseCost(other, vertex) else Double.POSITIVE_INFINITY
+            when {
+                forward == Double.POSITIVE_INFINITY && backward == Double.POSITIVE_INFINITY -> continue
+                forward <= backward -> queue.add(Candidate(forward, vertex, other, versions[vertex], versions[other]))
+                else -> queue.add(Candidate(backward, other, vertex, versions[other], versions[vertex]))
+            }
+        }
+    }
+
+    private fun normal(a: Int, b: Int, c: Int, dest: DoubleArray) {
+        val ax = positions[a * 3]
+        val ay = positions[a * 3 + 1]
+        val az = positions[a * 3 + 2]
+        val e1x = (positions[b * 3] - ax).toDouble()
+        val e1y = (positions[b * 3 + 1] - ay).toDouble()
+        val e1z = (positions[b * 3 + 2] - az).toDouble()
+        val e2x = (positions[c * 3] - ax).toDouble()
+        val e2y = (positions[c * 3 + 1] - ay).toDouble()
+        val e2z = (positions[c * 3 + 2] - az).toDouble()
+        dest[0] = e1y * e2z - e1z * e2y
+        dest[1] = e1z * e2x - e1x * e2z
+        dest[2] = e1x * e2y - e1y * e2x
+    }
+
+    private val oldNormal = DoubleArray(3)
+    private val newNormal = DoubleArray(3)
+    private val fromNeighbours = IntOpenHashSet()
+
+    private fun isValidCollapse(from: Int, to: Int): Boolean {
+        // Vertices shared by both ends may only be the tips of the triangles on the edge, or the mesh folds
+        collectNeighbours(from, fromNeighbours)
+        collectNeighbours(to, neighbourSet)
+        var shared = 0
+        val iterator = fromNeighbours.iterator()
+        while (iterator.hasNext()) {
+            if (neighbourSet.contains(iterator.nextInt())) {
+                shared++
+            }
+        }
+        var edgeTriangles = 0
+        val list = vertexTriangles[from]
+        for (index in 0 until list.size) {
+            val triangle = list.getInt(index)
+            val base = triangle * 3
+            val a = triangles[base]
+            val b = triangles[base + 1]
+            val c = triangles[base + 2]
+            if (a == to || b == to || c == to) {
+                edgeTriangles++
+                continue
+            }
+            normal(a, b, c, oldNormal)
+            normal(
+                if (a == from) to else a,
+                if (b == from) to else b,
+                if (c == from) to else c,
+                newNormal,
+            )
+            val dot = oldNormal[0] * newNormal[0] + oldNormal[1] * newNormal[1] + oldNormal[2] * newNormal[2]
+            val oldLength =
+                sqrt(oldNormal[0] * oldNormal[0] + oldNormal[1] * oldNormal[1] + oldNormal[2] * oldNormal[2])
+            val newLength =
+                sqrt(newNormal[0] * newNormal[0] + newNormal[1] * newNormal[1] + newNormal[2] * newNormal[2])
+            if (newLength == 0.0 || dot < MIN_NORMAL_DOT * oldLength * newLength) {
+                return false
+            }
+        }
+        return shared <= edgeTriangles
+    }
+
+    private fun collapse(from: Int, to: Int) {
+        val list = vertexTriangles[from]
+        for (index in 0 until list.size) {
+            val triangle = list.getInt(index)
+            if (!triangleAlive[triangle]) {
+                continue
+            }
+            val base = triangle * 3
+            if (triangles[base] == to || triangles[base + 1] == to || triangles[base + 2] == to) {
+                triangleAlive[triangle] = false
+                triangleCount--
+                continue
+            }
+            for (corner in 0 until 3) {
+                if (triangles[base + corner] == from) {
+                    triangles[base + corner] = to
+                }
+            }
+            vertexTriangles[to].add(triangle)
+        }
+        list.clear()
+        for (i in 0 until QUADRIC_SIZE) {
+            quadrics[to * QUADRIC_SIZE + i] += quadrics[from * QUADRIC_SIZE + i]
+        }
+        removed[from] = true
+        versions[to]++
+        pushCandidates(to)
+    }
+
+    private fun snapshot(): IntArray {
+        val result = IntArray(triangleCount * 3)
+        var write = 0
+        for (triangle in 0 until triangleAlive.size) {
+            if (triangleAlive[triangle]) {
+                triangles.copyInto(result, write, triangle * 3, triangle * 3 + 3)
+                write += 3
+            }
+        }
+        return result
+    }
+
+    // Levels removing less than minReduction of the triangles left are skipped
+    fun simplify(targets: List<Target>, minReduction: Float = 0.1f): List<IntArray> {
+        val result = mutableListOf<IntArray>()
+        var previousCount = triangleCount
+        for (target in targets) {
+            while (triangleCount > target.triangles) {
+                val candidate = queue.peek() ?: break
+                if (candidate.cost > target.maxError) {
+                    break
+                }
+                queue.poll()
+                val from = candidate.from
+                val to = candidate.to
+                if (removed[from] || removed[to] ||
+                    versions[from] != candidate.fromVersion || versions[to] != candidate.toVersion
+                ) {
+                    continue
+                }
+                if (!isValidCollapse(from, to)) {
+                    continue
+                }
+                collapse(from, to)
+            }
+            if (triangleCount > previousCount * (1f - minReduction)) {
+                continue
+            }
+            result.add(snapshot())
+            previousCount = triangleCount
+        }
+        return result
+    }
+}
@@ -11,6 +11,8 @@ import top.fifthlight.blazerod.render.RefCountedGpuBuffer
 import java.nio.ByteBuffer
 import top.fifthlight.blazerod.model.Camera as ModelCamera
 import top.fifthlight.blazerod.model.IkTarget as ModelIkTarget
+import top.fifthlight.blazerod.model.RigidBodyPhysics as ModelRigidBodyPhysics
+import top.fifthlight.blazerod.model.SpringBone as ModelSpringBone
 
 data class TextureLoadData(
     val name: String?,
@@ -96,6 +98,9 @@ data class PrimitiveLoadInfo(
     val vertexBufferIndex: Int,
     val skinIndex: Int?,
     val morphedPrimitiveIndex: Int?,
+    val bounds: Deferred<PrimitiveBounds>?,
+    // Index into ModelLoadInfo.lodIndexBuffers, null for primitives without LODs
+    val lodIndex: Int? = null,
 )
 
 data class NodeLoadInfo(
@@ -130,6 +135,18 @@ data class NodeLoadInfo(
             val influence: Influence,
             val transformId: TransformId,
         ) : Component()
+
+        data class SpringBone(
+            val springIndex: Int,
+            val springBone: ModelSpringBone,
+            val transformId: TransformId,
+        ) : Component()
+
+        data class RigidBodyPhysics(
+            val physicsIndex: Int,
+            val physics: ModelRigidBodyPhysics,
+            val transformId: TransformId,
+        ) : Component()
     }
 }
 
@@ -141,6 +158,7 @@ data class GpuLoadVertexData(
 data class ModelLoadInfo<Texture : Any?, Index : Any, Vertex : Any, Morph : Any>(
     val textures: List<Deferred<Texture>>,
     val indexBuffers: List<Deferred<Index>>,
+    val lodIndexBuffers: List<Deferred<List<Index>>>,
     val vertexBuffers: List<Deferred<Vertex>>,
     val primitiveInfos: List<PrimitiveLoadInfo>,
     val morphTargetInfos: List<Deferred<Morph>>,
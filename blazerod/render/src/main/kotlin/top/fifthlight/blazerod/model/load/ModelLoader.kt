@@ -9,11 +9,12 @@ import top.fifthlight.blazerod.model.RenderScene
 import top.fifthlight.blazerod.util.BlazeRod
 
 object ModelLoader {
-    suspend fun loadModel(model: Model): RenderScene? = coroutineScope {
+    suspend fun loadModel(model: Model, meshLod: MeshLodGenerator? = null): RenderScene? = coroutineScope {
         val loadInfo = ModelPreprocessor.preprocess(
             scope = this,
             loadDispatcher = Dispatchers.Default,
             model = model,
+            meshLod = meshLod,
         ) ?: return@coroutineScope null
         val gpuInfo = ModelResourceLoader.load(
             scope = this,
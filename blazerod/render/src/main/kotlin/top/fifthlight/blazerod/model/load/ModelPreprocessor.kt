@@ -8,6 +8,7 @@ import top.fifthlight.blazerod.extension.NativeImageExt
 import top.fifthlight.blazerod.extension.TextureFormatExt
 import top.fifthlight.blazerod.model.*
 import top.fifthlight.blazerod.model.resource.MorphTargetGroup
+import top.fifthlight.blazerod.model.resource.PrimitiveBounds
 import top.fifthlight.blazerod.model.resource.RenderExpression
 import top.fifthlight.blazerod.model.resource.RenderExpressionGroup
 import top.fifthlight.blazerod.model.resource.RenderSkin
@@ -20,6 +21,7 @@ class ModelPreprocessor private constructor(
     private val coroutineScope: CoroutineScope,
     private val dispatcher: CoroutineDispatcher,
     private val model: Model,
+    private val meshLod: MeshLodGenerator?,
 ) {
     data class SkinJointData(
         val skinIndex: Int,
@@ -393,6 +395,91 @@ class ModelPreprocessor private constructor(
         return targetIndex
     }
 
+    private fun loadBounds(
+        material: MaterialLoadInfo?,
+        skinIndex: Int?,
+        vertices: Int,
+        vertexBufferIndex: Int,
+        morphedPrimitiveIndex: Int?,
+    ): Deferred<PrimitiveBounds> {
+        val skinned = skinIndex != null
+        val vertexFormat = material?.getVertexFormat(skinned) ?: BlazerodVertexFormats.POSITION_COLOR_TEXTURE
+        val skin = skinIndex?.let { skinsList[it] }
+        val vertexBuffer = vertexBuffers[vertexBufferIndex]
+        val morphTargets = morphedPrimitiveIndex?.let { morphTargetInfos[it] }
+        return coroutineScope.async(dispatcher) {
+            val morphPositions = morphTargets?.await()?.position
+            PrimitiveBounds.compute(
+                vertices = vertices,
+                vertexBuffer = vertexBuffer.await(),
+                stride = vertexFormat.vertexSize,
+                positionOffset = vertexFormat.getOffset(VertexFormatElement.POSITION),
+                jointOffset = if (skinned) vertexFormat.getOffset(BlazerodVertexFormatElements.JOINT) else -1,
+                weightOffset = if (skinned) vertexFormat.getOffset(BlazerodVertexFormatElements.WEIGHT) else -1,
+                jointSize = skin?.jointSize ?: 0,
+                inverseBindMatrices = skin?.inverseBindMatrices,
+                morphPositions = morphPositions?.buffer,
+                morphTargets = morphPositions?.targetsCount ?: 0,
+            )
+        }
+    }
+
+    private val lodIndexBuffers = mutableListOf<Deferred<List<IndexBufferLoadData>>>()
+    private fun loadLods(
+        meshLod: MeshLodGenerator,
+        material: MaterialLoadInfo?,
+        skinned: Boolean,
+        vertices: Int,
+        vertexBufferIndex: Int,
+        indexBufferIndex: Int,
+        morphedPrimitiveIndex: Int?,
+    ): Int {
+        val vertexFormat = material?.getVertexFormat(skinned) ?: BlazerodVertexFormats.POSITION_COLOR_TEXTURE
+        val vertexBuffer = vertexBuffers[vertexBufferIndex]
+        val indexBuffer = indexBuffers[indexBufferIndex]
+        val morphTargets = morphedPrimitiveIndex?.let { morphTargetInfos[it] }
+        val lods = coroutineScope.async(dispatcher) {
+            val buffer = vertexBuffer.await()
+            val stride = vertexFormat.vertexSize
+            val positionOffset = vertexFormat.getOffset(VertexFormatElement.POSITION)
+            val positions = FloatArray(vertices * 3) {
+                buffer.getFloat((it / 3) * stride + positionOffset + (it % 3) * 4)
+            }
+            // Vertices are only merged into ones mainly moved by the same joint
+            val groups = if (skinned) {
+                val jointOffset = vertexFormat.getOffset(BlazerodVertexFormatElements.JOINT)
+                val weightOffset = vertexFormat.getOffset(BlazerodVertexFormatElements.WEIGHT)
+                IntArray(vertices) { vertex ->
+                    val base = vertex * stride
+                    val mainJoint = (0 until 4).maxBy { buffer.getFloat(base + weightOffset + it * 4) }
+                    buffer.getShort(base + jointOffset + mainJoint * 2).toInt() and 0xFFFF
+                }
+            } else {
+                null
+            }
+            // Vertices moved by any morph target are kept, so expressions look the same on every level
+            val locked = morphTargets?.await()?.position?.let { target ->
+                val locked = BooleanArray(vertices)
+                for (targetIndex in 0 until target.targetsCount) {
+                    for (vertex in 0 until vertices) {
+                        val offset = (targetIndex * vertices + vertex) * target.itemStride
+                        if (target.buffer.getFloat(offset) != 0f ||
+                            target.buffer.getFloat(offset + 4) != 0f ||
+                            target.buffer.getFloat(offset + 8) != 0f
+                        ) {
+                            locked[vertex] = true
+                        }
+                    }
+                }
+                locked
+            }
+            meshLod.generate(indexBuffer.await(), positions, locked, groups)
+        }
+        val index = lodIndexBuffers.size
+        lodIndexBuffers.add(lods)
+        return index
+    }
+
     private val nodeToMorphedPrimitiveMap = mutableMapOf<NodeId, MutableList<Int>>()
     private val meshToMorphedPrimitiveMap = mutableMapOf<MeshId, MutableList<Int>>()
     private fun loadPrimitive(
@@ -429,18 +516,46 @@ class ModelPreprocessor private constructor(
             meshToMorphedPrimitiveMap.getOrPut(mesh.id) { mutableListOf() }.add(morphedPrimitiveIndex)
             nodeToMorphedPrimitiveMap.getOrPut(node.id) { mutableListOf() }.add(morphedPrimitiveIndex)
         }
+        val vertexBufferIndex = loadVertexBuffer(
+            material = material,
+            skinned = skinned,
+            attributes = primitive.attributes,
+        )
+        val indexBufferIndex = primitive.indices?.let { loadIndexBuffer(it).bufferIndex }
+        val vertices = primitive.attributes.position.count
+        val lodIndex = if (
+            meshLod != null && indexBufferIndex != null &&
+            vertexFormatMode == VertexFormat.DrawMode.TRIANGLES &&
+            (primitive.indices?.count ?: 0) / 3 >= meshLod.minTriangles
+        ) {
+            loadLods(
+                meshLod = meshLod,
+                material = material,
+                skinned = skinned,
+                vertices = vertices,
+                vertexBufferIndex = vertexBufferIndex,
+                indexBufferIndex = indexBufferIndex,
+                morphedPrimitiveIndex = morphedPrimitiveIndex,
+            )
+        } else {
+            null
+        }
         return PrimitiveLoadInfo(
-            vertices = primitive.attributes.position.count,
+            vertices = vertices,
             vertexFormatMode = vertexFormatMode,
             materialInfo = material,
-            indexBufferIndex = primitive.indices?.let { loadIndexBuffer(it).bufferIndex },
-            vertexBufferIndex = loadVertexBuffer(
-                material = material,
-                skinned = skinned,
-                attributes = primitive.attributes,
-            ),
+            indexBufferIndex = indexBufferIndex,
+            vertexBufferIndex = vertexBufferIndex,
             skinIndex = skinIndex.takeIf { skinned },
             morphedPrimitiveIndex = morphedPrimitiveIndex,
+            bounds = loadBounds(
+                material = material,
+                skinIndex = skinIndex.takeIf { skinned },
+                vertices = vertices,
+                vertexBufferIndex = vertexBufferIndex,
+                morphedPrimitiveIndex = morphedPrimitiveIndex,
+            ),
+            lodIndex = lodIndex,
         )
     }
 
@@ -462,6 +577,8 @@ class ModelPreprocessor private constructor(
     }
 
     private var ikCount = 0
+    private var springCount = 0
+    private var physicsCount = 0
     private val nodes = mutableListOf<NodeLoadInfo>()
     private fun loadNode(node: Node): Int {
         val skinJointData = skinJointsData[node.id]
@@ -519,6 +636,26 @@ class ModelPreprocessor private constructor(
                             )
                         }
 
+                        is NodeComponent.SpringBoneComponent -> {
+                            add(
+                                NodeLoadInfo.Component.SpringBone(
+                                    springIndex = springCount++,
+                                    springBone = component.springBone,
+                                    transformId = component.transformId,
+                                )
+                            )
+                        }
+
+                        is NodeComponent.RigidBodyPhysicsComponent -> {
+                            add(
+                                NodeLoadInfo.Component.RigidBodyPhysics(
+                                    physicsIndex = physicsCount++,
+                                    physics = component.physics,
+                                    transformId = component.transformId,
+                                )
+                            )
+                        }
+
                         else -> {}
                     }
                 }
@@ -607,6 +744,7 @@ class ModelPreprocessor private constructor(
         return PreProcessModelLoadInfo(
             textures = textures,
             indexBuffers = indexBuffers,
+            lodIndexBuffers = lodIndexBuffers,
             vertexBuffers = vertexBuffers,
             primitiveInfos = primitiveInfos,
             nodes = nodes,
@@ -629,6 +767,7 @@ class ModelPreprocessor private constructor(
             scope: CoroutineScope,
             loadDispatcher: CoroutineDispatcher,
             model: Model,
-        ) = ModelPreprocessor(scope, loadDispatcher, model).loadModel()
+            meshLod: MeshLodGenerator? = null,
+        ) = ModelPreprocessor(scope, loadDispatcher, model, meshLod).loadModel()
     }
 }
\ No newline at end of file
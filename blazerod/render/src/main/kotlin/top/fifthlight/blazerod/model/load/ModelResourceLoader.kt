@@ -72,7 +72,7 @@ object ModelResourceLoader {
                 RenderTexture(gpuTexture, textureView)
             }
         }
-        val indexBuffers = info.indexBuffers.mapAll(scope, gpuDispatcher) { indexData ->
+        fun loadIndexBuffer(indexData: IndexBufferLoadData): GpuIndexBuffer {
             val device = RenderSystem.getDevice()
             val buffer = RefCountedGpuBuffer(
                 device.createBuffer(
@@ -81,12 +81,16 @@ object ModelResourceLoader {
                     indexData.buffer,
                 )
             )
-            GpuIndexBuffer(
+            return GpuIndexBuffer(
                 type = indexData.type,
                 length = indexData.length,
                 buffer = buffer,
             )
         }
+        val indexBuffers = info.indexBuffers.mapAll(scope, gpuDispatcher) { loadIndexBuffer(it) }
+        val lodIndexBuffers = info.lodIndexBuffers.mapAll(scope, gpuDispatcher) { lods ->
+            lods.map { loadIndexBuffer(it) }
+        }
         val vertexBuffers = info.vertexBuffers.mapAll(scope, gpuDispatcher) {
             val device = RenderSystem.getDevice()
             val buffer = RefCountedGpuBuffer(
@@ -133,6 +137,7 @@ object ModelResourceLoader {
         return GpuLoadModelLoadInfo(
             textures = textures,
             indexBuffers = indexBuffers,
+            lodIndexBuffers = lodIndexBuffers,
             vertexBuffers = vertexBuffers,
             morphTargetInfos = morphTargetInfos,
             primitiveInfos = info.primitiveInfos,
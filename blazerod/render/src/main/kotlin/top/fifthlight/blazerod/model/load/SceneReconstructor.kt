@@ -1,6 +1,7 @@
 package top.fifthlight.blazerod.model.load
 
 import net.minecraft.client.gl.RenderPassImpl
+import top.fifthlight.blazerod.BlazeRod
 import top.fifthlight.blazerod.model.RenderScene
 import top.fifthlight.blazerod.model.TransformId
 import top.fifthlight.blazerod.model.node.RenderNode
@@ -73,6 +74,7 @@ class SceneReconstructor private constructor(private val info: GpuLoadModelLoadI
                     val primitiveInfo = info.primitiveInfos[component.infoIndex]
                     val vertexBuffer = info.vertexBuffers[primitiveInfo.vertexBufferIndex].await()
                     val indexBuffer = primitiveInfo.indexBufferIndex?.let { index -> info.indexBuffers[index].await() }
+                    val lodIndexBuffers = primitiveInfo.lodIndex?.let { index -> info.lodIndexBuffers[index].await() }
                     val material = primitiveInfo.materialInfo?.let { materialLoadInfo ->
                         loadMaterial(materialLoadInfo)
                     } ?: RenderMaterial.defaultMaterial
@@ -86,6 +88,7 @@ class SceneReconstructor private constructor(private val info: GpuLoadModelLoadI
                             gpuVertexBuffer = vertexBuffer.gpuBuffer,
                             cpuVertexBuffer = vertexBuffer.cpuBuffer,
                             indexBuffer = indexBuffer,
+                            lodIndexBuffers = lodIndexBuffers ?: listOf(),
                             material = material,
                             targets = targets?.let {
                                 Targets(
@@ -95,6 +98,7 @@ class SceneReconstructor private constructor(private val info: GpuLoadModelLoadI
                                 )
                             },
                             targetGroups = targets?.targetGroups ?: listOf(),
+                            bounds = primitiveInfo.bounds?.await(),
                         ),
                         skinIndex = primitiveInfo.skinIndex,
                         morphedPrimitiveIndex = primitiveInfo.morphedPrimitiveIndex,
@@ -132,6 +136,12 @@ class SceneReconstructor private constructor(private val info: GpuLoadModelLoadI
                 }
 
                 is NodeLoadInfo.Component.IkTarget -> {
+                    val chains = component.ikTarget.joints.map {
+                        IkTarget.Chain(
+                            nodeIndex = nodeIdToIndexMap[it.nodeId] ?: return@mapNotNull null,
+                            limit = it.limit,
+                        )
+                    }
                     IkTarget(
                         ikIndex = component.ikIndex,
                         limitRadian = component.ikTarget.limitRadian,
@@ -139,12 +149,75 @@ class SceneReconstructor private constructor(private val info: GpuLoadModelLoadI
                         transformId = component.transformId,
                         effectorNodeIndex = nodeIdToIndexMap[component.ikTarget.effectorNodeId]
                             ?: return@mapNotNull null,
-                        chains = component.ikTarget.joints.map {
-                            IkTarget.Chain(
-                                nodeIndex = nodeIdToIndexMap[it.nodeId] ?: return@mapNotNull null,
-                                limit = it.limit,
+                        chains = chains,
+                        solver = IkTarget.Solver.choose(chains, BlazeRod.fastIkSolvers),
+                    )
+                }
+
+                is NodeLoadInfo.Component.SpringBone -> {
+                    val springBone = component.springBone
+                    SpringBone(
+                        springIndex = component.springIndex,
+                        transformId = component.transformId,
+                        joints = springBone.joints.map { joint ->
+                            SpringBone.Joint(
+                                nodeIndex = nodeIdToIndexMap[joint.nodeId] ?: return@mapNotNull null,
+                                tailNodeIndex = joint.tailNodeId?.let {
+                                    nodeIdToIndexMap[it] ?: return@mapNotNull null
+                                } ?: -1,
+                                parentJoint = joint.parentJoint,
+                                hitRadius = joint.hitRadius,
+                                stiffness = joint.stiffness,
+                                gravityPower = joint.gravityPower,
+                                gravityDir = joint.gravityDir,
+                                dragForce = joint.dragForce,
+                            )
+                        },
+                        colliders = springBone.colliders.map { collider ->
+                            SpringBone.Collider(
+                                nodeIndex = nodeIdToIndexMap[collider.nodeId] ?: return@mapNotNull null,
+                                shape = collider.shape,
+                            )
+                        },
+                    )
+                }
+
+                is NodeLoadInfo.Component.RigidBodyPhysics -> {
+                    val physics = component.physics
+                    RigidBodyPhysics(
+                        physicsIndex = component.physicsIndex,
+                        transformId = component.transformId,
+                        rigidBodies = physics.rigidBodies.map { body ->
+                            RigidBodyPhysics.RigidBody(
+                                // Bodies of missing bones are simulated on their own
+                                nodeIndex = body.nodeId?.let { nodeIdToIndexMap[it] } ?: -1,
+                                group = body.group,
+                                collisionMask = body.collisionMask,
+                                shape = body.shape,
+                                position = body.position,
+                                rotation = body.rotation,
+                                mass = body.mass,
+                                linearDamping = body.linearDamping,
+                                angularDamping = body.angularDamping,
+                                restitution = body.restitution,
+                                friction = body.friction,
+                                mode = body.mode,
+                            )
+                        },
+                        joints = physics.joints.map { joint ->
+                            RigidBodyPhysics.Joint(
+                                rigidBodyA = joint.rigidBodyA,
+                                rigidBodyB = joint.rigidBodyB,
+                                position = joint.position,
+                                rotation = joint.rotation,
+                                positionMin = joint.positionMin,
+                                positionMax = joint.positionMax,
+                                rotationMin = joint.rotationMin,
+                                rotationMax = joint.rotationMax,
+                                positionSpring = joint.positionSpring,
+                                rotationSpring = joint.rotationSpring,
                             )
-                        }
+                        },
                     )
                 }
             }
@@ -172,6 +245,7 @@ class SceneReconstructor private constructor(private val info: GpuLoadModelLoadI
             if (RenderPassImpl.IS_DEVELOPMENT) {
                 info.textures.forEach { it.await()?.checkInUse() }
                 info.indexBuffers.forEach { it.await().checkInUse() }
+                info.lodIndexBuffers.forEach { lods -> lods.await().forEach { it.checkInUse() } }
                 info.vertexBuffers.forEach { it.await().gpuBuffer?.checkInUse() }
             }
         }
@@ -56,36 +56,10 @@ class RenderNode(
     }
 
     private val typeComponents = components.groupBy { it.type }
-    private val phaseComponents =
-        UpdatePhase.Type.entries.associateWith { type -> components.filter { type in it.updatePhases } }
-    private val phases = components.flatMap { it.updatePhases }.toSet()
-    fun hasPhase(phase: UpdatePhase.Type) = phase in phases
     @Suppress("UNCHECKED_CAST")
     fun <T : RenderNodeComponent<T>> getComponentsOfType(type: RenderNodeComponent.Type<T>): List<T> =
         typeComponents[type] as? List<T> ?: listOf()
     fun hasComponentOfType(type: RenderNodeComponent.Type<*>): Boolean = type in typeComponents.keys
-
-    fun update(phase: UpdatePhase, node: RenderNode, instance: ModelInstance) {
-        if (phase == UpdatePhase.GlobalTransformPropagation) {
-            if (!instance.isNodeTransformDirty(node)) {
-                return
-            }
-            val parent = parent
-            val transformMap = instance.getTransformMap(this)
-            val worldTransform = instance.getWorldTransform(this)
-            val currentLocalTransform = transformMap.getSum(TransformId.LAST)
-            if (parent != null) {
-                instance.getWorldTransform(parent).mul(currentLocalTransform, worldTransform)
-            } else {
-                worldTransform.set(currentLocalTransform)
-            }
-            instance.cleanNodeTransformDirty(node)
-        } else {
-            phaseComponents[phase.type]?.forEach { component ->
-                component.update(phase, node, instance)
-            }
-        }
-    }
 }
 
 fun RenderNode.forEach(action: (RenderNode) -> Unit) {
@@ -99,25 +73,11 @@ fun RenderNode.forEach(action: (RenderNode) -> Unit) {
     }
 }
 
-fun ModelInstance.getTransformMap(node: RenderNode) = modelData.transformMaps[node.nodeIndex]
+fun ModelInstance.getTransform(node: RenderNode, id: TransformId) = modelData.transforms.get(node.nodeIndex, id)
+fun ModelInstance.getTransformSum(node: RenderNode, id: TransformId) = modelData.transforms.getSum(node.nodeIndex, id)
 fun ModelInstance.getWorldTransform(node: RenderNode) = modelData.worldTransforms[node.nodeIndex]
-fun ModelInstance.getTransformMap(nodeIndex: Int) = modelData.transformMaps[nodeIndex]
+fun ModelInstance.getTransform(nodeIndex: Int, id: TransformId) = modelData.transforms.get(nodeIndex, id)
+fun ModelInstance.getTransformSum(nodeIndex: Int, id: TransformId) = modelData.transforms.getSum(nodeIndex, id)
 fun ModelInstance.getWorldTransform(nodeIndex: Int) = modelData.worldTransforms[nodeIndex]
-private fun ModelInstance.isNodeTransformDirty(node: RenderNode) = modelData.transformDirty[node.nodeIndex]
-fun ModelInstance.markNodeTransformDirty(node: RenderNode) {
-    if (!modelData.transformDirty[node.nodeIndex]) {
-        modelData.transformDirty[node.nodeIndex] = true
-        modelData.undirtyNodeCount--
-        for (children in node.children) {
-            markNodeTransformDirty(children)
-        }
-    }
-}
-
-private fun ModelInstance.cleanNodeTransformDirty(node: RenderNode) {
-    if (modelData.transformDirty[node.nodeIndex]) {
-        modelData.transformDirty[node.nodeIndex] = false
-        modelData.undirtyNodeCount++
-    }
-}
+fun ModelInstance.markNodeTransformDirty(node: RenderNode) = scene.updatePlan.markDirty(this, node.nodeIndex)
 
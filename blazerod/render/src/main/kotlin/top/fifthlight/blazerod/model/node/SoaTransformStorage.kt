@@ -0,0 +1,211 @@
+package top.fifthlight.blazerod.model.node
+
+import org.joml.Matrix4f
+import org.joml.Matrix4fc
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import top.fifthlight.blazerod.model.NodeTransform
+import top.fifthlight.blazerod.model.NodeTransformView
+import top.fifthlight.blazerod.model.TransformId
+
+/**
+ * 以 TransformId 分层的 SoA 变换存储。
+ *
+ * 每一层的平移、旋转、缩放、矩阵和累积矩阵都保存在按节点索引排列的扁平 float 数组中，
+ * 每个节点用一个 Int 的位表示各层累积矩阵是否为脏。
+ */
+class SoaTransformStorage(initialTransforms: List<NodeTransform?>) : TransformStorage {
+    private companion object {
+        const val KIND_ABSENT: Byte = 0
+        const val KIND_DECOMPOSED: Byte = 1
+        const val KIND_MATRIX: Byte = 2
+
+        val LAYERS = TransformId.entries.size
+        val ALL_LAYERS_MASK = (1 shl LAYERS) - 1
+
+        // 从 id 开始（包括 id）到 LAST 的所有层
+        fun maskFrom(id: TransformId) = ALL_LAYERS_MASK and ((1 shl id.ordinal) - 1).inv()
+
+        // 从 FIRST 到 id（包括 id）的所有层
+        fun maskTo(id: TransformId) = (1 shl (id.ordinal + 1)) - 1
+    }
+
+    val nodeCount = initialTransforms.size
+
+    private val kinds = Array(LAYERS) { ByteArray(nodeCount) }
+    private val translations = Array(LAYERS) { FloatArray(nodeCount * 3) }
+    private val rotations = Array(LAYERS) { FloatArray(nodeCount * 4) }
+    private val scales = Array(LAYERS) { FloatArray(nodeCount * 3) }
+    private val matrices = Array(LAYERS) { FloatArray(nodeCount * 16) }
+    private val sums = Array(LAYERS) { FloatArray(nodeCount * 16) }
+    private val dirtyMasks = IntArray(nodeCount)
+
+    private val editTransform = NodeTransform.Decomposed()
+    private val decomposedViews = Array(LAYERS) { NodeTransform.Decomposed() }
+    private val matrixViews = Array(LAYERS) { NodeTransform.Matrix() }
+    private val sumMatrix = Matrix4f()
+    private val localMatrix = Matrix4f()
+
+    init {
+        val first = TransformId.FIRST.ordinal
+        for ((nodeIndex, transform) in initialTransforms.withIndex()) {
+            when (transform) {
+                is NodeTransform.Matrix -> storeMatrix(first, nodeIndex, transform.matrix)
+                is NodeTransform.Decomposed -> storeDecomposed(first, nodeIndex, transform)
+                null -> storeDecomposed(first, nodeIndex, editTransform)
+            }
+            loadLocal(first, nodeIndex, localMatrix).get(sums[first], nodeIndex * 16)
+        }
+    }
+
+    private fun storeMatrix(layer: Int, nodeIndex: Int, matrix: Matrix4fc) {
+        kinds[layer][nodeIndex] = KIND_MATRIX
+        matrix.get(matrices[layer], nodeIndex * 16)
+    }
+
+    private fun storeDecomposed(layer: Int, nodeIndex: Int, decomposed: NodeTransformView.Decomposed) {
+        kinds[layer][nodeIndex] = KIND_DECOMPOSED
+        val translation = translations[layer]
+        val rotation = rotations[layer]
+        val scale = scales[layer]
+        val vectorOffset = nodeIndex * 3
+        val rotationOffset = nodeIndex * 4
+        decomposed.translation.let {
+            translation[vectorOffset] = it.x()
+            translation[vectorOffset + 1] = it.y()
+            translation[vectorOffset + 2] = it.z()
+        }
+        decomposed.rotation.let {
+            rotation[rotationOffset] = it.x()
+            rotation[rotationOffset + 1] = it.y()
+            rotation[rotationOffset + 2] = it.z()
+            rotation[rotationOffset + 3] = it.w()
+        }
+        decomposed.scale.let {
+            scale[vectorOffset] = it.x()
+            scale[vectorOffset + 1] = it.y()
+            scale[vectorOffset + 2] = it.z()
+        }
+    }
+
+    private fun loadDecomposed(layer: Int, nodeIndex: Int, dest: NodeTransform.Decomposed): NodeTransform.Decomposed {
+        val translation = translations[layer]
+        val rotation = rotations[layer]
+        val scale = scales[layer]
+        val vectorOffset = nodeIndex * 3
+        val rotationOffset = nodeIndex * 4
+        dest.translation.set(translation[vectorOffset], translation[vectorOffset + 1], translation[vectorOffset + 2])
+        dest.rotation.set(
+            rotation[rotationOffset],
+            rotation[rotationOffset + 1],
+            rotation[rotationOffset + 2],
+            rotation[rotationOffset + 3],
+        )
+        dest.scale.set(scale[vectorOffset], scale[vectorOffset + 1], scale[vectorOffset + 2])
+        return dest
+    }
+
+    private fun loadLocal(layer: Int, nodeIndex: Int, dest: Matrix4f): Matrix4f = when (kinds[layer][nodeIndex]) {
+        KIND_MATRIX -> dest.set(matrices[layer], nodeIndex * 16)
+        KIND_DECOMPOSED -> {
+            val translation = translations[layer]
+            val rotation = rotations[layer]
+            val scale = scales[layer]
+            val vectorOffset = nodeIndex * 3
+            val rotationOffset = nodeIndex * 4
+            dest.translationRotateScale(
+                translation[vectorOffset], translation[vectorOffset + 1], translation[vectorOffset + 2],
+                rotation[rotationOffset], rotation[rotationOffset + 1],
+                rotation[rotationOffset + 2], rotation[rotationOffset + 3],
+                scale[vectorOffset], scale[vectorOffset + 1], scale[vectorOffset + 2],
+            )
+        }
+
+        else -> dest.identity()
+    }
+
+    private fun markDirty(nodeIndex: Int, id: TransformId) {
+        dirtyMasks[nodeIndex] = dirtyMasks[nodeIndex] or maskFrom(id)
+    }
+
+    /**
+     * 清除从指定 TransformId 开始的所有变换。FIRST 层总是存在，因此不能被清除。
+     */
+    override fun clearFrom(nodeIndex: Int, id: TransformId) {
+        require(id != TransformId.FIRST) { "Can't clear the first transform layer" }
+        for (layer in id.ordinal until LAYERS) {
+            kinds[layer][nodeIndex] = KIND_ABSENT
+        }
+        dirtyMasks[nodeIndex] = dirtyMasks[nodeIndex] and maskFrom(id).inv()
+    }
+
+    override fun get(nodeIndex: Int, id: TransformId): NodeTransformView? {
+        val layer = id.ordinal
+        return when (kinds[layer][nodeIndex]) {
+            KIND_DECOMPOSED -> loadDecomposed(layer, nodeIndex, decomposedViews[layer])
+            KIND_MATRIX -> matrixViews[layer].also { it.matrix.set(matrices[layer], nodeIndex * 16) }
+            else -> null
+        }
+    }
+
+    override fun getSum(nodeIndex: Int, id: TransformId): Matrix4fc {
+        val dirtyMask = dirtyMasks[nodeIndex]
+        val target = id.ordinal
+
+        // 找到 id 及之前第一个存在且不脏的层，FIRST 层总是存在
+        var start = target
+        while (start > 0 && (dirtyMask and (1 shl start) != 0 || kinds[start][nodeIndex] == KIND_ABSENT)) {
+            start--
+        }
+
+        val accumulated = if (start == 0 && dirtyMask and 1 != 0) {
+            loadLocal(0, nodeIndex, sumMatrix).also { it.get(sums[0], nodeIndex * 16) }
+        } else {
+            sumMatrix.set(sums[start], nodeIndex * 16)
+        }
+
+        for (layer in start + 1..target) {
+            if (kinds[layer][nodeIndex] == KIND_ABSENT) {
+                continue
+            }
+            accumulated.mul(loadLocal(layer, nodeIndex, localMatrix))
+            accumulated.get(sums[layer], nodeIndex * 16)
+        }
+
+        dirtyMasks[nodeIndex] = dirtyMask and maskTo(id).inv()
+        return accumulated
+    }
+
+    override fun updateDecomposed(nodeIndex: Int, id: TransformId, updater: NodeTransform.Decomposed.() -> Unit) {
+        val layer = id.ordinal
+        val transform = editTransform
+        when (kinds[layer][nodeIndex]) {
+            KIND_DECOMPOSED -> loadDecomposed(layer, nodeIndex, transform)
+            KIND_MATRIX -> {
+                val matrix = localMatrix.set(matrices[layer], nodeIndex * 16)
+                matrix.getTranslation(transform.translation)
+                matrix.getUnnormalizedRotation(transform.rotation)
+                matrix.getScale(transform.scale)
+            }
+
+            else -> {
+                transform.translation.set(0f)
+                transform.rotation.identity()
+                transform.scale.set(1f)
+            }
+        }
+        updater(transform)
+        storeDecomposed(layer, nodeIndex, transform)
+        markDirty(nodeIndex, id)
+    }
+
+    override fun setMatrix(nodeIndex: Int, id: TransformId, matrix: Matrix4fc) {
+        storeMatrix(id.ordinal, nodeIndex, matrix)
+        markDirty(nodeIndex, id)
+    }
+
+    override fun setMatrix(nodeIndex: Int, id: TransformId, decomposed: NodeTransformView.Decomposed) {
+        storeDecomposed(id.ordinal, nodeIndex, decomposed)
+        markDirty(nodeIndex, id)
+    }
+}
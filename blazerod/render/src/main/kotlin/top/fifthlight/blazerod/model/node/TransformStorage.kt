@@ -0,0 +1,57 @@
+package top.fifthlight.blazerod.model.node
+
+import org.joml.Matrix4fc
+import top.fifthlight.blazerod.model.NodeTransform
+import top.fifthlight.blazerod.model.NodeTransformView
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.util.mapToArray
+
+/**
+ * 一个模型实例中所有节点的分层变换存储。
+ *
+ * 返回的 NodeTransformView 和 Matrix4fc 都可能引用内部数据，只在存储被其他方法修改前有效。
+ */
+sealed interface TransformStorage {
+    enum class Type {
+        /** 每个节点一个 TransformMap。 */
+        MAP,
+
+        /** 以 TransformId 分层的扁平 float 数组（SoA）。 */
+        SOA,
+    }
+
+    fun clearFrom(nodeIndex: Int, id: TransformId)
+    fun get(nodeIndex: Int, id: TransformId): NodeTransformView?
+    fun getSum(nodeIndex: Int, id: TransformId): Matrix4fc
+    fun updateDecomposed(nodeIndex: Int, id: TransformId, updater: NodeTransform.Decomposed.() -> Unit)
+    fun setMatrix(nodeIndex: Int, id: TransformId, matrix: Matrix4fc)
+    fun setMatrix(nodeIndex: Int, id: TransformId, decomposed: NodeTransformView.Decomposed)
+
+    companion object {
+        fun create(type: Type, scene: RenderScene): TransformStorage = when (type) {
+            Type.MAP -> Mapped(scene.nodes.mapToArray { node -> TransformMap(node.absoluteTransform) })
+            Type.SOA -> SoaTransformStorage(scene.nodes.map { it.absoluteTransform })
+        }
+    }
+
+    class Mapped(val transformMaps: Array<TransformMap>) : TransformStorage {
+        override fun clearFrom(nodeIndex: Int, id: TransformId) = transformMaps[nodeIndex].clearFrom(id)
+
+        override fun get(nodeIndex: Int, id: TransformId) = transformMaps[nodeIndex].get(id)
+
+        override fun getSum(nodeIndex: Int, id: TransformId) = transformMaps[nodeIndex].getSum(id)
+
+        override fun updateDecomposed(
+            nodeIndex: Int,
+            id: TransformId,
+            updater: NodeTransform.Decomposed.() -> Unit,
+        ) = transformMaps[nodeIndex].updateDecomposed(id, updater)
+
+        override fun setMatrix(nodeIndex: Int, id: TransformId, matrix: Matrix4fc) =
+            transformMaps[nodeIndex].setMatrix(id, matrix)
+
+        override fun setMatrix(nodeIndex: Int, id: TransformId, decomposed: NodeTransformView.Decomposed) =
+            transformMaps[nodeIndex].setMatrix(id, decomposed)
+    }
+}
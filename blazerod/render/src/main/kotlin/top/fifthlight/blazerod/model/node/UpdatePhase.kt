@@ -13,6 +13,7 @@ sealed class UpdatePhase(
         IK_UPDATE,
         INFLUENCE_TRANSFORM_UPDATE,
         GLOBAL_TRANSFORM_PROPAGATION,
+        PHYSICS_UPDATE,
         RENDER_DATA_UPDATE,
         CAMERA_UPDATE,
         DEBUG_RENDER,
@@ -24,6 +25,8 @@ sealed class UpdatePhase(
 
     data object GlobalTransformPropagation : UpdatePhase(Type.GLOBAL_TRANSFORM_PROPAGATION)
 
+    data object PhysicsUpdate : UpdatePhase(Type.PHYSICS_UPDATE)
+
     data object RenderDataUpdate : UpdatePhase(Type.RENDER_DATA_UPDATE)
 
     data object CameraUpdate : UpdatePhase(Type.CAMERA_UPDATE)
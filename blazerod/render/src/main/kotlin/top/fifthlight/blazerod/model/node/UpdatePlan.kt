@@ -0,0 +1,102 @@
+package top.fifthlight.blazerod.model.node
+
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.component.RenderNodeComponent
+
+// Nodes are stored in pre-order, so every subtree is a contiguous range and clean nodes are skipped by bitset scan
+class UpdatePlan(rootNode: RenderNode, nodeCount: Int) {
+    val propagationOrder: IntArray
+
+    // -1 for the root
+    val propagationParents: IntArray
+
+    // Exclusive end position of the subtree starting at each position
+    val subtreeEnds: IntArray
+
+    val nodePositions = IntArray(nodeCount) { -1 }
+
+    private val phaseNodes: Array<Array<RenderNode>>
+    private val phaseComponents: Array<Array<RenderNodeComponent<*>>>
+
+    init {
+        val order = IntArray(nodeCount)
+        val parents = IntArray(nodeCount)
+        val ends = IntArray(nodeCount)
+        var position = 0
+        fun visit(node: RenderNode, parentIndex: Int) {
+            val nodePosition = position++
+            require(nodePositions[node.nodeIndex] == -1) { "Node ${node.nodeIndex} appears twice in scene" }
+            nodePositions[node.nodeIndex] = nodePosition
+            order[nodePosition] = node.nodeIndex
+            parents[nodePosition] = parentIndex
+            for (child in node.children) {
+                visit(child, node.nodeIndex)
+            }
+            ends[nodePosition] = position
+        }
+        visit(rootNode, -1)
+        require(position == nodeCount) { "Scene has $nodeCount nodes, but only $position are reachable from root" }
+        propagationOrder = order
+        propagationParents = parents
+        subtreeEnds = ends
+
+        val nodes = mutableListOf<RenderNode>()
+        rootNode.forEach { nodes.add(it) }
+        val phaseNodes = UpdatePhase.Type.entries.map { mutableListOf<RenderNode>() }
+        val phaseComponents = UpdatePhase.Type.entries.map { mutableListOf<RenderNodeComponent<*>>() }
+        for (node in nodes) {
+            for (component in node.components) {
+                for (phase in component.updatePhases) {
+                    phaseNodes[phase.ordinal].add(node)
+                    phaseComponents[phase.ordinal].add(component)
+                }
+            }
+        }
+        this.phaseNodes = Array(phaseNodes.size) { phaseNodes[it].toTypedArray() }
+        this.phaseComponents = Array(phaseComponents.size) { phaseComponents[it].toTypedArray() }
+    }
+
+    fun hasPhase(type: UpdatePhase.Type) = phaseComponents[type.ordinal].isNotEmpty()
+
+    fun execute(instance: ModelInstance, phase: UpdatePhase) {
+        if (phase == UpdatePhase.GlobalTransformPropagation) {
+            propagate(instance, 0, propagationOrder.size)
+            return
+        }
+        val nodes = phaseNodes[phase.type.ordinal]
+        val components = phaseComponents[phase.type.ordinal]
+        for (i in components.indices) {
+            components[i].update(phase, nodes[i], instance)
+        }
+    }
+
+    fun markDirty(instance: ModelInstance, nodeIndex: Int) {
+        val position = nodePositions[nodeIndex]
+        instance.modelData.transformDirty.set(position, subtreeEnds[position])
+    }
+
+    fun propagate(instance: ModelInstance, nodeIndex: Int) {
+        val position = nodePositions[nodeIndex]
+        propagate(instance, position, subtreeEnds[position])
+    }
+
+    private fun propagate(instance: ModelInstance, from: Int, to: Int) {
+        val modelData = instance.modelData
+        val dirty = modelData.transformDirty
+        var position = dirty.nextSetBit(from)
+        while (position in 0 until to) {
+            val nodeIndex = propagationOrder[position]
+            val parentIndex = propagationParents[position]
+            val worldTransform = modelData.worldTransforms[nodeIndex]
+            val localTransform = modelData.transforms.getSum(nodeIndex, TransformId.LAST)
+            if (parentIndex >= 0) {
+                modelData.worldTransforms[parentIndex].mul(localTransform, worldTransform)
+            } else {
+                worldTransform.set(localTransform)
+            }
+            dirty.clear(position)
+            position = dirty.nextSetBit(position + 1)
+        }
+    }
+}
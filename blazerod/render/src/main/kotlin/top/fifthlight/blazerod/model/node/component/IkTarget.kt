@@ -7,7 +7,8 @@ import top.fifthlight.blazerod.model.ModelInstance
 import top.fifthlight.blazerod.model.TransformId
 import top.fifthlight.blazerod.model.node.RenderNode
 import top.fifthlight.blazerod.model.node.UpdatePhase
-import top.fifthlight.blazerod.model.node.getTransformMap
+import top.fifthlight.blazerod.model.node.getTransform
+import top.fifthlight.blazerod.model.node.getTransformSum
 import top.fifthlight.blazerod.model.node.getWorldTransform
 import top.fifthlight.blazerod.util.drawBox
 import kotlin.math.*
@@ -19,6 +20,7 @@ class IkTarget(
     val chains: List<Chain>,
     val effectorNodeIndex: Int,
     val transformId: TransformId,
+    val solver: Solver = Solver.CCD,
 ) : RenderNodeComponent<IkTarget>() {
     override fun onClosed() {}
 
@@ -34,6 +36,15 @@ class IkTarget(
         private const val FLOAT_PI = PI.toFloat()
         private const val FLOAT_TWO_PI = FLOAT_PI * 2
 
+        // Stop iterating once the effector is this close to the target (squared)...
+        private const val CONVERGED_DISTANCE_SQUARED = 1e-8f
+
+        // ...or once an iteration rotates all chains by less than this in total, as later ones won't do better
+        private const val STALLED_ROTATION = 1e-5f
+
+        // Solver inputs are rounded to this many steps per unit when fingerprinted, about 0.1 mm in PMX units
+        private const val FINGERPRINT_SCALE = 1e4f
+
         private val decomposeTests = listOf(
             Vector3f(FLOAT_PI, FLOAT_PI, FLOAT_PI),   // + + +
             Vector3f(FLOAT_PI, FLOAT_PI, -FLOAT_PI),  // + + -
@@ -52,10 +63,106 @@ class IkTarget(
     class Chain(
         val nodeIndex: Int,
         val limit: top.fifthlight.blazerod.model.IkTarget.IkJoint.Limits?,
-    ) {
-        val prevAngle = Vector3f()
-        val saveIKRot = Quaternionf()
-        var planeModeAngle: Float = 0f
+    )
+
+    enum class Solver {
+        // Iterative solver ported from saba, works with any chain and limits. Matches MMD, so it is the default.
+        CCD,
+
+        // Exact solver for a free root and a middle joint bending on one axis or freely, like legs and arms.
+        // Ignores limitRadian and the range of the middle joint limit, as it reaches the pose in one step.
+        TWO_BONE,
+
+        // Position based solver for longer chains without limits, converging in fewer iterations than CCD
+        FABRIK;
+
+        companion object {
+            // Other solvers don't apply limits the way MMD does, so they are only used when fastSolvers is set
+            fun choose(chains: List<Chain>, fastSolvers: Boolean): Solver = when {
+                !fastSolvers -> CCD
+                chains.size == 2 && chains[1].limit == null &&
+                        chains[0].limit.let { it == null || it.singleAxis != null } -> TWO_BONE
+
+                chains.size >= 3 && chains.all { it.limit == null } -> FABRIK
+                else -> CCD
+            }
+        }
+    }
+
+    /**
+     * Temporaries and per-chain solver state. Owned by a model instance, so instances can be solved concurrently.
+     */
+    class Scratch(maxChains: Int) {
+        internal val prevAngles = Array(maxChains) { Vector3f() }
+        internal val saveIKRots = Array(maxChains) { Quaternionf() }
+        internal val planeModeAngles = FloatArray(maxChains)
+
+        internal val testVec = Vector3f()
+        internal val targetPos = Vector3f()
+        internal val ikPos = Vector3f()
+        internal val invChain = Matrix4f()
+        internal val chainIkPos = Vector3f()
+        internal val chainTargetPos = Vector3f()
+        internal val prevRotationInv = Quaternionf()
+
+        internal val cross = Vector3f()
+        internal val rot = Quaternionf()
+        internal val chainRot = Quaternionf()
+        internal val chainRotM = Matrix3f()
+        internal val rotXYZ = Vector3f()
+
+        internal val rot1 = Quaternionf()
+        internal val targetVec1 = Vector3f()
+        internal val rot2 = Quaternionf()
+        internal val targetVec2 = Vector3f()
+
+        internal val fingerprintValues = FloatArray(16)
+
+        internal val twoBoneRoot = Vector3f()
+        internal val twoBoneEnd = Vector3f()
+        internal val twoBoneGoal = Vector3f()
+        internal val hingeAxis = Vector3f()
+        internal val hingeRootPlane = Vector3f()
+        internal val hingeEndPlane = Vector3f()
+        internal val hingeRot = Quaternionf()
+
+        // Joint positions from the chain root to the end, and bone lengths between them
+        internal val fabrikPositions = Array(maxChains + 1) { Vector3f() }
+        internal val fabrikLengths = FloatArray(maxChains)
+        internal val fabrikRoot = Vector3f()
+        internal val fabrikLastEnd = Vector3f()
+    }
+
+    // Last solved rotations, reused while the quantized solver inputs stay the same
+    class Cache(target: IkTarget) {
+        internal val rotations = Array(target.chains.size) { Quaternionf() }
+
+        // Nodes from the IK node up to the chain root
+        internal val pathNodes = run {
+            val rootIndex = target.chains.lastOrNull()?.nodeIndex
+            val path = mutableListOf<Int>()
+            var current: RenderNode? = target.node
+            while (current != null) {
+                path.add(current.nodeIndex)
+                if (current.nodeIndex == rootIndex) {
+                    break
+                }
+                current = current.parent
+            }
+            path.toIntArray()
+        }
+        internal val fingerprint = IntArray((pathNodes.size + 2) * 16)
+        internal var valid = false
+
+        // Solves skipped and solves run since the instance was created
+        var hits = 0L
+            internal set
+        var misses = 0L
+            internal set
+
+        internal fun invalidate() {
+            valid = false
+        }
     }
 
     // I took the algorithm from https://github.com/benikabocha/saba/blob/master/src/Saba/Model/MMD/MMDIkSolver.cpp
@@ -79,8 +186,7 @@ class IkTarget(
         }
     }
 
-    private val testVec = Vector3f()
-    private fun decompose(m: Matrix3fc, before: Vector3fc, r: Vector3f): Vector3f {
+    private fun decompose(m: Matrix3fc, before: Vector3fc, r: Vector3f, testVec: Vector3f): Vector3f {
         val sy = -m.m02()
         val e = 1e-6f
         if ((1f - abs(sy)) < e) {
@@ -119,7 +225,8 @@ class IkTarget(
         val errY = abs(diffAngle(r.y, before.y()))
         val errZ = abs(diffAngle(r.z, before.z()))
         var minErr = errX + errY + errZ
-        for (testDiff in decomposeTests) {
+        for (i in decomposeTests.indices) {
+            val testDiff = decomposeTests[i]
             testVec.set(r.x, -r.y, r.z).add(testDiff)
             val err = abs(diffAngle(testVec.x(), before.x())) +
                     abs(diffAngle(testVec.y(), before.y())) +
@@ -150,25 +257,17 @@ class IkTarget(
         z.coerceIn(min, max),
     )
 
-    private val targetPos = Vector3f()
-    private val ikPos = Vector3f()
-    private val invChain = Matrix4f()
-    private val chainIkPos = Vector3f()
-    private val chainTargetPos = Vector3f()
-    private val prevRotationInv = Quaternionf()
-
-    private val cross = Vector3f()
-    private val rot = Quaternionf()
-    private val chainRot = Quaternionf()
-    private val chainRotM = Matrix3f()
-    private val rotXYZ = Vector3f()
+    // Returns how much the chains were rotated in total, in radians
     private fun solveCore(
         node: RenderNode,
         instance: ModelInstance,
+        scratch: Scratch,
         iterateCount: Int,
-    ) {
-        val ikPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(ikPos)
-        for (chain in chains) {
+    ): Float {
+        var rotated = 0f
+        val ikPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(scratch.ikPos)
+        for (chainIndex in chains.indices) {
+            val chain = chains[chainIndex]
             if (chain.nodeIndex == node.nodeIndex) {
                 // Avoid zero result, and NaN
                 continue
@@ -176,15 +275,15 @@ class IkTarget(
             val limit = chain.limit
             val axis = limit?.singleAxis
             if (axis != null) {
-                solvePlane(node, instance, iterateCount, chain, chain.limit, axis)
+                rotated += solvePlane(node, instance, scratch, iterateCount, chainIndex, chain, chain.limit, axis)
                 continue
             }
 
-            val targetPos = instance.getWorldTransform(node).getTranslation(targetPos)
-            val invChain = instance.getWorldTransform(chain.nodeIndex).invert(invChain)
+            val targetPos = instance.getWorldTransform(node).getTranslation(scratch.targetPos)
+            val invChain = instance.getWorldTransform(chain.nodeIndex).invert(scratch.invChain)
 
-            val chainIkPos = ikPos.mulPosition(invChain, chainIkPos)
-            val chainTargetPos = targetPos.mulPosition(invChain, chainTargetPos)
+            val chainIkPos = ikPos.mulPosition(invChain, scratch.chainIkPos)
+            val chainTargetPos = targetPos.mulPosition(invChain, scratch.chainTargetPos)
 
             // Unnormalized vector seems never used then, so directly overwrite them
             val chainIkVec = chainIkPos.normalize()
@@ -198,57 +297,60 @@ class IkTarget(
                 continue
             }
             angle = angle.coerceIn(-limitRadian, limitRadian)
-            val cross = chainTargetVec.cross(chainIkVec, cross).normalize()
-            val rot = rot.rotationAxis(angle, cross)
+            val cross = chainTargetVec.cross(chainIkVec, scratch.cross).normalize()
+            val rot = scratch.rot.rotationAxis(angle, cross)
 
-            val chainRot = instance.getTransformMap(chain.nodeIndex)
-                .getSum(transformId)
-                .getUnnormalizedRotation(chainRot)
+            val chainRot = instance.getTransformSum(chain.nodeIndex, transformId)
+                .getUnnormalizedRotation(scratch.chainRot)
                 .mul(rot)
             if (limit != null) {
-                val chainRotM = chainRotM.rotation(chainRot)
-                val rotXYZ = decompose(chainRotM, chain.prevAngle, rotXYZ)
+                val prevAngle = scratch.prevAngles[chainIndex]
+                val chainRotM = scratch.chainRotM.rotation(chainRot)
+                val rotXYZ = decompose(chainRotM, prevAngle, scratch.rotXYZ, scratch.testVec)
                 val clampXYZ = rotXYZ.coerceIn(limit.min, limit.max)
-                    .sub(chain.prevAngle).coerceIn(-limitRadian, limitRadian).add(chain.prevAngle)
+                    .sub(prevAngle).coerceIn(-limitRadian, limitRadian).add(prevAngle)
                 // Don't introduce a temp r
                 chainRotM.rotationXYZ(clampXYZ.x, clampXYZ.y, clampXYZ.z)
-                chain.prevAngle.set(clampXYZ)
+                // Limits may take back most of the rotation
+                rotated += clampXYZ.distance(prevAngle)
+                prevAngle.set(clampXYZ)
 
                 chainRotM.getUnnormalizedRotation(chainRot)
+            } else {
+                rotated += angle
             }
 
-            val prevRotationInv = instance.getTransformMap(chain.nodeIndex)
-                .getSum(transformId.prev)
-                .getUnnormalizedRotation(prevRotationInv).invert()
+            val prevRotationInv = instance.getTransformSum(chain.nodeIndex, transformId.prev)
+                .getUnnormalizedRotation(scratch.prevRotationInv).invert()
             instance.setTransformDecomposed(chain.nodeIndex, transformId) {
                 rotation.set(chainRot).mul(prevRotationInv)
             }
             instance.updateNodeTransform(chain.nodeIndex)
         }
+        return rotated
     }
 
-    private val rot1 = Quaternionf()
-    private val targetVec1 = Vector3f()
-    private val rot2 = Quaternionf()
-    private val targetVec2 = Vector3f()
+    // Returns how much the chain was rotated, in radians
     private fun solvePlane(
         node: RenderNode,
         instance: ModelInstance,
+        scratch: Scratch,
         iterateCount: Int,
+        chainIndex: Int,
         chain: Chain,
         limits: top.fifthlight.blazerod.model.IkTarget.IkJoint.Limits,
         axis: top.fifthlight.blazerod.model.IkTarget.IkJoint.Limits.Axis,
-    ) {
+    ): Float {
         val rotateAxis = axis.axis
         // Plane seems unused, so I removed it
 
-        val ikPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(ikPos)
-        val targetPos = instance.getWorldTransform(node).getTranslation(targetPos)
+        val ikPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(scratch.ikPos)
+        val targetPos = instance.getWorldTransform(node).getTranslation(scratch.targetPos)
 
-        val invChain = instance.getWorldTransform(chain.nodeIndex).invert(invChain)
+        val invChain = instance.getWorldTransform(chain.nodeIndex).invert(scratch.invChain)
 
-        val chainIkPos = ikPos.mulPosition(invChain, chainIkPos)
-        val chainTargetPos = targetPos.mulPosition(invChain, chainTargetPos)
+        val chainIkPos = ikPos.mulPosition(invChain, scratch.chainIkPos)
+        val chainTargetPos = targetPos.mulPosition(invChain, scratch.chainTargetPos)
 
         // Unnormalized vector seems never used then, so directly overwrite them
         val chainIkVec = chainIkPos.normalize()
@@ -259,15 +361,15 @@ class IkTarget(
         val angle = acos(dot).coerceIn(-limitRadian, limitRadian)
         // angleDeg is also unused
 
-        val rot1 = rot1.rotationAxis(angle, rotateAxis)
-        val targetVec1 = chainTargetVec.rotate(rot1, targetVec1)
+        val rot1 = scratch.rot1.rotationAxis(angle, rotateAxis)
+        val targetVec1 = chainTargetVec.rotate(rot1, scratch.targetVec1)
         val dot1 = targetVec1.dot(chainIkVec)
 
-        val rot2 = rot2.rotationAxis(-angle, rotateAxis)
-        val targetVec2 = chainTargetVec.rotate(rot2, targetVec2)
+        val rot2 = scratch.rot2.rotationAxis(-angle, rotateAxis)
+        val targetVec2 = chainTargetVec.rotate(rot2, scratch.targetVec2)
         val dot2 = targetVec2.dot(chainIkVec)
 
-        var newAngle = chain.planeModeAngle
+        var newAngle = scratch.planeModeAngles[chainIndex]
         if (dot1 > dot2) {
             newAngle += angle
         } else {
@@ -289,15 +391,271 @@ class IkTarget(
         }
 
         newAngle = newAngle.coerceIn(limitRange)
-        chain.planeModeAngle = newAngle
+        val rotated = abs(newAngle - scratch.planeModeAngles[chainIndex])
+        scratch.planeModeAngles[chainIndex] = newAngle
 
-        val prevRotationInv = instance.getTransformMap(chain.nodeIndex)
-            .getSum(transformId.prev)
-            .getUnnormalizedRotation(prevRotationInv).invert()
+        val prevRotationInv = instance.getTransformSum(chain.nodeIndex, transformId.prev)
+            .getUnnormalizedRotation(scratch.prevRotationInv).invert()
         instance.setTransformDecomposed(chain.nodeIndex, transformId) {
             rotation.rotationAxis(newAngle, rotateAxis).mul(prevRotationInv)
         }
         instance.updateNodeTransform(chain.nodeIndex)
+        return rotated
+    }
+
+    // Runs CCD iterations until converged or stalled, returning how many were run
+    private fun solveCcd(node: RenderNode, instance: ModelInstance, scratch: Scratch): Int {
+        var maxDist = Float.MAX_VALUE
+        var iterations = 0
+        for (i in 0 until loopCount) {
+            iterations = i + 1
+            val rotated = solveCore(node, instance, scratch, i)
+
+            val targetPos = instance.getWorldTransform(node).getTranslation(scratch.targetPos)
+            val ikPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(scratch.ikPos)
+            // We use distanceSquared() here, unlike original code
+            val dist = targetPos.distanceSquared(ikPos)
+
+            if (dist < maxDist) {
+                maxDist = dist
+                for (chainIndex in chains.indices) {
+                    val matrix = instance.getTransform(chains[chainIndex].nodeIndex, transformId)
+                    if (matrix != null) {
+                        matrix.getRotation(scratch.saveIKRots[chainIndex])
+                    } else {
+                        scratch.saveIKRots[chainIndex].identity()
+                    }
+                }
+                if (dist < CONVERGED_DISTANCE_SQUARED || rotated < STALLED_ROTATION) {
+                    break
+                }
+            } else {
+                for (chainIndex in chains.indices) {
+                    instance.setTransformDecomposed(chains[chainIndex].nodeIndex, transformId) {
+                        rotation.set(scratch.saveIKRots[chainIndex])
+                    }
+                }
+                instance.updateNodeTransform(chains.last().nodeIndex)
+                break
+            }
+        }
+        return iterations
+    }
+
+    // Rotate the chain node in its own space, so the point from moves onto the line to the point to
+    private fun aimChain(instance: ModelInstance, scratch: Scratch, chain: Chain, from: Vector3fc, to: Vector3fc) {
+        val invChain = instance.getWorldTransform(chain.nodeIndex).invert(scratch.invChain)
+        val chainFrom = from.mulPosition(invChain, scratch.chainTargetPos)
+        val chainTo = to.mulPosition(invChain, scratch.chainIkPos)
+        if (chainFrom.lengthSquared() < 1e-12f || chainTo.lengthSquared() < 1e-12f) {
+            return
+        }
+        val fromVec = chainFrom.normalize()
+        val toVec = chainTo.normalize()
+        val angle = acos(fromVec.dot(toVec).coerceIn(-1f, 1f))
+        if (angle < 1e-5f) {
+            return
+        }
+        val cross = fromVec.cross(toVec, scratch.cross)
+        if (cross.lengthSquared() < 1e-12f) {
+            // Opposite directions, any perpendicular axis works
+            fromVec.cross(1f, 0f, 0f, cross)
+            if (cross.lengthSquared() < 1e-6f) {
+                fromVec.cross(0f, 1f, 0f, cross)
+            }
+            cross.normalize()
+        } else {
+            cross.normalize()
+        }
+        val rot = scratch.rot.rotationAxis(angle, cross)
+        instance.setTransformDecomposed(chain.nodeIndex, transformId) {
+            rotation.mul(rot)
+        }
+        instance.updateNodeTransform(chain.nodeIndex)
+    }
+
+    // Bends the middle joint so the chain end is as far from the root as the goal, then turns the root to the goal.
+    // Returns false if the end lies on the hinge axis, leaving the pose to CCD.
+    private fun solveTwoBone(node: RenderNode, instance: ModelInstance, scratch: Scratch): Boolean {
+        val middle = chains[0]
+        val root = chains[1]
+        val limits = middle.limit
+        val hinge = limits?.singleAxis
+
+        // Work in the middle joint's space. A hinge replaces the rotation below the IK layer, like plane mode in
+        // CCD, so positions on the root side are taken back to the middle joint's space without that rotation.
+        val invMiddle = instance.getWorldTransform(middle.nodeIndex).invert(scratch.invChain)
+        val prevRotation = instance.getTransformSum(middle.nodeIndex, transformId.prev)
+            .getUnnormalizedRotation(scratch.prevRotationInv)
+        val rootPos = instance.getWorldTransform(root.nodeIndex).getTranslation(scratch.twoBoneRoot)
+            .mulPosition(invMiddle)
+        val goalPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(scratch.twoBoneGoal)
+            .mulPosition(invMiddle)
+        val endPos = instance.getWorldTransform(node).getTranslation(scratch.twoBoneEnd)
+            .mulPosition(invMiddle)
+        val axis = scratch.hingeAxis
+        if (hinge != null) {
+            rootPos.rotate(prevRotation)
+            goalPos.rotate(prevRotation)
+            axis.set(hinge.axis)
+        } else {
+            endPos.cross(rootPos, axis)
+            if (axis.lengthSquared() < 1e-12f) {
+                // Straight chain, bend in the plane with the goal
+                val lower = endPos.sub(rootPos, scratch.hingeEndPlane)
+                lower.cross(goalPos.sub(rootPos, scratch.hingeRootPlane), axis)
+            }
+            if (axis.lengthSquared() < 1e-12f) {
+                endPos.cross(1f, 0f, 0f, axis)
+            }
+            if (axis.lengthSquared() < 1e-12f) {
+                endPos.cross(0f, 1f, 0f, axis)
+            }
+            axis.normalize()
+        }
+
+        // Angle at the middle joint that puts the end at the goal distance from the root
+        val upperLength = rootPos.length()
+        val lowerLength = endPos.length()
+        val goalDistance = goalPos.distance(rootPos)
+            .coerceIn(abs(upperLength - lowerLength), upperLength + lowerLength)
+        val wantedDot = (upperLength * upperLength + lowerLength * lowerLength - goalDistance * goalDistance) * .5f
+
+        // Only the parts perpendicular to the axis change when rotating around it
+        val rootAxial = rootPos.dot(axis)
+        val endAxial = endPos.dot(axis)
+        val rootPlane = scratch.hingeRootPlane.set(axis).mul(-rootAxial).add(rootPos)
+        val endPlane = scratch.hingeEndPlane.set(axis).mul(-endAxial).add(endPos)
+        val planeLengths = rootPlane.length() * endPlane.length()
+        if (planeLengths < 1e-6f) {
+            return false
+        }
+        val currentAngle = atan2(axis.dot(rootPlane.cross(endPlane, scratch.cross)), rootPlane.dot(endPlane))
+        val offset = acos(((wantedDot - rootAxial * endAxial) / planeLengths).coerceIn(-1f, 1f))
+        val bend1 = diffAngle(offset - currentAngle, 0f)
+        val bend2 = diffAngle(-offset - currentAngle, 0f)
+
+        val bend = if (limits != null && hinge != null) {
+            val min = limits.min.getAxis(hinge)
+            val max = limits.max.getAxis(hinge)
+            val clamped1 = bend1.coerceIn(min, max)
+            val clamped2 = bend2.coerceIn(min, max)
+            val error1 = abs(clamped1 - bend1)
+            val error2 = abs(clamped2 - bend2)
+            when {
+                error1 < error2 -> clamped1
+                error2 < error1 -> clamped2
+                abs(clamped1) <= abs(clamped2) -> clamped1
+                else -> clamped2
+            }
+        } else {
+            if (abs(bend1) <= abs(bend2)) bend1 else bend2
+        }
+
+        val hingeRot = scratch.hingeRot.rotationAxis(bend, axis)
+        instance.setTransformDecomposed(middle.nodeIndex, transformId) {
+            if (hinge != null) {
+                rotation.set(prevRotation).invert().mul(hingeRot)
+            } else {
+                rotation.set(hingeRot)
+            }
+        }
+        instance.updateNodeTransform(middle.nodeIndex)
+
+        val endWorld = instance.getWorldTransform(node).getTranslation(scratch.targetPos)
+        val goalWorld = instance.getWorldTransform(effectorNodeIndex).getTranslation(scratch.ikPos)
+        aimChain(instance, scratch, root, endWorld, goalWorld)
+        return true
+    }
+
+    // Move joint along the line to anchor, so it is length away from anchor
+    private fun placeJoint(joint: Vector3f, anchor: Vector3fc, length: Float) {
+        val distance = joint.distance(anchor)
+        if (distance < 1e-6f) {
+            return
+        }
+        joint.sub(anchor).mul(length / distance).add(anchor)
+    }
+
+    // Runs FABRIK iterations on joint positions, then rotates chains from the root down to match them
+    private fun solveFabrik(node: RenderNode, instance: ModelInstance, scratch: Scratch): Int {
+        val count = chains.size
+        val positions = scratch.fabrikPositions
+        val lengths = scratch.fabrikLengths
+        // Chains are listed from the end, while positions start from the root
+        for (i in 0 until count) {
+            instance.getWorldTransform(chains[count - 1 - i].nodeIndex).getTranslation(positions[i])
+        }
+        instance.getWorldTransform(node).getTranslation(positions[count])
+        for (i in 0 until count) {
+            lengths[i] = positions[i].distance(positions[i + 1])
+        }
+        val root = scratch.fabrikRoot.set(positions[0])
+        val goal = instance.getWorldTransform(effectorNodeIndex).getTranslation(scratch.ikPos)
+
+        var iterations = 0
+        for (i in 0 until loopCount) {
+            iterations = i + 1
+            val lastEnd = scratch.fabrikLastEnd.set(positions[count])
+            positions[count].set(goal)
+            for (j in count - 1 downTo 0) {
+                placeJoint(positions[j], positions[j + 1], lengths[j])
+            }
+            positions[0].set(root)
+            for (j in 0 until count) {
+                placeJoint(positions[j + 1], positions[j], lengths[j])
+            }
+            val end = positions[count]
+            if (end.distanceSquared(goal) < CONVERGED_DISTANCE_SQUARED ||
+                end.distanceSquared(lastEnd) < CONVERGED_DISTANCE_SQUARED
+            ) {
+                break
+            }
+        }
+
+        for (i in 0 until count) {
+            val childIndex = if (i + 1 < count) chains[count - 2 - i].nodeIndex else node.nodeIndex
+            val child = instance.getWorldTransform(childIndex).getTranslation(scratch.targetPos)
+            aimChain(instance, scratch, chains[count - 1 - i], child, positions[i + 1])
+        }
+        return iterations
+    }
+
+    // Store the quantized matrix at offset of the fingerprint, returning whether it differs from the stored one
+    private fun putFingerprint(cache: Cache, offset: Int, matrix: Matrix4fc, values: FloatArray): Boolean {
+        matrix.get(values)
+        var changed = false
+        for (i in 0 until 16) {
+            // Math.round maps NaN to 0 instead of throwing
+            val quantized = Math.round(values[i] * FINGERPRINT_SCALE)
+            if (cache.fingerprint[offset + i] != quantized) {
+                cache.fingerprint[offset + i] = quantized
+                changed = true
+            }
+        }
+        return changed
+    }
+
+    private fun updateFingerprint(node: RenderNode, instance: ModelInstance, cache: Cache, scratch: Scratch): Boolean {
+        val values = scratch.fingerprintValues
+        val chainRoot = instance.scene.nodes[chains.last().nodeIndex]
+        var changed = !cache.valid
+        var offset = 0
+        val rootParent = chainRoot.parent
+        if (rootParent != null) {
+            changed = putFingerprint(cache, offset, instance.getWorldTransform(rootParent), values) or changed
+        }
+        offset += 16
+        changed = putFingerprint(cache, offset, instance.getWorldTransform(effectorNodeIndex), values) or changed
+        offset += 16
+        // Nodes on the way move with the chain, so only their local transforms are inputs
+        val pathNodes = cache.pathNodes
+        for (i in pathNodes.indices) {
+            val local = instance.getTransformSum(pathNodes[i], transformId.prev)
+            changed = putFingerprint(cache, offset, local, values) or changed
+            offset += 16
+        }
+        return changed
     }
 
     override fun update(
@@ -307,6 +665,10 @@ class IkTarget(
     ) {
         val enabled = instance.modelData.ikEnabled[ikIndex]
         if (!enabled) {
+            if (phase is UpdatePhase.IkUpdate) {
+                instance.modelData.ikIterations[ikIndex] = 0
+                instance.modelData.ikCaches[ikIndex].invalidate()
+            }
             return
         }
         when (phase) {
@@ -314,44 +676,49 @@ class IkTarget(
                 if (chains.isEmpty()) {
                     return
                 }
-                for (chain in chains) {
-                    chain.prevAngle.set(0f)
-                    instance.setTransformDecomposed(chain.nodeIndex, transformId) {
+                val scratch = instance.modelData.ikScratch
+                val cache = instance.modelData.ikCaches[ikIndex]
+                if (!updateFingerprint(node, instance, cache, scratch)) {
+                    cache.hits++
+                    for (chainIndex in chains.indices) {
+                        instance.setTransformDecomposed(chains[chainIndex].nodeIndex, transformId) {
+                            rotation.set(cache.rotations[chainIndex])
+                        }
+                    }
+                    instance.updateNodeTransform(chains.last().nodeIndex)
+                    instance.modelData.ikIterations[ikIndex] = 0
+                    return
+                }
+                cache.misses++
+
+                for (chainIndex in chains.indices) {
+                    scratch.prevAngles[chainIndex].set(0f)
+                    instance.setTransformDecomposed(chains[chainIndex].nodeIndex, transformId) {
                         rotation.identity()
                     }
-                    chain.planeModeAngle = 0f
+                    scratch.planeModeAngles[chainIndex] = 0f
                 }
                 instance.updateNodeTransform(chains.last().nodeIndex)
 
-                var maxDist = Float.MAX_VALUE
-                for (i in 0 until loopCount) {
-                    solveCore(node, instance, i)
-
-                    val targetPos = instance.getWorldTransform(node).getTranslation(targetPos)
-                    val ikPos = instance.getWorldTransform(effectorNodeIndex).getTranslation(ikPos)
-                    // We use distanceSquared() here, unlike original code
-                    val dist = targetPos.distanceSquared(ikPos)
-
-                    if (dist < maxDist) {
-                        maxDist = dist
-                        for (chain in chains) {
-                            val matrix = instance.getTransformMap(chain.nodeIndex).get(transformId)
-                            if (matrix != null) {
-                                matrix.getRotation(chain.saveIKRot)
-                            } else {
-                                chain.saveIKRot.identity()
-                            }
-                        }
+                val iterations = when (solver) {
+                    Solver.CCD -> solveCcd(node, instance, scratch)
+                    Solver.TWO_BONE -> if (solveTwoBone(node, instance, scratch)) {
+                        1
                     } else {
-                        for (chain in chains) {
-                            instance.setTransformDecomposed(chain.nodeIndex, transformId) {
-                                rotation.set(chain.saveIKRot)
-                            }
-                        }
-                        instance.updateNodeTransform(chains.last().nodeIndex)
-                        break
+                        solveCcd(node, instance, scratch)
+                    }
+                    Solver.FABRIK -> solveFabrik(node, instance, scratch)
+                }
+                instance.modelData.ikIterations[ikIndex] = iterations
+                for (chainIndex in chains.indices) {
+                    val matrix = instance.getTransform(chains[chainIndex].nodeIndex, transformId)
+                    if (matrix != null) {
+                        matrix.getRotation(cache.rotations[chainIndex])
+                    } else {
+                        cache.rotations[chainIndex].identity()
                     }
                 }
+                cache.valid = true
             }
 
             is UpdatePhase.DebugRender -> {
@@ -30,30 +30,30 @@ class InfluenceSource(
     override val updatePhases
         get() = Companion.updatePhases
 
-    private val sourceIkRotation = Quaternionf()
     override fun update(phase: UpdatePhase, node: RenderNode, instance: ModelInstance) {
         if (phase is UpdatePhase.InfluenceTransformUpdate) {
-            val sourceTransformMap = instance.modelData.transformMaps[node.nodeIndex]
+            val sourceTransforms = instance.modelData.transforms
+            val sourceIndex = node.nodeIndex
             instance.setTransformDecomposed(targetNodeIndex, target) {
                 if (influenceRotation) {
-                    val nestedAppend = sourceTransformMap.get(target)
+                    val nestedAppend = sourceTransforms.get(sourceIndex, target)
                     if (appendLocal || nestedAppend == null) {
-                        sourceTransformMap.get(TransformId.RELATIVE_ANIMATION)?.getRotation(rotation)
+                        sourceTransforms.get(sourceIndex, TransformId.RELATIVE_ANIMATION)?.getRotation(rotation)
                             ?: rotation.identity()
                     } else {
                         nestedAppend.getRotation(rotation)
                     }
-                    val sourceIk = sourceTransformMap.get(TransformId.IK)
+                    val sourceIk = sourceTransforms.get(sourceIndex, TransformId.IK)
                     if (sourceIk != null) {
-                        sourceIk.getRotation(sourceIkRotation)
+                        val sourceIkRotation = sourceIk.getRotation(instance.modelData.cacheRotation)
                         rotation.mul(sourceIkRotation)
                     }
                     identity.slerp(rotation, influence, rotation)
                 }
                 if (influenceTranslation) {
-                    val nestedAppend = sourceTransformMap.get(target)
+                    val nestedAppend = sourceTransforms.get(sourceIndex, target)
                     if (appendLocal || nestedAppend == null) {
-                        sourceTransformMap.get(TransformId.RELATIVE_ANIMATION)?.getTranslation(translation)
+                        sourceTransforms.get(sourceIndex, TransformId.RELATIVE_ANIMATION)?.getTranslation(translation)
                             ?: translation.set(0f)
                     } else {
                         nestedAppend.getTranslation(translation)
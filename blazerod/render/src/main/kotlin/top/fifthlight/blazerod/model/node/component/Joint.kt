@@ -1,7 +1,6 @@
 package top.fifthlight.blazerod.model.node.component
 
 import net.minecraft.util.Colors
-import org.joml.Matrix4f
 import top.fifthlight.blazerod.model.ModelInstance
 import top.fifthlight.blazerod.model.node.RenderNode
 import top.fifthlight.blazerod.model.node.UpdatePhase
@@ -23,19 +22,19 @@ class Joint(
     override val updatePhases
         get() = Companion.updatePhases
 
-    private val cacheMatrix = Matrix4f()
-
     override fun update(phase: UpdatePhase, node: RenderNode, instance: ModelInstance) {
         when (phase) {
             is UpdatePhase.RenderDataUpdate -> {
-                val cacheMatrix = cacheMatrix
+                val cacheMatrix = instance.modelData.cacheMatrix
                 cacheMatrix.set(instance.getWorldTransform(node))
                 val skin = instance.scene.skins[skinIndex]
                 val skinBuffer = instance.modelData.skinBuffers[skinIndex]
                 val inverseMatrix = skin.inverseBindMatrices?.get(jointIndex)
                 skinBuffer.edit {
                     inverseMatrix?.let { cacheMatrix.mul(it) }
-                    setMatrix(jointIndex, cacheMatrix)
+                    if (setMatrix(jointIndex, cacheMatrix)) {
+                        instance.modelData.poseVersion++
+                    }
                 }
             }
 
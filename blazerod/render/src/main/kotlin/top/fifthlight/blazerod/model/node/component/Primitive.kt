@@ -42,7 +42,9 @@ class Primitive(
                 return
             }
             instance.modelData.modelMatricesBuffer.edit {
-                setMatrix(primitiveIndex, instance.getWorldTransform(node))
+                if (setMatrix(primitiveIndex, instance.getWorldTransform(node))) {
+                    instance.modelData.poseVersion++
+                }
             }
         }
     }
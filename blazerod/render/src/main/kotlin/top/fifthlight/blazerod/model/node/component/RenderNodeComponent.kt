@@ -35,6 +35,8 @@ sealed class RenderNodeComponent<C : RenderNodeComponent<C>> : AbstractRefCount(
         object InfluenceSource : Type<top.fifthlight.blazerod.model.node.component.InfluenceSource>()
         object Camera : Type<top.fifthlight.blazerod.model.node.component.Camera>()
         object IkTarget : Type<top.fifthlight.blazerod.model.node.component.IkTarget>()
+        object SpringBone : Type<top.fifthlight.blazerod.model.node.component.SpringBone>()
+        object RigidBodyPhysics : Type<top.fifthlight.blazerod.model.node.component.RigidBodyPhysics>()
     }
 
     abstract val type: Type<C>
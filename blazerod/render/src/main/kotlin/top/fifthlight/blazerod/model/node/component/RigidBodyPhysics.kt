@@ -0,0 +1,988 @@
+package top.fifthlight.blazerod.model.node.component
+
+import org.joml.Matrix4f
+import org.joml.Quaternionf
+import org.joml.Quaternionfc
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.PhysicsClock
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.RenderNode
+import top.fifthlight.blazerod.model.node.UpdatePhase
+import top.fifthlight.blazerod.model.node.getTransformSum
+import top.fifthlight.blazerod.model.node.getWorldTransform
+import kotlin.math.abs
+import kotlin.math.acos
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.pow
+import kotlin.math.sqrt
+import top.fifthlight.blazerod.model.RigidBodyPhysics.RigidBody.Mode as BodyMode
+import top.fifthlight.blazerod.model.RigidBodyPhysics.Shape as BodyShape
+
+// PMX style rigid bodies and joints, solved with sequential impulses in the space of the node holding this component
+class RigidBodyPhysics(
+    val physicsIndex: Int,
+    val rigidBodies: List<RigidBody>,
+    val joints: List<Joint>,
+    val transformId: TransformId,
+) : RenderNodeComponent<RigidBodyPhysics>() {
+    override fun onClosed() {}
+
+    override val type: Type<RigidBodyPhysics>
+        get() = Type.RigidBodyPhysics
+
+    companion object {
+        private val updatePhases = listOf(UpdatePhase.Type.PHYSICS_UPDATE)
+
+        private const val STEP_TIME = PhysicsClock.STEP_TIME
+
+        // In model units per second squared, like MMD
+        private const val GRAVITY = -98f
+
+        private const val SOLVER_ITERATIONS = 8
+
+        // Parts of joint and contact errors corrected each step, and penetration left alone to avoid jitter
+        private const val JOINT_BAUMGARTE = .2f
+        private const val CONTACT_BAUMGARTE = .2f
+        private const val CONTACT_SLOP = .01f
+
+        // Contacts slower than this don't bounce
+        private const val RESTITUTION_THRESHOLD = 1f
+
+        private const val EPSILON = 1e-6f
+
+        private const val SHAPE_SPHERE = 0
+        private const val SHAPE_BOX = 1
+        private const val SHAPE_CAPSULE = 2
+    }
+
+    override val updatePhases: List<UpdatePhase.Type>
+        get() = Companion.updatePhases
+
+    class RigidBody(
+        // Bone of the body, or -1 for a body on its own
+        val nodeIndex: Int,
+        val group: Int,
+        val collisionMask: Int,
+        val shape: BodyShape,
+        val position: Vector3fc,
+        val rotation: Quaternionfc,
+        val mass: Float,
+        val linearDamping: Float,
+        val angularDamping: Float,
+        val restitution: Float,
+        val friction: Float,
+        val mode: BodyMode,
+    )
+
+    class Joint(
+        val rigidBodyA: Int,
+        val rigidBodyB: Int,
+        val position: Vector3fc,
+        val rotation: Quaternionfc,
+        val positionMin: Vector3fc,
+        val positionMax: Vector3fc,
+        val rotationMin: Vector3fc,
+        val rotationMax: Vector3fc,
+        val positionSpring: Vector3fc,
+        val rotationSpring: Vector3fc,
+    )
+
+    private val bodyCount = rigidBodies.size
+    private val dynamic = BooleanArray(bodyCount) { rigidBodies[it].mode != BodyMode.FOLLOW_BONE }
+    private val inverseMass = FloatArray(bodyCount)
+    private val inverseInertiaX = FloatArray(bodyCount)
+    private val inverseInertiaY = FloatArray(bodyCount)
+    private val inverseInertiaZ = FloatArray(bodyCount)
+    private val linearDampingFactors = FloatArray(bodyCount) {
+        (1f - rigidBodies[it].linearDamping.coerceIn(0f, 1f)).pow(STEP_TIME)
+    }
+    private val angularDampingFactors = FloatArray(bodyCount) {
+        (1f - rigidBodies[it].angularDamping.coerceIn(0f, 1f)).pow(STEP_TIME)
+    }
+
+    // Shape type, radius and box half extents or capsule half height on Y
+    private val shapeTypes = IntArray(bodyCount)
+    private val shapeRadius = FloatArray(bodyCount)
+    private val shapeHalfX = FloatArray(bodyCount)
+    private val shapeHalfY = FloatArray(bodyCount)
+    private val shapeHalfZ = FloatArray(bodyCount)
+    private val boundingRadius = FloatArray(bodyCount)
+
+    // Pairs of bodies which may collide: one is simulated, their groups match, and no joint connects them
+    private val collisionPairs: IntArray
+
+    // Joint frames relative to body A and body B
+    private val jointAnchorsA = Array(joints.size) { Vector3f() }
+    private val jointAnchorsB = Array(joints.size) { Vector3f() }
+    private val jointFramesA = Array(joints.size) { Quaternionf() }
+    private val jointFramesB = Array(joints.size) { Quaternionf() }
+
+    init {
+        for ((index, body) in rigidBodies.withIndex()) {
+            when (val shape = body.shape) {
+                is BodyShape.Sphere -> {
+                    shapeTypes[index] = SHAPE_SPHERE
+                    shapeRadius[index] = shape.radius
+                    boundingRadius[index] = shape.radius
+                }
+
+                is BodyShape.Box -> {
+                    shapeTypes[index] = SHAPE_BOX
+                    shapeHalfX[index] = shape.halfExtents.x()
+                    shapeHalfY[index] = shape.halfExtents.y()
+                    shapeHalfZ[index] = shape.halfExtents.z()
+                    boundingRadius[index] = shape.halfExtents.length()
+                }
+
+                is BodyShape.Capsule -> {
+                    shapeTypes[index] = SHAPE_CAPSULE
+                    shapeRadius[index] = shape.radius
+                    shapeHalfY[index] = shape.height / 2
+                    boundingRadius[index] = shape.radius + shape.height / 2
+                }
+            }
+            if (!dynamic[index]) {
+                continue
+            }
+            val mass = body.mass.takeIf { it > 0f } ?: 1f
+            inverseMass[index] = 1f / mass
+            // Capsules are treated as the box around them
+            val (x, y, z) = when (shapeTypes[index]) {
+                SHAPE_BOX -> Triple(shapeHalfX[index], shapeHalfY[index], shapeHalfZ[index])
+                SHAPE_CAPSULE -> Triple(shapeRadius[index], shapeHalfY[index] + shapeRadius[index], shapeRadius[index])
+                else -> Triple(shapeRadius[index], shapeRadius[index], shapeRadius[index])
+            }
+            val inertiaX: Float
+            val inertiaY: Float
+            val inertiaZ: Float
+            if (shapeTypes[index] == SHAPE_SPHERE) {
+                inertiaX = .4f * mass * x * x
+                inertiaY = inertiaX
+                inertiaZ = inertiaX
+            } else {
+                inertiaX = mass / 3 * (y * y + z * z)
+                inertiaY = mass / 3 * (x * x + z * z)
+                inertiaZ = mass / 3 * (x * x + y * y)
+            }
+            inverseInertiaX[index] = if (inertiaX > EPSILON) 1f / inertiaX else 0f
+            inverseInertiaY[index] = if (inertiaY > EPSILON) 1f / inertiaY else 0f
+            inverseInertiaZ[index] = if (inertiaZ > EPSILON) 1f / inertiaZ else 0f
+        }
+
+        val inverseRotation = Quaternionf()
+        for ((index, joint) in joints.withIndex()) {
+            val bodyA = rigidBodies[joint.rigidBodyA]
+            val bodyB = rigidBodies[joint.rigidBodyB]
+            bodyA.rotation.invert(inverseRotation).transform(joint.position.sub(bodyA.position, jointAnchorsA[index]))
+            inverseRotation.mul(joint.rotation, jointFramesA[index])
+            bodyB.rotation.invert(inverseRotation).transform(joint.position.sub(bodyB.position, jointAnchorsB[index]))
+            inverseRotation.mul(joint.rotation, jointFramesB[index])
+        }
+
+        val pairs = mutableListOf<Int>()
+        for (a in 0 until bodyCount) {
+            for (b in a + 1 until bodyCount) {
+                if (!dynamic[a] && !dynamic[b]) {
+                    continue
+                }
+                val bodyA = rigidBodies[a]
+                val bodyB = rigidBodies[b]
+                if (bodyA.collisionMask and (1 shl bodyB.group) == 0 || bodyB.collisionMask and (1 shl bodyA.group) == 0) {
+                    continue
+                }
+                if (joints.any { (it.rigidBodyA == a && it.rigidBodyB == b) || (it.rigidBodyA == b && it.rigidBodyB == a) }) {
+                    continue
+                }
+                pairs.add(a)
+                pairs.add(b)
+            }
+        }
+        collisionPairs = pairs.toIntArray()
+    }
+
+    class State(scene: RenderScene, physics: RigidBodyPhysics) {
+        private val bodyCount = physics.rigidBodies.size
+
+        internal val positionX = FloatArray(bodyCount)
+        internal val positionY = FloatArray(bodyCount)
+        internal val positionZ = FloatArray(bodyCount)
+        internal val rotationX = FloatArray(bodyCount)
+        internal val rotationY = FloatArray(bodyCount)
+        internal val rotationZ = FloatArray(bodyCount)
+        internal val rotationW = FloatArray(bodyCount)
+        internal val velocityX = FloatArray(bodyCount)
+        internal val velocityY = FloatArray(bodyCount)
+        internal val velocityZ = FloatArray(bodyCount)
+        internal val angularVelocityX = FloatArray(bodyCount)
+        internal val angularVelocityY = FloatArray(bodyCount)
+        internal val angularVelocityZ = FloatArray(bodyCount)
+        internal var initialized = false
+
+        // Body pose relative to its bone at bind pose, and the other way round
+        internal val bodyFromBone = Array(bodyCount) { Matrix4f() }
+        internal val boneFromBody = Array(bodyCount) { Matrix4f() }
+
+        // Simulated bodies with bones, parents first, so each bone is placed under its already moved parent
+        internal val writeOrder: IntArray
+
+        // Contacts of the current step, with offsets of the contact point from both bodies
+        internal val maxContacts = physics.collisionPairs.size / 2
+        internal var contactCount = 0
+        internal val contactA = IntArray(maxContacts)
+        internal val contactB = IntArray(maxContacts)
+        internal val contactNormalX = FloatArray(maxContacts)
+        internal val contactNormalY = FloatArray(maxContacts)
+        internal val contactNormalZ = FloatArray(maxContacts)
+        internal val contactTangentX = FloatArray(maxContacts)
+        internal val contactTangentY = FloatArray(maxContacts)
+        internal val contactTangentZ = FloatArray(maxContacts)
+        internal val contactOffsetAX = FloatArray(maxContacts)
+        internal val contactOffsetAY = FloatArray(maxContacts)
+        internal val contactOffsetAZ = FloatArray(maxContacts)
+        internal val contactOffsetBX = FloatArray(maxContacts)
+        internal val contactOffsetBY = FloatArray(maxContacts)
+        internal val contactOffsetBZ = FloatArray(maxContacts)
+        internal val contactDepth = FloatArray(maxContacts)
+        internal val contactNormalMass = FloatArray(maxContacts)
+        internal val contactTangentMass = FloatArray(maxContacts)
+        internal val contactTargetVelocity = FloatArray(maxContacts)
+        internal val contactNormalImpulse = FloatArray(maxContacts)
+        internal val contactTangentImpulse = FloatArray(maxContacts)
+
+        // Steps simulated by the last update, and steps dropped in total as they went over the time budget
+        var lastSteps = 0
+            private set
+        var skippedSteps = 0L
+            private set
+
+        internal fun recordSteps(simulated: Int, skipped: Int) {
+            lastSteps = simulated
+            skippedSteps += skipped
+        }
+
+        internal val nodeWorld = Matrix4f()
+        internal val inverseNodeWorld = Matrix4f()
+        internal val matrix = Matrix4f()
+        internal val boneMatrix = Matrix4f()
+        internal val rotation = Quaternionf()
+        internal val rotationB = Quaternionf()
+        internal val frameA = Quaternionf()
+        internal val frameB = Quaternionf()
+        internal val vector = Vector3f()
+        internal val vectorB = Vector3f()
+        internal val axis = Vector3f()
+        internal val offsetA = Vector3f()
+        internal val offsetB = Vector3f()
+        internal val anchorA = Vector3f()
+        internal val anchorB = Vector3f()
+        internal val velocity = Vector3f()
+        internal val cross = Vector3f()
+        internal val pointA = Vector3f()
+        internal val pointB = Vector3f()
+        internal val segmentA = Vector3f()
+        internal val segmentB = Vector3f()
+        internal val segmentC = Vector3f()
+        internal val segmentD = Vector3f()
+        internal val normal = Vector3f()
+        internal val translation = Vector3f()
+
+        init {
+            // Bind pose of a node in model space
+            fun bindPose(node: RenderNode, dest: Matrix4f): Matrix4f {
+                dest.identity()
+                var current: RenderNode? = node
+                while (current != null) {
+                    current.absoluteTransform?.let { dest.mulLocal(it.matrix) }
+                    current = current.parent
+                }
+                return dest
+            }
+
+            val inverseNodeBind = bindPose(physics.node, nodeWorld).invert()
+            for ((index, body) in physics.rigidBodies.withIndex()) {
+                val bodyPose = matrix.translationRotate(
+                    body.position.x(), body.position.y(), body.position.z(), body.rotation,
+                )
+                if (body.nodeIndex >= 0) {
+                    // Bone bind pose in the space of the bodies
+                    val boneBind = inverseNodeBind.mul(bindPose(scene.nodes[body.nodeIndex], boneMatrix), boneMatrix)
+                    boneBind.invert().mul(bodyPose, bodyFromBone[index])
+                } else {
+                    bodyFromBone[index].set(bodyPose)
+                }
+                bodyFromBone[index].invertAffine(boneFromBody[index])
+            }
+
+            writeOrder = physics.rigidBodies.indices
+                .filter { physics.dynamic[it] && physics.rigidBodies[it].nodeIndex >= 0 }
+                .distinctBy { physics.rigidBodies[it].nodeIndex }
+                .sortedBy { scene.updatePlan.nodePositions[physics.rigidBodies[it].nodeIndex] }
+                .toIntArray()
+        }
+
+        fun reset() {
+            initialized = false
+        }
+    }
+
+    private fun State.loadRotation(body: Int, dest: Quaternionf) =
+        dest.set(rotationX[body], rotationY[body], rotationZ[body], rotationW[body])
+
+    private fun State.placeFromBone(instance: ModelInstance, body: Int, dest: Matrix4f): Matrix4f {
+        val nodeIndex = rigidBodies[body].nodeIndex
+        return if (nodeIndex >= 0) {
+            inverseNodeWorld.mul(instance.getWorldTransform(nodeIndex), dest).mul(bodyFromBone[body])
+        } else {
+            dest.set(bodyFromBone[body])
+        }
+    }
+
+    private fun State.storePose(body: Int, pose: Matrix4f) {
+        val translation = pose.getTranslation(translation)
+        positionX[body] = translation.x
+        positionY[body] = translation.y
+        positionZ[body] = translation.z
+        val rotation = pose.getNormalizedRotation(rotation)
+        rotationX[body] = rotation.x
+        rotationY[body] = rotation.y
+        rotationZ[body] = rotation.z
+        rotationW[body] = rotation.w
+    }
+
+    // Multiplies a world vector by the inverse inertia of a body in world space
+    private fun State.applyInverseInertia(body: Int, vector: Vector3f): Vector3f {
+        val rotation = loadRotation(body, rotation)
+        rotation.transformInverse(vector)
+        vector.mul(inverseInertiaX[body], inverseInertiaY[body], inverseInertiaZ[body])
+        return rotation.transform(vector)
+    }
+
+    private fun State.applyImpulse(body: Int, impulse: Vector3fc, offset: Vector3fc, scale: Float) {
+        val inverseMass = inverseMass[body]
+        if (inverseMass == 0f) {
+            return
+        }
+        velocityX[body] += impulse.x() * inverseMass * scale
+        velocityY[body] += impulse.y() * inverseMass * scale
+        velocityZ[body] += impulse.z() * inverseMass * scale
+        applyInverseInertia(body, offset.cross(impulse, cross))
+        angularVelocityX[body] += cross.x * scale
+        angularVelocityY[body] += cross.y * scale
+        angularVelocityZ[body] += cross.z * scale
+    }
+
+    private fun State.applyAngularImpulse(body: Int, impulse: Vector3fc, scale: Float) {
+        if (inverseMass[body] == 0f) {
+            return
+        }
+        applyInverseInertia(body, cross.set(impulse))
+        angularVelocityX[body] += cross.x * scale
+        angularVelocityY[body] += cross.y * scale
+        angularVelocityZ[body] += cross.z * scale
+    }
+
+    // Velocity of body B relative to body A at the given offsets from each
+    private fun State.relativeVelocity(a: Int, offsetA: Vector3fc, b: Int, offsetB: Vector3fc, dest: Vector3f) =
+        dest.set(
+            velocityX[b] + angularVelocityY[b] * offsetB.z() - angularVelocityZ[b] * offsetB.y() -
+                    (velocityX[a] + angularVelocityY[a] * offsetA.z() - angularVelocityZ[a] * offsetA.y()),
+            velocityY[b] + angularVelocityZ[b] * offsetB.x() - angularVelocityX[b] * offsetB.z() -
+                    (velocityY[a] + angularVelocityZ[a] * offsetA.x() - angularVelocityX[a] * offsetA.z()),
+            velocityZ[b] + angularVelocityX[b] * offsetB.y() - angularVelocityY[b] * offsetB.x() -
+                    (velocityZ[a] + angularVelocityX[a] * offsetA.y() - angularVelocityY[a] * offsetA.x()),
+        )
+
+    // Inverse of the mass felt along a direction pushed at the given offsets
+    private fun State.linearMass(a: Int, offsetA: Vector3fc, b: Int, offsetB: Vector3fc, direction: Vector3fc): Float {
+        var mass = inverseMass[a] + inverseMass[b]
+        if (inverseMass[a] != 0f) {
+            applyInverseInertia(a, offsetA.cross(direction, vector)).cross(offsetA)
+            mass += vector.dot(direction)
+        }
+        if (inverseMass[b] != 0f) {
+            applyInverseInertia(b, offsetB.cross(direction, vector)).cross(offsetB)
+            mass += vector.dot(direction)
+        }
+        return mass
+    }
+
+    private fun State.angularMass(a: Int, b: Int, axis: Vector3fc): Float {
+        var mass = 0f
+        if (inverseMass[a] != 0f) {
+            mass += applyInverseInertia(a, vector.set(axis)).dot(axis)
+        }
+        if (inverseMass[b] != 0f) {
+            mass += applyInverseInertia(b, vector.set(axis)).dot(axis)
+        }
+        return mass
+    }
+
+    // Computes world anchors and joint frame of a joint, returning the rotation vector of B relative to A
+    private fun State.prepareJoint(index: Int): Vector3f {
+        val joint = joints[index]
+        val a = joint.rigidBodyA
+        val b = joint.rigidBodyB
+        loadRotation(a, frameA).transform(jointAnchorsA[index], offsetA)
+        anchorA.set(positionX[a], positionY[a], positionZ[a]).add(offsetA)
+        frameA.mul(jointFramesA[index])
+        loadRotation(b, frameB).transform(jointAnchorsB[index], offsetB)
+        anchorB.set(positionX[b], positionY[b], positionZ[b]).add(offsetB)
+        frameB.mul(jointFramesB[index])
+
+        // Rotation of frame B in frame A, as axis times angle
+        val relative = frameA.conjugate(rotation).mul(frameB)
+        if (relative.w < 0) {
+            relative.set(-relative.x, -relative.y, -relative.z, -relative.w)
+        }
+        val sinHalf = sqrt(relative.x * relative.x + relative.y * relative.y + relative.z * relative.z)
+        val rotationVector = pointB
+        if (sinHalf > EPSILON) {
+            val angle = 2 * acos(relative.w.coerceIn(-1f, 1f))
+            rotationVector.set(relative.x, relative.y, relative.z).mul(angle / sinHalf)
+        } else {
+            rotationVector.set(relative.x, relative.y, relative.z).mul(2f)
+        }
+        return rotationVector
+    }
+
+    // Softly pulls bodies back to the joint rest pose, once a step
+    private fun State.applyJointSprings() {
+        for (index in joints.indices) {
+            val joint = joints[index]
+            val a = joint.rigidBodyA
+            val b = joint.rigidBodyB
+            val rotationVector = prepareJoint(index)
+            val angles = pointA.set(rotationVector)
+            for (component in 0 until 3) {
+                val stiffness = joint.positionSpring.get(component)
+                if (stiffness <= 0f) {
+                    continue
+                }
+                val axis = frameA.transform(axis.set(0f, 0f, 0f).setComponent(component, 1f))
+                val error = anchorB.sub(anchorA, vectorB).dot(axis)
+                val speed = relativeVelocity(a, offsetA, b, offsetB, velocity).dot(axis)
+                val mass = linearMass(a, offsetA, b, offsetB, axis)
+                // Implicit spring, stable for stiff springs on light bodies
+                val impulse = -stiffness * STEP_TIME * (error + STEP_TIME * speed) /
+                        (1f + stiffness * STEP_TIME * STEP_TIME * mass)
+                applyImpulse(a, axis, offsetA, -impulse)
+                applyImpulse(b, axis, offsetB, impulse)
+            }
+            for (component in 0 until 3) {
+                val stiffness = joint.rotationSpring.get(component)
+                if (stiffness <= 0f) {
+                    continue
+                }
+                val axis = frameA.transform(axis.set(0f, 0f, 0f).setComponent(component, 1f))
+                val error = angles.get(component)
+                val speed = (angularVelocityX[b] - angularVelocityX[a]) * axis.x +
+                        (angularVelocityY[b] - angularVelocityY[a]) * axis.y +
+                        (angularVelocityZ[b] - angularVelocityZ[a]) * axis.z
+                val mass = angularMass(a, b, axis)
+                val impulse = -stiffness * STEP_TIME * (error + STEP_TIME * speed) /
+                        (1f + stiffness * STEP_TIME * STEP_TIME * mass)
+                applyAngularImpulse(a, axis, -impulse)
+                applyAngularImpulse(b, axis, impulse)
+            }
+        }
+    }
+
+    // Impulse keeping an error within its limits, or 0 if it is inside them. Min above max leaves the axis free.
+    private fun limitImpulse(error: Float, min: Float, max: Float, speed: Float, mass: Float): Float {
+        if (min > max || mass < EPSILON) {
+            return 0f
+        }
+        val target = when {
+            error < min -> min
+            error > max -> max
+            else -> return 0f
+        }
+        val impulse = -(speed + JOINT_BAUMGARTE * (error - target) / STEP_TIME) / mass
+        return when {
+            min == max -> impulse
+            error < min -> max(impulse, 0f)
+            else -> min(impulse, 0f)
+        }
+    }
+
+    private fun State.solveJoints() {
+        for (index in joints.indices) {
+            val joint = joints[index]
+            val a = joint.rigidBodyA
+            val b = joint.rigidBodyB
+            val rotationVector = prepareJoint(index)
+            val angles = pointA.set(rotationVector)
+            for (component in 0 until 3) {
+                val axis = frameA.transform(axis.set(0f, 0f, 0f).setComponent(component, 1f))
+                val error = anchorB.sub(anchorA, vectorB).dot(axis)
+                val speed = relativeVelocity(a, offsetA, b, offsetB, velocity).dot(axis)
+                val impulse = limitImpulse(
+                    error = error,
+                    min = joint.positionMin.get(component),
+                    max = joint.positionMax.get(component),
+                    speed = speed,
+                    mass = linearMass(a, offsetA, b, offsetB, axis),
+                )
+                if (impulse != 0f) {
+                    applyImpulse(a, axis, offsetA, -impulse)
+                    applyImpulse(b, axis, offsetB, impulse)
+                }
+            }
+            for (component in 0 until 3) {
+                val axis = frameA.transform(axis.set(0f, 0f, 0f).setComponent(component, 1f))
+                val speed = (angularVelocityX[b] - angularVelocityX[a]) * axis.x +
+                        (angularVelocityY[b] - angularVelocityY[a]) * axis.y +
+                        (angularVelocityZ[b] - angularVelocityZ[a]) * axis.z
+                val impulse = limitImpulse(
+                    error = angles.get(component),
+                    min = joint.rotationMin.get(component),
+                    max = joint.rotationMax.get(component),
+                    speed = speed,
+                    mass = angularMass(a, b, axis),
+                )
+                if (impulse != 0f) {
+                    applyAngularImpulse(a, axis, -impulse)
+                    applyAngularImpulse(b, axis, impulse)
+                }
+            }
+        }
+    }
+
+    // Core segment of a sphere or capsule, from start to end
+    private fun State.loadSegment(body: Int, start: Vector3f, end: Vector3f) {
+        val halfHeight = if (shapeTypes[body] == SHAPE_CAPSULE) shapeHalfY[body] else 0f
+        loadRotation(body, rotation).transform(end.set(0f, halfHeight, 0f))
+        start.set(positionX[body], positionY[body], positionZ[body]).sub(end)
+        end.add(positionX[body], positionY[body], positionZ[body])
+    }
+
+    private fun closestOnSegment(start: Vector3fc, end: Vector3fc, point: Vector3fc, dest: Vector3f): Vector3f {
+        end.sub(start, dest)
+        val lengthSquared = dest.lengthSquared()
+        val t = if (lengthSquared > EPSILON) {
+            ((point.x() - start.x()) * dest.x + (point.y() - start.y()) * dest.y + (point.z() - start.z()) * dest.z) /
+                    lengthSquared
+        } else {
+            0f
+        }
+        return dest.mul(t.coerceIn(0f, 1f)).add(start)
+    }
+
+    // Closest points between segments p1-q1 and p2-q2
+    private fun closestBetweenSegments(
+        p1: Vector3fc, q1: Vector3fc, p2: Vector3fc, q2: Vector3fc,
+        dest1: Vector3f, dest2: Vector3f,
+    ) {
+        val d1x = q1.x() - p1.x()
+        val d1y = q1.y() - p1.y()
+        val d1z = q1.z() - p1.z()
+        val d2x = q2.x() - p2.x()
+        val d2y = q2.y() - p2.y()
+        val d2z = q2.z() - p2.z()
+        val rx = p1.x() - p2.x()
+        val ry = p1.y() - p2.y()
+        val rz = p1.z() - p2.z()
+        val a = d1x * d1x + d1y * d1y + d1z * d1z
+        val e = d2x * d2x + d2y * d2y + d2z * d2z
+        val f = d2x * rx + d2y * ry + d2z * rz
+        var s: Float
+        var t: Float
+        if (a <= EPSILON && e <= EPSILON) {
+            s = 0f
+            t = 0f
+        } else if (a <= EPSILON) {
+            s = 0f
+            t = (f / e).coerceIn(0f, 1f)
+        } else {
+            val c = d1x * rx + d1y * ry + d1z * rz
+            if (e <= EPSILON) {
+                t = 0f
+                s = (-c / a).coerceIn(0f, 1f)
+            } else {
+                val b = d1x * d2x + d1y * d2y + d1z * d2z
+                val denominator = a * e - b * b
+                s = if (denominator > EPSILON) ((b * f - c * e) / denominator).coerceIn(0f, 1f) else 0f
+                t = (b * s + f) / e
+                if (t < 0f) {
+                    t = 0f
+                    s = (-c / a).coerceIn(0f, 1f)
+                } else if (t > 1f) {
+                    t = 1f
+                    s = ((b - c) / a).coerceIn(0f, 1f)
+                }
+            }
+        }
+        dest1.set(p1.x() + d1x * s, p1.y() + d1y * s, p1.z() + d1z * s)
+        dest2.set(p2.x() + d2x * t, p2.y() + d2y * t, p2.z() + d2z * t)
+    }
+
+    private fun State.addContact(a: Int, b: Int, normal: Vector3fc, point: Vector3fc, depth: Float) {
+        if (contactCount >= maxContacts) {
+            return
+        }
+        val index = contactCount++
+        contactA[index] = a
+        contactB[index] = b
+        contactNormalX[index] = normal.x()
+        contactNormalY[index] = normal.y()
+        contactNormalZ[index] = normal.z()
+        contactOffsetAX[index] = point.x() - positionX[a]
+        contactOffsetAY[index] = point.y() - positionY[a]
+        contactOffsetAZ[index] = point.z() - positionZ[a]
+        contactOffsetBX[index] = point.x() - positionX[b]
+        contactOffsetBY[index] = point.y() - positionY[b]
+        contactOffsetBZ[index] = point.z() - positionZ[b]
+        contactDepth[index] = depth
+    }
+
+    // Contact between a box and a sphere or capsule core with the given radius. The normal points from box to core.
+    private fun State.collideBox(box: Int, start: Vector3fc, end: Vector3fc, radius: Float, boxFirst: Boolean, other: Int) {
+        val boxRotation = loadRotation(box, rotationB)
+        val halfX = shapeHalfX[box]
+        val halfY = shapeHalfY[box]
+        val halfZ = shapeHalfZ[box]
+        val center = vector.set(positionX[box], positionY[box], positionZ[box])
+        // Alternate between the closest point in the box and on the segment
+        val segmentPoint = closestOnSegment(start, end, center, pointA)
+        val boxPoint = pointB
+        repeat(3) {
+            boxRotation.transformInverse(segmentPoint.sub(center, boxPoint))
+            boxPoint.set(
+                boxPoint.x.coerceIn(-halfX, halfX),
+                boxPoint.y.coerceIn(-halfY, halfY),
+                boxPoint.z.coerceIn(-halfZ, halfZ),
+            )
+            boxRotation.transform(boxPoint).add(center)
+            closestOnSegment(start, end, boxPoint, segmentPoint)
+        }
+        val local = boxRotation.transformInverse(segmentPoint.sub(center, translation))
+        val depthX = halfX - abs(local.x)
+        val depthY = halfY - abs(local.y)
+        val depthZ = halfZ - abs(local.z)
+        val normal = normal
+        val depth: Float
+        if (depthX > 0f && depthY > 0f && depthZ > 0f) {
+            // Core inside the box, push out through the nearest face
+            depth = when {
+                depthX <= depthY && depthX <= depthZ -> {
+                    normal.set(if (local.x < 0) -1f else 1f, 0f, 0f)
+                    depthX
+                }
+
+                depthY <= depthZ -> {
+                    normal.set(0f, if (local.y < 0) -1f else 1f, 0f)
+                    depthY
+                }
+
+                else -> {
+                    normal.set(0f, 0f, if (local.z < 0) -1f else 1f)
+                    depthZ
+                }
+            } + radius
+            boxRotation.transform(normal)
+            boxPoint.set(segmentPoint)
+        } else {
+            segmentPoint.sub(boxPoint, normal)
+            val distance = normal.length()
+            if (distance >= radius || distance < EPSILON) {
+                return
+            }
+            normal.div(distance)
+            depth = radius - distance
+        }
+        if (boxFirst) {
+            addContact(box, other, normal, boxPoint, depth)
+        } else {
+            addContact(other, box, normal.negate(), boxPoint, depth)
+        }
+    }
+
+    private fun State.findContacts() {
+        contactCount = 0
+        val pairs = collisionPairs
+        var pairIndex = 0
+        while (pairIndex < pairs.size) {
+            val a = pairs[pairIndex]
+            val b = pairs[pairIndex + 1]
+            pairIndex += 2
+            val dx = positionX[b] - positionX[a]
+            val dy = positionY[b] - positionY[a]
+            val dz = positionZ[b] - positionZ[a]
+            val reach = boundingRadius[a] + boundingRadius[b]
+            if (dx * dx + dy * dy + dz * dz > reach * reach) {
+                continue
+            }
+            val boxA = shapeTypes[a] == SHAPE_BOX
+            val boxB = shapeTypes[b] == SHAPE_BOX
+            when {
+                !boxA && !boxB -> {
+                    loadSegment(a, segmentA, segmentB)
+                    loadSegment(b, segmentC, segmentD)
+                    closestBetweenSegments(segmentA, segmentB, segmentC, segmentD, pointA, pointB)
+                    val radius = shapeRadius[a] + shapeRadius[b]
+                    val normal = pointB.sub(pointA, normal)
+                    val distance = normal.length()
+                    if (distance >= radius) {
+                        continue
+                    }
+                    if (distance > EPSILON) {
+                        normal.div(distance)
+                    } else {
+                        normal.set(0f, 1f, 0f)
+                    }
+                    pointA.fma(shapeRadius[a], normal)
+                    addContact(a, b, normal, pointA, radius - distance)
+                }
+
+                boxA && !boxB -> {
+                    loadSegment(b, segmentC, segmentD)
+                    collideBox(a, segmentC, segmentD, shapeRadius[b], true, b)
+                }
+
+                !boxA -> {
+                    loadSegment(a, segmentC, segmentD)
+                    collideBox(b, segmentC, segmentD, shapeRadius[a], false, a)
+                }
+
+                else -> {
+                    // Box against box: B is approximated by the capsule inside it, along its longest axis
+                    val halfX = shapeHalfX[b]
+                    val halfY = shapeHalfY[b]
+                    val halfZ = shapeHalfZ[b]
+                    val radius: Float
+                    when {
+                        halfX >= halfY && halfX >= halfZ -> {
+                            radius = min(halfY, halfZ)
+                            segmentD.set(halfX - radius, 0f, 0f)
+                        }
+
+                        halfY >= halfZ -> {
+                            radius = min(halfX, halfZ)
+                            segmentD.set(0f, halfY - radius, 0f)
+                        }
+
+                        else -> {
+                            radius = min(halfX, halfY)
+                            segmentD.set(0f, 0f, halfZ - radius)
+                        }
+                    }
+                    loadRotation(b, rotation).transform(segmentD)
+                    segmentC.set(positionX[b], positionY[b], positionZ[b]).sub(segmentD)
+                    segmentD.add(positionX[b], positionY[b], positionZ[b])
+                    collideBox(a, segmentC, segmentD, radius, true, b)
+                }
+            }
+        }
+    }
+
+    private fun State.prepareContacts() {
+        for (index in 0 until contactCount) {
+            val a = contactA[index]
+            val b = contactB[index]
+            val normal = normal.set(contactNormalX[index], contactNormalY[index], contactNormalZ[index])
+            offsetA.set(contactOffsetAX[index], contactOffsetAY[index], contactOffsetAZ[index])
+            offsetB.set(contactOffsetBX[index], contactOffsetBY[index], contactOffsetBZ[index])
+            contactNormalMass[index] = linearMass(a, offsetA, b, offsetB, normal)
+
+            val relative = relativeVelocity(a, offsetA, b, offsetB, velocity)
+            val normalSpeed = relative.dot(normal)
+            // Slide direction, or any direction along the surface when not sliding
+            val tangent = relative.fma(-normalSpeed, normal, axis)
+            if (tangent.lengthSquared() > EPSILON) {
+                tangent.normalize()
+            } else {
+                val other = if (abs(normal.x) < .9f) cross.set(1f, 0f, 0f) else cross.set(0f, 1f, 0f)
+                other.orthogonalizeUnit(normal, tangent)
+            }
+            contactTangentX[index] = tangent.x
+            contactTangentY[index] = tangent.y
+            contactTangentZ[index] = tangent.z
+            contactTangentMass[index] = linearMass(a, offsetA, b, offsetB, tangent)
+
+            val bias = CONTACT_BAUMGARTE * max(contactDepth[index] - CONTACT_SLOP, 0f) / STEP_TIME
+            val restitution = rigidBodies[a].restitution * rigidBodies[b].restitution
+            val bounce = if (normalSpeed < -RESTITUTION_THRESHOLD) -restitution * normalSpeed else 0f
+            contactTargetVelocity[index] = max(bias, bounce)
+            contactNormalImpulse[index] = 0f
+            contactTangentImpulse[index] = 0f
+        }
+    }
+
+    private fun State.solveContacts() {
+        for (index in 0 until contactCount) {
+            val a = contactA[index]
+            val b = contactB[index]
+            offsetA.set(contactOffsetAX[index], contactOffsetAY[index], contactOffsetAZ[index])
+            offsetB.set(contactOffsetBX[index], contactOffsetBY[index], contactOffsetBZ[index])
+
+            val normal = normal.set(contactNormalX[index], contactNormalY[index], contactNormalZ[index])
+            val normalMass = contactNormalMass[index]
+            if (normalMass > EPSILON) {
+                val speed = relativeVelocity(a, offsetA, b, offsetB, velocity).dot(normal)
+                val previous = contactNormalImpulse[index]
+                val accumulated = max(previous + (contactTargetVelocity[index] - speed) / normalMass, 0f)
+                contactNormalImpulse[index] = accumulated
+                val impulse = accumulated - previous
+                applyImpulse(a, normal, offsetA, -impulse)
+                applyImpulse(b, normal, offsetB, impulse)
+            }
+
+            val tangent = axis.set(contactTangentX[index], contactTangentY[index], contactTangentZ[index])
+            val tangentMass = contactTangentMass[index]
+            if (tangentMass > EPSILON) {
+                val friction = rigidBodies[a].friction * rigidBodies[b].friction
+                val maxFriction = friction * contactNormalImpulse[index]
+                val speed = relativeVelocity(a, offsetA, b, offsetB, velocity).dot(tangent)
+                val previous = contactTangentImpulse[index]
+                val accumulated = (previous - speed / tangentMass).coerceIn(-maxFriction, maxFriction)
+                contactTangentImpulse[index] = accumulated
+                val impulse = accumulated - previous
+                applyImpulse(a, tangent, offsetA, -impulse)
+                applyImpulse(b, tangent, offsetB, impulse)
+            }
+        }
+    }
+
+    private fun State.step() {
+        for (body in 0 until bodyCount) {
+            if (!dynamic[body]) {
+                continue
+            }
+            velocityY[body] += GRAVITY * STEP_TIME
+            val linearDamping = linearDampingFactors[body]
+            velocityX[body] *= linearDamping
+            velocityY[body] *= linearDamping
+            velocityZ[body] *= linearDamping
+            val angularDamping = angularDampingFactors[body]
+            angularVelocityX[body] *= angularDamping
+            angularVelocityY[body] *= angularDamping
+            angularVelocityZ[body] *= angularDamping
+        }
+        applyJointSprings()
+        findContacts()
+        prepareContacts()
+        repeat(SOLVER_ITERATIONS) {
+            solveJoints()
+            solveContacts()
+        }
+        for (body in 0 until bodyCount) {
+            if (!dynamic[body]) {
+                continue
+            }
+            positionX[body] += velocityX[body] * STEP_TIME
+            positionY[body] += velocityY[body] * STEP_TIME
+            positionZ[body] += velocityZ[body] * STEP_TIME
+            // Integrate the rotation by the angular velocity, as a quaternion derivative
+            val rotation = loadRotation(body, rotation)
+            val halfStep = STEP_TIME / 2
+            val spin = rotationB.set(
+                angularVelocityX[body] * halfStep,
+                angularVelocityY[body] * halfStep,
+                angularVelocityZ[body] * halfStep,
+                0f,
+            ).mul(rotation)
+            rotation.set(rotation.x + spin.x, rotation.y + spin.y, rotation.z + spin.z, rotation.w + spin.w).normalize()
+            rotationX[body] = rotation.x
+            rotationY[body] = rotation.y
+            rotationZ[body] = rotation.z
+            rotationW[body] = rotation.w
+            if (!positionX[body].isFinite() || !positionY[body].isFinite() || !positionZ[body].isFinite() ||
+                !rotation.w.isFinite()
+            ) {
+                // Start over from the bones rather than spreading NaN to the skin
+                initialized = false
+            }
+        }
+    }
+
+    private fun State.initialize(instance: ModelInstance) {
+        for (body in 0 until bodyCount) {
+            storePose(body, placeFromBone(instance, body, matrix))
+            velocityX[body] = 0f
+            velocityY[body] = 0f
+            velocityZ[body] = 0f
+            angularVelocityX[body] = 0f
+            angularVelocityY[body] = 0f
+            angularVelocityZ[body] = 0f
+        }
+        initialized = true
+    }
+
+    // Give followed bodies the velocity of the move, so contacts push along
+    private fun State.followBones(instance: ModelInstance, steps: Int) {
+        val time = steps * STEP_TIME
+        for (body in 0 until bodyCount) {
+            if (dynamic[body]) {
+                continue
+            }
+            val pose = placeFromBone(instance, body, matrix)
+            val translation = pose.getTranslation(translation)
+            velocityX[body] = (translation.x - positionX[body]) / time
+            velocityY[body] = (translation.y - positionY[body]) / time
+            velocityZ[body] = (translation.z - positionZ[body]) / time
+            storePose(body, pose)
+        }
+    }
+
+    private fun State.moveBones(instance: ModelInstance) {
+        for (index in writeOrder.indices) {
+            val body = writeOrder[index]
+            val nodeIndex = rigidBodies[body].nodeIndex
+            val node = instance.scene.nodes[nodeIndex]
+            val target = matrix.translationRotate(
+                positionX[body], positionY[body], positionZ[body], loadRotation(body, rotation),
+            ).mul(boneFromBody[body])
+            nodeWorld.mul(target, target)
+
+            // Pose of the bone as animated, below its already moved parent
+            val animated = boneMatrix
+            node.parent?.let { animated.set(instance.getWorldTransform(it)) } ?: animated.identity()
+            animated.mul(instance.getTransformSum(nodeIndex, transformId.prev))
+            if (rigidBodies[body].mode == BodyMode.PHYSICS_ROTATION) {
+                target.setTranslation(animated.getTranslation(translation))
+            }
+            animated.invert().mul(target, target)
+            instance.setTransformMatrix(nodeIndex, transformId, target)
+            instance.updateNodeTransform(nodeIndex)
+        }
+    }
+
+    private fun simulate(instance: ModelInstance, state: State) {
+        val clock = instance.modelData.physicsClock
+        val steps = clock.steps
+        with(state) {
+            nodeWorld.set(instance.getWorldTransform(node))
+            nodeWorld.invert(inverseNodeWorld)
+            if (!initialized) {
+                initialize(instance)
+            }
+            var simulated = 0
+            if (steps > 0) {
+                followBones(instance, steps)
+                val start = System.nanoTime()
+                while (simulated < steps) {
+                    step()
+                    simulated++
+                    if (System.nanoTime() - start >= clock.budgetNanos) {
+                        break
+                    }
+                }
+                if (!initialized) {
+                    initialize(instance)
+                }
+            }
+            recordSteps(simulated, steps - simulated)
+            moveBones(instance)
+        }
+    }
+
+    override fun update(phase: UpdatePhase, node: RenderNode, instance: ModelInstance) {
+        if (phase is UpdatePhase.PhysicsUpdate) {
+            simulate(instance, instance.modelData.rigidBodyStates[physicsIndex])
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package top.fifthlight.blazerod.model.node.component
+
+import org.joml.Matrix4f
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.PhysicsClock
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.RenderNode
+import top.fifthlight.blazerod.model.node.UpdatePhase
+import top.fifthlight.blazerod.model.node.getTransformSum
+import top.fifthlight.blazerod.model.node.getWorldTransform
+import kotlin.math.sqrt
+
+// Verlet integration in model space, so joints swing when the model is animated, not when the whole model moves
+class SpringBone(
+    val springIndex: Int,
+    val joints: List<Joint>,
+    val colliders: List<Collider>,
+    val transformId: TransformId,
+) : RenderNodeComponent<SpringBone>() {
+    override fun onClosed() {}
+
+    override val type: Type<SpringBone>
+        get() = Type.SpringBone
+
+    companion object {
+        private val updatePhases = listOf(UpdatePhase.Type.PHYSICS_UPDATE)
+
+        private const val STEP_TIME = PhysicsClock.STEP_TIME
+
+        // Length of the virtual tail of chain ends, as in VRM
+        private const val VIRTUAL_TAIL_LENGTH = .07f
+
+        private const val EPSILON = 1e-6f
+    }
+
+    override val updatePhases: List<UpdatePhase.Type>
+        get() = Companion.updatePhases
+
+    class Joint(
+        val nodeIndex: Int,
+        // Node the joint swings towards, or -1 for a virtual tail
+        val tailNodeIndex: Int,
+        // Index of the joint this one hangs from, or -1 if its parent node is not a joint of this spring
+        val parentJoint: Int,
+        val hitRadius: Float,
+        val stiffness: Float,
+        val gravityPower: Float,
+        val gravityDir: Vector3fc,
+        val dragForce: Float,
+    )
+
+    class Collider(
+        val nodeIndex: Int,
+        val shape: top.fifthlight.blazerod.model.SpringBone.Shape,
+    )
+
+    class State(scene: RenderScene) {
+        // Start of each spring in the per-joint arrays
+        internal val jointOffsets = IntArray(scene.springBoneComponents.size + 1).also { offsets ->
+            for ((index, spring) in scene.springBoneComponents.withIndex()) {
+                offsets[index + 1] = offsets[index] + spring.joints.size
+            }
+        }
+        private val jointCount = jointOffsets.last()
+
+        internal val currentTails = FloatArray(jointCount * 3)
+        internal val prevTails = FloatArray(jointCount * 3)
+        internal val initialized = BooleanArray(scene.springBoneComponents.size)
+
+        // World transforms of joints after simulation, so child joints hang from the swung parent
+        internal val jointWorlds = Array(jointCount) { Matrix4f() }
+
+        // Collider head and tail positions of the spring being simulated
+        internal val colliderPositions =
+            FloatArray((scene.springBoneComponents.maxOfOrNull { it.colliders.size } ?: 0) * 6)
+
+        internal val animated = Matrix4f()
+        internal val inverseAnimated = Matrix4f()
+        internal val physicsMatrix = Matrix4f()
+        internal val rotation = Quaternionf()
+        internal val head = Vector3f()
+        internal val tailLocal = Vector3f()
+        internal val restTail = Vector3f()
+        internal val restDir = Vector3f()
+        internal val next = Vector3f()
+        internal val vector = Vector3f()
+        internal val currentLocal = Vector3f()
+
+        fun reset() {
+            initialized.fill(false)
+        }
+    }
+
+    private fun Vector3f.load(array: FloatArray, offset: Int) =
+        set(array[offset], array[offset + 1], array[offset + 2])
+
+    private fun Vector3fc.store(array: FloatArray, offset: Int) {
+        array[offset] = x()
+        array[offset + 1] = y()
+        array[offset + 2] = z()
+    }
+
+    private fun getColliderPositions(instance: ModelInstance, state: State) {
+        val positions = state.colliderPositions
+        for (index in colliders.indices) {
+            val collider = colliders[index]
+            val world = instance.getWorldTransform(collider.nodeIndex)
+            val shape = collider.shape
+            world.transformPosition(state.vector.set(shape.offset))
+            state.vector.store(positions, index * 6)
+            if (shape is top.fifthlight.blazerod.model.SpringBone.Shape.Capsule) {
+                world.transformPosition(state.vector.set(shape.tail))
+            }
+            state.vector.store(positions, index * 6 + 3)
+        }
+    }
+
+    // Keeps the tail at bone length from the head
+    private fun Vector3f.constrainLength(head: Vector3fc, length: Float, vector: Vector3f): Vector3f {
+        sub(head, vector)
+        val distance = vector.length()
+        if (distance < EPSILON) {
+            return this
+        }
+        return vector.mul(length / distance).add(head, this)
+    }
+
+    // Pushes the tail out of all colliders, returning if it was moved
+    private fun collide(tail: Vector3f, radius: Float, state: State): Boolean {
+        val positions = state.colliderPositions
+        val vector = state.vector
+        var moved = false
+        for (index in colliders.indices) {
+            val collider = colliders[index]
+            val base = index * 6
+            val headX = positions[base]
+            val headY = positions[base + 1]
+            val headZ = positions[base + 2]
+            // Closest point on the capsule segment, or the sphere center
+            val segmentX = positions[base + 3] - headX
+            val segmentY = positions[base + 4] - headY
+            val segmentZ = positions[base + 5] - headZ
+            val segmentLengthSquared = segmentX * segmentX + segmentY * segmentY + segmentZ * segmentZ
+            val t = if (segmentLengthSquared > EPSILON) {
+                (((tail.x - headX) * segmentX + (tail.y - headY) * segmentY + (tail.z - headZ) * segmentZ) /
+                        segmentLengthSquared).coerceIn(0f, 1f)
+            } else {
+                0f
+            }
+            vector.set(headX + segmentX * t, headY + segmentY * t, headZ + segmentZ * t)
+            val minDistance = collider.shape.radius + radius
+            val dx = tail.x - vector.x
+            val dy = tail.y - vector.y
+            val dz = tail.z - vector.z
+            val distanceSquared = dx * dx + dy * dy + dz * dz
+            if (distanceSquared >= minDistance * minDistance || distanceSquared < EPSILON * EPSILON) {
+                continue
+            }
+            val scale = minDistance / sqrt(distanceSquared)
+            tail.set(vector.x + dx * scale, vector.y + dy * scale, vector.z + dz * scale)
+            moved = true
+        }
+        return moved
+    }
+
+    private fun simulate(instance: ModelInstance, state: State) {
+        val offset = state.jointOffsets[springIndex]
+        val steps = instance.modelData.physicsClock.steps
+        val initialized = state.initialized[springIndex]
+        val currentTails = state.currentTails
+        val prevTails = state.prevTails
+        getColliderPositions(instance, state)
+
+        // Index loops, as this runs for every instance every frame
+        for (jointIndex in joints.indices) {
+            val joint = joints[jointIndex]
+            val index = offset + jointIndex
+            val node = instance.scene.nodes[joint.nodeIndex]
+
+            // Pose of the joint as animated, hanging from the simulated parent joint
+            val animated = state.animated
+            val parentNode = node.parent
+            when {
+                joint.parentJoint >= 0 -> animated.set(state.jointWorlds[offset + joint.parentJoint])
+                parentNode != null -> animated.set(instance.getWorldTransform(parentNode))
+                else -> animated.identity()
+            }
+            animated.mul(instance.getTransformSum(joint.nodeIndex, transformId.prev))
+            val head = animated.getTranslation(state.head)
+            val inverseAnimated = animated.invert(state.inverseAnimated)
+
+            val tailLocal = state.tailLocal
+            if (joint.tailNodeIndex >= 0) {
+                instance.getTransformSum(joint.tailNodeIndex, transformId.prev).getTranslation(tailLocal)
+            } else {
+                // Continue the bone from the parent onwards
+                if (joint.parentJoint >= 0) {
+                    state.jointWorlds[offset + joint.parentJoint].getTranslation(state.vector)
+                } else {
+                    parentNode?.let { instance.getWorldTransform(it).getTranslation(state.vector) }
+                        ?: state.vector.zero()
+                }
+                head.sub(state.vector, state.vector)
+                if (state.vector.lengthSquared() < EPSILON) {
+                    state.vector.set(0f, 1f, 0f)
+                }
+                inverseAnimated.transformDirection(state.vector, tailLocal)
+                tailLocal.normalize(VIRTUAL_TAIL_LENGTH)
+            }
+            val restTail = animated.transformPosition(tailLocal, state.restTail)
+            val length = restTail.distance(head)
+
+            val base = index * 3
+            val next = state.next
+            if (!initialized) {
+                restTail.store(currentTails, base)
+                restTail.store(prevTails, base)
+            }
+            if (length > EPSILON) {
+                val restDir = restTail.sub(head, state.restDir).div(length)
+                repeat(steps) {
+                    next.load(currentTails, base)
+                    val inertia = 1f - joint.dragForce
+                    next.add(
+                        (currentTails[base] - prevTails[base]) * inertia,
+                        (currentTails[base + 1] - prevTails[base + 1]) * inertia,
+                        (currentTails[base + 2] - prevTails[base + 2]) * inertia,
+                    )
+                    next.fma(joint.stiffness * STEP_TIME, restDir)
+                    next.fma(joint.gravityPower * STEP_TIME, joint.gravityDir)
+                    next.constrainLength(head, length, state.vector)
+                    if (collide(next, joint.hitRadius, state)) {
+                        next.constrainLength(head, length, state.vector)
+                    }
+                    for (component in 0 until 3) {
+                        prevTails[base + component] = currentTails[base + component]
+                    }
+                    next.store(currentTails, base)
+                }
+            } else {
+                restTail.store(currentTails, base)
+                restTail.store(prevTails, base)
+            }
+
+            // Turn the bone from its animated direction to the simulated tail
+            val currentLocal = inverseAnimated.transformPosition(state.currentLocal.load(currentTails, base))
+            val rotation = if (tailLocal.lengthSquared() > EPSILON && currentLocal.lengthSquared() > EPSILON) {
+                state.rotation.rotationTo(tailLocal, currentLocal)
+            } else {
+                state.rotation.identity()
+            }
+            instance.setTransformMatrix(joint.nodeIndex, transformId, state.physicsMatrix.rotation(rotation))
+            animated.rotate(rotation, state.jointWorlds[index])
+        }
+        state.initialized[springIndex] = true
+
+        for (jointIndex in joints.indices) {
+            val joint = joints[jointIndex]
+            if (joint.parentJoint < 0) {
+                instance.updateNodeTransform(joint.nodeIndex)
+            }
+        }
+    }
+
+    override fun update(phase: UpdatePhase, node: RenderNode, instance: ModelInstance) {
+        if (phase is UpdatePhase.PhysicsUpdate) {
+            val state = instance.modelData.springBoneState
+            simulate(instance, state)
+        }
+    }
+}
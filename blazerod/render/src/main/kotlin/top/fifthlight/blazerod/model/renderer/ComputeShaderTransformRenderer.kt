@@ -4,9 +4,9 @@ import com.mojang.blaze3d.buffers.GpuBuffer
 import com.mojang.blaze3d.buffers.GpuBufferSlice
 import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.textures.GpuTextureView
-import com.mojang.blaze3d.vertex.VertexFormat
 import it.unimi.dsi.fastutil.ints.Int2ReferenceAVLTreeMap
 import it.unimi.dsi.fastutil.ints.Int2ReferenceMap
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap
 import net.minecraft.client.MinecraftClient
 import net.minecraft.client.gl.RenderPassImpl
 import net.minecraft.client.gl.RenderPipelines
@@ -17,6 +17,7 @@ import org.joml.Matrix4f
 import org.joml.Vector4f
 import top.fifthlight.blazerod.BlazeRod
 import top.fifthlight.blazerod.extension.*
+import top.fifthlight.blazerod.model.ModelInstance
 import top.fifthlight.blazerod.model.RenderScene
 import top.fifthlight.blazerod.model.RenderTask
 import top.fifthlight.blazerod.model.data.MorphTargetBuffer
@@ -32,11 +33,10 @@ import top.fifthlight.blazerod.render.BlazerodVertexFormats
 import top.fifthlight.blazerod.render.setIndexBuffer
 import top.fifthlight.blazerod.systems.ComputePass
 import top.fifthlight.blazerod.util.BitmapItem
-import top.fifthlight.blazerod.util.GpuShaderDataPool
 import top.fifthlight.blazerod.util.IrisApiWrapper
+import top.fifthlight.blazerod.util.PoseDataCache
 import top.fifthlight.blazerod.util.ceilDiv
 import top.fifthlight.blazerod.util.ofSsbo
-import top.fifthlight.blazerod.util.upload
 import java.util.*
 import kotlin.collections.getOrPut
 
@@ -169,27 +169,57 @@ class ComputeShaderTransformRenderer private constructor() :
     override val type: Type
         get() = Type
 
-    private val dataPool = GpuShaderDataPool.ofSsbo()
-    private val vertexDataPool = GpuShaderDataPool.create(
-        usage = GpuBuffer.USAGE_VERTEX,
-        extraUsage = GpuBufferExt.EXTRA_USAGE_STORAGE_BUFFER,
-        alignment = RenderSystem.getDevice().ssboOffsetAlignment,
-        supportSlicing = false,
+    private val poseDataCache = PoseDataCache.ofSsbo()
+
+    // Transformed vertices of each primitive, kept until the pose, light or vertex format changes
+    private class TransformedVertexData(
+        val buffer: GpuBuffer,
+        var poseVersion: Long = -1,
+        var light: Int = -1,
+        var irisVertexFormat: Boolean = false,
+        var lastUsedFrame: Int = 0,
     )
 
+    // Holds a reference to each instance, released when its data is dropped
+    private val transformedVertices = Reference2ReferenceOpenHashMap<ModelInstance, Array<TransformedVertexData?>>()
+    private var currentFrame = 0
+
+    private fun getTransformedVertexData(
+        task: RenderTask,
+        primitiveIndex: Int,
+        size: Int,
+    ): TransformedVertexData {
+        val instance = task.instance
+        val instanceData = transformedVertices.getOrPut(instance) {
+            instance.increaseReferenceCount()
+            arrayOfNulls(instance.scene.primitiveComponents.size)
+        }
+        val data = instanceData[primitiveIndex]?.takeIf { it.buffer.size() == size } ?: run {
+            instanceData[primitiveIndex]?.buffer?.close()
+            TransformedVertexData(
+                buffer = RenderSystem.getDevice().createBuffer(
+                    labelGetter = { "Transformed vertex buffer" },
+                    usage = GpuBuffer.USAGE_VERTEX,
+                    extraUsage = GpuBufferExt.EXTRA_USAGE_STORAGE_BUFFER,
+                    size = size,
+                ),
+            ).also { instanceData[primitiveIndex] = it }
+        }
+        data.lastUsedFrame = currentFrame
+        return data
+    }
+
     private fun dispatchCompute(
         primitive: RenderPrimitive,
         task: RenderTask,
         skinBuffer: RenderSkinBuffer?,
         targetBuffer: MorphTargetBuffer?,
-        targetVertexFormat: VertexFormat,
+        targetVertexData: GpuBufferSlice,
         irisVertexFormat: Boolean,
-    ): GpuBufferSlice {
+    ) {
         val device = RenderSystem.getDevice()
-        val commandEncoder = device.createCommandEncoder()
         val material = primitive.material
         var computePass: ComputePass? = null
-        var targetVertexData: GpuBufferSlice
         val computeDataUniformBufferSlice: GpuBufferSlice
         var skinModelIndicesBufferSlice: GpuBufferSlice? = null
         var skinJointBufferSlice: GpuBufferSlice? = null
@@ -198,7 +228,6 @@ class ComputeShaderTransformRenderer private constructor() :
         var morphTargetIndicesBufferSlice: GpuBufferSlice? = null
 
         try {
-            targetVertexData = vertexDataPool.allocate(targetVertexFormat.vertexSize * primitive.vertices)
             computeDataUniformBufferSlice = ComputeDataUniformBuffer.write {
                 totalVertices = primitive.vertices
                 uv1 = OverlayTexture.DEFAULT_UV
@@ -208,7 +237,7 @@ class ComputeShaderTransformRenderer private constructor() :
                 skinModelIndicesBufferSlice = SkinModelIndicesUniformBuffer.write {
                     skinJoints = skinBuffer.jointSize
                 }
-                skinJointBufferSlice = dataPool.upload(skinBuffer.buffer)
+                skinJointBufferSlice = poseDataCache.upload(skinBuffer.buffer, task.poseVersion)
             }
             targetBuffer?.let { targetBuffer ->
                 primitive.targets?.let { targets ->
@@ -221,8 +250,8 @@ class ComputeShaderTransformRenderer private constructor() :
                             targets.position.targetsCount + targets.color.targetsCount + targets.texCoord.targetsCount
                     }
                 }
-                morphWeightsBufferSlice = dataPool.upload(targetBuffer.weightsBuffer)
-                morphTargetIndicesBufferSlice = dataPool.upload(targetBuffer.indicesBuffer)
+                morphWeightsBufferSlice = poseDataCache.upload(targetBuffer.weightsBuffer, task.poseVersion)
+                morphTargetIndicesBufferSlice = poseDataCache.upload(targetBuffer.indicesBuffer, task.poseVersion)
             }
 
             val pipeline = getPipeline(
@@ -230,7 +259,7 @@ class ComputeShaderTransformRenderer private constructor() :
                 irisVertexFormat = irisVertexFormat,
             )
 
-            computePass = commandEncoder.createComputePass { "BlazeRod compute pass" }
+            computePass = device.createCommandEncoder().createComputePass { "BlazeRod compute pass" }
 
             with(computePass) {
                 setPipeline(pipeline)
@@ -281,8 +310,6 @@ class ComputeShaderTransformRenderer private constructor() :
         } finally {
             computePass?.close()
         }
-
-        return targetVertexData
     }
 
     private val modelMatrix = Matrix4f()
@@ -312,16 +339,30 @@ class ComputeShaderTransformRenderer private constructor() :
         } else {
             BlazerodVertexFormats.ENTITY_PADDED
         }
-        val vertexBuffer = dispatchCompute(
-            primitive = primitive,
+        val transformedVertexData = getTransformedVertexData(
             task = task,
-            skinBuffer = skinBuffer,
-            targetBuffer = targetBuffer,
-            targetVertexFormat = targetVertexFormat,
-            irisVertexFormat = irisVertexFormat,
+            primitiveIndex = primitiveIndex,
+            size = targetVertexFormat.vertexSize * primitive.vertices,
         )
-
-        commandEncoder.memoryBarrier(CommandEncoderExt.BARRIER_STORAGE_BUFFER_BIT or CommandEncoderExt.BARRIER_VERTEX_BUFFER_BIT)
+        val vertexBuffer = transformedVertexData.buffer.slice()
+        // Skip the dispatch if the pose didn't change since the last time the vertices are transformed
+        if (transformedVertexData.poseVersion != task.poseVersion ||
+            transformedVertexData.light != task.light ||
+            transformedVertexData.irisVertexFormat != irisVertexFormat
+        ) {
+            dispatchCompute(
+                primitive = primitive,
+                task = task,
+                skinBuffer = skinBuffer,
+                targetBuffer = targetBuffer,
+                targetVertexData = vertexBuffer,
+                irisVertexFormat = irisVertexFormat,
+            )
+            commandEncoder.memoryBarrier(CommandEncoderExt.BARRIER_STORAGE_BUFFER_BIT or CommandEncoderExt.BARRIER_VERTEX_BUFFER_BIT)
+            transformedVertexData.poseVersion = task.poseVersion
+            transformedVertexData.light = task.light
+            transformedVertexData.irisVertexFormat = irisVertexFormat
+        }
 
         instance.modelData.modelMatricesBuffer.content.getMatrix(primitiveIndex, modelMatrix)
         modelMatrix.mulLocal(task.modelViewMatrix)
@@ -353,7 +394,7 @@ class ComputeShaderTransformRenderer private constructor() :
                 setVertexFormat(targetVertexFormat)
                 setVertexFormatMode(primitive.vertexFormatMode)
                 setVertexBuffer(0, vertexBuffer.buffer())
-                primitive.indexBuffer?.let { indices ->
+                primitive.indexBuffer(task.lodLevel)?.let { indices ->
                     setIndexBuffer(indices)
                     drawIndexed(0, 0, indices.length, 1)
                 } ?: run {
@@ -364,12 +405,30 @@ class ComputeShaderTransformRenderer private constructor() :
     }
 
     override fun rotate() {
-        dataPool.rotate()
-        vertexDataPool.rotate()
+        poseDataCache.rotate()
+        currentFrame++
+        val iterator = transformedVertices.reference2ReferenceEntrySet().fastIterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            val instanceData = entry.value
+            // Instances only this map still holds are gone for their owner, so their data is dropped right away
+            val released = entry.key.referenceCount <= 1
+            if (released ||
+                instanceData.all { it == null || currentFrame - it.lastUsedFrame > PoseDataCache.MAX_UNUSED_FRAMES }
+            ) {
+                instanceData.forEach { it?.buffer?.close() }
+                iterator.remove()
+                entry.key.decreaseReferenceCount()
+            }
+        }
     }
 
     override fun close() {
-        dataPool.close()
-        vertexDataPool.close()
+        poseDataCache.close()
+        transformedVertices.forEach { (instance, instanceData) ->
+            instanceData.forEach { it?.buffer?.close() }
+            instance.decreaseReferenceCount()
+        }
+        transformedVertices.clear()
     }
 }
\ No newline at end of file
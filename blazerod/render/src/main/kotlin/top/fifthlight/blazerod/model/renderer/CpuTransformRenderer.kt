@@ -315,7 +315,7 @@ class CpuTransformRenderer private constructor() :
 
                 setVertexFormatMode(primitive.vertexFormatMode)
                 setVertexBuffer(0, vertexBuffer.buffer())
-                primitive.indexBuffer?.let { indices ->
+                primitive.indexBuffer(task.lodLevel)?.let { indices ->
                     setIndexBuffer(indices)
                     drawIndexed(0, 0, indices.length, 1)
                 } ?: run {
@@ -0,0 +1,162 @@
+package top.fifthlight.blazerod.model.renderer
+
+import it.unimi.dsi.fastutil.ints.IntArrays
+import it.unimi.dsi.fastutil.ints.IntComparator
+
+// Opcode and argument pairs: state changes, each followed by the draws using that state
+class DrawList {
+    companion object {
+        const val OP_PIPELINE = 0
+        const val OP_BATCH = 1
+        const val OP_TEXTURE = 2
+        const val OP_MATERIAL = 3
+        const val OP_DRAW = 4
+
+        private const val INITIAL_CAPACITY = 256
+    }
+
+    private var commands = IntArray(INITIAL_CAPACITY * 2)
+
+    var size = 0
+        private set
+
+    var pipelineChanges = 0
+        private set
+    var batchChanges = 0
+        private set
+    var textureChanges = 0
+        private set
+    var materialChanges = 0
+        private set
+    var draws = 0
+        private set
+
+    fun opcode(index: Int) = commands[index * 2]
+
+    fun argument(index: Int) = commands[index * 2 + 1]
+
+    internal fun add(opcode: Int, argument: Int) {
+        if (size * 2 == commands.size) {
+            commands = commands.copyOf(commands.size * 2)
+        }
+        commands[size * 2] = opcode
+        commands[size * 2 + 1] = argument
+        size++
+        when (opcode) {
+            OP_PIPELINE -> pipelineChanges++
+            OP_BATCH -> batchChanges++
+            OP_TEXTURE -> textureChanges++
+            OP_MATERIAL -> materialChanges++
+            OP_DRAW -> draws++
+        }
+    }
+
+    fun clear() {
+        size = 0
+        pipelineChanges = 0
+        batchChanges = 0
+        textureChanges = 0
+        materialChanges = 0
+        draws = 0
+    }
+}
+
+// Opaque draws are sorted by pipeline, texture, batch and material, blended draws follow in submission order
+class DrawListCompiler {
+    companion object {
+        private const val INITIAL_CAPACITY = 256
+    }
+
+    private var batches = IntArray(INITIAL_CAPACITY)
+    private var pipelines = IntArray(INITIAL_CAPACITY)
+    private var textures = IntArray(INITIAL_CAPACITY)
+    private var materials = IntArray(INITIAL_CAPACITY)
+    private var blended = BooleanArray(INITIAL_CAPACITY)
+    private var order = IntArray(INITIAL_CAPACITY)
+
+    var size = 0
+        private set
+
+    private val opaqueComparator = IntComparator { a, b ->
+        when {
+            pipelines[a] != pipelines[b] -> pipelines[a].compareTo(pipelines[b])
+            textures[a] != textures[b] -> textures[a].compareTo(textures[b])
+            batches[a] != batches[b] -> batches[a].compareTo(batches[b])
+            materials[a] != materials[b] -> materials[a].compareTo(materials[b])
+            else -> a.compareTo(b)
+        }
+    }
+
+    private fun grow() {
+        val capacity = batches.size * 2
+        batches = batches.copyOf(capacity)
+        pipelines = pipelines.copyOf(capacity)
+        textures = textures.copyOf(capacity)
+        materials = materials.copyOf(capacity)
+        blended = blended.copyOf(capacity)
+        order = order.copyOf(capacity)
+    }
+
+    // Returns the index of the draw, which draw commands refer to
+    fun addDraw(batch: Int, pipeline: Int, texture: Int, material: Int, blended: Boolean): Int {
+        require(batch >= 0 && pipeline >= 0 && texture >= 0 && material >= 0) {
+            "Bad draw keys: batch $batch, pipeline $pipeline, texture $texture, material $material"
+        }
+        if (size == batches.size) {
+            grow()
+        }
+        batches[size] = batch
+        pipelines[size] = pipeline
+        textures[size] = texture
+        materials[size] = material
+        this.blended[size] = blended
+        return size++
+    }
+
+    fun compile(list: DrawList) {
+        list.clear()
+
+        var opaqueCount = 0
+        for (draw in 0 until size) {
+            if (!blended[draw]) {
+                order[opaqueCount++] = draw
+            }
+        }
+        var count = opaqueCount
+        for (draw in 0 until size) {
+            if (blended[draw]) {
+                order[count++] = draw
+            }
+        }
+        IntArrays.quickSort(order, 0, opaqueCount, opaqueComparator)
+
+        var pipeline = -1
+        var batch = -1
+        var texture = -1
+        var material = -1
+        for (index in 0 until size) {
+            val draw = order[index]
+            if (pipelines[draw] != pipeline) {
+                pipeline = pipelines[draw]
+                list.add(DrawList.OP_PIPELINE, pipeline)
+            }
+            if (batches[draw] != batch) {
+                batch = batches[draw]
+                list.add(DrawList.OP_BATCH, batch)
+            }
+            if (textures[draw] != texture) {
+                texture = textures[draw]
+                list.add(DrawList.OP_TEXTURE, texture)
+            }
+            if (materials[draw] != material) {
+                material = materials[draw]
+                list.add(DrawList.OP_MATERIAL, material)
+            }
+            list.add(DrawList.OP_DRAW, draw)
+        }
+    }
+
+    fun clear() {
+        size = 0
+    }
+}
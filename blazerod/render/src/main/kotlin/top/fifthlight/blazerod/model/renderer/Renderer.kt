@@ -6,7 +6,6 @@ import top.fifthlight.blazerod.model.RenderTask
 import top.fifthlight.blazerod.model.TaskMap
 import top.fifthlight.blazerod.model.data.MorphTargetBuffer
 import top.fifthlight.blazerod.model.data.RenderSkinBuffer
-import top.fifthlight.blazerod.model.node.component.Primitive
 import top.fifthlight.blazerod.model.resource.RenderPrimitive
 
 sealed class Renderer<R : Renderer<R, T>, T : Renderer.Type<R, T>> : AutoCloseable {
@@ -26,6 +25,9 @@ sealed class Renderer<R : Renderer<R, T>, T : Renderer.Type<R, T>> : AutoCloseab
     ) {
         val instance = task.instance
         for (component in scene.primitiveComponents) {
+            if (!task.visiblePrimitives[component.primitiveIndex]) {
+                continue
+            }
             render(
                 colorFrameBuffer = colorFrameBuffer,
                 depthFrameBuffer = depthFrameBuffer,
@@ -69,7 +71,7 @@ sealed class InstancedRenderer<R : InstancedRenderer<R, T>, T : Renderer.Type<R,
 }
 
 abstract class TaskMapInstancedRenderer<R : InstancedRenderer<R, T>, T : Renderer.Type<R, T>> : InstancedRenderer<R, T>() {
-    private val taskMap = TaskMap()
+    protected val taskMap = TaskMap()
 
     override fun schedule(task: RenderTask) = taskMap.addTask(task)
 
@@ -82,15 +84,12 @@ abstract class TaskMapInstancedRenderer<R : InstancedRenderer<R, T>, T : Rendere
                 }
 
                 else -> {
-                    for (component in scene.primitiveComponents) {
-                        renderInstanced(
-                            colorFrameBuffer = colorFrameBuffer,
-                            depthFrameBuffer = depthFrameBuffer,
-                            tasks = tasks,
-                            scene = scene,
-                            component = component,
-                        )
-                    }
+                    renderInstanced(
+                        colorFrameBuffer = colorFrameBuffer,
+                        depthFrameBuffer = depthFrameBuffer,
+                        tasks = tasks,
+                        scene = scene,
+                    )
                 }
             }
         }
@@ -101,6 +100,5 @@ abstract class TaskMapInstancedRenderer<R : InstancedRenderer<R, T>, T : Rendere
         depthFrameBuffer: GpuTextureView?,
         tasks: List<RenderTask>,
         scene: RenderScene,
-        component: Primitive,
     )
 }
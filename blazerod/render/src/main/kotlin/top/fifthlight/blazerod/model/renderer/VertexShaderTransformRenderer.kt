@@ -8,6 +8,9 @@ import com.mojang.blaze3d.systems.RenderSystem
 import com.mojang.blaze3d.textures.GpuTextureView
 import it.unimi.dsi.fastutil.ints.Int2ReferenceAVLTreeMap
 import it.unimi.dsi.fastutil.ints.Int2ReferenceMap
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap
 import net.minecraft.client.MinecraftClient
 import net.minecraft.client.gl.RenderPassImpl
 import net.minecraft.client.gl.UniformType
@@ -16,6 +19,7 @@ import net.minecraft.util.Identifier
 import org.joml.Vector2i
 import top.fifthlight.blazerod.BlazeRod
 import top.fifthlight.blazerod.extension.*
+import top.fifthlight.blazerod.model.Material
 import top.fifthlight.blazerod.model.RenderScene
 import top.fifthlight.blazerod.model.RenderTask
 import top.fifthlight.blazerod.model.data.MorphTargetBuffer
@@ -30,6 +34,7 @@ import top.fifthlight.blazerod.model.uniform.UnlitDataUniformBuffer
 import top.fifthlight.blazerod.render.BlazerodVertexFormats
 import top.fifthlight.blazerod.render.setIndexBuffer
 import top.fifthlight.blazerod.util.*
+import java.nio.ByteBuffer
 import java.util.*
 
 class VertexShaderTransformRenderer private constructor() :
@@ -214,194 +219,236 @@ class VertexShaderTransformRenderer private constructor() :
     } else {
         GpuShaderDataPool.ofTbo()
     }
+    private val poseDataCache = if (useSsbo) {
+        PoseDataCache.ofSsbo()
+    } else {
+        PoseDataCache.ofTbo()
+    }
 
     private val lightVector = Vector2i()
 
-    private fun RenderPass.bindMorphTargets(targets: RenderPrimitive.Targets) {
-        if (RenderSystem.getDevice().supportSsbo) {
-            setStorageBuffer("MorphPositionBlock", targets.position.slice!!)
-            setStorageBuffer("MorphColorBlock", targets.color.slice!!)
-            setStorageBuffer("MorphTexCoordBlock", targets.texCoord.slice!!)
-        } else {
-            setUniform("MorphPositionData", targets.position.gpuBuffer)
-            setUniform("MorphColorData", targets.color.gpuBuffer)
-            setUniform("MorphTexCoordData", targets.texCoord.gpuBuffer)
-        }
+    class Counters : FrameCounters() {
+        var renderPasses by counter()
+            internal set
+        var draws by counter()
+            internal set
+        var pipelineChanges by counter()
+            internal set
+        var textureChanges by counter()
+            internal set
+        var bufferBinds by counter()
+            internal set
+
+        // Binds skipped as the same state was already bound in the pass
+        var skippedBinds by counter()
+            internal set
     }
 
-    override fun render(
-        colorFrameBuffer: GpuTextureView,
-        depthFrameBuffer: GpuTextureView?,
-        scene: RenderScene,
-        primitive: RenderPrimitive,
-        primitiveIndex: Int,
-        task: RenderTask,
-        skinBuffer: RenderSkinBuffer?,
-        targetBuffer: MorphTargetBuffer?,
-    ) {
-        if (!primitive.gpuComplete) {
-            return
+    val counters = Counters()
+    private val currentCounters = Counters()
+
+    // State bound in the current render pass, so draws only change what differs from the previous one
+    private class PassState(private val counters: Counters) {
+        private var pass: RenderPass? = null
+        private var pipeline: RenderPipeline? = null
+        private val uniforms = Object2ObjectOpenHashMap<String, GpuBufferSlice>()
+        private val storageBuffers = Object2ObjectOpenHashMap<String, GpuBufferSlice>()
+        private val samplers = Object2ObjectOpenHashMap<String, GpuTextureView>()
+
+        fun begin(pass: RenderPass) {
+            this.pass = pass
+            pipeline = null
+            uniforms.clear()
+            storageBuffers.clear()
+            samplers.clear()
         }
-        val device = RenderSystem.getDevice()
-        val commandEncoder = device.createCommandEncoder()
-        val material = primitive.material
-        var renderPass: RenderPass? = null
-        val instanceDataUniformBufferSlice: GpuBufferSlice
-        val modelMatricesBufferSlice: GpuBufferSlice
-        var skinModelIndicesBufferSlice: GpuBufferSlice? = null
-        var skinJointBufferSlice: GpuBufferSlice? = null
-        var morphDataUniformBufferSlice: GpuBufferSlice? = null
-        var morphWeightsBufferSlice: GpuBufferSlice? = null
-        var morphTargetIndicesBufferSlice: GpuBufferSlice? = null
-        var unlitData: GpuBufferSlice? = null
 
-        try {
-            instanceDataUniformBufferSlice = InstanceDataUniformBuffer.write {
-                primitiveSize = scene.primitiveComponents.size
-                this.primitiveIndex = primitiveIndex
-                this.modelViewMatrices[0] = task.modelViewMatrix
-                lightVector.set(
-                    task.light and (LightmapTextureManager.MAX_BLOCK_LIGHT_COORDINATE or 0xFF0F),
-                    (task.light shr 16) and (LightmapTextureManager.MAX_BLOCK_LIGHT_COORDINATE or 0xFF0F)
-                )
-                this.lightMapUvs[0] = lightVector
+        fun end() {
+            pass = null
+        }
+
+        fun setPipeline(pipeline: RenderPipeline) {
+            if (this.pipeline === pipeline) {
+                return
             }
-            modelMatricesBufferSlice = dataPool.upload(task.modelMatricesBuffer.content.buffer)
-            skinBuffer?.let { skinBuffer ->
-                skinModelIndicesBufferSlice = SkinModelIndicesUniformBuffer.write {
-                    skinJoints = skinBuffer.jointSize
+            pass!!.setPipeline(pipeline)
+            this.pipeline = pipeline
+            counters.pipelineChanges++
+            // Pipelines fail on storage buffers they don't declare, so drop them when switching to such a pipeline
+            val declared = pipeline.storageBuffers
+            val iterator = storageBuffers.keys.iterator()
+            while (iterator.hasNext()) {
+                val name = iterator.next()
+                if (name !in declared) {
+                    iterator.remove()
+                    pass!!.removeStorageBuffer(name)
                 }
-                skinJointBufferSlice = dataPool.upload(skinBuffer.buffer)
             }
-            targetBuffer?.let { targetBuffer ->
-                primitive.targets?.let { targets ->
-                    morphDataUniformBufferSlice = MorphDataUniformBuffer.write {
-                        totalVertices = primitive.vertices
-                        posTargets = targets.position.targetsCount
-                        colorTargets = targets.color.targetsCount
-                        texCoordTargets = targets.texCoord.targetsCount
-                        totalTargets =
-                            targets.position.targetsCount + targets.color.targetsCount + targets.texCoord.targetsCount
-                    }
-                }
-                morphWeightsBufferSlice = dataPool.upload(targetBuffer.weightsBuffer)
-                morphTargetIndicesBufferSlice = dataPool.upload(targetBuffer.indicesBuffer)
+        }
+
+        fun setUniform(name: String, slice: GpuBufferSlice) {
+            if (uniforms.put(name, slice) == slice) {
+                counters.skippedBinds++
+                return
             }
-            (material as? RenderMaterial.Unlit)?.let { material ->
-                unlitData = UnlitDataUniformBuffer.write {
-                    baseColor = material.baseColor
-                }
+            pass!!.setUniform(name, slice)
+            counters.bufferBinds++
+        }
+
+        fun setStorageBuffer(name: String, slice: GpuBufferSlice) {
+            if (storageBuffers.put(name, slice) == slice) {
+                counters.skippedBinds++
+                return
             }
+            pass!!.setStorageBuffer(name, slice)
+            counters.bufferBinds++
+        }
 
-            val pipeline = getPipeline(material = material, instanced = false)
+        fun bindSampler(name: String, texture: GpuTextureView) {
+            if (samplers.put(name, texture) === texture) {
+                counters.skippedBinds++
+                return
+            }
+            pass!!.bindSampler(name, texture)
+            counters.textureChanges++
+        }
+    }
 
-            renderPass = commandEncoder.createRenderPass(
-                { "BlazeRod render pass (non-instanced)" },
-                colorFrameBuffer,
-                OptionalInt.empty(),
-                depthFrameBuffer,
-                OptionalDouble.empty()
-            )
+    private val passState = PassState(currentCounters)
 
-            with(renderPass) {
-                setPipeline(pipeline)
-                RenderSystem.bindDefaultUniforms(this)
-                unlitData?.let {
-                    setUniform("UnlitData", unlitData)
-                }
-                (material as? RenderMaterial.Unlit)?.let { material ->
-                    bindSampler("SamplerBaseColor", material.baseColorTexture.view)
-                    val lightMapTexture =
-                        MinecraftClient.getInstance().gameRenderer.lightmapTextureManager.glTextureView
-                    bindSampler("SamplerLightMap", lightMapTexture)
-                }
+    // Tasks of a scene drawn together, and their pose data once uploaded
+    private class Batch {
+        var scene: RenderScene? = null
+        val tasks = ArrayList<RenderTask>()
+        var modelMatrices: GpuBufferSlice? = null
+        val skinJoints = ArrayList<GpuBufferSlice?>()
+        val skinModelIndices = ArrayList<GpuBufferSlice?>()
+        val morphWeights = ArrayList<GpuBufferSlice?>()
+        val morphTargetIndices = ArrayList<GpuBufferSlice?>()
 
-                if (RenderPassImpl.IS_DEVELOPMENT) {
-                    require(material.skinned == (skinBuffer != null)) {
-                        "Primitive's skin data ${skinBuffer != null} and material skinned ${material.skinned} not matching"
-                    }
-                }
-                setUniform("InstanceData", instanceDataUniformBufferSlice)
-                if (device.supportSsbo) {
-                    setStorageBuffer("LocalMatricesData", modelMatricesBufferSlice)
-                } else {
-                    setUniform("LocalMatrices", modelMatricesBufferSlice)
-                }
-                skinJointBufferSlice?.let { skinJointBuffer ->
-                    if (device.supportSsbo) {
-                        setStorageBuffer("JointsData", skinJointBuffer)
-                    } else {
-                        setUniform("Joints", skinJointBuffer)
-                    }
-                }
-                skinModelIndicesBufferSlice?.let { skinModelIndices ->
-                    setUniform("SkinModelIndices", skinModelIndices)
-                }
-                morphDataUniformBufferSlice?.let { morphDataUniformBuffer ->
-                    setUniform("MorphData", morphDataUniformBuffer)
-                }
-                morphWeightsBufferSlice?.let { morphWeightsBuffer ->
-                    if (device.supportSsbo) {
-                        setStorageBuffer("MorphWeightsData", morphWeightsBuffer)
-                    } else {
-                        setUniform("MorphWeights", morphWeightsBuffer)
-                    }
-                }
-                morphTargetIndicesBufferSlice?.let { morphTargetIndicesBuffer ->
-                    if (device.supportSsbo) {
-                        setStorageBuffer("MorphTargetIndicesData", morphTargetIndicesBuffer)
-                    } else {
-                        setUniform("MorphTargetIndices", morphTargetIndicesBuffer)
-                    }
-                }
-                setVertexFormatMode(primitive.vertexFormatMode)
-                setVertexBuffer(0, primitive.gpuVertexBuffer!!.inner)
-                primitive.targets?.let { targets ->
-                    bindMorphTargets(targets)
-                }
-                primitive.indexBuffer?.let { indices ->
-                    setIndexBuffer(indices)
-                    drawIndexed(0, 0, indices.length, 1)
-                } ?: run {
-                    draw(0, primitive.vertices)
+        val instanced
+            get() = tasks.size > 1
+
+        // Task maps only batch tasks with the same LOD level
+        val lodLevel
+            get() = tasks.first().lodLevel
+
+        private fun ArrayList<GpuBufferSlice?>.reset(size: Int) {
+            clear()
+            repeat(size) { add(null) }
+        }
+
+        fun set(scene: RenderScene, tasks: List<RenderTask>) {
+            this.scene = scene
+            this.tasks.addAll(tasks)
+            val firstTask = tasks.first()
+            skinJoints.reset(firstTask.skinBuffer.size)
+            skinModelIndices.reset(firstTask.skinBuffer.size)
+            morphWeights.reset(firstTask.morphTargetBuffer.size)
+            morphTargetIndices.reset(firstTask.morphTargetBuffer.size)
+        }
+
+        fun clear() {
+            scene = null
+            tasks.clear()
+            modelMatrices = null
+            skinJoints.clear()
+            skinModelIndices.clear()
+            morphWeights.clear()
+            morphTargetIndices.clear()
+        }
+    }
+
+    private val compiler = DrawListCompiler()
+    private val drawList = DrawList()
+    private val batches = ArrayList<Batch>()
+    private var batchCount = 0
+    private val singleTask = ArrayList<RenderTask>(1)
+
+    // Keys of the state used in this frame, given out in order of first use
+    private val pipelineKeys = Reference2IntOpenHashMap<RenderPipeline>().apply { defaultReturnValue(-1) }
+    private val pipelines = ArrayList<RenderPipeline>()
+    private val textureKeys = Reference2IntOpenHashMap<GpuTextureView>().apply { defaultReturnValue(-1) }
+    private val textures = ArrayList<GpuTextureView>()
+    private val materialKeys = Reference2IntOpenHashMap<RenderMaterial<*>>().apply { defaultReturnValue(-1) }
+    private val materials = ArrayList<RenderMaterial<*>>()
+    private val materialData = ArrayList<GpuBufferSlice?>()
+
+    // Indexed by the draw index from the compiler
+    private val drawComponents = ArrayList<Primitive>()
+    private val drawBatches = IntArrayList()
+    private val drawInstanceData = ArrayList<GpuBufferSlice>()
+    private val drawMorphData = ArrayList<GpuBufferSlice?>()
+
+    private fun <T> Reference2IntOpenHashMap<T>.keyOf(value: T, values: MutableList<T>): Int {
+        val key = getInt(value)
+        if (key >= 0) {
+            return key
+        }
+        put(value, values.size)
+        values.add(value)
+        return values.size - 1
+    }
+
+    private fun addBatch(scene: RenderScene, tasks: List<RenderTask>, components: List<Primitive>) {
+        val batchIndex = batchCount++
+        val batch = batches.getOrNull(batchIndex) ?: Batch().also { batches.add(it) }
+        batch.set(scene, tasks)
+        for (component in components) {
+            val primitive = component.primitive
+            if (!primitive.gpuComplete) {
+                continue
+            }
+            // Instances share the draw, so it is only skipped when culled for all of them
+            if (tasks.none { it.visiblePrimitives[component.primitiveIndex] }) {
+                continue
+            }
+            val material = primitive.material
+            if (RenderPassImpl.IS_DEVELOPMENT) {
+                require(material.skinned == (component.skinIndex != null)) {
+                    "Primitive's skin data and material skinned property not matching"
                 }
             }
-        } finally {
-            renderPass?.close()
+            compiler.addDraw(
+                batch = batchIndex,
+                pipeline = pipelineKeys.keyOf(getPipeline(material = material, instanced = batch.instanced), pipelines),
+                texture = textureKeys.keyOf(material.baseColorTexture.view, textures),
+                material = materialKeys.keyOf(material, materials),
+                blended = material.alphaMode == Material.AlphaMode.BLEND,
+            )
+            drawComponents.add(component)
+            drawBatches.add(batchIndex)
         }
     }
 
-    override fun renderInstanced(
-        colorFrameBuffer: GpuTextureView,
-        depthFrameBuffer: GpuTextureView?,
-        tasks: List<RenderTask>,
-        scene: RenderScene,
-        component: Primitive,
-    ) {
-        val primitive = component.primitive
-        val material = primitive.material
-        if (!primitive.gpuComplete) {
-            return
+    private inline fun Batch.upload(buffer: (RenderTask) -> ByteBuffer) = if (instanced) {
+        dataPool.upload(tasks.map(buffer))
+    } else {
+        val task = tasks.first()
+        poseDataCache.upload(buffer(task), task.poseVersion)
+    }
+
+    // Buffers can't be written while a render pass is open, so everything the draws use is written before
+    private fun uploadDrawData() {
+        for (material in materials) {
+            materialData.add((material as? RenderMaterial.Unlit)?.let { material ->
+                UnlitDataUniformBuffer.write {
+                    baseColor = material.baseColor
+                }
+            })
         }
+        for (draw in 0 until compiler.size) {
+            val component = drawComponents[draw]
+            val batch = batches[drawBatches.getInt(draw)]
+            val scene = batch.scene!!
+            if (batch.modelMatrices == null) {
+                batch.modelMatrices = batch.upload { it.modelMatricesBuffer.content.buffer }
+            }
 
-        val device = RenderSystem.getDevice()
-        val commandEncoder = device.createCommandEncoder()
-        var renderPass: RenderPass? = null
-        val instanceDataUniformBufferSlice: GpuBufferSlice
-        val modelMatricesBufferSlice: GpuBufferSlice
-        var skinModelIndicesBufferSlice: GpuBufferSlice? = null
-        var skinJointBufferSlice: GpuBufferSlice? = null
-        var morphDataUniformBufferSlice: GpuBufferSlice? = null
-        var morphWeightsBufferSlice: GpuBufferSlice? = null
-        var morphTargetIndicesBufferSlice: GpuBufferSlice? = null
-        var unlitData: GpuBufferSlice? = null
-
-        val firstTask = tasks.first()
-        try {
-            instanceDataUniformBufferSlice = InstanceDataUniformBuffer.write {
+            drawInstanceData.add(InstanceDataUniformBuffer.write {
                 primitiveSize = scene.primitiveComponents.size
                 this.primitiveIndex = component.primitiveIndex
-                for ((index, task) in tasks.withIndex()) {
+                for ((index, task) in batch.tasks.withIndex()) {
                     val light = task.light
                     lightVector.set(
                         light and (LightmapTextureManager.MAX_BLOCK_LIGHT_COORDINATE or 0xFF0F),
@@ -410,19 +457,27 @@ class VertexShaderTransformRenderer private constructor() :
                     this.lightMapUvs[index] = lightVector
                     this.modelViewMatrices[index] = task.modelViewMatrix
                 }
-            }
-            modelMatricesBufferSlice = dataPool.upload(tasks.map { it.modelMatricesBuffer.content.buffer })
+            })
+
             component.skinIndex?.let { skinIndex ->
-                val firstSkinBuffer = firstTask.skinBuffer[skinIndex].content
-                skinModelIndicesBufferSlice = SkinModelIndicesUniformBuffer.write {
-                    skinJoints = firstSkinBuffer.jointSize
+                if (batch.skinJoints[skinIndex] == null) {
+                    batch.skinJoints[skinIndex] = batch.upload { it.skinBuffer[skinIndex].content.buffer }
+                    batch.skinModelIndices[skinIndex] = SkinModelIndicesUniformBuffer.write {
+                        skinJoints = batch.tasks.first().skinBuffer[skinIndex].content.jointSize
+                    }
                 }
-                skinJointBufferSlice =
-                    dataPool.upload(tasks.map { it.skinBuffer[skinIndex].content.buffer })
             }
-            component.morphedPrimitiveIndex?.let { morphedPrimitiveIndex ->
+
+            drawMorphData.add(component.morphedPrimitiveIndex?.let { morphedPrimitiveIndex ->
+                val primitive = component.primitive
                 val targets = primitive.targets ?: error("Morphed primitive index was set but targets were not")
-                morphDataUniformBufferSlice = MorphDataUniformBuffer.write {
+                if (batch.morphWeights[morphedPrimitiveIndex] == null) {
+                    batch.morphWeights[morphedPrimitiveIndex] =
+                        batch.upload { it.morphTargetBuffer[morphedPrimitiveIndex].content.weightsBuffer }
+                    batch.morphTargetIndices[morphedPrimitiveIndex] =
+                        batch.upload { it.morphTargetBuffer[morphedPrimitiveIndex].content.indicesBuffer }
+                }
+                MorphDataUniformBuffer.write {
                     totalVertices = primitive.vertices
                     posTargets = targets.position.targetsCount
                     colorTargets = targets.color.targetsCount
@@ -430,100 +485,189 @@ class VertexShaderTransformRenderer private constructor() :
                     totalTargets =
                         targets.position.targetsCount + targets.color.targetsCount + targets.texCoord.targetsCount
                 }
-                morphWeightsBufferSlice =
-                    dataPool.upload(tasks.map { it.morphTargetBuffer[morphedPrimitiveIndex].content.weightsBuffer })
-                morphTargetIndicesBufferSlice =
-                    dataPool.upload(tasks.map { it.morphTargetBuffer[morphedPrimitiveIndex].content.indicesBuffer })
-            }
-            (material as? RenderMaterial.Unlit)?.let { material ->
-                unlitData = UnlitDataUniformBuffer.write {
-                    baseColor = material.baseColor
-                }
-            }
+            })
+        }
+    }
 
-            val pipeline = getPipeline(material = material, instanced = true)
+    private fun PassState.bindBuffer(ssboName: String, tboName: String, slice: GpuBufferSlice) {
+        if (RenderSystem.getDevice().supportSsbo) {
+            setStorageBuffer(ssboName, slice)
+        } else {
+            setUniform(tboName, slice)
+        }
+    }
 
-            renderPass = commandEncoder.createRenderPass(
-                { "BlazeRod render pass (instanced)" },
-                colorFrameBuffer,
-                OptionalInt.empty(),
-                depthFrameBuffer,
-                OptionalDouble.empty()
-            )
+    private fun PassState.bindMorphTargets(targets: RenderPrimitive.Targets) {
+        if (RenderSystem.getDevice().supportSsbo) {
+            setStorageBuffer("MorphPositionBlock", targets.position.slice!!)
+            setStorageBuffer("MorphColorBlock", targets.color.slice!!)
+            setStorageBuffer("MorphTexCoordBlock", targets.texCoord.slice!!)
+        } else {
+            setUniform("MorphPositionData", targets.position.gpuBuffer)
+            setUniform("MorphColorData", targets.color.gpuBuffer)
+            setUniform("MorphTexCoordData", targets.texCoord.gpuBuffer)
+        }
+    }
 
-            with(renderPass) {
-                setPipeline(pipeline)
-                RenderSystem.bindDefaultUniforms(this)
-                unlitData?.let {
-                    setUniform("UnlitData", unlitData)
-                }
-                (material as? RenderMaterial.Unlit)?.let { material ->
-                    bindSampler("SamplerBaseColor", material.baseColorTexture.view)
-                    val lightMapTexture =
-                        MinecraftClient.getInstance().gameRenderer.lightmapTextureManager.glTextureView
-                    bindSampler("SamplerLightMap", lightMapTexture)
-                }
+    private fun PassState.drawPrimitive(pass: RenderPass, batch: Batch, drawIndex: Int) {
+        val component = drawComponents[drawIndex]
+        val primitive = component.primitive
+        setUniform("InstanceData", drawInstanceData[drawIndex])
+        component.skinIndex?.let { skinIndex ->
+            setUniform("SkinModelIndices", batch.skinModelIndices[skinIndex]!!)
+            bindBuffer("JointsData", "Joints", batch.skinJoints[skinIndex]!!)
+        }
+        component.morphedPrimitiveIndex?.let { morphedPrimitiveIndex ->
+            setUniform("MorphData", drawMorphData[drawIndex]!!)
+            bindBuffer("MorphWeightsData", "MorphWeights", batch.morphWeights[morphedPrimitiveIndex]!!)
+            bindBuffer("MorphTargetIndicesData", "MorphTargetIndices", batch.morphTargetIndices[morphedPrimitiveIndex]!!)
+            bindMorphTargets(primitive.targets!!)
+        }
+        with(pass) {
+            setVertexFormatMode(primitive.vertexFormatMode)
+            setVertexBuffer(0, primitive.gpuVertexBuffer!!.inner)
+            primitive.indexBuffer(batch.lodLevel)?.let { indices ->
+                setIndexBuffer(indices)
+                drawIndexed(0, 0, indices.length, batch.tasks.size)
+            } ?: run {
+                draw(0, 0, primitive.vertices, batch.tasks.size)
+            }
+        }
+        currentCounters.draws++
+    }
 
-                if (RenderPassImpl.IS_DEVELOPMENT) {
-                    require(material.skinned == (component.skinIndex != null)) {
-                        "Primitive's skin data and material skinned property not matching"
-                    }
-                }
-                setUniform("InstanceData", instanceDataUniformBufferSlice)
-                if (device.supportSsbo) {
-                    setStorageBuffer("LocalMatricesData", modelMatricesBufferSlice)
-                } else {
-                    setUniform("LocalMatrices", modelMatricesBufferSlice)
-                }
-                skinJointBufferSlice?.let { skinJointBuffer ->
-                    if (device.supportSsbo) {
-                        setStorageBuffer("JointsData", skinJointBuffer)
-                    } else {
-                        setUniform("Joints", skinJointBuffer)
-                    }
-                }
-                skinModelIndicesBufferSlice?.let { skinModelIndices ->
-                    setUniform("SkinModelIndices", skinModelIndices)
-                }
-                morphDataUniformBufferSlice?.let { morphDataUniformBuffer ->
-                    setUniform("MorphData", morphDataUniformBuffer)
-                }
-                morphWeightsBufferSlice?.let { morphWeightsBuffer ->
-                    if (device.supportSsbo) {
-                        setStorageBuffer("MorphWeightsData", morphWeightsBuffer)
-                    } else {
-                        setUniform("MorphWeights", morphWeightsBuffer)
-                    }
-                }
-                morphTargetIndicesBufferSlice?.let { morphTargetIndicesBuffer ->
-                    if (device.supportSsbo) {
-                        setStorageBuffer("MorphTargetIndicesData", morphTargetIndicesBuffer)
-                    } else {
-                        setUniform("MorphTargetIndices", morphTargetIndicesBuffer)
+    private fun replay(colorFrameBuffer: GpuTextureView, depthFrameBuffer: GpuTextureView?) {
+        val commandEncoder = RenderSystem.getDevice().createCommandEncoder()
+        commandEncoder.createRenderPass(
+            { "BlazeRod render pass" },
+            colorFrameBuffer,
+            OptionalInt.empty(),
+            depthFrameBuffer,
+            OptionalDouble.empty()
+        ).use { pass ->
+            passState.begin(pass)
+            try {
+                currentCounters.renderPasses++
+                RenderSystem.bindDefaultUniforms(pass)
+                val lightMapTexture = MinecraftClient.getInstance().gameRenderer.lightmapTextureManager.glTextureView
+                passState.bindSampler("SamplerLightMap", lightMapTexture)
+
+                var batch: Batch? = null
+                for (index in 0 until drawList.size) {
+                    val argument = drawList.argument(index)
+                    when (drawList.opcode(index)) {
+                        DrawList.OP_PIPELINE -> passState.setPipeline(pipelines[argument])
+                        DrawList.OP_BATCH -> batch = batches[argument].also {
+                            passState.bindBuffer("LocalMatricesData", "LocalMatrices", it.modelMatrices!!)
+                        }
+
+                        DrawList.OP_TEXTURE -> passState.bindSampler("SamplerBaseColor", textures[argument])
+                        DrawList.OP_MATERIAL -> materialData[argument]?.let { passState.setUniform("UnlitData", it) }
+                        DrawList.OP_DRAW -> passState.drawPrimitive(pass, batch!!, argument)
                     }
                 }
-                setVertexFormatMode(primitive.vertexFormatMode)
-                setVertexBuffer(0, primitive.gpuVertexBuffer!!.inner)
-                primitive.targets?.let { targets ->
-                    bindMorphTargets(targets)
-                }
-                primitive.indexBuffer?.let { indices ->
-                    setIndexBuffer(indices)
-                    drawIndexed(0, 0, indices.length, tasks.size)
-                } ?: run {
-                    draw(0, 0, primitive.vertices, tasks.size)
-                }
+            } finally {
+                passState.end()
             }
+        }
+    }
+
+    // Draws all added batches in a single render pass, in the order of the compiled draw list
+    private fun drawBatches(colorFrameBuffer: GpuTextureView, depthFrameBuffer: GpuTextureView?) {
+        try {
+            if (compiler.size == 0) {
+                return
+            }
+            compiler.compile(drawList)
+            uploadDrawData()
+            replay(colorFrameBuffer, depthFrameBuffer)
+        } finally {
+            compiler.clear()
+            drawList.clear()
+            for (index in 0 until batchCount) {
+                batches[index].clear()
+            }
+            batchCount = 0
+            pipelineKeys.clear()
+            pipelines.clear()
+            textureKeys.clear()
+            textures.clear()
+            materialKeys.clear()
+            materials.clear()
+            materialData.clear()
+            drawComponents.clear()
+            drawBatches.clear()
+            drawInstanceData.clear()
+            drawMorphData.clear()
+        }
+    }
+
+    override fun executeTasks(colorFrameBuffer: GpuTextureView, depthFrameBuffer: GpuTextureView?) {
+        try {
+            taskMap.forEachBatch { scene, tasks ->
+                addBatch(scene, tasks, scene.primitiveComponents)
+            }
+            drawBatches(colorFrameBuffer, depthFrameBuffer)
         } finally {
-            renderPass?.close()
+            taskMap.clear()
         }
     }
 
+    override fun render(
+        colorFrameBuffer: GpuTextureView,
+        depthFrameBuffer: GpuTextureView?,
+        task: RenderTask,
+        scene: RenderScene,
+    ) {
+        singleTask.add(task)
+        try {
+            addBatch(scene, singleTask, scene.primitiveComponents)
+        } finally {
+            singleTask.clear()
+        }
+        drawBatches(colorFrameBuffer, depthFrameBuffer)
+    }
+
+    override fun render(
+        colorFrameBuffer: GpuTextureView,
+        depthFrameBuffer: GpuTextureView?,
+        scene: RenderScene,
+        primitive: RenderPrimitive,
+        primitiveIndex: Int,
+        task: RenderTask,
+        skinBuffer: RenderSkinBuffer?,
+        targetBuffer: MorphTargetBuffer?,
+    ) {
+        val component = scene.primitiveComponents.firstOrNull {
+            it.primitive === primitive && it.primitiveIndex == primitiveIndex
+        } ?: return
+        singleTask.add(task)
+        try {
+            addBatch(scene, singleTask, listOf(component))
+        } finally {
+            singleTask.clear()
+        }
+        drawBatches(colorFrameBuffer, depthFrameBuffer)
+    }
+
+    override fun renderInstanced(
+        colorFrameBuffer: GpuTextureView,
+        depthFrameBuffer: GpuTextureView?,
+        tasks: List<RenderTask>,
+        scene: RenderScene,
+    ) {
+        addBatch(scene, tasks, scene.primitiveComponents)
+        drawBatches(colorFrameBuffer, depthFrameBuffer)
+    }
+
     override fun rotate() {
         dataPool.rotate()
+        poseDataCache.rotate()
+        currentCounters.moveTo(counters)
     }
 
     override fun close() {
         dataPool.close()
+        poseDataCache.close()
     }
-}
\ No newline at end of file
+}
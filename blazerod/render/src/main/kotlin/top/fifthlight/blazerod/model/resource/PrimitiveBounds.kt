@@ -0,0 +1,90 @@
+package top.fifthlight.blazerod.model.resource
+
+import org.joml.Matrix4fc
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import java.nio.ByteBuffer
+import kotlin.math.sqrt
+
+// Bind pose bounds, including morph targets at full weight. jointRadii is the distance from each joint to the
+// farthest vertex it moves, or negative if it moves none.
+class PrimitiveBounds(
+    val min: Vector3fc,
+    val max: Vector3fc,
+    val jointRadii: FloatArray?,
+) {
+    // Joints moving at least one vertex
+    val usedJoints: IntArray = jointRadii?.indices?.filter { jointRadii[it] >= 0f }?.toIntArray() ?: IntArray(0)
+
+    companion object {
+        private const val JOINTS_PER_VERTEX = 4
+
+        // Morph position targets are RGBA32F, one item per vertex, target after target
+        private const val MORPH_POSITION_STRIDE = 16
+
+        // Joint and weight offsets are negative for primitives without skin
+        fun compute(
+            vertices: Int,
+            vertexBuffer: ByteBuffer,
+            stride: Int,
+            positionOffset: Int,
+            jointOffset: Int = -1,
+            weightOffset: Int = -1,
+            jointSize: Int = 0,
+            inverseBindMatrices: List<Matrix4fc>? = null,
+            morphPositions: ByteBuffer? = null,
+            morphTargets: Int = 0,
+        ): PrimitiveBounds {
+            // Farthest each vertex can be moved by morph targets
+            val padding = FloatArray(vertices)
+            if (morphPositions != null) {
+                for (target in 0 until morphTargets) {
+                    for (vertex in 0 until vertices) {
+                        val offset = (target * vertices + vertex) * MORPH_POSITION_STRIDE
+                        val x = morphPositions.getFloat(offset)
+                        val y = morphPositions.getFloat(offset + 4)
+                        val z = morphPositions.getFloat(offset + 8)
+                        padding[vertex] += sqrt(x * x + y * y + z * z)
+                    }
+                }
+            }
+
+            val min = Vector3f(Float.POSITIVE_INFINITY)
+            val max = Vector3f(Float.NEGATIVE_INFINITY)
+            val skinned = jointOffset >= 0 && weightOffset >= 0
+            val jointRadii = if (skinned) FloatArray(jointSize) { -1f } else null
+            val position = Vector3f()
+            val jointPosition = Vector3f()
+            for (vertex in 0 until vertices) {
+                val base = vertex * stride
+                position.set(
+                    vertexBuffer.getFloat(base + positionOffset),
+                    vertexBuffer.getFloat(base + positionOffset + 4),
+                    vertexBuffer.getFloat(base + positionOffset + 8),
+                )
+                val pad = padding[vertex]
+                min.set(minOf(min.x, position.x - pad), minOf(min.y, position.y - pad), minOf(min.z, position.z - pad))
+                max.set(maxOf(max.x, position.x + pad), maxOf(max.y, position.y + pad), maxOf(max.z, position.z + pad))
+
+                jointRadii ?: continue
+                for (index in 0 until JOINTS_PER_VERTEX) {
+                    if (vertexBuffer.getFloat(base + weightOffset + index * 4) <= 0f) {
+                        continue
+                    }
+                    val joint = vertexBuffer.getShort(base + jointOffset + index * 2).toInt() and 0xFFFF
+                    if (joint >= jointSize) {
+                        continue
+                    }
+                    val radius = inverseBindMatrices?.get(joint)?.transformPosition(position, jointPosition)?.length()
+                        ?: position.length()
+                    jointRadii[joint] = maxOf(jointRadii[joint], radius + pad)
+                }
+            }
+            if (vertices == 0) {
+                min.zero()
+                max.zero()
+            }
+            return PrimitiveBounds(min, max, jointRadii)
+        }
+    }
+}
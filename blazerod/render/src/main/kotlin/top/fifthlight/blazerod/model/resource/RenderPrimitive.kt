@@ -16,9 +16,12 @@ class RenderPrimitive(
     val gpuVertexBuffer: RefCountedGpuBuffer?,
     val cpuVertexBuffer: ByteBuffer?,
     val indexBuffer: GpuIndexBuffer?,
+    // Simplified versions of indexBuffer, from fine to coarse
+    val lodIndexBuffers: List<GpuIndexBuffer> = listOf(),
     val material: RenderMaterial<*>,
     val targets: Targets?,
     val targetGroups: List<MorphTargetGroup>,
+    val bounds: PrimitiveBounds? = null,
 ) : AbstractRefCount() {
     companion object {
         private val TYPE_ID = Identifier.of("blazerod", "primitive")
@@ -30,6 +33,7 @@ class RenderPrimitive(
     init {
         gpuVertexBuffer?.increaseReferenceCount()
         indexBuffer?.increaseReferenceCount()
+        lodIndexBuffers.forEach { it.increaseReferenceCount() }
         material.increaseReferenceCount()
         if (targetGroups.isEmpty()) {
             require(targets == null) { "Empty target groups with non-empty targets" }
@@ -38,6 +42,15 @@ class RenderPrimitive(
         }
     }
 
+    /**
+     * Index buffer to draw at a LOD level, 0 being the full mesh. Levels beyond the last one use the coarsest.
+     */
+    fun indexBuffer(lodLevel: Int): GpuIndexBuffer? = if (lodLevel <= 0 || lodIndexBuffers.isEmpty()) {
+        indexBuffer
+    } else {
+        lodIndexBuffers[minOf(lodLevel, lodIndexBuffers.size) - 1]
+    }
+
     val gpuComplete = gpuVertexBuffer != null && targets?.gpuComplete != false
     val cpuComplete = cpuVertexBuffer != null && targets?.cpuComplete != false
 
@@ -75,6 +88,7 @@ class RenderPrimitive(
     override fun onClosed() {
         gpuVertexBuffer?.decreaseReferenceCount()
         indexBuffer?.decreaseReferenceCount()
+        lodIndexBuffers.forEach { it.decreaseReferenceCount() }
         material.decreaseReferenceCount()
         targets?.apply {
             position.close()
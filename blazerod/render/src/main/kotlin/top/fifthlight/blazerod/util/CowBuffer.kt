@@ -44,6 +44,10 @@ class CowBuffer<C : CowBuffer.Content<C>> private constructor() : AbstractRefCou
 
     fun copy() = acquire(content)
 
+    // Whether no copy shares the content, so editing it in place can't be seen through another buffer
+    val isExclusive: Boolean
+        get() = content.referenceCount <= 1
+
     fun edit(editor: C.() -> Unit): CowBuffer<C> {
         if (referenceCount <= 1) {
             editor(content)
@@ -0,0 +1,28 @@
+package top.fifthlight.blazerod.util
+
+import kotlin.reflect.KProperty
+
+// Counted into one instance during a frame and moved to another at its end, to show the last finished frame
+abstract class FrameCounters {
+    private val arrays = mutableListOf<IntArray>()
+
+    protected class Counter(private val array: IntArray) {
+        operator fun getValue(thisRef: Any?, property: KProperty<*>) = array[0]
+
+        operator fun setValue(thisRef: Any?, property: KProperty<*>, value: Int) {
+            array[0] = value
+        }
+    }
+
+    protected fun counters(size: Int) = IntArray(size).also { arrays.add(it) }
+
+    protected fun counter() = Counter(counters(1))
+
+    fun moveTo(target: FrameCounters) {
+        require(target.javaClass == javaClass) { "Can't move counters into ${target.javaClass}" }
+        for (i in arrays.indices) {
+            arrays[i].copyInto(target.arrays[i])
+            arrays[i].fill(0)
+        }
+    }
+}
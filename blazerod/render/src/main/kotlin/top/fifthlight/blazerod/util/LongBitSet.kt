@@ -0,0 +1,101 @@
+package top.fifthlight.blazerod.util
+
+/**
+ * Fixed size bitset backed by a long array, with word-level range fills and a cached set bit count.
+ */
+class LongBitSet(val size: Int) {
+    private val words = LongArray((size + 63) ushr 6)
+
+    var cardinality = 0
+        private set
+
+    fun isEmpty() = cardinality == 0
+
+    operator fun get(index: Int) = words[index ushr 6] and (1L shl index) != 0L
+
+    fun set(index: Int) {
+        val wordIndex = index ushr 6
+        val word = words[wordIndex]
+        val newWord = word or (1L shl index)
+        if (word != newWord) {
+            words[wordIndex] = newWord
+            cardinality++
+        }
+    }
+
+    fun clear(index: Int) {
+        val wordIndex = index ushr 6
+        val word = words[wordIndex]
+        val newWord = word and (1L shl index).inv()
+        if (word != newWord) {
+            words[wordIndex] = newWord
+            cardinality--
+        }
+    }
+
+    private fun fillWord(wordIndex: Int, mask: Long) {
+        val word = words[wordIndex]
+        val added = mask and word.inv()
+        if (added != 0L) {
+            words[wordIndex] = word or added
+            cardinality += java.lang.Long.bitCount(added)
+        }
+    }
+
+    /**
+     * Set all bits in [from, to).
+     */
+    fun set(from: Int, to: Int) {
+        require(from in 0..to && to <= size) { "Bad range [$from, $to) for size $size" }
+        if (from == to) {
+            return
+        }
+        val startWord = from ushr 6
+        val endWord = (to - 1) ushr 6
+        // Shift counts are taken modulo 64, so these select the bits from "from" and below "to"
+        val startMask = -1L shl from
+        val endMask = -1L ushr -to
+        if (startWord == endWord) {
+            fillWord(startWord, startMask and endMask)
+            return
+        }
+        fillWord(startWord, startMask)
+        for (wordIndex in startWord + 1 until endWord) {
+            fillWord(wordIndex, -1L)
+        }
+        fillWord(endWord, endMask)
+    }
+
+    fun setAll() = set(0, size)
+
+    fun copyFrom(other: LongBitSet) {
+        require(other.size == size) { "Bad bitset size ${other.size}, expected $size" }
+        other.words.copyInto(words)
+        cardinality = other.cardinality
+    }
+
+    fun clearAll() {
+        words.fill(0L)
+        cardinality = 0
+    }
+
+    /**
+     * Find the first set bit at or after [from], or -1 if there is none.
+     */
+    fun nextSetBit(from: Int): Int {
+        if (from >= size) {
+            return -1
+        }
+        var wordIndex = from ushr 6
+        var word = words[wordIndex] and (-1L shl from)
+        while (true) {
+            if (word != 0L) {
+                return (wordIndex shl 6) + java.lang.Long.numberOfTrailingZeros(word)
+            }
+            if (++wordIndex == words.size) {
+                return -1
+            }
+            word = words[wordIndex]
+        }
+    }
+}
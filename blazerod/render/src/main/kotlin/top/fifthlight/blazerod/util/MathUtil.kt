@@ -1,5 +1,8 @@
 package top.fifthlight.blazerod.util
 
+import org.joml.Matrix4fc
+import java.nio.ByteBuffer
+
 internal infix fun Int.ceilDiv(other: Int) = if (this % other == 0) {
     this / other
 } else {
@@ -15,3 +18,16 @@ internal tailrec fun gcd(a: Int, b: Int): Int = if (b == 0) {
 }
 
 internal fun lcm(a: Int, b: Int): Int = a * (b / gcd(a, b))
+
+/**
+ * Compare a matrix with the one stored in column-major order at [offset], as written by [Matrix4fc.get].
+ */
+internal fun Matrix4fc.equalsStored(buffer: ByteBuffer, offset: Int) =
+    buffer.getFloat(offset) == m00() && buffer.getFloat(offset + 4) == m01() &&
+            buffer.getFloat(offset + 8) == m02() && buffer.getFloat(offset + 12) == m03() &&
+            buffer.getFloat(offset + 16) == m10() && buffer.getFloat(offset + 20) == m11() &&
+            buffer.getFloat(offset + 24) == m12() && buffer.getFloat(offset + 28) == m13() &&
+            buffer.getFloat(offset + 32) == m20() && buffer.getFloat(offset + 36) == m21() &&
+            buffer.getFloat(offset + 40) == m22() && buffer.getFloat(offset + 44) == m23() &&
+            buffer.getFloat(offset + 48) == m30() && buffer.getFloat(offset + 52) == m31() &&
+            buffer.getFloat(offset + 56) == m32() && buffer.getFloat(offset + 60) == m33()
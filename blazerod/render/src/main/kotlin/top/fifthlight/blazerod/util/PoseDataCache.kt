@@ -0,0 +1,80 @@
+package top.fifthlight.blazerod.util
+
+import com.mojang.blaze3d.buffers.GpuBuffer
+import com.mojang.blaze3d.buffers.GpuBufferSlice
+import com.mojang.blaze3d.systems.RenderSystem
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap
+import top.fifthlight.blazerod.extension.GpuBufferExt
+import top.fifthlight.blazerod.extension.createBuffer
+import java.nio.ByteBuffer
+
+// Pose data in persistent GPU buffers, only written again when the pose version changes
+class PoseDataCache(
+    private val usage: Int,
+    private val extraUsage: Int,
+) : AutoCloseable {
+    companion object {
+        // Cached GPU data unused for more frames than this is released
+        const val MAX_UNUSED_FRAMES = 60
+    }
+
+    private class Entry(
+        val buffer: GpuBuffer,
+        var version: Long,
+        var lastUsedFrame: Int,
+    )
+
+    // Keyed by the identity of the source buffer, which stays the same as long as the CowBuffer is edited in place
+    private val entries = Reference2ReferenceOpenHashMap<ByteBuffer, Entry>()
+    private var currentFrame = 0
+
+    fun upload(data: ByteBuffer, version: Long): GpuBufferSlice {
+        val size = data.capacity()
+        val entry = entries.get(data)
+        if (entry != null && entry.buffer.size() == size) {
+            entry.lastUsedFrame = currentFrame
+            if (entry.version != version) {
+                val commandEncoder = RenderSystem.getDevice().createCommandEncoder()
+                commandEncoder.writeToBuffer(entry.buffer.slice(), data.duplicate().clear())
+                entry.version = version
+            }
+            return entry.buffer.slice()
+        }
+        entry?.buffer?.close()
+        val buffer = RenderSystem.getDevice().createBuffer(
+            labelGetter = { "Pose data cache buffer" },
+            usage = usage or GpuBuffer.USAGE_COPY_DST,
+            extraUsage = extraUsage,
+            data = data.duplicate().clear(),
+        )
+        entries.put(data, Entry(buffer, version, currentFrame))
+        return buffer.slice()
+    }
+
+    fun rotate() {
+        currentFrame++
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (currentFrame - entry.lastUsedFrame > MAX_UNUSED_FRAMES) {
+                entry.buffer.close()
+                iterator.remove()
+            }
+        }
+    }
+
+    override fun close() {
+        entries.values.forEach { it.buffer.close() }
+        entries.clear()
+    }
+}
+
+fun PoseDataCache.Companion.ofSsbo() = PoseDataCache(
+    usage = 0,
+    extraUsage = GpuBufferExt.EXTRA_USAGE_STORAGE_BUFFER,
+)
+
+fun PoseDataCache.Companion.ofTbo() = PoseDataCache(
+    usage = GpuBuffer.USAGE_UNIFORM_TEXEL_BUFFER,
+    extraUsage = 0,
+)
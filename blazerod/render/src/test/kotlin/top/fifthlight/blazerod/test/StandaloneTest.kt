@@ -2,10 +2,48 @@ package top.fifthlight.blazerod.test
 
 import org.junit.platform.suite.api.SelectClasses
 import org.junit.platform.suite.api.Suite
+import top.fifthlight.blazerod.test.animation.AnimationBakeTest
+import top.fifthlight.blazerod.test.animation.AnimationPlaybackTest
+import top.fifthlight.blazerod.test.animation.AnimationRetargetTest
+import top.fifthlight.blazerod.test.animation.KeyFrameDataTest
+import top.fifthlight.blazerod.test.animation.NodeTrackTest
+import top.fifthlight.blazerod.test.animation.PoseLayerBlenderTest
+import top.fifthlight.blazerod.test.model.SharedPoseTest
+import top.fifthlight.blazerod.test.model.load.MeshSimplifierTest
+import top.fifthlight.blazerod.test.model.node.IkSolverTest
+import top.fifthlight.blazerod.test.model.node.RigidBodyPhysicsTest
+import top.fifthlight.blazerod.test.model.node.SoaTransformStorageTest
+import top.fifthlight.blazerod.test.model.node.SpringBoneTest
 import top.fifthlight.blazerod.test.model.node.TransformMapTest
+import top.fifthlight.blazerod.test.model.node.UpdatePlanTest
+import top.fifthlight.blazerod.test.model.renderer.DrawListCompilerTest
+import top.fifthlight.blazerod.test.model.resource.PrimitiveBoundsTest
+import top.fifthlight.blazerod.test.model.vmd.VmdBezierCurveTableTest
+import top.fifthlight.blazerod.test.model.vmd.VmdLoaderTest
 import top.fifthlight.blazerod.test.layout.Std140Test
 import top.fifthlight.blazerod.test.layout.Std430Test
 
 @Suite
-@SelectClasses(Std140Test::class, Std430Test::class, TransformMapTest::class)
+@SelectClasses(
+    Std140Test::class,
+    Std430Test::class,
+    TransformMapTest::class,
+    SoaTransformStorageTest::class,
+    UpdatePlanTest::class,
+    SharedPoseTest::class,
+    VmdBezierCurveTableTest::class,
+    AnimationBakeTest::class,
+    PoseLayerBlenderTest::class,
+    AnimationPlaybackTest::class,
+    NodeTrackTest::class,
+    KeyFrameDataTest::class,
+    AnimationRetargetTest::class,
+    VmdLoaderTest::class,
+    IkSolverTest::class,
+    MeshSimplifierTest::class,
+    SpringBoneTest::class,
+    RigidBodyPhysicsTest::class,
+    DrawListCompilerTest::class,
+    PrimitiveBoundsTest::class,
+)
 class StandaloneTest
@@ -0,0 +1,100 @@
+package top.fifthlight.blazerod.test
+
+import org.joml.Vector3f
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.NodeTransform
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.node.RenderNode
+import top.fifthlight.blazerod.model.node.component.RenderNodeComponent
+import top.fifthlight.blazerod.model.resource.RenderExpression
+import top.fifthlight.blazerod.model.resource.RenderExpressionGroup
+import top.fifthlight.blazerod.model.resource.RenderSkin
+
+/**
+ * Builds the synthetic scenes used by tests and benchmarks.
+ */
+object TestScenes {
+    /**
+     * A node of [scene]. [parent] is the index of the parent node, or -1 for the root. Nodes with a [translation]
+     * get it as their absolute transform.
+     */
+    class Node(
+        val name: String,
+        val parent: Int,
+        val translation: Vector3f? = null,
+        val components: List<RenderNodeComponent<*>> = listOf(),
+    )
+
+    /**
+     * Build a scene of [nodes], each with its position in the list as node index. Children keep the node order.
+     */
+    fun scene(
+        nodes: List<Node>,
+        skins: List<RenderSkin> = listOf(),
+        expressions: List<RenderExpression> = listOf(),
+        expressionGroups: List<RenderExpressionGroup> = listOf(),
+    ): RenderScene {
+        val renderNodes = nodes.mapIndexed { index, node ->
+            RenderNode(
+                nodeIndex = index,
+                absoluteTransform = node.translation?.let { NodeTransform.Decomposed(translation = it) },
+                nodeName = node.name,
+                components = node.components,
+            )
+        }
+        val children = List(nodes.size) { mutableListOf<RenderNode>() }
+        var root: RenderNode? = null
+        for ((index, node) in nodes.withIndex()) {
+            if (node.parent < 0) {
+                require(root == null) { "Scene has more than one root" }
+                root = renderNodes[index]
+            } else {
+                children[node.parent].add(renderNodes[index])
+            }
+        }
+        for ((index, node) in renderNodes.withIndex()) {
+            node.initializeChildren(children[index])
+        }
+        return RenderScene(
+            rootNode = requireNotNull(root) { "Scene has no root" },
+            nodes = renderNodes,
+            skins = skins,
+            expressions = expressions,
+            expressionGroups = expressionGroups,
+            cameras = listOf(),
+        )
+    }
+
+    /**
+     * Build a scene of [boneCount] bones named bone_<index>, with a root node of index [boneCount]. Bones hang
+     * directly under the root unless [parentOf] says otherwise.
+     */
+    fun bones(
+        boneCount: Int,
+        parentOf: (bone: Int) -> Int = { boneCount },
+        components: (bone: Int) -> List<RenderNodeComponent<*>> = { listOf() },
+        skins: List<RenderSkin> = listOf(),
+        expressions: List<RenderExpression> = listOf(),
+        expressionGroups: List<RenderExpressionGroup> = listOf(),
+    ) = scene(
+        nodes = List(boneCount + 1) { index ->
+            if (index == boneCount) {
+                Node(name = "bone_$index", parent = -1)
+            } else {
+                Node(name = "bone_$index", parent = parentOf(index), components = components(index))
+            }
+        },
+        skins = skins,
+        expressions = expressions,
+        expressionGroups = expressionGroups,
+    )
+}
+
+fun ModelInstance.worldPosition(node: Int): Vector3f = modelData.worldTransforms[node].getTranslation(Vector3f())
+
+// World matrices of the given nodes, one after another
+fun ModelInstance.worldPose(nodes: IntRange) = FloatArray(16 * (nodes.last - nodes.first + 1)).also { pose ->
+    for (node in nodes) {
+        modelData.worldTransforms[node].get(pose, (node - nodes.first) * 16)
+    }
+}
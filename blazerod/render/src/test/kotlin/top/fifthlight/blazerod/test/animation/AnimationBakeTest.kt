@@ -0,0 +1,152 @@
+package top.fifthlight.blazerod.test.animation
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.animation.AnimationChannelItem
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.BakedTransformItem
+import top.fifthlight.blazerod.animation.BakedTransformTrack
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.NodeTransformView
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameData
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.animation.ofQuaternionf
+import top.fifthlight.blazerod.model.animation.ofVector3f
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.vmd.VmdBezierChannelComponent
+import top.fifthlight.blazerod.model.vmd.VmdBezierInterpolation
+import top.fifthlight.blazerod.model.vmd.VmdBezierQuaternionfInterpolator
+import top.fifthlight.blazerod.model.vmd.VmdBezierVector3fInterpolator
+import top.fifthlight.blazerod.test.TestScenes
+import kotlin.math.abs
+import kotlin.random.Random
+
+class AnimationBakeTest {
+    companion object {
+        internal const val BONE_COUNT = 200
+        internal const val FRAMES = 900
+        internal const val KEYFRAME_INTERVAL = 5
+        internal const val FRAME_RATE = 30f
+
+        internal fun createScene() = TestScenes.bones(BONE_COUNT)
+
+        // Channels shaped like the ones VmdLoader creates: sparse keyframes with random bezier curves
+        internal fun createVmdAnimation(random: Random): Pair<AnimationItem, Int> {
+            val keyframes = FRAMES / KEYFRAME_INTERVAL + 1
+            var rawBytes = 0
+            val channels = (0 until BONE_COUNT).flatMap { bone ->
+                val times = FloatArrayList()
+                val translations = FloatArrayList()
+                val rotations = FloatArrayList()
+                val translationCurves = ByteArrayList()
+                val rotationCurves = ByteArrayList()
+                val rotation = Quaternionf()
+                repeat(keyframes) { keyframe ->
+                    times.add(keyframe * KEYFRAME_INTERVAL / FRAME_RATE)
+                    repeat(3) { translations.add(random.nextFloat() * 2f - 1f) }
+                    rotation.rotationXYZ(random.nextFloat() * 3f, random.nextFloat() * 3f, random.nextFloat() * 3f)
+                    rotations.add(rotation.x)
+                    rotations.add(rotation.y)
+                    rotations.add(rotation.z)
+                    rotations.add(rotation.w)
+                    repeat(12) { translationCurves.add(random.nextInt(128).toByte()) }
+                    repeat(4) { rotationCurves.add(random.nextInt(128).toByte()) }
+                }
+                rawBytes += (times.size + translations.size + rotations.size) * 4 +
+                        translationCurves.size + rotationCurves.size
+                val indexer = ListAnimationKeyFrameIndexer(times)
+                val nodeData = AnimationChannel.Type.NodeData(
+                    targetNode = null,
+                    targetNodeName = "bone_$bone",
+                    targetHumanoidTag = null,
+                )
+                val transformData = AnimationChannel.Type.TransformData(nodeData, TransformId.RELATIVE_ANIMATION)
+                listOf(
+                    AnimationChannelItem.TranslationItem(
+                        index = bone,
+                        transformId = TransformId.RELATIVE_ANIMATION,
+                        channel = SimpleAnimationChannel(
+                            type = AnimationChannel.Type.Translation,
+                            data = transformData,
+                            indexer = indexer,
+                            keyframeData = AnimationKeyFrameData.ofVector3f(translations, 1),
+                            interpolation = VmdBezierInterpolation,
+                            interpolator = VmdBezierVector3fInterpolator(),
+                            components = listOf(VmdBezierChannelComponent(translationCurves, keyframes, 3, false)),
+                            defaultValue = ::Vector3f,
+                        ) as AnimationChannel<Vector3f, Unit>,
+                    ),
+                    AnimationChannelItem.RotationItem(
+                        index = bone,
+                        transformId = TransformId.RELATIVE_ANIMATION,
+                        channel = SimpleAnimationChannel(
+                            type = AnimationChannel.Type.Rotation,
+                            data = transformData,
+                            indexer = indexer,
+                            keyframeData = AnimationKeyFrameData.ofQuaternionf(rotations, 1),
+                            interpolation = VmdBezierInterpolation,
+                            interpolator = VmdBezierQuaternionfInterpolator(),
+                            components = listOf(VmdBezierChannelComponent(rotationCurves, keyframes, 1, false)),
+                            defaultValue = ::Quaternionf,
+                        ) as AnimationChannel<Quaternionf, Unit>,
+                    ),
+                )
+            }
+            return Pair(AnimationItem(channels = channels), rawBytes)
+        }
+
+        private fun NodeTransformView?.decomposed() = this as NodeTransformView.Decomposed
+    }
+
+    @Test
+    fun smallestThreeRoundTrip() {
+        val random = Random(0)
+        val rotation = Quaternionf()
+        val decoded = Quaternionf()
+        repeat(10000) {
+            rotation.rotationXYZ(random.nextFloat() * 7f, random.nextFloat() * 7f, random.nextFloat() * 7f)
+            BakedTransformTrack.decodeRotation(BakedTransformTrack.encodeRotation(rotation), decoded)
+            // q and -q are the same rotation
+            assertTrue(1f - abs(rotation.dot(decoded)) < 1e-6f, "Rotation $rotation decoded as $decoded")
+        }
+    }
+
+    @Test
+    fun bakedMatchesSourceAtSamples() {
+        val scene = createScene()
+        val (animation, _) = createVmdAnimation(Random(1))
+        val baked = animation.bake(scene, FRAME_RATE)
+        assertEquals(BONE_COUNT, baked.channels.size)
+        assertTrue(baked.channels.all { it is BakedTransformItem })
+        assertEquals(animation.duration, baked.duration)
+
+        val raw = ModelInstance(scene, TransformStorage.Type.MAP)
+        val bakedInstance = ModelInstance(scene, TransformStorage.Type.MAP)
+        for (frame in 0..FRAMES step 7) {
+            val time = frame / FRAME_RATE
+            animation.apply(raw, time)
+            baked.apply(bakedInstance, time)
+            for (bone in 0 until BONE_COUNT) {
+                val expected = raw.modelData.transforms.get(bone, TransformId.RELATIVE_ANIMATION).decomposed()
+                val actual = bakedInstance.modelData.transforms.get(bone, TransformId.RELATIVE_ANIMATION).decomposed()
+                // 16-bit translation in a range of 2 units
+                assertTrue(
+                    expected.translation.distance(actual.translation) < 1e-4f,
+                    "Bone $bone translation differs at frame $frame",
+                )
+                assertTrue(
+                    1f - abs(expected.rotation.dot(actual.rotation)) < 1e-6f,
+                    "Bone $bone rotation differs at frame $frame",
+                )
+            }
+        }
+    }
+}
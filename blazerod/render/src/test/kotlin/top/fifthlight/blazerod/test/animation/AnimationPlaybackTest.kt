@@ -0,0 +1,136 @@
+package top.fifthlight.blazerod.test.animation
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.animation.AnimationChannelItem
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.AnimationPlayback
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationInterpolation
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameData
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.QuaternionAnimationInterpolator
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.animation.Vector3AnimationInterpolator
+import top.fifthlight.blazerod.model.animation.ofQuaternionf
+import top.fifthlight.blazerod.model.animation.ofVector3f
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.test.TestScenes
+import kotlin.random.Random
+
+class AnimationPlaybackTest {
+    companion object {
+        private const val BONE_COUNT = 20
+        private const val INSTANCE_COUNT = 50
+        private const val DURATION = 10f
+        private const val KEYFRAME_RATE = 30
+        private const val FRAME_RATE = 60f
+        private const val FRAMES = 300
+
+        private fun createScene() = TestScenes.bones(BONE_COUNT)
+
+        // Keyframes on every frame, like a motion captured clip
+        private fun createClip(random: Random): AnimationItem {
+            val keyframes = (DURATION * KEYFRAME_RATE).toInt() + 1
+            val channels = (0 until BONE_COUNT).flatMap { bone ->
+                val times = FloatArrayList()
+                val translations = FloatArrayList()
+                val rotations = FloatArrayList()
+                val rotation = Quaternionf()
+                repeat(keyframes) { keyframe ->
+                    times.add(keyframe.toFloat() / KEYFRAME_RATE)
+                    repeat(3) { translations.add(random.nextFloat()) }
+                    rotation.rotationXYZ(random.nextFloat(), random.nextFloat(), random.nextFloat())
+                    rotations.addElements(rotations.size, floatArrayOf(rotation.x, rotation.y, rotation.z, rotation.w))
+                }
+                val indexer = ListAnimationKeyFrameIndexer(times)
+                val transformData = AnimationChannel.Type.TransformData(
+                    AnimationChannel.Type.NodeData(
+                        targetNode = null,
+                        targetNodeName = "bone_$bone",
+                        targetHumanoidTag = null,
+                    ),
+                    TransformId.RELATIVE_ANIMATION,
+                )
+                listOf(
+                    AnimationChannelItem.TranslationItem(
+                        index = bone,
+                        transformId = TransformId.RELATIVE_ANIMATION,
+                        channel = SimpleAnimationChannel(
+                            type = AnimationChannel.Type.Translation,
+                            data = transformData,
+                            indexer = indexer,
+                            keyframeData = AnimationKeyFrameData.ofVector3f(translations, 1),
+                            interpolation = AnimationInterpolation.linear,
+                            interpolator = Vector3AnimationInterpolator,
+                            defaultValue = ::Vector3f,
+                        ) as AnimationChannel<Vector3f, Unit>,
+                    ),
+                    AnimationChannelItem.RotationItem(
+                        index = bone,
+                        transformId = TransformId.RELATIVE_ANIMATION,
+                        channel = SimpleAnimationChannel(
+                            type = AnimationChannel.Type.Rotation,
+                            data = transformData,
+                            indexer = indexer,
+                            keyframeData = AnimationKeyFrameData.ofQuaternionf(rotations, 1),
+                            interpolation = AnimationInterpolation.linear,
+                            interpolator = QuaternionAnimationInterpolator,
+                            defaultValue = ::Quaternionf,
+                        ) as AnimationChannel<Quaternionf, Unit>,
+                    ),
+                )
+            }
+            return AnimationItem(channels = channels)
+        }
+
+        // Play the clip on all instances from their own offsets, and return binary searches per frame
+        private fun measureSearches(
+            instances: List<ModelInstance>,
+            offsets: List<Float>,
+            playbackOf: (Int) -> AnimationPlayback,
+        ): Double {
+            fun frame(frame: Int) {
+                for (i in instances.indices) {
+                    val time = (offsets[i] + frame / FRAME_RATE) % DURATION
+                    playbackOf(i).apply(instances[i], time)
+                }
+            }
+
+            fun totalSearches() = instances.indices.map(playbackOf).distinct().sumOf { it.searches }
+
+            // The first frame starts every cursor from the beginning
+            frame(0)
+            val start = totalSearches()
+            for (frame in 1..FRAMES) {
+                frame(frame)
+            }
+            return (totalSearches() - start).toDouble() / FRAMES
+        }
+    }
+
+    @Test
+    fun cursorsPerInstance() {
+        val scene = createScene()
+        val clip = createClip(Random(0))
+        val random = Random(1)
+        val offsets = List(INSTANCE_COUNT) { random.nextFloat() * DURATION }
+        val instances = List(INSTANCE_COUNT) { ModelInstance(scene, TransformStorage.Type.MAP) }
+        val lookupsPerFrame = INSTANCE_COUNT * clip.channels.size
+
+        // One playback for all instances behaves like cursors stored in the shared channels
+        val shared = AnimationPlayback(clip)
+        val sharedSearches = measureSearches(instances, offsets) { shared }
+        val playbacks = List(INSTANCE_COUNT) { AnimationPlayback(clip) }
+        val ownSearches = measureSearches(instances, offsets) { playbacks[it] }
+
+        assertTrue(sharedSearches > lookupsPerFrame * .5, "Shared cursors searched $sharedSearches times per frame")
+        // Only looping back to the start of the clip needs a search
+        assertTrue(ownSearches < lookupsPerFrame * .01, "Per-instance cursors searched $ownSearches times per frame")
+    }
+}
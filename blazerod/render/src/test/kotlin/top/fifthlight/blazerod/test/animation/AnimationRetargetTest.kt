@@ -0,0 +1,139 @@
+package top.fifthlight.blazerod.test.animation
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import top.fifthlight.blazerod.animation.AnimationChannelItem
+import top.fifthlight.blazerod.animation.AnimationLoader
+import top.fifthlight.blazerod.model.Expression
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.Animation
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationInterpolation
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameData
+import top.fifthlight.blazerod.model.animation.FloatAnimationInterpolator
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.animation.Vector3AnimationInterpolator
+import top.fifthlight.blazerod.model.animation.ofFloat
+import top.fifthlight.blazerod.model.animation.ofVector3f
+import top.fifthlight.blazerod.model.resource.RenderExpression
+import top.fifthlight.blazerod.model.resource.RenderExpressionGroup
+import top.fifthlight.blazerod.model.util.MutableFloat
+import top.fifthlight.blazerod.test.TestScenes
+
+class AnimationRetargetTest {
+    companion object {
+        private const val BONE_COUNT = 4
+
+        private fun createScene() = TestScenes.bones(
+            boneCount = BONE_COUNT,
+            expressions = listOf(
+                RenderExpression(name = "smile", bindings = listOf()),
+                RenderExpression(tag = Expression.Tag.HAPPY, bindings = listOf()),
+                RenderExpression(name = "wink", tag = Expression.Tag.SAD, bindings = listOf()),
+            ),
+            expressionGroups = listOf(
+                RenderExpressionGroup(name = "blink", items = listOf()),
+            ),
+        )
+
+        private val times = FloatArrayList(floatArrayOf(0f, 1f))
+
+        private fun translation(name: String) = SimpleAnimationChannel(
+            type = AnimationChannel.Type.Translation,
+            data = AnimationChannel.Type.TransformData(
+                AnimationChannel.Type.NodeData(
+                    targetNode = null,
+                    targetNodeName = name,
+                    targetHumanoidTag = null,
+                ),
+                TransformId.RELATIVE_ANIMATION,
+            ),
+            indexer = ListAnimationKeyFrameIndexer(times),
+            keyframeData = AnimationKeyFrameData.ofVector3f(FloatArray(6), 1),
+            interpolation = AnimationInterpolation.linear,
+            interpolator = Vector3AnimationInterpolator,
+            defaultValue = ::Vector3f,
+        )
+
+        private fun expression(name: String?, tag: Expression.Tag?) = SimpleAnimationChannel(
+            type = AnimationChannel.Type.Expression,
+            data = AnimationChannel.Type.ExpressionData(name = name, tag = tag),
+            indexer = ListAnimationKeyFrameIndexer(times),
+            keyframeData = AnimationKeyFrameData.ofFloat(FloatArray(2), 1),
+            interpolation = AnimationInterpolation.linear,
+            interpolator = FloatAnimationInterpolator,
+            defaultValue = ::MutableFloat,
+        )
+
+        private fun createAnimation() = Animation(
+            channels = listOf(
+                translation("bone_2"),
+                translation("missing"),
+                expression("smile", null),
+                // Tag matches an earlier expression than name, like a linear search would pick
+                expression("wink", Expression.Tag.HAPPY),
+                expression("blink", null),
+                expression("missing", null),
+            )
+        )
+    }
+
+    @Test
+    fun retargetResolvesChannels() {
+        val scene = createScene()
+        val targets = AnimationLoader.retarget(scene, createAnimation())
+        val noTarget = AnimationLoader.NO_TARGET
+        assertArrayEquals(intArrayOf(2, noTarget, 0, 1, 3, noTarget), targets)
+    }
+
+    @Test
+    fun cachedTargetsMatchLookup() {
+        val scene = createScene()
+        val animation = createAnimation()
+        val targets = AnimationLoader.retarget(scene, animation)
+        assertTrue(AnimationLoader.isValidTargets(scene, animation, targets))
+
+        val looked = AnimationLoader.load(scene, animation)
+        val cached = AnimationLoader.load(scene, animation, targets.copyOf())
+        assertEquals(looked.channels.size, cached.channels.size)
+        for ((expected, actual) in looked.channels.zip(cached.channels)) {
+            assertSame(expected::class, actual::class)
+            when (expected) {
+                is AnimationChannelItem.TranslationItem ->
+                    assertEquals(expected.index, (actual as AnimationChannelItem.TranslationItem).index)
+
+                is AnimationChannelItem.ExpressionItem ->
+                    assertSame(expected.expression, (actual as AnimationChannelItem.ExpressionItem).expression)
+
+                is AnimationChannelItem.ExpressionGroupItem ->
+                    assertSame(expected.group, (actual as AnimationChannelItem.ExpressionGroupItem).group)
+
+                else -> error("Unexpected channel $expected")
+            }
+        }
+    }
+
+    @Test
+    fun staleTargetsRejected() {
+        val scene = createScene()
+        val animation = createAnimation()
+        val targets = AnimationLoader.retarget(scene, animation)
+        assertFalse(AnimationLoader.isValidTargets(scene, animation, targets.copyOf(targets.size - 1)))
+        assertFalse(AnimationLoader.isValidTargets(scene, animation, targets.copyOf().also { it[0] = BONE_COUNT + 1 }))
+        assertFalse(AnimationLoader.isValidTargets(scene, animation, targets.copyOf().also { it[4] = 4 }))
+        // In range, but pointing at a bone or expression of another name
+        assertFalse(AnimationLoader.isValidTargets(scene, animation, targets.copyOf().also { it[0] = 1 }))
+        assertFalse(AnimationLoader.isValidTargets(scene, animation, targets.copyOf().also { it[2] = 2 }))
+        assertThrows<IllegalArgumentException> {
+            AnimationLoader.load(scene, animation, targets.copyOf(targets.size - 1))
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package top.fifthlight.blazerod.test.animation
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import it.unimi.dsi.fastutil.floats.FloatList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.Accessor
+import top.fifthlight.blazerod.model.Buffer
+import top.fifthlight.blazerod.model.BufferView
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationInterpolation
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameData
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.QuaternionAnimationInterpolator
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.animation.ofQuaternionf
+import top.fifthlight.blazerod.model.animation.ofVector3f
+import top.fifthlight.blazerod.model.vmd.VmdBezierChannelComponent
+import top.fifthlight.blazerod.model.vmd.VmdBezierInterpolation
+import top.fifthlight.blazerod.model.vmd.VmdBezierVector3fInterpolator
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.random.Random
+
+class KeyFrameDataTest {
+    companion object {
+        internal const val KEYFRAMES = 12000
+        private const val FRAME_RATE = 30f
+        private const val SAMPLES = 200_000
+
+        // The storage keyframes used before: a FloatList read through a lambda per element
+        private class FloatListKeyFrameData<T>(
+            private val values: FloatList,
+            override val elements: Int,
+            private val componentCount: Int,
+            private val elementGetter: (list: FloatList, offset: Int, result: T) -> Unit,
+        ) : AnimationKeyFrameData<T> {
+            override val frames = values.size / (elements * componentCount)
+
+            override fun get(index: Int, data: List<T>) {
+                val baseOffset = index * elements * componentCount
+                for (i in 0 until elements) {
+                    elementGetter(values, baseOffset + i * componentCount, data[i])
+                }
+            }
+        }
+
+        // The storage glTF keyframes used before: an accessor slice positioned for every element
+        private class AccessorKeyFrameData<T>(
+            accessor: Accessor,
+            override val elements: Int,
+            private val elementGetter: (buffer: ByteBuffer, result: T) -> Unit,
+        ) : AnimationKeyFrameData<T> {
+            override val frames = accessor.count / elements
+            private val itemLength = accessor.componentType.byteLength * accessor.type.components
+            private val slice = accessor.bufferView!!.let { bufferView ->
+                bufferView.buffer.buffer
+                    .slice(accessor.byteOffset + bufferView.byteOffset, accessor.totalByteLength)
+                    .asReadOnlyBuffer()
+                    .order(ByteOrder.LITTLE_ENDIAN)
+            }
+
+            override fun get(index: Int, data: List<T>) {
+                var position = index * itemLength * elements
+                for (i in 0 until elements) {
+                    slice.clear()
+                    slice.position(position)
+                    slice.limit(position + itemLength)
+                    elementGetter(slice, data[i])
+                    position += itemLength
+                }
+            }
+        }
+
+        private val transformData = AnimationChannel.Type.TransformData(
+            node = AnimationChannel.Type.NodeData(
+                targetNode = null,
+                targetNodeName = "bone",
+                targetHumanoidTag = null,
+            ),
+            transformId = TransformId.RELATIVE_ANIMATION,
+        )
+
+        private fun times() = FloatArrayList(FloatArray(KEYFRAMES) { it / FRAME_RATE })
+
+        private fun randomValues(random: Random, size: Int) = FloatArrayList(FloatArray(size) { random.nextFloat() })
+
+        // Sequential playback, so keyframe search costs little and the keyframe reads dominate
+        internal fun sampleTimes() = FloatArray(SAMPLES) { (it * (KEYFRAMES - 1) / FRAME_RATE) / SAMPLES }
+
+        // A VMD translation channel with the old and the new keyframe storage
+        internal fun vmdTranslationChannels(): Pair<AnimationChannel<Vector3f, *>, AnimationChannel<Vector3f, *>> {
+            val random = Random(0)
+            val values = randomValues(random, KEYFRAMES * 3)
+            val curves = ByteArrayList(ByteArray(KEYFRAMES * 12) { random.nextInt(128).toByte() })
+            val indexer = ListAnimationKeyFrameIndexer(times())
+
+            fun channel(keyframeData: AnimationKeyFrameData<Vector3f>) = SimpleAnimationChannel(
+                type = AnimationChannel.Type.Translation,
+                data = transformData,
+                indexer = indexer,
+                keyframeData = keyframeData,
+                interpolation = VmdBezierInterpolation,
+                interpolator = VmdBezierVector3fInterpolator(),
+                components = listOf(VmdBezierChannelComponent(curves, KEYFRAMES, 3, false)),
+                defaultValue = ::Vector3f,
+            )
+
+            val before = channel(FloatListKeyFrameData(values, 1, 3) { list, offset, result ->
+                result.set(list.getFloat(offset), list.getFloat(offset + 1), list.getFloat(offset + 2))
+            })
+            val after = channel(AnimationKeyFrameData.ofVector3f(values, 1))
+            return Pair(before, after)
+        }
+
+        // A glTF rotation channel with the old and the new keyframe storage
+        internal fun gltfRotationChannels(): Pair<AnimationChannel<Quaternionf, *>, AnimationChannel<Quaternionf, *>> {
+            val random = Random(1)
+            val rotation = Quaternionf()
+            val buffer = ByteBuffer.allocateDirect(KEYFRAMES * 16).order(ByteOrder.LITTLE_ENDIAN)
+            repeat(KEYFRAMES) {
+                rotation.rotationXYZ(random.nextFloat(), random.nextFloat(), random.nextFloat())
+                buffer.putFloat(rotation.x).putFloat(rotation.y).putFloat(rotation.z).putFloat(rotation.w)
+            }
+            buffer.flip()
+            val accessor = Accessor(
+                bufferView = BufferView(
+                    buffer = Buffer(buffer = buffer),
+                    byteLength = KEYFRAMES * 16,
+                    byteOffset = 0,
+                    byteStride = 0,
+                ),
+                componentType = Accessor.ComponentType.FLOAT,
+                count = KEYFRAMES,
+                type = Accessor.AccessorType.VEC4,
+            )
+            val getter: (ByteBuffer, Quaternionf) -> Unit = { buffer, result ->
+                result.set(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat())
+            }
+            val indexer = ListAnimationKeyFrameIndexer(times())
+
+            fun channel(keyframeData: AnimationKeyFrameData<Quaternionf>) = SimpleAnimationChannel(
+                type = AnimationChannel.Type.Rotation,
+                data = transformData,
+                indexer = indexer,
+                keyframeData = keyframeData,
+                interpolation = AnimationInterpolation.linear,
+                interpolator = QuaternionAnimationInterpolator,
+                defaultValue = ::Quaternionf,
+            )
+
+            val before = channel(AccessorKeyFrameData(accessor, 1, getter))
+            val after = channel(AnimationKeyFrameData.ofQuaternionf(accessor, 1, getter))
+            return Pair(before, after)
+        }
+    }
+
+    @Test
+    fun vmdTranslationMatchesFloatList() {
+        val (before, after) = vmdTranslationChannels()
+        val beforeResult = Vector3f()
+        val afterResult = Vector3f()
+        for (time in sampleTimes()) {
+            before.getKeyFrameData(time, beforeResult)
+            after.getKeyFrameData(time, afterResult)
+            assertEquals(beforeResult, afterResult)
+        }
+    }
+
+    @Test
+    fun gltfRotationMatchesAccessor() {
+        val (before, after) = gltfRotationChannels()
+        val beforeResult = Quaternionf()
+        val afterResult = Quaternionf()
+        for (time in sampleTimes()) {
+            before.getKeyFrameData(time, beforeResult)
+            after.getKeyFrameData(time, afterResult)
+            assertEquals(beforeResult, afterResult)
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package top.fifthlight.blazerod.test.animation
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.animation.AnimationChannelItem
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.AnimationLoader
+import top.fifthlight.blazerod.animation.AnimationPlayback
+import top.fifthlight.blazerod.animation.NodeTrackItem
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.NodeTransformView
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.Animation
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameData
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.animation.ofQuaternionf
+import top.fifthlight.blazerod.model.animation.ofVector3f
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.vmd.VmdBezierChannelComponent
+import top.fifthlight.blazerod.model.vmd.VmdBezierInterpolation
+import top.fifthlight.blazerod.model.vmd.VmdBezierQuaternionfInterpolator
+import top.fifthlight.blazerod.model.vmd.VmdBezierVector3fInterpolator
+import top.fifthlight.blazerod.test.TestScenes
+import kotlin.math.abs
+import kotlin.random.Random
+
+class NodeTrackTest {
+    companion object {
+        private const val BONE_COUNT = 50
+        private const val KEYFRAMES = 60
+        private const val FRAME_RATE = 30f
+
+        private fun createScene() = TestScenes.bones(BONE_COUNT)
+
+        // Bone channels like VmdLoader creates: translation and rotation of a bone share one indexer
+        private fun createVmdAnimation(random: Random): Animation {
+            val channels = (0 until BONE_COUNT).flatMap { bone ->
+                val times = FloatArrayList()
+                val translations = FloatArrayList()
+                val rotations = FloatArrayList()
+                val translationCurves = ByteArrayList()
+                val rotationCurves = ByteArrayList()
+                val rotation = Quaternionf()
+                repeat(KEYFRAMES) { keyframe ->
+                    times.add(keyframe * 3 / FRAME_RATE)
+                    repeat(3) { translations.add(random.nextFloat()) }
+                    rotation.rotationXYZ(random.nextFloat(), random.nextFloat(), random.nextFloat())
+                    rotations.addElements(rotations.size, floatArrayOf(rotation.x, rotation.y, rotation.z, rotation.w))
+                    repeat(12) { translationCurves.add(random.nextInt(128).toByte()) }
+                    repeat(4) { rotationCurves.add(random.nextInt(128).toByte()) }
+                }
+                val indexer = ListAnimationKeyFrameIndexer(times)
+                val transformData = AnimationChannel.Type.TransformData(
+                    AnimationChannel.Type.NodeData(
+                        targetNode = null,
+                        targetNodeName = "bone_$bone",
+                        targetHumanoidTag = null,
+                    ),
+                    TransformId.RELATIVE_ANIMATION,
+                )
+                listOf(
+                    SimpleAnimationChannel(
+                        type = AnimationChannel.Type.Translation,
+                        data = transformData,
+                        indexer = indexer,
+                        keyframeData = AnimationKeyFrameData.ofVector3f(translations, 1),
+                        interpolation = VmdBezierInterpolation,
+                        interpolator = VmdBezierVector3fInterpolator(),
+                        components = listOf(VmdBezierChannelComponent(translationCurves, KEYFRAMES, 3, false)),
+                        defaultValue = ::Vector3f,
+                    ),
+                    SimpleAnimationChannel(
+                        type = AnimationChannel.Type.Rotation,
+                        data = transformData,
+                        indexer = indexer,
+                        keyframeData = AnimationKeyFrameData.ofQuaternionf(rotations, 1),
+                        interpolation = VmdBezierInterpolation,
+                        interpolator = VmdBezierQuaternionfInterpolator(),
+                        components = listOf(VmdBezierChannelComponent(rotationCurves, KEYFRAMES, 1, false)),
+                        defaultValue = ::Quaternionf,
+                    ),
+                )
+            }
+            return Animation(channels = channels)
+        }
+
+        // The same channels played one by one, as before fusing
+        @Suppress("UNCHECKED_CAST")
+        private fun separateItems(animation: Animation) = AnimationItem(
+            channels = animation.channels.map { channel ->
+                val data = channel.data as AnimationChannel.Type.TransformData
+                val index = data.node.targetNodeName!!.removePrefix("bone_").toInt()
+                when (channel.type) {
+                    AnimationChannel.Type.Translation -> AnimationChannelItem.TranslationItem(
+                        index = index,
+                        transformId = data.transformId,
+                        channel = channel as AnimationChannel<Vector3f, Unit>,
+                    )
+
+                    else -> AnimationChannelItem.RotationItem(
+                        index = index,
+                        transformId = data.transformId,
+                        channel = channel as AnimationChannel<Quaternionf, Unit>,
+                    )
+                }
+            }
+        )
+
+        private fun ModelInstance.transformOf(bone: Int) =
+            modelData.transforms.get(bone, TransformId.RELATIVE_ANIMATION) as NodeTransformView.Decomposed
+    }
+
+    @Test
+    fun loaderFusesSharedIndexer() {
+        val scene = createScene()
+        val animation = createVmdAnimation(Random(0))
+        val item = AnimationLoader.load(scene, animation)
+        assertEquals(BONE_COUNT, item.channels.size)
+        assertTrue(item.channels.all { it is NodeTrackItem && it.translation != null && it.rotation != null })
+    }
+
+    @Test
+    fun fusedMatchesSeparate() {
+        val scene = createScene()
+        val animation = createVmdAnimation(Random(1))
+        val fused = AnimationPlayback(AnimationLoader.load(scene, animation))
+        val separate = AnimationPlayback(separateItems(animation))
+        val fusedInstance = ModelInstance(scene, TransformStorage.Type.MAP)
+        val separateInstance = ModelInstance(scene, TransformStorage.Type.MAP)
+
+        val random = Random(2)
+        val duration = fused.item.duration
+        repeat(200) { frame ->
+            // Jump around, so both cursors have to search
+            val time = if (frame % 10 == 0) random.nextFloat() * duration else frame / FRAME_RATE % duration
+            fused.apply(fusedInstance, time)
+            separate.apply(separateInstance, time)
+            for (bone in 0 until BONE_COUNT) {
+                val expected = separateInstance.transformOf(bone)
+                val actual = fusedInstance.transformOf(bone)
+                assertTrue(expected.translation.distance(actual.translation) < 1e-6f, "Bone $bone at $time")
+                assertTrue(1f - abs(expected.rotation.dot(actual.rotation)) < 1e-6f, "Bone $bone at $time")
+            }
+        }
+        // One search per bone instead of one per channel
+        assertEquals(separate.searches, fused.searches * 2)
+    }
+}
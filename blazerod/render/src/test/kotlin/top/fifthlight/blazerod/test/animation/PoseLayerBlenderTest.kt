@@ -0,0 +1,187 @@
+package top.fifthlight.blazerod.test.animation
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.animation.AnimationChannelItem
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.PoseLayerBlender
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.NodeTransformView
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.AnimationInterpolation
+import top.fifthlight.blazerod.model.animation.AnimationKeyFrameData
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.QuaternionAnimationInterpolator
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.animation.Vector3AnimationInterpolator
+import top.fifthlight.blazerod.model.animation.ofQuaternionf
+import top.fifthlight.blazerod.model.animation.ofVector3f
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.test.TestScenes
+import java.lang.management.ManagementFactory
+import kotlin.math.abs
+
+class PoseLayerBlenderTest {
+    companion object {
+        private const val BONE_COUNT = 300
+        private const val WARMUP_FRAMES = 2000
+        private const val MEASURE_FRAMES = 1000
+
+        // Root with a chain of two bones, followed by bones directly under the root
+        private fun createScene() = TestScenes.bones(BONE_COUNT, parentOf = { if (it == 1) 0 else BONE_COUNT })
+
+        // A one second clip rotating each bone from rotation(bone, 0) to rotation(bone, 1), and moving it by its index
+        private fun createClip(rotation: (bone: Int, keyframe: Int, dest: Quaternionf) -> Unit): AnimationItem {
+            val indexer = ListAnimationKeyFrameIndexer(FloatArrayList(floatArrayOf(0f, 1f)))
+            val value = Quaternionf()
+            val channels = (0 until BONE_COUNT).flatMap { bone ->
+                val rotations = FloatArrayList()
+                repeat(2) { keyframe ->
+                    rotation(bone, keyframe, value)
+                    rotations.addElements(rotations.size, floatArrayOf(value.x, value.y, value.z, value.w))
+                }
+                val translations = FloatArrayList(floatArrayOf(0f, bone.toFloat(), 0f, 0f, bone.toFloat(), 1f))
+                val transformData = AnimationChannel.Type.TransformData(
+                    AnimationChannel.Type.NodeData(
+                        targetNode = null,
+                        targetNodeName = "bone_$bone",
+                        targetHumanoidTag = null,
+                    ),
+                    TransformId.RELATIVE_ANIMATION,
+                )
+                listOf(
+                    AnimationChannelItem.TranslationItem(
+                        index = bone,
+                        transformId = TransformId.RELATIVE_ANIMATION,
+                        channel = SimpleAnimationChannel(
+                            type = AnimationChannel.Type.Translation,
+                            data = transformData,
+                            indexer = indexer,
+                            keyframeData = AnimationKeyFrameData.ofVector3f(translations, 1),
+                            interpolation = AnimationInterpolation.linear,
+                            interpolator = Vector3AnimationInterpolator,
+                            defaultValue = ::Vector3f,
+                        ) as AnimationChannel<Vector3f, Unit>,
+                    ),
+                    AnimationChannelItem.RotationItem(
+                        index = bone,
+                        transformId = TransformId.RELATIVE_ANIMATION,
+                        channel = SimpleAnimationChannel(
+                            type = AnimationChannel.Type.Rotation,
+                            data = transformData,
+                            indexer = indexer,
+                            keyframeData = AnimationKeyFrameData.ofQuaternionf(rotations, 1),
+                            interpolation = AnimationInterpolation.linear,
+                            interpolator = QuaternionAnimationInterpolator,
+                            defaultValue = ::Quaternionf,
+                        ) as AnimationChannel<Quaternionf, Unit>,
+                    ),
+                )
+            }
+            return AnimationItem(channels = channels)
+        }
+
+        private val walk = createClip { bone, keyframe, dest -> dest.rotationX(.01f * bone + keyframe) }
+        private val swing = createClip { bone, keyframe, dest -> dest.rotationY(.5f + .02f * bone - keyframe) }
+
+        private fun ModelInstance.rotationOf(bone: Int) =
+            (modelData.transforms.get(bone, TransformId.RELATIVE_ANIMATION) as NodeTransformView.Decomposed).rotation
+
+        private fun assertRotation(expected: Quaternionf, actual: Quaternionf, message: String) {
+            assertTrue(1f - abs(expected.dot(actual)) < 1e-6f, "$message: expected $expected, got $actual")
+        }
+    }
+
+    @Test
+    fun singleLayerMatchesApply() {
+        val scene = createScene()
+        val blender = PoseLayerBlender(scene)
+        val applied = ModelInstance(scene, TransformStorage.Type.MAP)
+        val blended = ModelInstance(scene, TransformStorage.Type.MAP)
+        for (time in listOf(0f, .3f, .75f, 1f)) {
+            walk.apply(applied, time)
+            blender.layers[0].set(walk, time)
+            blender.apply(blended)
+            for (bone in 0 until BONE_COUNT) {
+                assertRotation(applied.rotationOf(bone), blended.rotationOf(bone), "Bone $bone at $time")
+            }
+        }
+    }
+
+    @Test
+    fun crossfadeIsNlerp() {
+        val scene = createScene()
+        val blender = PoseLayerBlender(scene)
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        val from = ModelInstance(scene, TransformStorage.Type.MAP)
+        val to = ModelInstance(scene, TransformStorage.Type.MAP)
+        val time = .4f
+        walk.apply(from, time)
+        swing.apply(to, time)
+        blender.layers[0].set(walk, time)
+        blender.layers[1].set(swing, time, weight = .5f)
+        blender.apply(instance)
+        val expected = Quaternionf()
+        for (bone in 0 until BONE_COUNT) {
+            from.rotationOf(bone).nlerp(to.rotationOf(bone), .5f, expected)
+            assertRotation(expected, instance.rotationOf(bone), "Bone $bone")
+        }
+    }
+
+    @Test
+    fun maskLeavesOtherNodes() {
+        val scene = createScene()
+        val blender = PoseLayerBlender(scene)
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        val walkPose = ModelInstance(scene, TransformStorage.Type.MAP)
+        val swingPose = ModelInstance(scene, TransformStorage.Type.MAP)
+        val time = .6f
+        walk.apply(walkPose, time)
+        swing.apply(swingPose, time)
+        // Bone 0 and its child bone 1 swing, the others keep walking
+        val mask = PoseLayerBlender.subtreeMask(scene, 0)
+        blender.layers[0].set(walk, time)
+        blender.layers[1].set(swing, time, mask = mask)
+        blender.apply(instance)
+        for (bone in 0 until BONE_COUNT) {
+            val expected = if (bone <= 1) swingPose else walkPose
+            assertRotation(expected.rotationOf(bone), instance.rotationOf(bone), "Bone $bone")
+        }
+
+        // Removing the layer returns the nodes to the walk
+        blender.layers[1].clear()
+        blender.apply(instance)
+        for (bone in 0..1) {
+            assertRotation(walkPose.rotationOf(bone), instance.rotationOf(bone), "Bone $bone after clear")
+        }
+    }
+
+    @Test
+    fun noAllocationWithFourLayers() {
+        val scene = createScene()
+        val blender = PoseLayerBlender(scene)
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        val mask = PoseLayerBlender.subtreeMask(scene, 0)
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+        fun frame(index: Int) {
+            val time = (index % 60) / 60f
+            blender.layers[0].set(walk, time)
+            blender.layers[1].set(swing, time, weight = .3f)
+            blender.layers[2].set(swing, 1f - time, mode = PoseLayerBlender.Mode.ADDITIVE, mask = mask)
+            blender.layers[3].set(walk, time, weight = .5f, mode = PoseLayerBlender.Mode.ADDITIVE)
+            blender.apply(instance)
+        }
+
+        repeat(WARMUP_FRAMES) { frame(it) }
+        val start = threadBean.currentThreadAllocatedBytes
+        repeat(MEASURE_FRAMES) { frame(it) }
+        val allocated = threadBean.currentThreadAllocatedBytes - start
+        // Allow a little noise from the measurement itself, far less than one object per frame
+        assertTrue(allocated < MEASURE_FRAMES, "Allocated $allocated bytes in $MEASURE_FRAMES frames")
+    }
+}
@@ -0,0 +1,103 @@
+package top.fifthlight.blazerod.test.model
+
+import org.joml.Quaternionf
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.SharedPose
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.test.model.node.SpringBoneTest
+import top.fifthlight.blazerod.test.model.node.UpdatePlanTest.Companion.BONE_COUNT
+import top.fifthlight.blazerod.test.model.node.UpdatePlanTest.Companion.animate
+import top.fifthlight.blazerod.test.model.node.UpdatePlanTest.Companion.createSkeleton
+import top.fifthlight.blazerod.test.worldPose
+
+class SharedPoseTest {
+    @Test
+    fun matchesEvaluatedOverride() {
+        val scene = createSkeleton()
+        val override = Quaternionf().rotationY(1.2f)
+        SharedPose(scene).use { pose ->
+            animate(pose.instance, 3)
+            pose.instance.updateRenderData()
+
+            val reference = ModelInstance(scene, TransformStorage.Type.MAP)
+            animate(reference, 3)
+            reference.setTransformDecomposed(10, TransformId.RELATIVE_ANIMATION) {
+                rotation.set(override)
+            }
+            reference.updateRenderData()
+
+            val target = ModelInstance(scene, TransformStorage.Type.MAP)
+            val overrides = SharedPose.RotationOverrides(1).apply { add(10, override) }
+            pose.applyTo(target, overrides)
+
+            val referenceMatrix = FloatArray(16)
+            val targetMatrix = FloatArray(16)
+            for (node in 0..BONE_COUNT) {
+                reference.modelData.worldTransforms[node].get(referenceMatrix)
+                target.modelData.worldTransforms[node].get(targetMatrix)
+                assertArrayEquals(referenceMatrix, targetMatrix, 1e-4f, "Node $node differs")
+            }
+            assertTrue(target.modelData.transformDirty.isEmpty())
+        }
+    }
+
+    @Test
+    fun poseVersionOnlyChangesWithPose() {
+        val scene = createSkeleton()
+        SharedPose(scene).use { pose ->
+            val target = ModelInstance(scene, TransformStorage.Type.MAP)
+            val overrides = SharedPose.RotationOverrides(1).apply { add(10, Quaternionf().rotationY(1.2f)) }
+            animate(pose.instance, 3)
+            pose.instance.updateRenderData()
+            pose.applyTo(target, overrides)
+            val version = target.modelData.poseVersion
+            val applied = target.worldPose(0..BONE_COUNT)
+
+            // Copying the same pose again changes nothing
+            pose.applyTo(target, overrides)
+            assertEquals(version, target.modelData.poseVersion)
+            assertArrayEquals(applied, target.worldPose(0..BONE_COUNT))
+
+            animate(pose.instance, 4)
+            pose.instance.updateRenderData()
+            pose.applyTo(target, overrides)
+            assertNotEquals(version, target.modelData.poseVersion)
+        }
+    }
+
+    @Test
+    fun physicsPausedWhilePoseShared() {
+        val bones = 3
+        val scene = SpringBoneTest.createChain(bones)
+        SharedPose(scene).use { pose ->
+            pose.instance.updateRenderData()
+            val target = ModelInstance(scene, TransformStorage.Type.MAP)
+            val overrides = SharedPose.RotationOverrides(1)
+            pose.applyTo(target, overrides)
+            val shared = pose.instance.worldPose(0..bones)
+
+            // Stepping physics would propagate the stale local layers over the shared pose
+            repeat(10) {
+                target.advancePhysics(1f / 60f, 3)
+                target.updateRenderData()
+            }
+            assertTrue(target.modelData.poseShared)
+            assertArrayEquals(shared, target.worldPose(0..bones))
+
+            target.clearTransform()
+            assertFalse(target.modelData.poseShared)
+            repeat(10) {
+                target.advancePhysics(1f / 60f, 3)
+                target.updateRenderData()
+            }
+            assertFalse(shared.contentEquals(target.worldPose(0..bones)))
+        }
+    }
+}
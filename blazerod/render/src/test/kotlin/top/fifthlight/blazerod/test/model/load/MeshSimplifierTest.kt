@@ -0,0 +1,125 @@
+package top.fifthlight.blazerod.test.model.load
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.load.MeshSimplifier
+
+class MeshSimplifierTest {
+    companion object {
+        private const val SIZE = 20
+        private const val DELTA = 1e-3f
+
+        private fun vertex(x: Int, y: Int) = y * (SIZE + 1) + x
+
+        // Flat SIZE x SIZE grid of unit quads on the XY plane, facing +Z
+        private fun gridPositions() = FloatArray((SIZE + 1) * (SIZE + 1) * 3).also { positions ->
+            for (y in 0..SIZE) {
+                for (x in 0..SIZE) {
+                    val index = vertex(x, y) * 3
+                    positions[index] = x.toFloat()
+                    positions[index + 1] = y.toFloat()
+                }
+            }
+        }
+
+        private fun gridIndices() = IntArray(SIZE * SIZE * 6).also { indices ->
+            var offset = 0
+            for (y in 0 until SIZE) {
+                for (x in 0 until SIZE) {
+                    indices[offset++] = vertex(x, y)
+                    indices[offset++] = vertex(x + 1, y)
+                    indices[offset++] = vertex(x + 1, y + 1)
+                    indices[offset++] = vertex(x, y)
+                    indices[offset++] = vertex(x + 1, y + 1)
+                    indices[offset++] = vertex(x, y + 1)
+                }
+            }
+        }
+
+        // Signed area on the XY plane, which stays SIZE * SIZE as long as no triangle flips or goes missing
+        private fun area(positions: FloatArray, indices: IntArray): Float {
+            var area = 0f
+            for (triangle in 0 until indices.size / 3) {
+                val a = indices[triangle * 3] * 3
+                val b = indices[triangle * 3 + 1] * 3
+                val c = indices[triangle * 3 + 2] * 3
+                val e1x = positions[b] - positions[a]
+                val e1y = positions[b + 1] - positions[a + 1]
+                val e2x = positions[c] - positions[a]
+                val e2y = positions[c + 1] - positions[a + 1]
+                area += (e1x * e2y - e1y * e2x) / 2f
+            }
+            return area
+        }
+    }
+
+    @Test
+    fun flatGridReducesToTarget() {
+        val positions = gridPositions()
+        val indices = gridIndices()
+        val target = indices.size / 3 / 4
+        val lods = MeshSimplifier(positions, indices).simplify(
+            listOf(MeshSimplifier.Target(triangles = target, maxError = 1e-6f)),
+        )
+
+        assertEquals(1, lods.size)
+        val lod = lods[0]
+        assertTrue(lod.size / 3 <= target, "Got ${lod.size / 3} triangles, expected at most $target")
+        assertEquals((SIZE * SIZE).toFloat(), area(positions, lod), DELTA)
+        // Boundary vertices are never removed
+        val used = lod.toSet()
+        for (i in 0..SIZE) {
+            assertTrue(vertex(i, 0) in used)
+            assertTrue(vertex(i, SIZE) in used)
+            assertTrue(vertex(0, i) in used)
+            assertTrue(vertex(SIZE, i) in used)
+        }
+    }
+
+    @Test
+    fun lockedVerticesAreKept() {
+        val positions = gridPositions()
+        val indices = gridIndices()
+        val center = vertex(SIZE / 2, SIZE / 2)
+        val locked = BooleanArray(positions.size / 3).also { it[center] = true }
+        val lods = MeshSimplifier(positions, indices, locked = locked).simplify(
+            listOf(MeshSimplifier.Target(triangles = 0, maxError = 1e-6f)),
+        )
+
+        assertEquals(1, lods.size)
+        assertTrue(center in lods[0])
+        assertEquals((SIZE * SIZE).toFloat(), area(positions, lods[0]), DELTA)
+    }
+
+    @Test
+    fun curvedSurfaceStopsAtMaxError() {
+        // Bend the grid into a paraboloid, so that every collapse moves the surface
+        val positions = gridPositions()
+        for (index in 0 until positions.size / 3) {
+            val x = positions[index * 3] - SIZE / 2f
+            val y = positions[index * 3 + 1] - SIZE / 2f
+            positions[index * 3 + 2] = (x * x + y * y) / SIZE
+        }
+        val indices = gridIndices()
+        val lods = MeshSimplifier(positions, indices).simplify(
+            listOf(MeshSimplifier.Target(triangles = 0, maxError = 1e-6f)),
+        )
+
+        // No collapse fits in the error, so no level is reached
+        assertEquals(0, lods.size)
+    }
+
+    @Test
+    fun verticesOfDifferentGroupsAreNotMerged() {
+        val positions = gridPositions()
+        val indices = gridIndices()
+        val groups = IntArray(positions.size / 3) { it }
+        val lods = MeshSimplifier(positions, indices, groups = groups).simplify(
+            listOf(MeshSimplifier.Target(triangles = 0, maxError = Float.MAX_VALUE)),
+        )
+
+        // Every vertex has its own group, so nothing can be collapsed
+        assertEquals(0, lods.size)
+    }
+}
@@ -0,0 +1,251 @@
+package top.fifthlight.blazerod.test.model.node
+
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.IkTarget.IkJoint.Limits
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.component.IkTarget
+import top.fifthlight.blazerod.test.TestScenes
+import top.fifthlight.blazerod.test.worldPose
+import top.fifthlight.blazerod.test.worldPosition
+import kotlin.math.PI
+import kotlin.random.Random
+
+class IkSolverTest {
+    companion object {
+        private const val HIP = 0
+        private const val ANKLE = 2
+        private const val TARGET = 3
+        private const val LOOP_COUNT = 40
+
+        // A chain of bones hanging down from the first one, with an IK bone next to it. Node indices are the
+        // joints from the top, the chain end, the IK bone and the root. Joints left out of chainNodes are moved
+        // along by the chain, but not solved.
+        internal fun createChain(
+            bones: Int,
+            solver: IkTarget.Solver,
+            middleLimit: Limits? = null,
+            chainNodes: List<Int> = (bones - 1 downTo 0).toList(),
+        ): RenderScene {
+            val goal = bones + 1
+            val root = bones + 2
+            // Like PMX, the IK component is on the end of the chain, and the effector is the IK bone it reaches
+            val ikTarget = IkTarget(
+                ikIndex = 0,
+                limitRadian = 1f,
+                loopCount = LOOP_COUNT,
+                chains = chainNodes.map { index ->
+                    IkTarget.Chain(nodeIndex = index, limit = middleLimit.takeIf { index > 0 })
+                },
+                effectorNodeIndex = goal,
+                transformId = TransformId.IK,
+                solver = solver,
+            )
+            val joints = List(bones) { index ->
+                TestScenes.Node(
+                    name = "joint_$index",
+                    parent = if (index == 0) root else index - 1,
+                    translation = Vector3f(0f, if (index == 0) bones.toFloat() else -1f, 0f),
+                )
+            }
+            return TestScenes.scene(
+                joints + listOf(
+                    TestScenes.Node("end", bones - 1, Vector3f(0f, -1f, 0f), listOf(ikTarget)),
+                    TestScenes.Node("ik", root, Vector3f(0f, 0f, 0f)),
+                    TestScenes.Node("root", -1),
+                )
+            )
+        }
+
+        // A two bone leg, like PMX leg IK
+        private fun createLeg(solver: IkTarget.Solver = IkTarget.Solver.CCD) = createChain(2, solver)
+
+        // A knee only bending forward around X, like PMX knees
+        private val kneeLimit = Limits(min = Vector3f(.0087f, 0f, 0f), max = Vector3f(PI.toFloat(), 0f, 0f))
+
+        private fun ModelInstance.solve(target: Vector3f, goal: Int = TARGET) {
+            setTransformDecomposed(goal, TransformId.RELATIVE_ANIMATION) {
+                translation.set(target)
+            }
+            updateRenderData()
+        }
+
+        private fun ModelInstance.reachError(bones: Int) = worldPosition(bones).distance(worldPosition(bones + 1))
+
+        // Solve towards each target with each solver, returning end to goal distances
+        private fun compare(
+            bones: Int,
+            middleLimit: Limits?,
+            solvers: List<IkTarget.Solver>,
+            targets: List<Vector3f>,
+        ) = solvers.map { solver ->
+            val instance = ModelInstance(createChain(bones, solver, middleLimit), TransformStorage.Type.MAP)
+            FloatArray(targets.size) { index ->
+                instance.solve(targets[index], bones + 1)
+                instance.reachError(bones)
+            }
+        }
+
+        // Reachable targets around the chain, in front so bending knees can reach them
+        internal fun reachableTargets(bones: Int, count: Int): List<Vector3f> {
+            val random = Random(bones)
+            return (0 until count).map {
+                Vector3f(
+                    random.nextFloat() - .5f,
+                    bones * (.3f + random.nextFloat() * .4f),
+                    random.nextFloat() * .5f,
+                )
+            }
+        }
+    }
+
+    @Test
+    fun reachableTargetExitsEarly() {
+        val instance = ModelInstance(createLeg(), TransformStorage.Type.MAP)
+        instance.solve(Vector3f(.5f, .4f, .3f))
+
+        val iterations = instance.modelData.ikIterations[0]
+        assertTrue(iterations in 1 until LOOP_COUNT, "Took $iterations iterations")
+        val distance = instance.worldPosition(ANKLE).distance(instance.worldPosition(TARGET))
+        assertTrue(distance < 1e-2f, "Effector is $distance away from target")
+    }
+
+    @Test
+    fun interleavedInstancesMatchSeparate() {
+        val scene = createLeg()
+        val targetA = Vector3f(.5f, .4f, .3f)
+        val targetB = Vector3f(-.8f, 1f, .6f)
+
+        val alone = ModelInstance(scene, TransformStorage.Type.MAP)
+        alone.solve(targetA)
+        val expected = alone.worldPose(HIP..ANKLE)
+
+        // Solver state lives in each instance, so solving another instance in between changes nothing
+        val first = ModelInstance(scene, TransformStorage.Type.MAP)
+        val second = ModelInstance(scene, TransformStorage.Type.MAP)
+        second.solve(targetB)
+        first.solve(targetA)
+        assertArrayEquals(expected, first.worldPose(HIP..ANKLE))
+    }
+
+    @Test
+    fun unchangedInputsReuseSolve() {
+        val instance = ModelInstance(createLeg(), TransformStorage.Type.MAP)
+        val cache = instance.modelData.ikCaches[0]
+        instance.solve(Vector3f(.5f, .4f, .3f))
+        val solved = instance.worldPose(HIP..ANKLE)
+        assertEquals(1L, cache.misses)
+
+        // Same inputs, so the saved rotations are applied without iterating
+        instance.solve(Vector3f(.5f, .4f, .3f))
+        assertEquals(1L, cache.hits)
+        assertEquals(0, instance.modelData.ikIterations[0])
+        assertArrayEquals(solved, instance.worldPose(HIP..ANKLE), 1e-6f)
+
+        instance.solve(Vector3f(.5f, .3f, .3f))
+        assertEquals(2L, cache.misses)
+        assertTrue(instance.modelData.ikIterations[0] > 0)
+        val distance = instance.worldPosition(ANKLE).distance(instance.worldPosition(TARGET))
+        assertTrue(distance < 1e-2f, "Effector is $distance away from target")
+
+        instance.clearTransform()
+        instance.solve(Vector3f(.5f, .3f, .3f))
+        assertEquals(3L, cache.misses)
+    }
+
+    @Test
+    fun movedNodeBetweenChainNodesInvalidatesSolve() {
+        val instance = ModelInstance(
+            createChain(3, IkTarget.Solver.CCD, chainNodes = listOf(2, 0)),
+            TransformStorage.Type.MAP,
+        )
+        val cache = instance.modelData.ikCaches[0]
+        val target = Vector3f(.5f, 1.5f, .3f)
+        instance.solve(target, 4)
+        instance.solve(target, 4)
+        assertEquals(1L, cache.misses)
+        assertEquals(1L, cache.hits)
+
+        // Joint 1 isn't in the chain, but moves everything below it
+        instance.setTransformDecomposed(1, TransformId.RELATIVE_ANIMATION) {
+            rotation.rotationX(.3f)
+        }
+        instance.solve(target, 4)
+        assertEquals(2L, cache.misses)
+    }
+
+    @Test
+    fun disabledTargetReportsNoIterations() {
+        val instance = ModelInstance(createLeg(), TransformStorage.Type.MAP)
+        instance.solve(Vector3f(.5f, .4f, .3f))
+        instance.setIkEnabled(0, false)
+        instance.solve(Vector3f(.4f, .4f, .3f))
+        assertEquals(0, instance.modelData.ikIterations[0])
+    }
+
+    @Test
+    fun solverChosenFromChain() {
+        fun chains(vararg limits: Limits?) = limits.mapIndexed { index, limit -> IkTarget.Chain(index, limit) }
+        val twistLimit = Limits(min = Vector3f(-1f, -1f, 0f), max = Vector3f(1f, 1f, 0f))
+        val cases = listOf(
+            chains(null, null),
+            chains(kneeLimit, null),
+            chains(twistLimit, null),
+            chains(null, kneeLimit),
+            chains(null),
+            chains(null, null, null, null),
+            chains(null, kneeLimit, null),
+        )
+        // Without opting in, every chain uses CCD like MMD does
+        for (chains in cases) {
+            assertEquals(IkTarget.Solver.CCD, IkTarget.Solver.choose(chains, fastSolvers = false))
+        }
+        assertEquals(
+            listOf(
+                IkTarget.Solver.TWO_BONE,
+                IkTarget.Solver.TWO_BONE,
+                IkTarget.Solver.CCD,
+                IkTarget.Solver.CCD,
+                IkTarget.Solver.CCD,
+                IkTarget.Solver.FABRIK,
+                IkTarget.Solver.CCD,
+            ),
+            cases.map { IkTarget.Solver.choose(it, fastSolvers = true) },
+        )
+    }
+
+    @Test
+    fun twoBoneMatchesCcd() {
+        val targets = reachableTargets(2, 32)
+        for (limit in listOf(null, kneeLimit)) {
+            val (ccd, twoBone) = compare(2, limit, listOf(IkTarget.Solver.CCD, IkTarget.Solver.TWO_BONE), targets)
+            for (index in targets.indices) {
+                assertTrue(twoBone[index] < 1e-3f, "Two bone missed ${targets[index]} by ${twoBone[index]}")
+                assertTrue(
+                    twoBone[index] <= ccd[index] + 1e-3f,
+                    "Two bone missed ${targets[index]} by ${twoBone[index]}, CCD by ${ccd[index]}",
+                )
+            }
+        }
+    }
+
+    @Test
+    fun fabrikMatchesCcd() {
+        val bones = 6
+        val targets = reachableTargets(bones, 32)
+        val (ccd, fabrik) = compare(bones, null, listOf(IkTarget.Solver.CCD, IkTarget.Solver.FABRIK), targets)
+        for (index in targets.indices) {
+            assertTrue(fabrik[index] < 1e-2f, "FABRIK missed ${targets[index]} by ${fabrik[index]}")
+            assertTrue(
+                fabrik[index] <= ccd[index] + 1e-2f,
+                "FABRIK missed ${targets[index]} by ${fabrik[index]}, CCD by ${ccd[index]}",
+            )
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package top.fifthlight.blazerod.test.model.node
+
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.component.RigidBodyPhysics
+import top.fifthlight.blazerod.test.TestScenes
+import top.fifthlight.blazerod.test.worldPosition
+import kotlin.math.PI
+import top.fifthlight.blazerod.model.RigidBodyPhysics as ModelRigidBodyPhysics
+
+class RigidBodyPhysicsTest {
+    companion object {
+        private const val FRAME_TIME = 1f / 60f
+        private const val MAX_STEPS = 3
+
+        private val FREE_ROTATION = Vector3f(PI.toFloat())
+
+        internal fun body(
+            nodeIndex: Int,
+            position: Vector3f,
+            shape: ModelRigidBodyPhysics.Shape = ModelRigidBodyPhysics.Shape.Sphere(.1f),
+            mode: ModelRigidBodyPhysics.RigidBody.Mode = ModelRigidBodyPhysics.RigidBody.Mode.PHYSICS,
+            group: Int = 0,
+            collisionMask: Int = 0,
+        ) = RigidBodyPhysics.RigidBody(
+            nodeIndex = nodeIndex,
+            group = group,
+            collisionMask = collisionMask,
+            shape = shape,
+            position = position,
+            rotation = Quaternionf(),
+            mass = 1f,
+            linearDamping = .5f,
+            angularDamping = .5f,
+            restitution = 0f,
+            friction = .5f,
+            mode = mode,
+        )
+
+        internal fun joint(
+            rigidBodyA: Int,
+            rigidBodyB: Int,
+            position: Vector3f,
+            rotationLimit: Vector3f = FREE_ROTATION,
+            rotationSpring: Vector3f = Vector3f(),
+        ) = RigidBodyPhysics.Joint(
+            rigidBodyA = rigidBodyA,
+            rigidBodyB = rigidBodyB,
+            position = position,
+            rotation = Quaternionf(),
+            positionMin = Vector3f(),
+            positionMax = Vector3f(),
+            rotationMin = Vector3f(rotationLimit).negate(),
+            rotationMax = rotationLimit,
+            positionSpring = Vector3f(),
+            rotationSpring = rotationSpring,
+        )
+
+        // A chain of bones, each translated from the previous one, with a physics node beside them. Node indices
+        // are the bones, the physics node and the root.
+        internal fun createScene(
+            bones: List<Vector3f>,
+            bodies: List<RigidBodyPhysics.RigidBody>,
+            joints: List<RigidBodyPhysics.Joint> = listOf(),
+        ): RenderScene {
+            val root = bones.size + 1
+            val physics = RigidBodyPhysics(
+                physicsIndex = 0,
+                rigidBodies = bodies,
+                joints = joints,
+                transformId = TransformId.PHYSICS,
+            )
+            val boneNodes = bones.mapIndexed { index, translation ->
+                TestScenes.Node(
+                    name = "bone_$index",
+                    parent = if (index == 0) root else index - 1,
+                    translation = translation,
+                )
+            }
+            return TestScenes.scene(
+                boneNodes + listOf(
+                    TestScenes.Node("physics", root, components = listOf(physics)),
+                    TestScenes.Node("root", -1),
+                )
+            )
+        }
+
+        private fun ModelInstance.simulate(frames: Int, budgetNanos: Long = Long.MAX_VALUE) {
+            repeat(frames) {
+                advancePhysics(FRAME_TIME, MAX_STEPS, budgetNanos)
+                updateRenderData()
+            }
+        }
+    }
+
+    @Test
+    fun jointHoldsPendulum() {
+        // A body pinned to a bone at the origin, starting level and swinging down
+        val scene = createScene(
+            bones = listOf(Vector3f(), Vector3f(1f, 0f, 0f)),
+            bodies = listOf(
+                body(0, Vector3f(), mode = ModelRigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE),
+                body(1, Vector3f(1f, 0f, 0f)),
+            ),
+            joints = listOf(joint(0, 1, Vector3f())),
+        )
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        instance.simulate(600)
+
+        val end = instance.worldPosition(1)
+        assertEquals(1f, end.length(), 5e-2f, "Joint stretched to $end")
+        assertTrue(end.y < -.9f, "Pendulum is still at $end")
+    }
+
+    @Test
+    fun jointLimitsRotation() {
+        val limit = .5f
+        val scene = createScene(
+            bones = listOf(Vector3f(), Vector3f(1f, 0f, 0f)),
+            bodies = listOf(
+                body(0, Vector3f(), mode = ModelRigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE),
+                body(1, Vector3f(1f, 0f, 0f)),
+            ),
+            joints = listOf(joint(0, 1, Vector3f(), rotationLimit = Vector3f(limit))),
+        )
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        instance.simulate(600)
+
+        // Hanging at the limit below level, instead of straight down
+        val end = instance.worldPosition(1)
+        assertTrue(end.y < 0f, "Pendulum didn't fall: $end")
+        assertTrue(end.x > .8f, "Pendulum went past the limit: $end")
+    }
+
+    @Test
+    fun boxHoldsFallingSphere() {
+        val radius = .5f
+        val scene = createScene(
+            bones = listOf(Vector3f(), Vector3f(0f, 3f, 0f)),
+            bodies = listOf(
+                body(
+                    nodeIndex = 0,
+                    position = Vector3f(),
+                    shape = ModelRigidBodyPhysics.Shape.Box(Vector3f(2f, .5f, 2f)),
+                    mode = ModelRigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE,
+                    group = 0,
+                    collisionMask = 0b10,
+                ),
+                body(
+                    nodeIndex = 1,
+                    position = Vector3f(0f, 3f, 0f),
+                    shape = ModelRigidBodyPhysics.Shape.Sphere(radius),
+                    group = 1,
+                    collisionMask = 0b01,
+                ),
+            ),
+        )
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        instance.simulate(300)
+
+        val sphere = instance.worldPosition(1)
+        assertEquals(.5f + radius, sphere.y, .1f, "Sphere isn't resting on the box: $sphere")
+    }
+
+    @Test
+    fun budgetDropsSteps() {
+        val scene = createScene(
+            bones = listOf(Vector3f(), Vector3f(1f, 0f, 0f)),
+            bodies = listOf(
+                body(0, Vector3f(), mode = ModelRigidBodyPhysics.RigidBody.Mode.FOLLOW_BONE),
+                body(1, Vector3f(1f, 0f, 0f)),
+            ),
+            joints = listOf(joint(0, 1, Vector3f())),
+        )
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        val state = instance.modelData.rigidBodyStates[0]
+
+        // Any step goes over a one nanosecond budget, so only the first one runs
+        instance.advancePhysics(1f, MAX_STEPS, budgetNanos = 1)
+        instance.updateRenderData()
+        assertEquals(1, state.lastSteps)
+        assertEquals(MAX_STEPS - 1L, state.skippedSteps)
+
+        instance.advancePhysics(1f, MAX_STEPS)
+        instance.updateRenderData()
+        assertEquals(MAX_STEPS, state.lastSteps)
+        assertEquals(MAX_STEPS - 1L, state.skippedSteps)
+    }
+}
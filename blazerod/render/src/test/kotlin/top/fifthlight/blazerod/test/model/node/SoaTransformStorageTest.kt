@@ -0,0 +1,117 @@
+package top.fifthlight.blazerod.test.model.node
+
+import org.joml.Matrix4f
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import top.fifthlight.blazerod.model.NodeTransform
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.SoaTransformStorage
+import top.fifthlight.blazerod.model.node.TransformMap
+
+class SoaTransformStorageTest {
+    private lateinit var storage: SoaTransformStorage
+
+    @BeforeEach
+    fun setUp() {
+        storage = SoaTransformStorage(
+            listOf(
+                null,
+                NodeTransform.Decomposed(translation = Vector3f(1f, 2f, 3f)),
+                NodeTransform.Matrix(Matrix4f().rotateY(0.5f)),
+            )
+        )
+    }
+
+    @Test
+    fun initialTransformsAreStored() {
+        assertTrue(storage.getSum(0, TransformId.LAST).equals(Matrix4f(), 1e-6f))
+        assertTrue(storage.getSum(1, TransformId.LAST).equals(Matrix4f().translate(1f, 2f, 3f), 1e-6f))
+        assertTrue(storage.getSum(2, TransformId.LAST).equals(Matrix4f().rotateY(0.5f), 1e-6f))
+
+        val first = storage.get(1, TransformId.ABSOLUTE)
+        assertTrue(first is NodeTransform.Decomposed)
+        assertEquals(Vector3f(1f, 2f, 3f), (first as NodeTransform.Decomposed).translation)
+        assertTrue(storage.get(2, TransformId.ABSOLUTE) is NodeTransform.Matrix)
+        assertNull(storage.get(0, TransformId.RELATIVE_ANIMATION))
+    }
+
+    @Test
+    fun nodesAreIndependent() {
+        storage.updateDecomposed(0, TransformId.RELATIVE_ANIMATION) {
+            translation.set(5f, 0f, 0f)
+        }
+        assertTrue(storage.getSum(0, TransformId.LAST).equals(Matrix4f().translate(5f, 0f, 0f), 1e-6f))
+        assertTrue(storage.getSum(1, TransformId.LAST).equals(Matrix4f().translate(1f, 2f, 3f), 1e-6f))
+        assertNull(storage.get(1, TransformId.RELATIVE_ANIMATION))
+    }
+
+    @Test
+    fun updateDecomposedConvertsMatrixLayer() {
+        storage.setMatrix(0, TransformId.IK, Matrix4f().translate(1f, 0f, 0f))
+        storage.updateDecomposed(0, TransformId.IK) {
+            scale.set(2f)
+        }
+        val transform = storage.get(0, TransformId.IK)
+        assertTrue(transform is NodeTransform.Decomposed)
+        transform as NodeTransform.Decomposed
+        assertEquals(Vector3f(1f, 0f, 0f), transform.translation)
+        assertEquals(Vector3f(2f), transform.scale)
+    }
+
+    @Test
+    fun clearFromDropsLaterLayers() {
+        storage.updateDecomposed(1, TransformId.RELATIVE_ANIMATION) {
+            translation.set(1f, 0f, 0f)
+        }
+        storage.updateDecomposed(1, TransformId.IK) {
+            rotation.rotationX(0.3f)
+        }
+        storage.getSum(1, TransformId.LAST)
+        storage.clearFrom(1, TransformId.RELATIVE_ANIMATION)
+        assertNull(storage.get(1, TransformId.RELATIVE_ANIMATION))
+        assertNull(storage.get(1, TransformId.IK))
+        assertTrue(storage.getSum(1, TransformId.LAST).equals(Matrix4f().translate(1f, 2f, 3f), 1e-6f))
+        assertThrows<IllegalArgumentException> { storage.clearFrom(1, TransformId.FIRST) }
+    }
+
+    @Test
+    fun matchesTransformMap() {
+        val first = NodeTransform.Decomposed(translation = Vector3f(1f, 2f, 3f))
+        val map = TransformMap(first)
+        val soa = SoaTransformStorage(listOf(first))
+
+        fun check() {
+            for (id in TransformId.entries) {
+                val expected = Matrix4f(map.getSum(id))
+                assertTrue(expected.equals(soa.getSum(0, id), 1e-5f), "Sum mismatch at $id")
+            }
+        }
+
+        map.updateDecomposed(TransformId.RELATIVE_ANIMATION) { rotation.rotationY(1f) }
+        soa.updateDecomposed(0, TransformId.RELATIVE_ANIMATION) { rotation.rotationY(1f) }
+        check()
+
+        val influence = NodeTransform.Decomposed(
+            translation = Vector3f(0f, 1f, 0f),
+            rotation = Quaternionf().rotationZ(0.25f),
+        )
+        map.setMatrix(TransformId.INFLUENCE, influence)
+        soa.setMatrix(0, TransformId.INFLUENCE, influence)
+        map.setMatrix(TransformId.PHYSICS, Matrix4f().scale(2f))
+        soa.setMatrix(0, TransformId.PHYSICS, Matrix4f().scale(2f))
+        check()
+
+        // Only the middle layer changes, the cached prefix must be reused correctly
+        map.updateDecomposed(TransformId.INFLUENCE) { translation.set(3f, 0f, 0f) }
+        soa.updateDecomposed(0, TransformId.INFLUENCE) { translation.set(3f, 0f, 0f) }
+        check()
+
+        map.clearFrom(TransformId.INFLUENCE)
+        soa.clearFrom(0, TransformId.INFLUENCE)
+        check()
+    }
+}
@@ -0,0 +1,145 @@
+package top.fifthlight.blazerod.test.model.node
+
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.PhysicsClock
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.component.SpringBone
+import top.fifthlight.blazerod.test.TestScenes
+import top.fifthlight.blazerod.test.worldPose
+import top.fifthlight.blazerod.test.worldPosition
+import top.fifthlight.blazerod.model.SpringBone as ModelSpringBone
+
+class SpringBoneTest {
+    companion object {
+        private const val FRAME_TIME = 1f / 60f
+        private const val MAX_STEPS = 3
+
+        // A chain of bones pointing along X from the origin, swinging down under gravity. Node indices are the
+        // joints, the tail, the collider node and the root.
+        internal fun createChain(bones: Int, collider: Vector3f? = null, colliderRadius: Float = 0f): RenderScene {
+            val tail = bones
+            val colliderNode = bones + 1
+            val root = bones + 2
+            val springBone = SpringBone(
+                springIndex = 0,
+                joints = (0 until bones).map { index ->
+                    SpringBone.Joint(
+                        nodeIndex = index,
+                        tailNodeIndex = index + 1,
+                        parentJoint = index - 1,
+                        hitRadius = 0f,
+                        stiffness = 0f,
+                        gravityPower = 1f,
+                        gravityDir = Vector3f(0f, -1f, 0f),
+                        dragForce = .4f,
+                    )
+                },
+                colliders = listOfNotNull(collider?.let {
+                    SpringBone.Collider(
+                        nodeIndex = colliderNode,
+                        shape = ModelSpringBone.Shape.Sphere(offset = Vector3f(), radius = colliderRadius),
+                    )
+                }),
+                transformId = TransformId.PHYSICS,
+            )
+            val joints = List(bones) { index ->
+                TestScenes.Node(
+                    name = "joint_$index",
+                    parent = if (index == 0) root else index - 1,
+                    translation = Vector3f(if (index == 0) 0f else 1f, 0f, 0f),
+                    components = if (index == 0) listOf(springBone) else listOf(),
+                )
+            }
+            return TestScenes.scene(
+                joints + listOf(
+                    TestScenes.Node("tail", tail - 1, Vector3f(1f, 0f, 0f)),
+                    TestScenes.Node("collider", root, collider ?: Vector3f()),
+                    TestScenes.Node("root", -1),
+                )
+            )
+        }
+
+        private fun ModelInstance.simulate(frames: Int, frameTime: Float = FRAME_TIME) {
+            repeat(frames) {
+                advancePhysics(frameTime, MAX_STEPS)
+                updateRenderData()
+            }
+        }
+    }
+
+    @Test
+    fun gravitySwingsChainDown() {
+        val bones = 3
+        val instance = ModelInstance(createChain(bones), TransformStorage.Type.MAP)
+        instance.simulate(600)
+
+        for (index in 0 until bones) {
+            val head = instance.worldPosition(index)
+            val tail = instance.worldPosition(index + 1)
+            assertEquals(1f, head.distance(tail), 1e-3f, "Bone $index changed length")
+        }
+        val tail = instance.worldPosition(bones)
+        assertTrue(tail.y < -bones * .9f, "Chain end is still at $tail")
+    }
+
+    @Test
+    fun maxStepsDropsSlowFrames() {
+        val instance = ModelInstance(createChain(2), TransformStorage.Type.MAP)
+        val clock = instance.modelData.physicsClock
+
+        // A one second hitch only simulates the step limit
+        instance.advancePhysics(1f, MAX_STEPS)
+        assertEquals(MAX_STEPS, clock.steps)
+        instance.updateRenderData()
+        assertEquals(MAX_STEPS, clock.lastSteps)
+        assertEquals(0, clock.steps)
+
+        // Short frames add up until a whole step is due
+        instance.advancePhysics(PhysicsClock.STEP_TIME * .6f, MAX_STEPS)
+        assertEquals(0, clock.steps)
+        instance.advancePhysics(PhysicsClock.STEP_TIME * .6f, MAX_STEPS)
+        assertEquals(1, clock.steps)
+    }
+
+    @Test
+    fun sphereColliderHoldsTail() {
+        val center = Vector3f(.7f, -.7f, 0f)
+        val radius = .3f
+        val free = ModelInstance(createChain(1), TransformStorage.Type.MAP)
+        free.simulate(600)
+        assertTrue(free.worldPosition(1).x < .1f, "Free tail should swing down past the collider")
+
+        val blocked = ModelInstance(createChain(1, center, radius), TransformStorage.Type.MAP)
+        blocked.simulate(600)
+        val tail = blocked.worldPosition(1)
+        // Keeping the bone length after the push out may sink the tail in slightly
+        assertTrue(tail.distance(center) >= radius - 1e-2f, "Tail $tail is inside the collider")
+        assertTrue(tail.x > .5f, "Tail $tail slipped past the collider")
+    }
+
+    @Test
+    fun interleavedInstancesMatchSeparate() {
+        val bones = 4
+        val scene = createChain(bones)
+
+        val alone = ModelInstance(scene, TransformStorage.Type.MAP)
+        alone.simulate(30)
+        val expected = alone.worldPose(0..bones)
+
+        // Simulation state lives in each instance, so updating another instance in between changes nothing
+        val first = ModelInstance(scene, TransformStorage.Type.MAP)
+        val second = ModelInstance(scene, TransformStorage.Type.MAP)
+        repeat(30) {
+            second.simulate(1, FRAME_TIME * 2)
+            first.simulate(1)
+        }
+        assertArrayEquals(expected, first.worldPose(0..bones))
+    }
+}
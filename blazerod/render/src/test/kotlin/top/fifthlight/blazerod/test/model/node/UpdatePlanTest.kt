@@ -0,0 +1,173 @@
+package top.fifthlight.blazerod.test.model.node
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.node.RenderNode
+import top.fifthlight.blazerod.model.node.TransformStorage
+import top.fifthlight.blazerod.model.node.UpdatePhase
+import top.fifthlight.blazerod.model.node.component.InfluenceSource
+import top.fifthlight.blazerod.model.node.component.Joint
+import top.fifthlight.blazerod.model.node.forEach
+import top.fifthlight.blazerod.model.node.getTransformSum
+import top.fifthlight.blazerod.model.node.getWorldTransform
+import top.fifthlight.blazerod.model.node.markNodeTransformDirty
+import top.fifthlight.blazerod.model.resource.RenderSkin
+import top.fifthlight.blazerod.test.TestScenes
+
+class UpdatePlanTest {
+    companion object {
+        internal const val BONE_COUNT = 400
+        private const val CHAIN_LENGTH = 10
+
+        // Bones are arranged in chains like a PMX skeleton: each chain hangs off the head of the previous one
+        private fun parentOf(bone: Int) = when {
+            bone == 0 -> BONE_COUNT
+            bone % CHAIN_LENGTH == 0 -> bone - CHAIN_LENGTH
+            else -> bone - 1
+        }
+
+        internal fun createSkeleton() = TestScenes.bones(
+            boneCount = BONE_COUNT,
+            parentOf = ::parentOf,
+            components = { index ->
+                buildList {
+                    add(Joint(skinIndex = 0, jointIndex = index))
+                    if (index % 25 == 5) {
+                        add(
+                            InfluenceSource(
+                                target = TransformId.INFLUENCE,
+                                targetNodeIndex = index + 1,
+                                influence = .5f,
+                                influenceRotation = true,
+                            )
+                        )
+                    }
+                }
+            },
+            skins = listOf(RenderSkin(name = null, inverseBindMatrices = null, jointSize = BONE_COUNT)),
+        )
+
+        internal fun animate(instance: ModelInstance, frame: Int) {
+            for (bone in 0 until BONE_COUNT) {
+                instance.setTransformDecomposed(bone, TransformId.RELATIVE_ANIMATION) {
+                    rotation.rotationXYZ(frame * .01f, bone * .001f, (frame + bone) * .002f)
+                }
+            }
+        }
+
+        // The node walk RenderScene used before the update plan was compiled, propagating every node
+        internal fun legacyUpdateRenderData(instance: ModelInstance, sortedNodes: List<RenderNode>) {
+            if (instance.modelData.transformDirty.isEmpty()) {
+                return
+            }
+            for (phase in listOf(
+                UpdatePhase.GlobalTransformPropagation,
+                UpdatePhase.IkUpdate,
+                UpdatePhase.InfluenceTransformUpdate,
+                UpdatePhase.GlobalTransformPropagation,
+                UpdatePhase.RenderDataUpdate,
+            )) {
+                for (node in sortedNodes) {
+                    if (phase == UpdatePhase.GlobalTransformPropagation) {
+                        val worldTransform = instance.getWorldTransform(node)
+                        val localTransform = instance.getTransformSum(node, TransformId.LAST)
+                        node.parent?.let { instance.getWorldTransform(it).mul(localTransform, worldTransform) }
+                            ?: worldTransform.set(localTransform)
+                    } else {
+                        for (component in node.components) {
+                            if (phase.type in component.updatePhases) {
+                                component.update(phase, node, instance)
+                            }
+                        }
+                    }
+                }
+            }
+            instance.modelData.transformDirty.clearAll()
+        }
+    }
+
+    @Test
+    fun propagationOrderIsPreOrder() {
+        val scene = createSkeleton()
+        val plan = scene.updatePlan
+        assertEquals(BONE_COUNT, plan.propagationOrder[0])
+        for (position in plan.propagationOrder.indices) {
+            val nodeIndex = plan.propagationOrder[position]
+            assertEquals(position, plan.nodePositions[nodeIndex])
+            val parent = plan.propagationParents[position]
+            if (parent >= 0) {
+                val parentPosition = plan.nodePositions[parent]
+                assertTrue(parentPosition < position)
+                assertTrue(plan.subtreeEnds[position] <= plan.subtreeEnds[parentPosition])
+            }
+        }
+        assertEquals(BONE_COUNT + 1, plan.subtreeEnds[0])
+    }
+
+    @Test
+    fun planMatchesLegacyWalk() {
+        val scene = createSkeleton()
+        val sortedNodes = mutableListOf<RenderNode>().also { list -> scene.rootNode.forEach { list.add(it) } }
+        val planned = ModelInstance(scene, TransformStorage.Type.MAP)
+        val legacy = ModelInstance(scene, TransformStorage.Type.MAP)
+
+        val plannedMatrix = FloatArray(16)
+        val legacyMatrix = FloatArray(16)
+        for (frame in 0 until 10) {
+            animate(planned, frame)
+            animate(legacy, frame)
+            planned.updateRenderData()
+            legacyUpdateRenderData(legacy, sortedNodes)
+            for (node in 0..BONE_COUNT) {
+                planned.modelData.worldTransforms[node].get(plannedMatrix)
+                legacy.modelData.worldTransforms[node].get(legacyMatrix)
+                assertArrayEquals(legacyMatrix, plannedMatrix, 1e-5f, "Node $node differs at frame $frame")
+            }
+            assertTrue(planned.modelData.transformDirty.isEmpty())
+        }
+    }
+
+    @Test
+    fun markDirtyCoversSubtree() {
+        val scene = createSkeleton()
+        val plan = scene.updatePlan
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        instance.updateRenderData()
+        assertTrue(instance.modelData.transformDirty.isEmpty())
+
+        // Bone 100 heads a chain with all later chains hanging off it
+        instance.markNodeTransformDirty(scene.nodes[100])
+        val position = plan.nodePositions[100]
+        val dirty = instance.modelData.transformDirty
+        for (other in 0 until BONE_COUNT + 1) {
+            assertEquals(other in position until plan.subtreeEnds[position], dirty[other], "Position $other")
+        }
+        assertEquals(plan.subtreeEnds[position] - position, dirty.cardinality)
+
+        instance.updateRenderData()
+        assertTrue(dirty.isEmpty())
+    }
+
+    @Test
+    fun poseVersionOnlyChangesWithPose() {
+        val scene = createSkeleton()
+        val instance = ModelInstance(scene, TransformStorage.Type.MAP)
+        animate(instance, 1)
+        instance.updateRenderData()
+        val version = instance.modelData.poseVersion
+
+        // Writing the same pose again dirties the transforms, but doesn't change any skin matrix
+        animate(instance, 1)
+        instance.updateRenderData()
+        assertEquals(version, instance.modelData.poseVersion)
+
+        animate(instance, 2)
+        instance.updateRenderData()
+        assertNotEquals(version, instance.modelData.poseVersion)
+    }
+}
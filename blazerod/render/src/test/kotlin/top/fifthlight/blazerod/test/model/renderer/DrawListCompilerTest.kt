@@ -0,0 +1,186 @@
+package top.fifthlight.blazerod.test.model.renderer
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.renderer.DrawList
+import top.fifthlight.blazerod.model.renderer.DrawListCompiler
+import kotlin.random.Random
+
+class DrawListCompilerTest {
+    internal data class Draw(
+        val batch: Int,
+        val pipeline: Int,
+        val texture: Int,
+        val material: Int,
+        val blended: Boolean,
+    )
+
+    private class Replay(
+        val draws: List<Int>,
+        val states: List<Draw>,
+    )
+
+    companion object {
+        internal const val PLAYERS = 50
+        internal const val MODELS = 12
+
+        private fun DrawListCompiler.add(draws: List<Draw>) = draws.forEach {
+            addDraw(it.batch, it.pipeline, it.texture, it.material, it.blended)
+        }
+
+        private fun DrawListCompiler.compile(draws: List<Draw>) = DrawList().also {
+            clear()
+            add(draws)
+            compile(it)
+        }
+
+        // Walks the list as a renderer would, returning the draws in order and the state bound for each
+        private fun DrawList.replay(): Replay {
+            val draws = mutableListOf<Int>()
+            val states = mutableListOf<Draw>()
+            var pipeline = -1
+            var batch = -1
+            var texture = -1
+            var material = -1
+            for (index in 0 until size) {
+                val argument = argument(index)
+                when (opcode(index)) {
+                    DrawList.OP_PIPELINE -> pipeline = argument
+                    DrawList.OP_BATCH -> batch = argument
+                    DrawList.OP_TEXTURE -> texture = argument
+                    DrawList.OP_MATERIAL -> material = argument
+                    DrawList.OP_DRAW -> {
+                        draws.add(argument)
+                        states.add(Draw(batch, pipeline, texture, material, false))
+                    }
+                }
+            }
+            return Replay(draws, states)
+        }
+
+        // State changes when drawing in submission order, only skipping state that is already bound
+        private fun List<Draw>.submissionOrderChanges(): IntArray {
+            val changes = IntArray(4)
+            var last: Draw? = null
+            for (draw in this) {
+                if (draw.pipeline != last?.pipeline) changes[0]++
+                if (draw.batch != last?.batch) changes[1]++
+                if (draw.texture != last?.texture) changes[2]++
+                if (draw.material != last?.material) changes[3]++
+                last = draw
+            }
+            return changes
+        }
+
+        // Draws of players spread over models: VRM-like ones are mostly opaque, MMD ones blend every material
+        internal fun playerSceneDraws(): List<Draw> {
+            val random = Random(0)
+            var textureCount = 0
+            var materialCount = 0
+            val models = List(MODELS) { model ->
+                val pmx = model % 3 == 0
+                val primitives = if (pmx) 40 else 24
+                val textures = List(if (pmx) 12 else 6) { textureCount++ }
+                List(primitives) {
+                    val variant = if (pmx) 0 else random.nextInt(3)
+                    Draw(
+                        batch = -1,
+                        pipeline = variant,
+                        texture = textures.random(random),
+                        material = materialCount++,
+                        blended = pmx || random.nextInt(8) == 0,
+                    )
+                }
+            }
+            val players = List(PLAYERS) { player ->
+                if (player < MODELS) player else random.nextInt(MODELS)
+            }
+
+            // One batch per model, as the task map groups tasks by scene
+            val draws = mutableListOf<Draw>()
+            for ((batch, entry) in players.groupingBy { it }.eachCount().toSortedMap().entries.withIndex()) {
+                val (model, count) = entry
+                val instanced = if (count > 1) 1 else 0
+                for (primitive in models[model]) {
+                    draws.add(primitive.copy(batch = batch, pipeline = primitive.pipeline * 2 + instanced))
+                }
+            }
+            return draws
+        }
+    }
+
+    @Test
+    fun replayBindsStateOfEachDraw() {
+        val random = Random(0)
+        val draws = List(200) {
+            Draw(
+                batch = random.nextInt(4),
+                pipeline = random.nextInt(3),
+                texture = random.nextInt(6),
+                material = random.nextInt(10),
+                blended = random.nextInt(4) == 0,
+            )
+        }
+        val replay = DrawListCompiler().compile(draws).replay()
+
+        assertEquals(draws.indices.toList(), replay.draws.sorted())
+        for ((draw, state) in replay.draws.zip(replay.states)) {
+            assertEquals(draws[draw].copy(blended = false), state)
+        }
+    }
+
+    @Test
+    fun opaqueDrawsChangeEachStateOnce() {
+        // Two batches of the same scene, with pipelines and textures alternating between primitives
+        val draws = (0 until 2).flatMap { batch ->
+            List(8) { primitive ->
+                Draw(batch, pipeline = primitive % 2, texture = primitive % 4, material = primitive, blended = false)
+            }
+        }
+        val list = DrawListCompiler().compile(draws)
+
+        assertEquals(2, list.pipelineChanges)
+        assertEquals(4, list.textureChanges)
+        assertEquals(draws.size, list.draws)
+    }
+
+    @Test
+    fun blendedDrawsKeepOrder() {
+        val draws = listOf(
+            Draw(batch = 0, pipeline = 1, texture = 0, material = 0, blended = true),
+            Draw(batch = 0, pipeline = 0, texture = 1, material = 1, blended = false),
+            Draw(batch = 0, pipeline = 0, texture = 0, material = 2, blended = true),
+            Draw(batch = 1, pipeline = 1, texture = 2, material = 3, blended = true),
+            Draw(batch = 1, pipeline = 1, texture = 1, material = 4, blended = false),
+            Draw(batch = 0, pipeline = 1, texture = 0, material = 5, blended = true),
+        )
+        val replay = DrawListCompiler().compile(draws).replay()
+
+        // Opaque draws first, sorted by pipeline, then blended ones as submitted
+        assertEquals(listOf(1, 4, 0, 2, 3, 5), replay.draws)
+    }
+
+    @Test
+    fun redundantStateIsSkipped() {
+        val draws = List(10) { Draw(batch = 0, pipeline = 0, texture = 0, material = 0, blended = it % 2 == 0) }
+        val list = DrawListCompiler().compile(draws)
+
+        assertEquals(1, list.pipelineChanges)
+        assertEquals(1, list.batchChanges)
+        assertEquals(1, list.textureChanges)
+        assertEquals(1, list.materialChanges)
+        assertEquals(10, list.draws)
+        assertEquals(14, list.size)
+    }
+
+    @Test
+    fun playerSceneStateChanges() {
+        val draws = playerSceneDraws()
+        val list = DrawListCompiler().compile(draws)
+        val submitted = draws.submissionOrderChanges()
+        assertEquals(draws.size, list.draws)
+        assertTrue(list.pipelineChanges <= submitted[0])
+        assertTrue(list.textureChanges <= submitted[2])
+    }
+}
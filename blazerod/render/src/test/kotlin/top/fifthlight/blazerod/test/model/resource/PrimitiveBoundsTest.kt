@@ -0,0 +1,122 @@
+package top.fifthlight.blazerod.test.model.resource
+
+import org.joml.Matrix4f
+import org.joml.Vector3f
+import org.joml.Vector3fc
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.resource.PrimitiveBounds
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class PrimitiveBoundsTest {
+    private class Vertex(
+        val position: Vector3f,
+        val joints: IntArray = IntArray(4),
+        val weights: FloatArray = FloatArray(4),
+    )
+
+    companion object {
+        // Position, then 4 unsigned short joints and 4 float weights
+        private const val POSITION_OFFSET = 0
+        private const val JOINT_OFFSET = 12
+        private const val WEIGHT_OFFSET = 20
+        private const val STRIDE = 36
+
+        private const val DELTA = 1e-5f
+
+        private fun vertexBuffer(vertices: List<Vertex>): ByteBuffer {
+            val buffer = ByteBuffer.allocateDirect(vertices.size * STRIDE).order(ByteOrder.nativeOrder())
+            for ((index, vertex) in vertices.withIndex()) {
+                val base = index * STRIDE
+                buffer.putFloat(base + POSITION_OFFSET, vertex.position.x)
+                buffer.putFloat(base + POSITION_OFFSET + 4, vertex.position.y)
+                buffer.putFloat(base + POSITION_OFFSET + 8, vertex.position.z)
+                for (i in 0 until 4) {
+                    buffer.putShort(base + JOINT_OFFSET + i * 2, vertex.joints[i].toShort())
+                    buffer.putFloat(base + WEIGHT_OFFSET + i * 4, vertex.weights[i])
+                }
+            }
+            return buffer
+        }
+
+        private fun assertVector(expected: Vector3f, actual: Vector3fc) {
+            assertEquals(expected.x, actual.x(), DELTA)
+            assertEquals(expected.y, actual.y(), DELTA)
+            assertEquals(expected.z, actual.z(), DELTA)
+        }
+    }
+
+    @Test
+    fun staticPrimitiveBounds() {
+        val vertices = listOf(
+            Vertex(Vector3f(-1f, 0f, 2f)),
+            Vertex(Vector3f(3f, -2f, 0f)),
+            Vertex(Vector3f(0f, 5f, -4f)),
+        )
+        val bounds = PrimitiveBounds.compute(
+            vertices = vertices.size,
+            vertexBuffer = vertexBuffer(vertices),
+            stride = STRIDE,
+            positionOffset = POSITION_OFFSET,
+        )
+
+        assertVector(Vector3f(-1f, -2f, -4f), bounds.min)
+        assertVector(Vector3f(3f, 5f, 2f), bounds.max)
+        assertEquals(null, bounds.jointRadii)
+    }
+
+    @Test
+    fun jointRadiiInBindSpace() {
+        // Joint 0 sits at (1, 0, 0) in bind pose, joint 1 at the origin, joint 2 moves nothing
+        val inverseBindMatrices = listOf(
+            Matrix4f().translation(-1f, 0f, 0f),
+            Matrix4f(),
+            Matrix4f(),
+        )
+        val vertices = listOf(
+            Vertex(Vector3f(1f, 2f, 0f), intArrayOf(0, 0, 0, 0), floatArrayOf(1f, 0f, 0f, 0f)),
+            // Zero weights don't count, even for a joint listed first
+            Vertex(Vector3f(3f, 0f, 0f), intArrayOf(0, 1, 0, 0), floatArrayOf(0f, 1f, 0f, 0f)),
+        )
+        val bounds = PrimitiveBounds.compute(
+            vertices = vertices.size,
+            vertexBuffer = vertexBuffer(vertices),
+            stride = STRIDE,
+            positionOffset = POSITION_OFFSET,
+            jointOffset = JOINT_OFFSET,
+            weightOffset = WEIGHT_OFFSET,
+            jointSize = inverseBindMatrices.size,
+            inverseBindMatrices = inverseBindMatrices,
+        )
+
+        assertArrayEquals(floatArrayOf(2f, 3f, -1f), bounds.jointRadii, DELTA)
+        assertArrayEquals(intArrayOf(0, 1), bounds.usedJoints)
+    }
+
+    @Test
+    fun morphTargetsGrowBounds() {
+        val vertices = listOf(Vertex(Vector3f(0f, 0f, 0f)))
+        val deltas = listOf(Vector3f(1f, 0f, 0f), Vector3f(0f, 2f, 0f))
+        // RGBA32F, one item per vertex and target
+        val morphPositions = ByteBuffer.allocateDirect(deltas.size * 16).order(ByteOrder.nativeOrder())
+        for ((index, delta) in deltas.withIndex()) {
+            morphPositions.putFloat(index * 16, delta.x)
+            morphPositions.putFloat(index * 16 + 4, delta.y)
+            morphPositions.putFloat(index * 16 + 8, delta.z)
+        }
+        val bounds = PrimitiveBounds.compute(
+            vertices = vertices.size,
+            vertexBuffer = vertexBuffer(vertices),
+            stride = STRIDE,
+            positionOffset = POSITION_OFFSET,
+            morphPositions = morphPositions,
+            morphTargets = deltas.size,
+        )
+
+        // Both targets at full weight move the vertex by at most 3 in any direction
+        assertVector(Vector3f(-3f), bounds.min)
+        assertVector(Vector3f(3f), bounds.max)
+    }
+}
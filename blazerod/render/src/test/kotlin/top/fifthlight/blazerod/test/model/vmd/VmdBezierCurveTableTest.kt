@@ -0,0 +1,76 @@
+package top.fifthlight.blazerod.test.model.vmd
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import top.fifthlight.blazerod.model.vmd.VmdBezierCurveTable
+import kotlin.math.abs
+import kotlin.random.Random
+
+class VmdBezierCurveTableTest {
+    companion object {
+        private const val MAX_ERROR = 2e-3
+        internal const val DELTA_STEPS = 1000
+
+        // Curves with vertical or horizontal tangents are the hardest to solve
+        internal val curves = listOf(
+            listOf(127, 0, 0, 127),
+            listOf(0, 127, 127, 0),
+            listOf(127, 127, 0, 0),
+            listOf(127, 0, 127, 127),
+            listOf(0, 0, 0, 127),
+            listOf(64, 0, 64, 127),
+        ) + Random(0).let { random -> List(200) { List(4) { random.nextInt(128) } } }
+
+        private fun bezier(p1: Double, p2: Double, t: Double): Double {
+            val t_ = 1 - t
+            return 3 * t_ * t_ * t * p1 + 3 * t_ * t * t * p2 + t * t * t
+        }
+
+        private fun exactResolve(curve: List<Int>, delta: Float): Double {
+            val (p1X, p1Y, p2X, p2Y) = curve.map { it / 127.0 }
+            var low = 0.0
+            var high = 1.0
+            repeat(64) {
+                val t = (low + high) / 2
+                if (bezier(p1X, p2X, t) < delta) {
+                    low = t
+                } else {
+                    high = t
+                }
+            }
+            return bezier(p1Y, p2Y, (low + high) / 2)
+        }
+
+        private fun VmdBezierCurveTable.add(curve: List<Int>) =
+            add(curve[0].toUByte(), curve[1].toUByte(), curve[2].toUByte(), curve[3].toUByte())
+    }
+
+    @Test
+    fun identicalCurvesAreDeduplicated() {
+        val table = VmdBezierCurveTable()
+        val first = table.add(listOf(10, 20, 30, 40))
+        val second = table.add(listOf(50, 60, 70, 80))
+        assertEquals(first, table.add(listOf(10, 20, 30, 40)))
+        assertEquals(second, table.add(listOf(50, 60, 70, 80)))
+        assertEquals(2, table.size)
+
+        assertEquals(VmdBezierCurveTable.LINEAR_CURVE, table.add(listOf(20, 20, 107, 107)))
+        assertEquals(.3f, table.resolve(VmdBezierCurveTable.LINEAR_CURVE, .3f))
+        assertEquals(2, table.size)
+    }
+
+    @Test
+    fun errorIsBounded() {
+        val table = VmdBezierCurveTable()
+        var tableError = 0.0
+        for (curve in curves) {
+            val index = table.add(curve)
+            for (step in 0..DELTA_STEPS) {
+                val delta = step.toFloat() / DELTA_STEPS
+                tableError = maxOf(tableError, abs(table.resolve(index, delta) - exactResolve(curve, delta)))
+            }
+        }
+        assertTrue(tableError < MAX_ERROR, "Curve table error $tableError exceeds $MAX_ERROR")
+    }
+}
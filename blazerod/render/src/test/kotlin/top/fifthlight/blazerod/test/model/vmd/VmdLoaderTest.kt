@@ -0,0 +1,164 @@
+package top.fifthlight.blazerod.test.model.vmd
+
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import top.fifthlight.blazerod.model.animation.AnimationChannel
+import top.fifthlight.blazerod.model.animation.ListAnimationKeyFrameIndexer
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import top.fifthlight.blazerod.model.util.MutableFloat
+import top.fifthlight.blazerod.model.vmd.VmdLoader
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Path
+import kotlin.io.path.writeBytes
+import kotlin.random.Random
+
+class VmdLoaderTest {
+    companion object {
+        private const val FRAME_TIME_SEC = 1f / 30f
+
+        internal class BoneFrame(
+            val bone: String,
+            val frame: Int,
+            val translation: Vector3f,
+            val rotation: Quaternionf,
+        )
+
+        internal class FaceFrame(
+            val face: String,
+            val frame: Int,
+            val weight: Float,
+        )
+
+        private fun writeName(buffer: ByteBuffer, name: String) {
+            val bytes = name.toByteArray(Charsets.US_ASCII)
+            buffer.put(bytes)
+            repeat(15 - bytes.size) { buffer.put(0) }
+        }
+
+        internal fun writeVmd(path: Path, bones: List<BoneFrame>, faces: List<FaceFrame>, cameraFrames: Int) {
+            val size = 30 + 20 + 4 + bones.size * 111 + 4 + faces.size * 23 + 4 + cameraFrames * 61
+            val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+            val signature = "Vocaloid Motion Data 0002".toByteArray()
+            buffer.put(signature)
+            repeat(30 - signature.size) { buffer.put(0) }
+            repeat(20) { buffer.put(0) }
+
+            buffer.putInt(bones.size)
+            for (bone in bones) {
+                writeName(buffer, bone.bone)
+                buffer.putInt(bone.frame)
+                buffer.putFloat(bone.translation.x).putFloat(bone.translation.y).putFloat(bone.translation.z)
+                buffer.putFloat(bone.rotation.x).putFloat(bone.rotation.y)
+                buffer.putFloat(bone.rotation.z).putFloat(bone.rotation.w)
+                // Curves with both control points on the diagonal
+                repeat(64) { buffer.put((if (it % 4 < 2) 20 else 107).toByte()) }
+            }
+
+            buffer.putInt(faces.size)
+            for (face in faces) {
+                writeName(buffer, face.face)
+                buffer.putInt(face.frame)
+                buffer.putFloat(face.weight)
+            }
+
+            buffer.putInt(cameraFrames)
+            repeat(cameraFrames) { frame ->
+                buffer.putInt(frame * 10)
+                buffer.putFloat(-45f)
+                repeat(6) { buffer.putFloat(0f) }
+                repeat(24) { buffer.put(20) }
+                buffer.putInt(30)
+                buffer.put(0)
+            }
+            path.writeBytes(buffer.array())
+        }
+
+        // Bone keyframes in random order, like files edited in MMD often are
+        internal fun randomBones(random: Random, bones: Int, frames: Int): List<BoneFrame> =
+            (0 until bones).flatMap { bone ->
+                (0 until frames).map { frame ->
+                    BoneFrame(
+                        bone = "bone_$bone",
+                        frame = frame * 3,
+                        translation = Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat()),
+                        rotation = Quaternionf().rotationXYZ(random.nextFloat(), random.nextFloat(), random.nextFloat()),
+                    )
+                }
+            }.shuffled(random)
+
+        private val AnimationChannel<*, *>.times
+            get() = ((this as SimpleAnimationChannel<*, *>).indexer as ListAnimationKeyFrameIndexer).times
+    }
+
+    @Test
+    fun decodesSortedTracks(@TempDir directory: Path) {
+        val random = Random(0)
+        val bones = randomBones(random, 4, 20)
+        val faces = (0 until 10).map { FaceFrame("face", (9 - it) * 5, it / 10f) }
+        val file = directory.resolve("motion.vmd")
+        writeVmd(file, bones, faces, 3)
+
+        val channels = VmdLoader().load(file, file.parent).animations!!.single().channels
+        // Translation and rotation of each bone, one face channel and four camera channels
+        assertEquals(4 * 2 + 1 + 4, channels.size)
+
+        val translation = Vector3f()
+        val rotation = Quaternionf()
+        for (bone in 0 until 4) {
+            val name = "bone_$bone"
+            val expected = bones.filter { it.bone == name }.sortedBy { it.frame }
+            val translationChannel = channels.single {
+                it.type == AnimationChannel.Type.Translation &&
+                        (it.data as AnimationChannel.Type.TransformData).node.targetNodeName == name
+            } as SimpleAnimationChannel<Vector3f, *>
+            val rotationChannel = channels.single {
+                it.type == AnimationChannel.Type.Rotation &&
+                        (it.data as AnimationChannel.Type.TransformData).node.targetNodeName == name
+            } as SimpleAnimationChannel<Quaternionf, *>
+            assertEquals(expected.map { it.frame * FRAME_TIME_SEC }, translationChannel.times.toList())
+            for ((index, frame) in expected.withIndex()) {
+                translationChannel.keyframeData.get(index, listOf(translation))
+                rotationChannel.keyframeData.get(index, listOf(rotation))
+                // Z of translation and X, Y of rotation are inverted
+                assertEquals(Vector3f(frame.translation.x, frame.translation.y, -frame.translation.z), translation)
+                assertEquals(
+                    Quaternionf(-frame.rotation.x, -frame.rotation.y, frame.rotation.z, frame.rotation.w),
+                    rotation,
+                )
+            }
+        }
+
+        val faceChannel = channels.single { it.type == AnimationChannel.Type.Expression }
+                as SimpleAnimationChannel<MutableFloat, *>
+        assertEquals(faces.map { it.frame * FRAME_TIME_SEC }.sorted(), faceChannel.times.toList())
+        val weight = MutableFloat()
+        faceChannel.keyframeData.get(0, listOf(weight))
+        assertEquals(.9f, weight.value)
+
+        val distance = channels.single { it.type == AnimationChannel.Type.MMDCameraDistance }
+        assertEquals(listOf(0f, 10 * FRAME_TIME_SEC, 20 * FRAME_TIME_SEC), distance.times.toList())
+    }
+
+    @Test
+    fun largeFile(@TempDir directory: Path) {
+        val bones = 200
+        val frames = 1000
+        val file = directory.resolve("stage.vmd")
+        writeVmd(file, randomBones(Random(2), bones, frames), listOf(), 0)
+
+        val result = VmdLoader().load(file, file.parent)
+
+        val channels = result.animations!!.single().channels
+        assertEquals(bones * 2, channels.size)
+        for (channel in channels) {
+            val times = channel.times
+            assertEquals(frames, times.size)
+            assertTrue((1 until times.size).all { times.getFloat(it - 1) < times.getFloat(it) })
+        }
+    }
+}
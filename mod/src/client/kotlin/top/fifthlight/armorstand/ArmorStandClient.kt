@@ -75,7 +75,7 @@ object ArmorStandClient : ArmorStand(), ClientModInitializer {
         ConfigHolder.read()
 
         WorldRenderEvents.BEFORE_ENTITIES.register { context ->
-            PlayerRenderer.startRenderWorld()
+            PlayerRenderer.startRenderWorld(context.projectionMatrix())
         }
         WorldRenderEvents.AFTER_ENTITIES.register { context ->
             PlayerRenderer.executeDraw()
@@ -8,9 +8,15 @@ import net.minecraft.client.render.VertexConsumerProvider
 import net.minecraft.client.render.entity.state.PlayerEntityRenderState
 import net.minecraft.client.util.math.MatrixStack
 import org.joml.Matrix4f
+import org.joml.Matrix4fc
 import top.fifthlight.armorstand.config.ConfigHolder
+import top.fifthlight.armorstand.state.CrowdPoseManager
+import top.fifthlight.armorstand.state.InstanceCuller
+import top.fifthlight.armorstand.state.MeshLodSelector
 import top.fifthlight.armorstand.state.ModelInstanceManager
+import top.fifthlight.armorstand.state.UpdateLodScheduler
 import top.fifthlight.armorstand.util.RendererManager
+import top.fifthlight.blazerod.model.PoseJob
 import top.fifthlight.blazerod.model.renderer.InstancedRenderer
 import top.fifthlight.blazerod.model.resource.CameraTransform
 import top.fifthlight.blazerod.model.resource.RenderCamera
@@ -53,11 +59,28 @@ object PlayerRenderer {
         }
     }
 
-    fun startRenderWorld() {
+    fun startRenderWorld(projectionMatrix: Matrix4fc) {
         renderingWorld = true
+        InstanceCuller.beginFrame(projectionMatrix)
     }
 
     private val matrix = Matrix4f()
+    private val poseJob = PoseJob()
+
+    private fun advancePhysics(entry: ModelInstanceManager.ModelInstanceItem.Model, time: Long) {
+        val lastTime = entry.lastPhysicsTime
+        entry.lastPhysicsTime = time
+        if (lastTime < 0) {
+            return
+        }
+        val config = ConfigHolder.config.value
+        // Each player gets its own rigid body budget, so many physics models can't stall the frame
+        entry.instance.advancePhysics(
+            seconds = (time - lastTime) / 1_000_000_000f,
+            maxSteps = config.physicsMaxSteps,
+            budgetNanos = config.physicsBudgetMicros.coerceAtLeast(1) * 1000L,
+        )
+    }
 
     @JvmStatic
     fun appendPlayer(
@@ -67,7 +90,8 @@ object PlayerRenderer {
         consumers: VertexConsumerProvider,
         light: Int,
     ): Boolean {
-        val entry = ModelInstanceManager.get(uuid, System.nanoTime())
+        val time = System.nanoTime()
+        val entry = ModelInstanceManager.get(uuid, time)
         if (entry !is ModelInstanceManager.ModelInstanceItem.Model) {
             return false
         }
@@ -76,34 +100,67 @@ object PlayerRenderer {
         val instance = entry.instance
 
         controller.update(uuid, vanillaState)
-        controller.apply(instance)
-        instance.updateRenderData()
 
         val backupItem = matrixStack.peek().copy()
         matrixStack.pop()
         matrixStack.push()
 
         if (ArmorStandClient.debugBone) {
+            controller.apply(instance)
+            advancePhysics(entry, time)
+            instance.updateRenderData()
             instance.debugRender(matrixStack.peek().positionMatrix, consumers)
         } else {
+            val modelScale = ConfigHolder.config.value.modelScale
             matrix.set(matrixStack.peek().positionMatrix)
-            matrix.scale(ConfigHolder.config.value.modelScale)
+            matrix.scale(modelScale)
             matrix.mulLocal(RenderSystem.getModelViewStack())
-            val currentRenderer = RendererManager.currentRenderer
-            val task = instance.createRenderTask(matrix, light)
-            if (currentRenderer is InstancedRenderer<*, *> && renderingWorld) {
-                currentRenderer.schedule(task)
+            // Only the world pass has a frustum, models in GUI are always drawn in full
+            val culled = if (renderingWorld) {
+                InstanceCuller.cull(entry.cullState, instance, matrix)
             } else {
-                val mainTarget = MinecraftClient.getInstance().framebuffer
-                val colorFrameBuffer = RenderSystem.outputColorTextureOverride ?: mainTarget.colorAttachmentView!!
-                val depthFrameBuffer = RenderSystem.outputDepthTextureOverride ?: mainTarget.depthAttachmentView
-                currentRenderer.render(
-                    colorFrameBuffer = colorFrameBuffer,
-                    depthFrameBuffer = depthFrameBuffer,
-                    scene = instance.scene,
-                    task = task,
+                instance.modelData.visiblePrimitives.setAll()
+                instance.modelData.lodLevel = 0
+                false
+            }
+            if (!culled) {
+                if (renderingWorld) {
+                    MeshLodSelector.select(instance, matrix)
+                }
+                val update = UpdateLodScheduler.schedule(
+                    state = entry.updateLodState,
+                    instance = instance,
+                    modelViewMatrix = matrix,
+                    modelScale = modelScale,
+                    alwaysUpdate = uuid == MinecraftClient.getInstance().player?.uuid,
                 )
-                task.release()
+                if (update) {
+                    controller.apply(instance)
+                    advancePhysics(entry, time)
+                }
+                val currentRenderer = RendererManager.currentRenderer
+                if (currentRenderer is InstancedRenderer<*, *> && renderingWorld) {
+                    // Evaluated together with other players in executeDraw()
+                    poseJob.add(instance, matrix, light)
+                } else {
+                    instance.updateRenderData()
+                    val task = instance.createRenderTask(matrix, light)
+                    val mainTarget = MinecraftClient.getInstance().framebuffer
+                    val colorFrameBuffer = RenderSystem.outputColorTextureOverride ?: mainTarget.colorAttachmentView!!
+                    val depthFrameBuffer = RenderSystem.outputDepthTextureOverride ?: mainTarget.depthAttachmentView
+                    currentRenderer.render(
+                        colorFrameBuffer = colorFrameBuffer,
+                        depthFrameBuffer = depthFrameBuffer,
+                        scene = instance.scene,
+                        task = task,
+                    )
+                    task.release()
+                }
+            } else if (entry.cullState.refreshBounds) {
+                // Not drawn, but its bounds must follow the animation to notice when it comes back into view
+                controller.apply(instance)
+                advancePhysics(entry, time)
+                instance.updateRenderData()
             }
         }
 
@@ -119,14 +176,22 @@ object PlayerRenderer {
     fun executeDraw() {
         renderingWorld = false
         val mainTarget = MinecraftClient.getInstance().framebuffer
-        RendererManager.currentRendererInstanced?.let { renderer ->
-            val colorFrameBuffer = RenderSystem.outputColorTextureOverride ?: mainTarget.colorAttachmentView!!
-            val depthFrameBuffer = RenderSystem.outputDepthTextureOverride ?: mainTarget.depthAttachmentView
-            renderer.executeTasks(colorFrameBuffer, depthFrameBuffer)
+        val renderer = RendererManager.currentRendererInstanced
+        if (renderer == null) {
+            poseJob.clear()
+            return
         }
+        poseJob.execute { task -> renderer.schedule(task) }
+        val colorFrameBuffer = RenderSystem.outputColorTextureOverride ?: mainTarget.colorAttachmentView!!
+        val depthFrameBuffer = RenderSystem.outputDepthTextureOverride ?: mainTarget.depthAttachmentView
+        renderer.executeTasks(colorFrameBuffer, depthFrameBuffer)
     }
 
     fun endFrame() {
         cameraTransform = null
+        CrowdPoseManager.endFrame()
+        UpdateLodScheduler.endFrame()
+        InstanceCuller.endFrame()
+        MeshLodSelector.endFrame()
     }
 }
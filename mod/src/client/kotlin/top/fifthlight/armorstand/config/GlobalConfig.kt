@@ -32,6 +32,20 @@ data class GlobalConfig(
     val invertHeadDirection: Boolean = false,
     val renderer: RendererKey = RendererKey.VERTEX_SHADER_TRANSFORM,
     val vmcUdpPort: Int = 9000,
+    val crowdMode: Boolean = false,
+    val updateLod: Boolean = false,
+    val updateLodExtrapolation: Boolean = true,
+    val updateLodHalfRateDistance: Float = 16f,
+    val updateLodQuarterRateDistance: Float = 32f,
+    val updateLodEighthRateDistance: Float = 64f,
+    val bakedAnimationSlots: Set<String> = setOf(),
+    val animationBakeSampleRate: Float = 30f,
+    val physicsMaxSteps: Int = 3,
+    val physicsBudgetMicros: Int = 500,
+    val frustumCulling: Boolean = true,
+    val maxDrawDistance: Float = 0f,
+    val meshLod: Boolean = false,
+    val meshLodScreenSize: Float = 0.5f,
 ) {
     companion object {
         private val logger = LoggerFactory.getLogger(GlobalConfig::class.java)
@@ -0,0 +1,124 @@
+package top.fifthlight.armorstand.manage
+
+import com.mojang.logging.LogUtils
+import top.fifthlight.armorstand.util.ModelHash
+import top.fifthlight.blazerod.model.ModelFileLoaders
+import top.fifthlight.blazerod.model.animation.Animation
+import top.fifthlight.blazerod.model.animation.SimpleAnimationChannel
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.io.path.*
+
+// Parsed animations keyed by file hash, also written to animationCacheDir so later loads map them instead of parsing
+object AnimationCache {
+    private val LOGGER = LogUtils.getLogger()
+    private const val CACHE_EXTENSION = "anim"
+    private val animations = ConcurrentHashMap<ModelHash, List<Animation>>()
+
+    private fun cacheFile(hash: ModelHash) = ModelManager.animationCacheDir.resolve("$hash.$CACHE_EXTENSION")
+
+    private fun readCache(file: Path): List<Animation>? {
+        if (!file.isRegularFile()) {
+            return null
+        }
+        return try {
+            FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+                // The mapping stays valid after the channel is closed
+                AnimationCacheFormat.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            }
+        } catch (ex: Exception) {
+            LOGGER.warn("Bad animation cache file {}, delete it", file, ex)
+            runCatching { file.deleteIfExists() }
+            null
+        }
+    }
+
+    private fun writeCache(file: Path, animations: List<Animation>): Boolean {
+        val bytes = AnimationCacheFormat.encode(animations) ?: return false
+        return try {
+            val directory = file.parent
+            if (directory.notExists()) {
+                directory.createDirectories()
+                runCatching {
+                    Files.setAttribute(directory, "dos:hidden", true)
+                }
+            }
+            val tempFile = Files.createTempFile(directory, file.fileName.toString(), ".tmp")
+            try {
+                tempFile.writeBytes(bytes)
+                try {
+                    tempFile.moveTo(file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+                } catch (ex: Exception) {
+                    tempFile.moveTo(file, StandardCopyOption.REPLACE_EXISTING)
+                }
+            } finally {
+                tempFile.deleteIfExists()
+            }
+            true
+        } catch (ex: Exception) {
+            LOGGER.warn("Failed to write animation cache file {}", file, ex)
+            false
+        }
+    }
+
+    private fun parse(hash: ModelHash, path: Path, basePath: Path): List<Animation>? {
+        val file = cacheFile(hash)
+        readCache(file)?.let { return it }
+
+        val animations = ModelFileLoaders.probeAndLoad(path, basePath)?.animations ?: return null
+        if (!writeCache(file, animations)) {
+            return animations
+        }
+        // Use the mapped form, so the parsed file can be collected
+        return readCache(file) ?: animations
+    }
+
+    // Channels keep scratch values for sampling, so each caller gets its own channel objects. Keyframe data is
+    // immutable and shared.
+    private fun Animation.instantiate() = copy(
+        channels = channels.map { channel ->
+            (channel as? SimpleAnimationChannel<*, *>)?.copy() ?: channel
+        }
+    )
+
+    data class Loaded(
+        val hash: ModelHash?,
+        val animations: List<Animation>,
+    )
+
+    fun load(path: Path, basePath: Path = path.parent ?: error("no base path: $path")): Loaded? {
+        val hash = try {
+            ModelManager.getFileHash(path)
+        } catch (ex: Exception) {
+            LOGGER.warn("Failed to hash animation file {}, load without cache", path, ex)
+            return ModelFileLoaders.probeAndLoad(path, basePath)?.animations?.let { Loaded(null, it) }
+        }
+        val cached = animations[hash] ?: run {
+            parse(hash, path, basePath)?.also { animations[hash] = it }
+        } ?: return null
+        return Loaded(hash, cached.map { it.instantiate() })
+    }
+
+    fun prune(validHashes: Set<ModelHash>) {
+        animations.keys.retainAll(validHashes)
+        val directory = ModelManager.animationCacheDir
+        if (!directory.isDirectory()) {
+            return
+        }
+        val validNames = validHashes.mapTo(HashSet()) { it.toString() }
+        try {
+            directory.forEachDirectoryEntry("*.$CACHE_EXTENSION") { file ->
+                if (file.nameWithoutExtension !in validNames) {
+                    // Fails on Windows while the file is still mapped, will be retried on next scan
+                    runCatching { file.deleteIfExists() }
+                }
+            }
+        } catch (ex: Exception) {
+            LOGGER.warn("Failed to prune animation cache", ex)
+        }
+    }
+}
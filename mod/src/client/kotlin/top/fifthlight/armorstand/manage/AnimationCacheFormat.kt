@@ -0,0 +1,419 @@
+package top.fifthlight.armorstand.manage
+
+import it.unimi.dsi.fastutil.bytes.AbstractByteList
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import it.unimi.dsi.fastutil.floats.FloatList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import top.fifthlight.blazerod.model.Expression
+import top.fifthlight.blazerod.model.HumanoidTag
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.*
+import top.fifthlight.blazerod.model.util.MutableFloat
+import top.fifthlight.blazerod.model.vmd.*
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+
+// Big-endian flat arrays of keyframes and curves. Nodes are stored by name and humanoid tag only, as node ids of the
+// animation file never match the scene it is played on.
+object AnimationCacheFormat {
+    private const val MAGIC = 0x41534143 // ASAC
+    private const val VERSION = 2
+
+    private const val TYPE_TRANSLATION = 0
+    private const val TYPE_SCALE = 1
+    private const val TYPE_ROTATION = 2
+    private const val TYPE_MORPH = 3
+    private const val TYPE_EXPRESSION = 4
+    private const val TYPE_CAMERA_FOV = 5
+    private const val TYPE_MMD_CAMERA_DISTANCE = 6
+    private const val TYPE_MMD_CAMERA_TARGET = 7
+    private const val TYPE_MMD_CAMERA_ROTATION = 8
+
+    private const val INTERPOLATION_LINEAR = 0
+    private const val INTERPOLATION_STEP = 1
+    private const val INTERPOLATION_CUBIC_SPLINE = 2
+    private const val INTERPOLATION_VMD_BEZIER = 3
+
+    private const val INTERPOLATOR_DEFAULT = 0
+    private const val INTERPOLATOR_VMD_VECTOR3F = 1
+    private const val INTERPOLATOR_VMD_SIMPLE_VECTOR3F = 2
+    private const val INTERPOLATOR_VMD_QUATERNIONF = 3
+    private const val INTERPOLATOR_VMD_FLOAT = 4
+
+    private enum class ValueKind(val components: Int) {
+        VECTOR3F(3),
+        QUATERNIONF(4),
+        FLOAT(1),
+    }
+
+    private fun typeOf(tag: Int): AnimationChannel.Type<*, *> = when (tag) {
+        TYPE_TRANSLATION -> AnimationChannel.Type.Translation
+        TYPE_SCALE -> AnimationChannel.Type.Scale
+        TYPE_ROTATION -> AnimationChannel.Type.Rotation
+        TYPE_MORPH -> AnimationChannel.Type.Morph
+        TYPE_EXPRESSION -> AnimationChannel.Type.Expression
+        TYPE_CAMERA_FOV -> AnimationChannel.Type.CameraFov
+        TYPE_MMD_CAMERA_DISTANCE -> AnimationChannel.Type.MMDCameraDistance
+        TYPE_MMD_CAMERA_TARGET -> AnimationChannel.Type.MMDCameraTarget
+        TYPE_MMD_CAMERA_ROTATION -> AnimationChannel.Type.MMDCameraRotation
+        else -> error("Bad channel type: $tag")
+    }
+
+    private fun tagOf(type: AnimationChannel.Type<*, *>) = when (type) {
+        AnimationChannel.Type.Translation -> TYPE_TRANSLATION
+        AnimationChannel.Type.Scale -> TYPE_SCALE
+        AnimationChannel.Type.Rotation -> TYPE_ROTATION
+        AnimationChannel.Type.Morph -> TYPE_MORPH
+        AnimationChannel.Type.Expression -> TYPE_EXPRESSION
+        AnimationChannel.Type.CameraFov -> TYPE_CAMERA_FOV
+        AnimationChannel.Type.MMDCameraDistance -> TYPE_MMD_CAMERA_DISTANCE
+        AnimationChannel.Type.MMDCameraTarget -> TYPE_MMD_CAMERA_TARGET
+        AnimationChannel.Type.MMDCameraRotation -> TYPE_MMD_CAMERA_ROTATION
+    }
+
+    private fun valueKindOf(type: AnimationChannel.Type<*, *>) = when (type) {
+        AnimationChannel.Type.Translation,
+        AnimationChannel.Type.Scale,
+        AnimationChannel.Type.MMDCameraTarget,
+        AnimationChannel.Type.MMDCameraRotation -> ValueKind.VECTOR3F
+
+        AnimationChannel.Type.Rotation -> ValueKind.QUATERNIONF
+
+        AnimationChannel.Type.Morph,
+        AnimationChannel.Type.Expression,
+        AnimationChannel.Type.CameraFov,
+        AnimationChannel.Type.MMDCameraDistance -> ValueKind.FLOAT
+    }
+
+    private fun interpolationTagOf(interpolation: AnimationInterpolation) = when (interpolation) {
+        AnimationInterpolation.linear -> INTERPOLATION_LINEAR
+        AnimationInterpolation.step -> INTERPOLATION_STEP
+        AnimationInterpolation.cubicSpline -> INTERPOLATION_CUBIC_SPLINE
+        VmdBezierInterpolation -> INTERPOLATION_VMD_BEZIER
+        else -> null
+    }
+
+    private fun interpolationOf(tag: Int) = when (tag) {
+        INTERPOLATION_LINEAR -> AnimationInterpolation.linear
+        INTERPOLATION_STEP -> AnimationInterpolation.step
+        INTERPOLATION_CUBIC_SPLINE -> AnimationInterpolation.cubicSpline
+        INTERPOLATION_VMD_BEZIER -> VmdBezierInterpolation
+        else -> error("Bad interpolation: $tag")
+    }
+
+    private fun interpolatorTagOf(interpolator: AnimationInterpolator<*>) = when (interpolator) {
+        Vector3AnimationInterpolator,
+        QuaternionAnimationInterpolator,
+        FloatAnimationInterpolator -> INTERPOLATOR_DEFAULT
+
+        is VmdBezierVector3fInterpolator -> INTERPOLATOR_VMD_VECTOR3F
+        is VmdBezierSimpleVector3fInterpolator -> INTERPOLATOR_VMD_SIMPLE_VECTOR3F
+        is VmdBezierQuaternionfInterpolator -> INTERPOLATOR_VMD_QUATERNIONF
+        is VmdBezierFloatInterpolator -> INTERPOLATOR_VMD_FLOAT
+        else -> null
+    }
+
+    private fun interpolatorOf(tag: Int, kind: ValueKind): AnimationInterpolator<*> = when (tag) {
+        INTERPOLATOR_DEFAULT -> when (kind) {
+            ValueKind.VECTOR3F -> Vector3AnimationInterpolator
+            ValueKind.QUATERNIONF -> QuaternionAnimationInterpolator
+            ValueKind.FLOAT -> FloatAnimationInterpolator
+        }
+
+        INTERPOLATOR_VMD_VECTOR3F -> VmdBezierVector3fInterpolator()
+        INTERPOLATOR_VMD_SIMPLE_VECTOR3F -> VmdBezierSimpleVector3fInterpolator()
+        INTERPOLATOR_VMD_QUATERNIONF -> VmdBezierQuaternionfInterpolator()
+        INTERPOLATOR_VMD_FLOAT -> VmdBezierFloatInterpolator()
+        else -> error("Bad interpolator: $tag")
+    }
+
+    private fun DataOutputStream.writeString(string: String?) {
+        if (string == null) {
+            writeInt(-1)
+            return
+        }
+        val bytes = string.toByteArray()
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun ByteBuffer.getString(): String? {
+        val length = getInt()
+        if (length < 0) {
+            return null
+        }
+        val bytes = ByteArray(length)
+        get(bytes)
+        return String(bytes)
+    }
+
+    private fun DataOutputStream.writeNodeData(data: AnimationChannel.Type.NodeData) {
+        writeString(data.targetNodeName)
+        writeString(data.targetHumanoidTag?.name)
+    }
+
+    private fun ByteBuffer.getNodeData() = AnimationChannel.Type.NodeData(
+        targetNode = null,
+        targetNodeName = getString(),
+        targetHumanoidTag = getString()?.let { HumanoidTag.valueOf(it) },
+    )
+
+    private fun DataOutputStream.writeChannelData(type: AnimationChannel.Type<*, *>, data: Any?) = when (type) {
+        AnimationChannel.Type.Translation, AnimationChannel.Type.Scale, AnimationChannel.Type.Rotation -> {
+            data as AnimationChannel.Type.TransformData
+            writeNodeData(data.node)
+            writeByte(data.transformId.ordinal)
+        }
+
+        AnimationChannel.Type.Morph -> {
+            data as AnimationChannel.Type.MorphData
+            writeNodeData(data.nodeData)
+            writeInt(data.targetMorphGroupIndex)
+        }
+
+        AnimationChannel.Type.Expression -> {
+            data as AnimationChannel.Type.ExpressionData
+            writeString(data.name)
+            writeString(data.tag?.name)
+        }
+
+        AnimationChannel.Type.CameraFov,
+        AnimationChannel.Type.MMDCameraDistance,
+        AnimationChannel.Type.MMDCameraTarget,
+        AnimationChannel.Type.MMDCameraRotation -> {
+            data as AnimationChannel.Type.CameraData
+            writeString(data.cameraName)
+        }
+    }
+
+    private fun ByteBuffer.getChannelData(type: AnimationChannel.Type<*, *>): Any = when (type) {
+        AnimationChannel.Type.Translation, AnimationChannel.Type.Scale, AnimationChannel.Type.Rotation ->
+            AnimationChannel.Type.TransformData(
+                node = getNodeData(),
+                transformId = TransformId.entries[get().toInt()],
+            )
+
+        AnimationChannel.Type.Morph -> AnimationChannel.Type.MorphData(
+            nodeData = getNodeData(),
+            targetMorphGroupIndex = getInt(),
+        )
+
+        AnimationChannel.Type.Expression -> AnimationChannel.Type.ExpressionData(
+            name = getString(),
+            tag = getString()?.let { Expression.Tag.valueOf(it) },
+        )
+
+        AnimationChannel.Type.CameraFov,
+        AnimationChannel.Type.MMDCameraDistance,
+        AnimationChannel.Type.MMDCameraTarget,
+        AnimationChannel.Type.MMDCameraRotation -> AnimationChannel.Type.CameraData(
+            cameraName = getString() ?: error("Camera channel without camera name"),
+        )
+    }
+
+    private fun indexerTimes(indexer: AnimationKeyFrameIndexer): FloatList? = when (indexer) {
+        is ListAnimationKeyFrameIndexer -> indexer.times
+        is AccessorAnimationKeyFrameIndexer -> indexer.times
+        else -> null
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun DataOutputStream.writeKeyFrameValues(kind: ValueKind, keyframeData: AnimationKeyFrameData<*>) {
+        writeInt(keyframeData.frames)
+        writeByte(keyframeData.elements)
+        when (kind) {
+            ValueKind.VECTOR3F -> {
+                val values = List(keyframeData.elements) { Vector3f() }
+                for (frame in 0 until keyframeData.frames) {
+                    (keyframeData as AnimationKeyFrameData<Vector3f>).get(frame, values)
+                    for (value in values) {
+                        writeFloat(value.x)
+                        writeFloat(value.y)
+                        writeFloat(value.z)
+                    }
+                }
+            }
+
+            ValueKind.QUATERNIONF -> {
+                val values = List(keyframeData.elements) { Quaternionf() }
+                for (frame in 0 until keyframeData.frames) {
+                    (keyframeData as AnimationKeyFrameData<Quaternionf>).get(frame, values)
+                    for (value in values) {
+                        writeFloat(value.x)
+                        writeFloat(value.y)
+                        writeFloat(value.z)
+                        writeFloat(value.w)
+                    }
+                }
+            }
+
+            ValueKind.FLOAT -> {
+                val values = List(keyframeData.elements) { MutableFloat() }
+                for (frame in 0 until keyframeData.frames) {
+                    (keyframeData as AnimationKeyFrameData<MutableFloat>).get(frame, values)
+                    for (value in values) {
+                        writeFloat(value.value)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun ByteBuffer.getKeyFrameValues(kind: ValueKind): AnimationKeyFrameData<*> {
+        val frames = getInt()
+        val elements = get().toInt()
+        val values = getFloatArray(frames * elements * kind.components)
+        return when (kind) {
+            ValueKind.VECTOR3F -> AnimationKeyFrameData.ofVector3f(values, elements)
+            ValueKind.QUATERNIONF -> AnimationKeyFrameData.ofQuaternionf(values, elements)
+            ValueKind.FLOAT -> AnimationKeyFrameData.ofFloat(values, elements)
+        }
+    }
+
+    private fun ByteBuffer.getFloatArray(size: Int): FloatArray {
+        val array = FloatArray(size)
+        slice(position(), size * 4).order(order()).asFloatBuffer().get(array)
+        position(position() + size * 4)
+        return array
+    }
+
+    private class MappedByteList(private val buffer: ByteBuffer) : AbstractByteList() {
+        override val size: Int
+            get() = buffer.capacity()
+
+        override fun getByte(index: Int) = buffer.get(index)
+    }
+
+    // Channels sharing an indexer with the channel before store their times once, and share the indexer again when
+    // decoded, so AnimationLoader can play them as one node track
+    private fun encodeChannel(
+        output: DataOutputStream,
+        channel: AnimationChannel<*, *>,
+        previousIndexer: AnimationKeyFrameIndexer?,
+    ): Boolean {
+        if (channel !is SimpleAnimationChannel<*, *>) {
+            return false
+        }
+        val interpolation = interpolationTagOf(channel.interpolation) ?: return false
+        val interpolator = interpolatorTagOf(channel.interpolator) ?: return false
+        val times = indexerTimes(channel.indexer) ?: return false
+        val curve = channel.getComponent(VmdBezierChannelComponent.VmdBezierChannelComponentType)
+        if ((interpolation == INTERPOLATION_VMD_BEZIER) != (curve != null)) {
+            return false
+        }
+
+        output.writeByte(tagOf(channel.type))
+        output.writeChannelData(channel.type, channel.data)
+        output.writeByte(interpolation)
+        output.writeByte(interpolator)
+        val sharedTimes = channel.indexer === previousIndexer
+        output.writeBoolean(sharedTimes)
+        if (!sharedTimes) {
+            output.writeInt(times.size)
+            for (i in 0 until times.size) {
+                output.writeFloat(times.getFloat(i))
+            }
+        }
+        output.writeKeyFrameValues(valueKindOf(channel.type), channel.keyframeData)
+        output.writeBoolean(curve != null)
+        curve?.let {
+            output.writeInt(curve.frames)
+            output.writeByte(curve.channels)
+            output.writeBoolean(curve.cameraOrder)
+            for (i in 0 until curve.values.size) {
+                output.writeByte(curve.values.getByte(i).toInt())
+            }
+        }
+        return true
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun ByteBuffer.getChannel(
+        curveTable: VmdBezierCurveTable,
+        previousIndexer: AnimationKeyFrameIndexer?,
+    ): SimpleAnimationChannel<*, *> {
+        val type = typeOf(get().toInt()) as AnimationChannel.Type<Any, Any>
+        val kind = valueKindOf(type)
+        val data = getChannelData(type)
+        val interpolation = interpolationOf(get().toInt())
+        val interpolator = interpolatorOf(get().toInt(), kind) as AnimationInterpolator<Any>
+        val indexer = if (get() != 0.toByte()) {
+            previousIndexer ?: error("Shared keyframe times without a channel before")
+        } else {
+            ListAnimationKeyFrameIndexer(FloatArrayList.wrap(getFloatArray(getInt())))
+        }
+        val keyframeData = getKeyFrameValues(kind) as AnimationKeyFrameData<Any>
+        val components = if (get() != 0.toByte()) {
+            val frames = getInt()
+            val channels = get().toInt()
+            val cameraOrder = get() != 0.toByte()
+            val size = frames * 4 * channels
+            val values = MappedByteList(slice(position(), size))
+            position(position() + size)
+            listOf(VmdBezierChannelComponent(values, frames, channels, cameraOrder, curveTable))
+        } else {
+            listOf()
+        }
+        return SimpleAnimationChannel(
+            type = type,
+            data = data,
+            components = components,
+            indexer = indexer,
+            interpolator = interpolator,
+            keyframeData = keyframeData,
+            interpolation = interpolation,
+            defaultValue = when (kind) {
+                ValueKind.VECTOR3F -> ::Vector3f
+                ValueKind.QUATERNIONF -> ::Quaternionf
+                ValueKind.FLOAT -> ::MutableFloat
+            },
+        )
+    }
+
+    /**
+     * Encode the animations, or return null if any channel can't be stored in this format.
+     */
+    fun encode(animations: List<Animation>): ByteArray? {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { output ->
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+            output.writeInt(animations.size)
+            for (animation in animations) {
+                output.writeString(animation.name)
+                output.writeInt(animation.channels.size)
+                var previousIndexer: AnimationKeyFrameIndexer? = null
+                for (channel in animation.channels) {
+                    if (!encodeChannel(output, channel, previousIndexer)) {
+                        return null
+                    }
+                    previousIndexer = (channel as SimpleAnimationChannel<*, *>).indexer
+                }
+            }
+        }
+        return bytes.toByteArray()
+    }
+
+    /**
+     * Decode animations from the buffer. The returned animations keep referencing the buffer.
+     */
+    fun decode(buffer: ByteBuffer): List<Animation> {
+        require(buffer.getInt() == MAGIC) { "Bad animation cache magic" }
+        val version = buffer.getInt()
+        require(version == VERSION) { "Unsupported animation cache version: $version" }
+        return List(buffer.getInt()) {
+            val name = buffer.getString()
+            // VMD curves of one file share a table, like VmdLoader does
+            val curveTable = VmdBezierCurveTable()
+            var previousIndexer: AnimationKeyFrameIndexer? = null
+            Animation(
+                name = name,
+                channels = List(buffer.getInt()) {
+                    buffer.getChannel(curveTable, previousIndexer).also { previousIndexer = it.indexer }
+                },
+            )
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package top.fifthlight.armorstand.manage
+
+import com.mojang.logging.LogUtils
+import top.fifthlight.armorstand.util.ModelHash
+import top.fifthlight.armorstand.util.prepare
+import top.fifthlight.armorstand.util.prepareQuery
+import top.fifthlight.armorstand.util.transaction
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.AnimationLoader
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.animation.Animation
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+// Retarget results keyed by model and animation file hash, in memory and in the database
+object AnimationRetargetCache {
+    private val LOGGER = LogUtils.getLogger()
+
+    private data class Key(
+        val sceneHash: ModelHash,
+        val animationHash: ModelHash,
+        val animationIndex: Int,
+    )
+
+    private val targets = ConcurrentHashMap<Key, IntArray>()
+
+    private fun encode(targets: IntArray): ByteArray = ByteBuffer.allocate(targets.size * 4).apply {
+        asIntBuffer().put(targets)
+    }.array()
+
+    private fun decode(bytes: ByteArray): IntArray? {
+        if (bytes.size % 4 != 0) {
+            return null
+        }
+        return IntArray(bytes.size / 4).also { ByteBuffer.wrap(bytes).asIntBuffer().get(it) }
+    }
+
+    private fun read(key: Key): IntArray? {
+        val connectionPool = ModelManager.connectionPool ?: return null
+        return try {
+            connectionPool.transaction {
+                prepareQuery(
+                    """
+                    SELECT targets FROM animation_retarget
+                    WHERE scene_sha256 = ? AND animation_sha256 = ? AND animation_index = ? AND retarget_version = ?
+                    LIMIT 1;
+                    """
+                ) {
+                    setBytes(1, key.sceneHash.hash)
+                    setBytes(2, key.animationHash.hash)
+                    setInt(3, key.animationIndex)
+                    setInt(4, AnimationLoader.RETARGET_VERSION)
+                }.use { result ->
+                    if (result.next()) {
+                        decode(result.getBytes(1))
+                    } else {
+                        null
+                    }
+                }
+            }
+        } catch (ex: Exception) {
+            LOGGER.warn("Failed to read retarget cache", ex)
+            null
+        }
+    }
+
+    private fun write(key: Key, targets: IntArray) {
+        val connectionPool = ModelManager.connectionPool ?: return
+        try {
+            connectionPool.transaction {
+                prepare(
+                    """
+                    MERGE INTO animation_retarget
+                    (scene_sha256, animation_sha256, animation_index, targets, retarget_version)
+                    KEY (scene_sha256, animation_sha256, animation_index)
+                    VALUES (?, ?, ?, ?, ?)
+                    """
+                ) {
+                    setBytes(1, key.sceneHash.hash)
+                    setBytes(2, key.animationHash.hash)
+                    setInt(3, key.animationIndex)
+                    setBytes(4, encode(targets))
+                    setInt(5, AnimationLoader.RETARGET_VERSION)
+                }
+            }
+        } catch (ex: Exception) {
+            LOGGER.warn("Failed to write retarget cache", ex)
+        }
+    }
+
+    private fun targetsOf(key: Key, scene: RenderScene, animation: Animation): IntArray {
+        targets[key]?.let { return it }
+        read(key)?.let { cached ->
+            // Scene loading may change between versions, so never trust stored indices blindly
+            if (AnimationLoader.isValidTargets(scene, animation, cached)) {
+                targets[key] = cached
+                return cached
+            }
+        }
+        return AnimationLoader.retarget(scene, animation).also {
+            targets[key] = it
+            write(key, it)
+        }
+    }
+
+    // Without hashes, channels are looked up by name as usual
+    fun load(
+        scene: RenderScene,
+        sceneHash: ModelHash?,
+        animation: Animation,
+        animationHash: ModelHash?,
+        animationIndex: Int = 0,
+    ): AnimationItem {
+        if (sceneHash == null || animationHash == null) {
+            return AnimationLoader.load(scene, animation)
+        }
+        val key = Key(sceneHash, animationHash, animationIndex)
+        return AnimationLoader.load(scene, animation, targetsOf(key, scene, animation))
+    }
+
+    // Database rows are pruned by ModelManager
+    fun prune(sceneHashes: Set<ModelHash>, animationHashes: Set<ModelHash>) {
+        targets.keys.removeIf { it.sceneHash !in sceneHashes || it.animationHash !in animationHashes }
+    }
+}
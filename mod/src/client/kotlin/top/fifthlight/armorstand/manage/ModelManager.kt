@@ -36,7 +36,8 @@ object ModelManager {
     private const val DEFAULT_MODEL_NAME = "armorstand.vrm"
     private const val DATABASE_NAME = ".cache"
     private val databaseFile = modelDir.resolve("$DATABASE_NAME.mv.db").toAbsolutePath()
-    private const val DATABASE_VERSION = 3
+    val animationCacheDir: Path = modelDir.resolve("$DATABASE_NAME-animations").toAbsolutePath()
+    private const val DATABASE_VERSION = 4
     var connectionPool: Pool<Connection>? = null
         private set
 
@@ -81,7 +82,19 @@ object ModelManager {
             CREATE INDEX idx_model_lastChanged ON model (lastChanged);
             CREATE INDEX idx_favorite_favorite_at ON favorite (favorite_at DESC);
             """
-        )
+        ),
+        3 to listOf(
+            """
+            CREATE TABLE IF NOT EXISTS animation_retarget(
+                scene_sha256 BINARY(32) NOT NULL,
+                animation_sha256 BINARY(32) NOT NULL,
+                animation_index INT NOT NULL,
+                targets VARBINARY NOT NULL,
+                retarget_version INT NOT NULL DEFAULT 0,
+                PRIMARY KEY (scene_sha256, animation_sha256, animation_index)
+            );
+            """
+        ),
     )
 
     private suspend fun waitUntilFirstScan(): Instant {
@@ -389,6 +402,32 @@ object ModelManager {
         return digest.digest()
     }
 
+    // Reuse the hash stored by the last scan if the file didn't change since
+    fun getFileHash(path: Path): ModelHash {
+        val absolutePath = path.toAbsolutePath().normalize()
+        val modelDir = modelDir.toAbsolutePath().normalize()
+        val connectionPool = connectionPool
+        if (connectionPool != null && absolutePath.startsWith(modelDir)) {
+            val lastChanged = absolutePath.getLastModifiedTime().toMillis()
+            val sha256 = connectionPool.transaction {
+                prepareQuery("SELECT sha256 FROM file WHERE path = ? AND lastChanged = ? LIMIT 1;") {
+                    setString(1, absolutePath.relativeTo(modelDir).toString())
+                    setLong(2, lastChanged)
+                }.use { result ->
+                    if (result.next()) {
+                        result.getBytes(1)
+                    } else {
+                        null
+                    }
+                }
+            }
+            if (sha256 != null) {
+                return ModelHash(sha256)
+            }
+        }
+        return ModelHash(calculateSha256(absolutePath))
+    }
+
     private val _lastScanTime = MutableStateFlow<Instant?>(null)
     val lastScanTime = _lastScanTime.asStateFlow()
 
@@ -451,7 +490,7 @@ object ModelManager {
                         sha256
                     } else {
                         val sha256 = calculateSha256(path)
-                        prepare("INSERT INTO file (path, lastChanged, sha256) VALUES (?, ?, ?)") {
+                        prepare("MERGE INTO file (path, lastChanged, sha256) KEY (path) VALUES (?, ?, ?)") {
                             setString(1, pathStr)
                             setLong(2, lastChanged)
                             setBytes(3, sha256)
@@ -536,8 +575,10 @@ object ModelManager {
                     prepare("MERGE INTO scanned_animation_paths (path) KEY (path) VALUES (?)") {
                         setString(1, pathStr)
                     }
-                    prepareQuery("SELECT COUNT(*) FROM animation WHERE path = ? LIMIT 1;") {
+                    // Edited files get a new hash, which the animation caches are keyed by
+                    prepareQuery("SELECT COUNT(*) FROM animation WHERE path = ? AND lastChanged = ? LIMIT 1;") {
                         setString(1, pathStr)
+                        setLong(2, lastChanged)
                     }.use { result ->
                         result.skipToInitialRow()
                         if (result.getInt(1) > 0) {
@@ -615,12 +656,38 @@ object ModelManager {
                     (SELECT 1 FROM scanned_thumbnail_sha256 WHERE scanned_thumbnail_sha256.sha256 = embed_thumbnails.sha256)
                 """
             )
+            // Embedded animations are keyed by the model hash
+            execute(
+                """
+                    DELETE FROM animation_retarget
+                    WHERE NOT EXISTS
+                    (SELECT 1 FROM model WHERE model.sha256 = animation_retarget.scene_sha256)
+                    OR NOT EXISTS
+                    (SELECT 1 FROM animation WHERE animation.sha256 = animation_retarget.animation_sha256
+                     UNION ALL
+                     SELECT 1 FROM model WHERE model.sha256 = animation_retarget.animation_sha256)
+                """
+            )
             execute("DROP TABLE scanned_file_sha256")
             execute("DROP TABLE scanned_model_paths")
             execute("DROP TABLE scanned_animation_paths")
             execute("DROP TABLE scanned_thumbnail_sha256")
         }
 
+        fun Connection.queryHashes(statement: String) = query(statement).use { result ->
+            buildSet {
+                while (result.next()) {
+                    add(ModelHash(result.getBytes(1)))
+                }
+            }
+        }
+
+        val (modelHashes, animationHashes) = transaction {
+            Pair(queryHashes("SELECT sha256 FROM model"), queryHashes("SELECT sha256 FROM animation"))
+        }
+        AnimationCache.prune(animationHashes)
+        AnimationRetargetCache.prune(modelHashes, animationHashes + modelHashes)
+
         _lastScanTime.value = Instant.now()
         LOGGER.info("Finish scanning models, took $time")
     }
@@ -716,6 +783,7 @@ object ModelManager {
                     execute("DROP TABLE IF EXISTS animation;")
                     execute("DROP TABLE IF EXISTS embed_thumbnails;")
                     execute("DROP TABLE IF EXISTS favorite;")
+                    execute("DROP TABLE IF EXISTS animation_retarget;")
                     execute("CREATE TABLE version (version INTEGER);")
                     prepare("INSERT INTO version (version) VALUES (?);") { setInt(1, DATABASE_VERSION) }
                     execute(
@@ -777,6 +845,18 @@ object ModelManager {
                     execute("CREATE INDEX idx_model_name ON model (name);")
                     execute("CREATE INDEX idx_model_lastChanged ON model (lastChanged);")
                     execute("CREATE INDEX idx_favorite_favorite_at ON favorite (favorite_at DESC);")
+                    execute(
+                        """
+                        CREATE TABLE animation_retarget(
+                            scene_sha256 BINARY(32) NOT NULL,
+                            animation_sha256 BINARY(32) NOT NULL,
+                            animation_index INT NOT NULL,
+                            targets VARBINARY NOT NULL,
+                            retarget_version INT NOT NULL DEFAULT 0,
+                            PRIMARY KEY (scene_sha256, animation_sha256, animation_index)
+                        );
+                        """
+                    )
                     LOGGER.info("Recreated tables")
                 }
 
@@ -785,7 +865,7 @@ object ModelManager {
                 }
 
                 else -> {
-                    (2 until DATABASE_VERSION)
+                    (version until DATABASE_VERSION)
                         .asSequence()
                         .map { upgradeStatements[it] ?: error("No upgrade statement for version $it") }
                         .forEach { statements ->
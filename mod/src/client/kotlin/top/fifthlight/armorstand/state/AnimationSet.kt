@@ -2,10 +2,12 @@ package top.fifthlight.armorstand.state
 
 import net.minecraft.util.Identifier
 import org.slf4j.LoggerFactory
+import top.fifthlight.armorstand.config.ConfigHolder
+import top.fifthlight.armorstand.manage.AnimationCache
+import top.fifthlight.armorstand.manage.AnimationRetargetCache
+import top.fifthlight.armorstand.util.ModelHash
 import top.fifthlight.armorstand.util.ModelLoaders
 import top.fifthlight.blazerod.animation.AnimationItem
-import top.fifthlight.blazerod.animation.AnimationLoader
-import top.fifthlight.blazerod.model.ModelFileLoaders
 import top.fifthlight.blazerod.model.RenderScene
 import java.nio.file.Path
 import kotlin.io.path.extension
@@ -133,7 +135,17 @@ data class FullAnimationSet(
 data object AnimationSetLoader {
     private val logger = LoggerFactory.getLogger(AnimationSetLoader::class.java)
 
-    fun load(scene: RenderScene, directory: Path): AnimationSet {
+    // Slot name used by GlobalConfig.bakedAnimationSlots, custom and item animations share one slot each
+    private fun slotOf(fileName: String) = fileName.lowercase().let { name ->
+        when {
+            name.startsWith("custom") -> "custom"
+            name.startsWith("itemactive") -> "itemactive"
+            else -> name
+        }
+    }
+
+    fun load(scene: RenderScene, sceneHash: ModelHash?, directory: Path): AnimationSet {
+        val config = ConfigHolder.config.value
         val files = try {
             if (!directory.isDirectory()) {
                 return AnimationSet.EMPTY
@@ -172,9 +184,14 @@ data object AnimationSetLoader {
             }
 
             fun load() = try {
-                val result = ModelFileLoaders.probeAndLoad(file, directory)
-                val animation = result?.animations?.firstOrNull() ?: return null
-                AnimationLoader.load(scene, animation)
+                val loaded = AnimationCache.load(file, directory) ?: return null
+                val animation = loaded.animations.firstOrNull() ?: return null
+                val item = AnimationRetargetCache.load(scene, sceneHash, animation, loaded.hash)
+                if (slotOf(name) in config.bakedAnimationSlots) {
+                    item.bake(scene, config.animationBakeSampleRate)
+                } else {
+                    item
+                }
             } catch (ex: Exception) {
                 logger.warn("Failed to load animation file: $file", ex)
                 null
@@ -0,0 +1,70 @@
+package top.fifthlight.armorstand.state
+
+import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.SharedPose
+import top.fifthlight.blazerod.model.TransformId
+import kotlin.math.floor
+
+// Only evaluation is shared. Body yaw and head rotation move nearly every skin matrix, so buffers stay per player.
+object CrowdPoseManager {
+    // Animation time is quantized to this rate, so players a few milliseconds apart share the same pose
+    private const val SAMPLES_PER_SECOND = 30.0
+
+    private class Key(
+        val scene: RenderScene,
+        val item: AnimationItem,
+        val sample: Long,
+    ) {
+        override fun equals(other: Any?) =
+            other is Key && other.scene === scene && other.item === item && other.sample == sample
+
+        override fun hashCode(): Int {
+            var result = System.identityHashCode(scene)
+            result = 31 * result + System.identityHashCode(item)
+            result = 31 * result + sample.hashCode()
+            return result
+        }
+    }
+
+    private class Entry(val pose: SharedPose) {
+        var item: AnimationItem? = null
+    }
+
+    private val usedPoses = mutableMapOf<Key, Entry>()
+    private val freePoses = mutableMapOf<RenderScene, ArrayDeque<Entry>>()
+
+    fun get(scene: RenderScene, item: AnimationItem, time: Double): SharedPose {
+        val sample = floor(time * SAMPLES_PER_SECOND).toLong()
+        val key = Key(scene, item, sample)
+        usedPoses[key]?.let { return it.pose }
+
+        val entry = freePoses[scene]?.removeLastOrNull() ?: Entry(SharedPose(scene))
+        val instance = entry.pose.instance
+        if (entry.item !== item) {
+            instance.clearTransform()
+            instance.resetMorphWeights()
+            entry.item = item
+        }
+        item.apply(instance, (sample / SAMPLES_PER_SECOND).toFloat())
+        // Body yaw is applied per player as an override
+        instance.setTransformDecomposed(scene.rootNode.nodeIndex, TransformId.RELATIVE_ANIMATION) {
+            rotation.identity()
+        }
+        instance.updateRenderData()
+        usedPoses[key] = entry
+        return entry.pose
+    }
+
+    fun endFrame() {
+        // Poses not used in this frame are released, the ones used are kept for the next frame
+        for (entries in freePoses.values) {
+            entries.forEach { it.pose.close() }
+        }
+        freePoses.clear()
+        for ((key, entry) in usedPoses) {
+            freePoses.getOrPut(key.scene) { ArrayDeque() }.add(entry)
+        }
+        usedPoses.clear()
+    }
+}
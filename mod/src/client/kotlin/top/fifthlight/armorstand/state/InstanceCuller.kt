@@ -0,0 +1,121 @@
+package top.fifthlight.armorstand.state
+
+import org.joml.FrustumIntersection
+import org.joml.Matrix4f
+import org.joml.Matrix4fc
+import org.joml.Vector3f
+import top.fifthlight.armorstand.config.ConfigHolder
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.util.FrameCounters
+import top.fifthlight.blazerod.util.IrisApiWrapper
+import kotlin.math.sqrt
+
+// Bounds are from the last render data update, so they are one pose behind and tested with a margin
+object InstanceCuller {
+    // Grow bounds by this part of their size, plus MIN_MARGIN model units
+    private const val RELATIVE_MARGIN = 0.1f
+    private const val MIN_MARGIN = 0.25f
+
+    // Instances out of view are evaluated every this many frames, so animation can move them back into view
+    private const val REFRESH_INTERVAL = 10
+
+    class InstanceState {
+        internal var culledFrames = 0
+
+        // Whether the instance is culled, but should be evaluated in this frame to refresh its bounds
+        var refreshBounds = false
+            internal set
+    }
+
+    class Counters : FrameCounters() {
+        var instances by counter()
+            internal set
+        var culledInstances by counter()
+            internal set
+        var primitives by counter()
+            internal set
+        var culledPrimitives by counter()
+            internal set
+    }
+
+    private val currentCounters = Counters()
+    val counters = Counters()
+
+    private val projectionMatrix = Matrix4f()
+    private var hasProjection = false
+
+    private val cacheMatrix = Matrix4f()
+    private val frustum = FrustumIntersection()
+    private val cacheMin = Vector3f()
+    private val cacheMax = Vector3f()
+
+    fun beginFrame(projectionMatrix: Matrix4fc) {
+        this.projectionMatrix.set(projectionMatrix)
+        hasProjection = true
+    }
+
+    private fun testBox(min: Vector3f, max: Vector3f): Boolean {
+        val margin = maxOf(max.x - min.x, max.y - min.y, max.z - min.z) * RELATIVE_MARGIN + MIN_MARGIN
+        min.sub(margin, margin, margin)
+        max.add(margin, margin, margin)
+        return frustum.testAab(min, max)
+    }
+
+    // Returns whether the whole instance is culled, otherwise marks each primitive visible or not
+    fun cull(state: InstanceState, instance: ModelInstance, modelViewMatrix: Matrix4fc): Boolean {
+        state.refreshBounds = false
+        val config = ConfigHolder.config.value
+        val visiblePrimitives = instance.modelData.visiblePrimitives
+        val bounds = instance.modelData.bounds
+        currentCounters.instances++
+        currentCounters.primitives += visiblePrimitives.size
+
+        val maxDistance = config.maxDrawDistance
+        if (maxDistance > 0f) {
+            val x = modelViewMatrix.m30()
+            val y = modelViewMatrix.m31()
+            val z = modelViewMatrix.m32()
+            if (sqrt(x * x + y * y + z * z) > maxDistance) {
+                currentCounters.culledInstances++
+                currentCounters.culledPrimitives += visiblePrimitives.size
+                return true
+            }
+        }
+
+        // Models casting shadows out of view must still be drawn in the shadow pass
+        if (!config.frustumCulling || !hasProjection || !bounds.valid || IrisApiWrapper.shaderPackInUse) {
+            state.culledFrames = 0
+            visiblePrimitives.setAll()
+            return false
+        }
+        frustum.set(projectionMatrix.mul(modelViewMatrix, cacheMatrix), false)
+
+        cacheMin.set(bounds.min)
+        cacheMax.set(bounds.max)
+        if (!testBox(cacheMin, cacheMax)) {
+            currentCounters.culledInstances++
+            currentCounters.culledPrimitives += visiblePrimitives.size
+            state.culledFrames++
+            state.refreshBounds = state.culledFrames % REFRESH_INTERVAL == 0
+            return true
+        }
+
+        state.culledFrames = 0
+        visiblePrimitives.setAll()
+        for (primitiveIndex in 0 until visiblePrimitives.size) {
+            if (!bounds.getPrimitive(primitiveIndex, cacheMin, cacheMax)) {
+                continue
+            }
+            if (!testBox(cacheMin, cacheMax)) {
+                visiblePrimitives.clear(primitiveIndex)
+                currentCounters.culledPrimitives++
+            }
+        }
+        return false
+    }
+
+    fun endFrame() {
+        hasProjection = false
+        currentCounters.moveTo(counters)
+    }
+}
@@ -0,0 +1,69 @@
+package top.fifthlight.armorstand.state
+
+import net.minecraft.client.MinecraftClient
+import org.joml.Matrix4fc
+import org.joml.Vector3f
+import top.fifthlight.armorstand.config.ConfigHolder
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.load.MeshLodGenerator
+import top.fifthlight.blazerod.util.FrameCounters
+import kotlin.math.sqrt
+import kotlin.math.tan
+
+// Models smaller than the configured part of the screen height draw LOD 1, and one level coarser each time it halves
+object MeshLodSelector {
+    private val maxLevel = MeshLodGenerator.DEFAULT_LEVELS.size
+
+    class Counters : FrameCounters() {
+        val instances = counters(maxLevel + 1)
+    }
+
+    private val currentCounters = Counters()
+    val counters = Counters()
+
+    private val cacheVector = Vector3f()
+
+    private fun levelOf(instance: ModelInstance, modelViewMatrix: Matrix4fc): Int {
+        val config = ConfigHolder.config.value
+        if (!config.meshLod) {
+            return 0
+        }
+        val bounds = instance.modelData.bounds
+        if (!bounds.valid) {
+            return 0
+        }
+        val radius = cacheVector.set(bounds.max).sub(bounds.min).length() / 2f
+        modelViewMatrix.getScale(cacheVector)
+        val viewRadius = radius * maxOf(cacheVector.x, cacheVector.y, cacheVector.z)
+
+        val x = modelViewMatrix.m30()
+        val y = modelViewMatrix.m31()
+        val z = modelViewMatrix.m32()
+        val distance = sqrt(x * x + y * y + z * z)
+        if (distance <= viewRadius) {
+            return 0
+        }
+        val fov = MinecraftClient.getInstance().options.fov.value
+        val halfFovTan = tan(Math.toRadians(fov / 2.0)).toFloat()
+        // Part of the screen height the model covers
+        val screenSize = viewRadius / (distance * halfFovTan)
+
+        var level = 0
+        var threshold = config.meshLodScreenSize
+        while (level < maxLevel && screenSize < threshold) {
+            level++
+            threshold /= 2f
+        }
+        return level
+    }
+
+    fun select(instance: ModelInstance, modelViewMatrix: Matrix4fc) {
+        val level = levelOf(instance, modelViewMatrix)
+        instance.modelData.lodLevel = level
+        currentCounters.instances[level]++
+    }
+
+    fun endFrame() {
+        currentCounters.moveTo(counters)
+    }
+}
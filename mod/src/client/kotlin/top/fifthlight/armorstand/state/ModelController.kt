@@ -5,12 +5,15 @@ import net.minecraft.entity.EntityPose
 import net.minecraft.entity.EntityType
 import net.minecraft.util.math.Direction
 import net.minecraft.util.math.MathHelper
+import org.joml.Quaternionf
 import top.fifthlight.armorstand.config.ConfigHolder
 import top.fifthlight.armorstand.extension.internal.PlayerEntityRenderStateExtInternal
 import top.fifthlight.armorstand.ui.model.AnimationViewModel
 import top.fifthlight.armorstand.util.toRadian
 import top.fifthlight.armorstand.vmc.VmcMarionetteManager
 import top.fifthlight.blazerod.animation.AnimationItem
+import top.fifthlight.blazerod.animation.AnimationPlayback
+import top.fifthlight.blazerod.animation.PoseLayerBlender
 import top.fifthlight.blazerod.animation.Timeline
 import top.fifthlight.blazerod.model.*
 import top.fifthlight.blazerod.model.resource.RenderExpression
@@ -24,7 +27,7 @@ sealed class ModelController {
     abstract fun apply(instance: ModelInstance)
 
     private class JointItem(
-        private val nodeIndex: Int,
+        val nodeIndex: Int,
     ) {
         fun update(instance: ModelInstance, func: NodeTransform.Decomposed.() -> Unit) {
             instance.setTransformDecomposed(nodeIndex, TransformId.RELATIVE_ANIMATION, func)
@@ -75,6 +78,9 @@ sealed class ModelController {
         private val invertHeadDirection: Boolean
             get() = ConfigHolder.config.value.invertHeadDirection
 
+        private val crowdMode: Boolean
+            get() = ConfigHolder.config.value.crowdMode
+
         fun calculateBlinkProgress(
             playerUuid: UUID,
             averageBlinkInterval: Long,
@@ -155,6 +161,8 @@ sealed class ModelController {
     class Predefined(
         private val animation: AnimationItem,
     ) : ModelController() {
+        private val playback = AnimationPlayback(animation)
+
         val timeline: Timeline = Timeline(
             duration = animation.duration.toDouble(),
             speed = AnimationViewModel.playSpeed.value,
@@ -165,7 +173,7 @@ sealed class ModelController {
 
         override fun apply(instance: ModelInstance) {
             val time = timeline.getCurrentTime(System.nanoTime())
-            animation.apply(instance, time.toFloat())
+            playback.apply(instance, time.toFloat())
         }
     }
 
@@ -173,6 +181,7 @@ sealed class ModelController {
         private val animationSet: FullAnimationSet,
         private val head: JointItem?,
         private val blinkExpression: ExpressionItem?,
+        private val blender: PoseLayerBlender,
     ) : ModelController() {
         constructor(
             scene: RenderScene,
@@ -181,6 +190,7 @@ sealed class ModelController {
             animationSet = animationSet,
             head = scene.getBone(HumanoidTag.HEAD),
             blinkExpression = scene.getExpression(Expression.Tag.BLINK),
+            blender = PoseLayerBlender(scene),
         )
 
         sealed class State {
@@ -233,13 +243,22 @@ sealed class ModelController {
         private var state: State = State.Idle
         private var item: AnimationItem? = null
         private var timeline: Timeline? = null
+        private var previousItem: AnimationItem? = null
+        private var previousTimeline: Timeline? = null
+        private var crossfadeStartTime = 0L
         private var reset = false
         private var bodyYaw: Float = 0f
         private var headYaw: Float = 0f
         private var headPitch: Float = 0f
         private var blinkProgress: Float = 0f
+        private var crowdTimeline: Boolean = false
+        private val rotationOverrides = SharedPose.RotationOverrides(2)
+        private val overrideRotation = Quaternionf()
 
         companion object {
+            // State changes fade from the old animation to the new one in this time
+            private const val CROSSFADE_NANOSECONDS = 200_000_000L
+
             private val PlayerEntityRenderState.vehicleType
                 get() = (this as PlayerEntityRenderStateExtInternal).`armorstand$getRidingEntityType`()
             private val PlayerEntityRenderState.isSprinting
@@ -306,29 +325,78 @@ sealed class ModelController {
                 this.state = newState
             }
             val newItem = newState.getItem(animationSet)
-            if (newItem != item || timeline == null) {
+            val crowdMode = crowdMode
+            if (newItem != item || timeline == null || crowdTimeline != crowdMode) {
+                // Crowd mode shares poses between players, so it can't blend per player and switches directly
+                if (timeline != null && !crowdMode && !crowdTimeline) {
+                    previousItem = item
+                    previousTimeline = timeline
+                    crossfadeStartTime = System.nanoTime()
+                } else {
+                    previousItem = null
+                    previousTimeline = null
+                    reset = true
+                }
                 timeline = Timeline(
                     duration = newItem.duration.toDouble(),
                     speed = AnimationViewModel.playSpeed.value,
                     loop = true,
                 ).apply {
                     setLoop(newState.loop)
-                    play(System.nanoTime())
+                    // In crowd mode looping animations follow a global clock, so players in the same state share
+                    // the same pose
+                    play(if (crowdMode && newState.loop) 0L else System.nanoTime())
                 }
                 item = newItem
-                reset = true
+                crowdTimeline = crowdMode
             }
         }
 
+        // Drop transforms, IK solves, physics and morph weights left by the previous animation
+        private fun resetInstance(instance: ModelInstance) {
+            instance.clearTransform()
+            instance.resetMorphWeights()
+            blender.reset()
+        }
+
         override fun apply(instance: ModelInstance) {
             val timeline = timeline ?: return
             val item = item ?: return
             if (reset) {
-                instance.clearTransform()
+                resetInstance(instance)
                 reset = false
             }
-            val time = timeline.getCurrentTime(System.nanoTime())
-            item.apply(instance, time.toFloat())
+            val now = System.nanoTime()
+            val time = timeline.getCurrentTime(now)
+            if (crowdTimeline) {
+                val scene = instance.scene
+                val pose = CrowdPoseManager.get(scene, item, time)
+                rotationOverrides.clear()
+                rotationOverrides.add(scene.rootNode.nodeIndex, overrideRotation.rotationY(bodyYaw))
+                head?.let {
+                    rotationOverrides.add(it.nodeIndex, overrideRotation.rotationYXZ(headYaw, headPitch, 0f))
+                }
+                pose.applyTo(instance, rotationOverrides)
+                blinkExpression?.apply(instance, blinkProgress)
+                return
+            }
+            val previousItem = previousItem
+            val previousTimeline = previousTimeline
+            val crossfadeProgress = (now - crossfadeStartTime).toFloat() / CROSSFADE_NANOSECONDS
+            if (previousItem != null && previousTimeline != null && crossfadeProgress < 1f) {
+                blender.layers[0].set(previousItem, previousTimeline.getCurrentTime(now).toFloat())
+                blender.layers[1].set(item, time.toFloat(), weight = crossfadeProgress)
+            } else {
+                if (previousItem != null) {
+                    // The blender resets nodes, but not morph weights
+                    instance.resetMorphWeights()
+                }
+                this.previousItem = null
+                this.previousTimeline = null
+                blender.layers[0].set(item, time.toFloat())
+                blender.layers[1].clear()
+            }
+            blender.apply(instance)
             instance.setTransformDecomposed(instance.scene.rootNode.nodeIndex, TransformId.RELATIVE_ANIMATION) {
                 rotation.rotationY(bodyYaw)
             }
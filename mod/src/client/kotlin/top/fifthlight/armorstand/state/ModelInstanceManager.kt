@@ -7,13 +7,16 @@ import net.fabricmc.loader.api.FabricLoader
 import net.minecraft.client.MinecraftClient
 import top.fifthlight.armorstand.ArmorStand
 import top.fifthlight.armorstand.config.ConfigHolder
+import top.fifthlight.armorstand.manage.AnimationRetargetCache
+import top.fifthlight.armorstand.manage.ModelManager
+import top.fifthlight.armorstand.util.ModelHash
 import top.fifthlight.armorstand.vmc.VmcMarionetteManager
 import top.fifthlight.blazerod.animation.AnimationItem
-import top.fifthlight.blazerod.animation.AnimationLoader
 import top.fifthlight.blazerod.model.Metadata
 import top.fifthlight.blazerod.model.ModelFileLoaders
 import top.fifthlight.blazerod.model.ModelInstance
 import top.fifthlight.blazerod.model.RenderScene
+import top.fifthlight.blazerod.model.load.MeshLodGenerator
 import top.fifthlight.blazerod.model.load.ModelLoader
 import top.fifthlight.blazerod.util.RefCount
 import top.fifthlight.blazerod.util.TimeUtil
@@ -56,6 +59,7 @@ object ModelInstanceManager {
         data class Loaded(
             val metadata: Metadata?,
             val scene: RenderScene,
+            val sceneHash: ModelHash?,
             val animations: List<AnimationItem>,
             val animationSet: AnimationSet,
         ) : RefCount by scene, ModelCache()
@@ -70,12 +74,19 @@ object ModelInstanceManager {
 
         class Model(
             override val path: Path,
+            val sceneHash: ModelHash?,
             val animations: List<AnimationItem>,
             var lastAccessTime: Long,
             val metadata: Metadata?,
             val instance: ModelInstance,
             var controller: ModelController,
-        ) : RefCount by instance, ModelInstanceItem
+        ) : RefCount by instance, ModelInstanceItem {
+            val updateLodState = UpdateLodScheduler.InstanceState()
+            val cullState = InstanceCuller.InstanceState()
+
+            // Time physics was last advanced to, in nanoseconds, or -1 before the first update
+            var lastPhysicsTime = -1L
+        }
     }
 
     private suspend fun loadModel(path: Path): ModelCache = withContext(Dispatchers.Default) {
@@ -91,8 +102,10 @@ object ModelInstanceManager {
             val model = result.model ?: return@withContext ModelCache.Failed
             LOGGER.info("Model metadata: ${result.metadata}")
 
+            // LODs are part of the scene, so they are generated once per cached model
+            val meshLod = if (ConfigHolder.config.value.meshLod) MeshLodGenerator() else null
             val scene = try {
-                ModelLoader.loadModel(model) ?: run {
+                ModelLoader.loadModel(model, meshLod) ?: run {
                     LOGGER.warn("Model contains no scene")
                     return@withContext ModelCache.Failed
                 }
@@ -100,9 +113,19 @@ object ModelInstanceManager {
                 LOGGER.warn("Model scene load failed", ex)
                 return@withContext ModelCache.Failed
             }
-            val animations = result.animations?.map { AnimationLoader.load(scene, it) } ?: listOf()
+            meshLod?.let { LOGGER.info("Model $path mesh LOD: ${it.report}") }
+            val sceneHash = try {
+                ModelManager.getFileHash(modelPath)
+            } catch (ex: Exception) {
+                LOGGER.warn("Failed to hash model file, load animations without retarget cache", ex)
+                null
+            }
+            // Embedded animations are keyed by the model hash
+            val animations = result.animations?.mapIndexed { index, animation ->
+                AnimationRetargetCache.load(scene, sceneHash, animation, sceneHash, index)
+            } ?: listOf()
 
-            val defaultAnimationSet = AnimationSetLoader.load(scene, defaultAnimationDir)
+            val defaultAnimationSet = AnimationSetLoader.load(scene, sceneHash, defaultAnimationDir)
             val modelAnimation = modelPath.parent?.let { parentPath ->
                 listOf(
                     modelPath.nameWithoutExtension,
@@ -110,12 +133,13 @@ object ModelInstanceManager {
                 ).asSequence().map {
                     parentPath.resolve("$it.animations")
                 }.fold(defaultAnimationSet) { acc, path ->
-                    acc + AnimationSetLoader.load(scene, path)
+                    acc + AnimationSetLoader.load(scene, sceneHash, path)
                 }
             } ?: defaultAnimationSet
 
             ModelCache.Loaded(
                 scene = scene,
+                sceneHash = sceneHash,
                 animations = animations,
                 metadata = result.metadata,
                 animationSet = modelAnimation,
@@ -181,6 +205,7 @@ object ModelInstanceManager {
                 val scene = cache.scene
                 ModelInstanceItem.Model(
                     path = path,
+                    sceneHash = cache.sceneHash,
                     animations = cache.animations,
                     metadata = cache.metadata,
                     lastAccessTime = lastAccessTime,
@@ -0,0 +1,118 @@
+package top.fifthlight.armorstand.state
+
+import net.minecraft.client.MinecraftClient
+import org.joml.Matrix4fc
+import top.fifthlight.armorstand.config.ConfigHolder
+import top.fifthlight.blazerod.model.ModelInstance
+import top.fifthlight.blazerod.model.PoseExtrapolator
+import top.fifthlight.blazerod.util.FrameCounters
+import kotlin.math.sqrt
+import kotlin.math.tan
+
+// Instances skipped in a frame keep their last pose, so renderers reuse the pose data uploaded before
+object UpdateLodScheduler {
+    enum class Bucket(val interval: Int) {
+        FULL(1),
+        HALF(2),
+        QUARTER(4),
+        EIGHTH(8),
+    }
+
+    // tan(35°), half of the default vertical field of view
+    private const val DEFAULT_HALF_FOV_TAN = 0.7002075f
+
+    private var nextPhase = 0
+
+    class InstanceState {
+        // Spread instances in the same bucket over different frames
+        internal val phase = nextPhase++ and (Bucket.EIGHTH.interval - 1)
+        internal var lastUpdateFrame = -1L
+        internal var lastUpdateTime = 0L
+        internal var recordPending = false
+        internal var extrapolator: PoseExtrapolator? = null
+
+        var bucket = Bucket.FULL
+            internal set
+    }
+
+    class Counters : FrameCounters() {
+        val updated = counters(Bucket.entries.size)
+        val skipped = counters(Bucket.entries.size)
+    }
+
+    private var frame = 0L
+    private val currentCounters = Counters()
+    val counters = Counters()
+
+    private fun bucketOf(modelViewMatrix: Matrix4fc, modelScale: Float): Bucket {
+        val x = modelViewMatrix.m30()
+        val y = modelViewMatrix.m31()
+        val z = modelViewMatrix.m32()
+        if (z > 0f) {
+            // Behind the camera, only visible in shadows and reflections
+            return Bucket.EIGHTH
+        }
+        val config = ConfigHolder.config.value
+        val fov = MinecraftClient.getInstance().options.fov.value
+        val halfFovTan = tan(Math.toRadians(fov / 2.0)).toFloat()
+        // Distance the model would have at the default FOV and scale to appear in the same size on screen
+        val distance = sqrt(x * x + y * y + z * z) * halfFovTan / DEFAULT_HALF_FOV_TAN / modelScale
+        return when {
+            distance < config.updateLodHalfRateDistance -> Bucket.FULL
+            distance < config.updateLodQuarterRateDistance -> Bucket.HALF
+            distance < config.updateLodEighthRateDistance -> Bucket.QUARTER
+            else -> Bucket.EIGHTH
+        }
+    }
+
+    fun schedule(
+        state: InstanceState,
+        instance: ModelInstance,
+        modelViewMatrix: Matrix4fc,
+        modelScale: Float,
+        alwaysUpdate: Boolean,
+    ): Boolean {
+        val config = ConfigHolder.config.value
+        val time = System.nanoTime()
+        val bucket = if (!config.updateLod || alwaysUpdate) {
+            Bucket.FULL
+        } else {
+            bucketOf(modelViewMatrix, modelScale)
+        }
+        state.bucket = bucket
+
+        // The pose evaluated in the last update is finished now
+        if (state.recordPending && frame > state.lastUpdateFrame) {
+            state.extrapolator?.record(instance, state.lastUpdateTime)
+            state.recordPending = false
+        }
+
+        val sinceUpdate = frame - state.lastUpdateFrame
+        val update = state.lastUpdateFrame < 0 ||
+                sinceUpdate >= bucket.interval * 2 ||
+                (sinceUpdate >= bucket.interval && (frame + state.phase) % bucket.interval == 0L)
+        if (update) {
+            currentCounters.updated[bucket.ordinal]++
+            state.extrapolator?.restore(instance)
+            state.lastUpdateFrame = frame
+            state.lastUpdateTime = time
+            if (config.updateLodExtrapolation && bucket != Bucket.FULL) {
+                if (state.extrapolator?.scene !== instance.scene) {
+                    state.extrapolator = PoseExtrapolator(instance.scene)
+                }
+                state.recordPending = true
+            } else {
+                state.extrapolator = null
+            }
+        } else {
+            currentCounters.skipped[bucket.ordinal]++
+            state.extrapolator?.extrapolate(instance, time)
+        }
+        return update
+    }
+
+    fun endFrame() {
+        frame++
+        currentCounters.moveTo(counters)
+    }
+}
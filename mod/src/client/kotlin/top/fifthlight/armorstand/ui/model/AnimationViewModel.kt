@@ -9,13 +9,13 @@ import kotlinx.coroutines.launch
 import net.minecraft.client.MinecraftClient
 import org.slf4j.LoggerFactory
 import top.fifthlight.armorstand.PlayerRenderer
+import top.fifthlight.armorstand.manage.AnimationCache
+import top.fifthlight.armorstand.manage.AnimationRetargetCache
 import top.fifthlight.armorstand.manage.ModelManager
 import top.fifthlight.armorstand.state.ModelController
 import top.fifthlight.armorstand.state.ModelInstanceManager
 import top.fifthlight.armorstand.ui.state.AnimationScreenState
 import top.fifthlight.blazerod.animation.AnimationItem
-import top.fifthlight.blazerod.animation.AnimationLoader
-import top.fifthlight.blazerod.model.ModelFileLoaders
 import top.fifthlight.blazerod.model.ModelInstance
 import java.lang.ref.WeakReference
 
@@ -156,9 +156,14 @@ class AnimationViewModel(scope: CoroutineScope) : ViewModel(scope) {
                 scope.launch {
                     try {
                         val path = ModelManager.modelDir.resolve(source.path)
-                        val result = ModelFileLoaders.probeAndLoad(path)
-                        val animation = result?.animations?.firstOrNull() ?: error("No animation in file")
-                        val animationItem = AnimationLoader.load(instanceItem.instance.scene, animation)
+                        val loaded = AnimationCache.load(path) ?: error("No animation in file")
+                        val animation = loaded.animations.firstOrNull() ?: error("No animation in file")
+                        val animationItem = AnimationRetargetCache.load(
+                            scene = instanceItem.instance.scene,
+                            sceneHash = instanceItem.sceneHash,
+                            animation = animation,
+                            animationHash = loaded.hash,
+                        )
                         instanceItem.instance.clearTransform()
                         instanceItem.controller = ModelController.Predefined(animationItem)
                     } catch (ex: Throwable) {
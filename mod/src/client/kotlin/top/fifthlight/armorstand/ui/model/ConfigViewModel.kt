@@ -91,6 +91,7 @@ class ConfigViewModel(scope: CoroutineScope) : ViewModel(scope) {
                             showOtherPlayerModel = config.showOtherPlayerModel,
                             sendModelData = config.sendModelData,
                             hidePlayerShadow = config.hidePlayerShadow,
+                            crowdMode = config.crowdMode,
                             invertHeadDirection = config.invertHeadDirection,
                             modelScale = config.modelScale,
                             thirdPersonDistanceScale = config.thirdPersonDistanceScale,
@@ -172,6 +173,12 @@ class ConfigViewModel(scope: CoroutineScope) : ViewModel(scope) {
         }
     }
 
+    fun updateCrowdMode(crowdMode: Boolean) {
+        ConfigHolder.update {
+            copy(crowdMode = crowdMode)
+        }
+    }
+
     fun updateModelScale(modelScale: Float) {
         ConfigHolder.update {
             copy(modelScale = modelScale)
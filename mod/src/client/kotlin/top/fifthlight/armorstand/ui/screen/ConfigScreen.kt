@@ -200,6 +200,14 @@ class ConfigScreen(parent: Screen? = null) : ArmorStandScreen<ConfigScreen, Conf
         )
     }
 
+    private val crowdModeButton by lazy {
+        checkbox(
+            text = Text.translatable("armorstand.config.crowd_mode"),
+            value = viewModel.uiState.map { it.crowdMode },
+            onValueChanged = viewModel::updateCrowdMode,
+        )
+    }
+
     private val showOtherPlayersButton by lazy {
         checkbox(
             text = Text.translatable("armorstand.config.show_other_players"),
@@ -300,6 +308,7 @@ class ConfigScreen(parent: Screen? = null) : ArmorStandScreen<ConfigScreen, Conf
                         sendModelDataButton,
                         showOtherPlayersButton,
                         hidePlayerShadowButton,
+                        crowdModeButton,
                         thirdPersonDistanceScaleSlider,
                     ).forEach {
                         add(
@@ -7,7 +7,14 @@ import net.minecraft.client.gui.widget.TextWidget
 import net.minecraft.screen.ScreenTexts
 import net.minecraft.text.Text
 import top.fifthlight.armorstand.ui.component.BorderLayout
+import top.fifthlight.armorstand.state.InstanceCuller
+import top.fifthlight.armorstand.state.MeshLodSelector
+import top.fifthlight.armorstand.state.ModelInstanceManager
+import top.fifthlight.armorstand.state.UpdateLodScheduler
 import top.fifthlight.armorstand.ui.component.LinearLayout
+import top.fifthlight.armorstand.util.RendererManager
+import top.fifthlight.blazerod.model.node.component.IkTarget
+import top.fifthlight.blazerod.model.renderer.VertexShaderTransformRenderer
 
 class DebugScreen(parent: Screen? = null) : BaseArmorStandScreen<DebugScreen>(
     title = Text.translatable("armorstand.debug_screen"),
@@ -20,12 +27,96 @@ class DebugScreen(parent: Screen? = null) : BaseArmorStandScreen<DebugScreen>(
     private val debugTip by lazy {
         TextWidget(Text.translatable("armorstand.debug_screen.tip"), currentClient.textRenderer)
     }
+    private val updateLodTexts = UpdateLodScheduler.Bucket.entries.map { bucket ->
+        TextWidget(width, currentClient.textRenderer.fontHeight, updateLodText(bucket), currentClient.textRenderer)
+    }
+    private val drawCountText = TextWidget(width, currentClient.textRenderer.fontHeight, drawText(), currentClient.textRenderer)
+    private val cullText = TextWidget(width, currentClient.textRenderer.fontHeight, cullText(), currentClient.textRenderer)
+    private val meshLodText =
+        TextWidget(width, currentClient.textRenderer.fontHeight, meshLodText(), currentClient.textRenderer)
+    private val ikInstance = currentClient.player?.uuid?.let { uuid ->
+        ModelInstanceManager.get(uuid, null, load = false) as? ModelInstanceManager.ModelInstanceItem.Model
+    }?.instance
+
+    // IK targets of the own model, by the name of the IK bone, like in the animation screen
+    private val ikTargets = ikInstance?.scene?.let { scene ->
+        scene.ikTargetComponents.map { target ->
+            Pair(scene.nodes[target.effectorNodeIndex].nodeName ?: "#${target.effectorNodeIndex}", target)
+        }
+    } ?: listOf()
+    private val ikTexts = ikTargets.map { (name, target) ->
+        TextWidget(width, currentClient.textRenderer.fontHeight, ikText(name, target), currentClient.textRenderer)
+    }
     private val buttons = listOf(
         ButtonWidget.builder(Text.translatable("armorstand.debug_screen.database")) {
             currentClient.setScreen(DatabaseScreen(this@DebugScreen))
         }.build()
     )
 
+    private fun updateLodText(bucket: UpdateLodScheduler.Bucket): Text {
+        val counters = UpdateLodScheduler.counters
+        return Text.translatable(
+            "armorstand.debug_screen.update_lod",
+            bucket.interval,
+            counters.updated[bucket.ordinal],
+            counters.skipped[bucket.ordinal],
+        )
+    }
+
+    private fun drawText(): Text {
+        val counters = (RendererManager.currentRenderer as? VertexShaderTransformRenderer)?.counters
+            ?: return Text.translatable("armorstand.debug_screen.draws.unavailable")
+        return Text.translatable(
+            "armorstand.debug_screen.draws",
+            counters.renderPasses,
+            counters.draws,
+            counters.pipelineChanges,
+            counters.textureChanges,
+            counters.bufferBinds,
+            counters.skippedBinds,
+        )
+    }
+
+    private fun cullText(): Text {
+        val counters = InstanceCuller.counters
+        return Text.translatable(
+            "armorstand.debug_screen.culling",
+            counters.culledInstances,
+            counters.instances,
+            counters.culledPrimitives,
+            counters.primitives,
+        )
+    }
+
+    private fun meshLodText(): Text {
+        val instances = MeshLodSelector.counters.instances
+        return Text.translatable("armorstand.debug_screen.mesh_lod", instances.joinToString(" / "))
+    }
+
+    private fun ikText(name: String, target: IkTarget): Text {
+        val modelData = ikInstance?.modelData
+        val iterations = modelData?.ikIterations?.get(target.ikIndex) ?: 0
+        // Percentage of frames the last solve was reused in
+        val reused = modelData?.ikCaches?.get(target.ikIndex)?.let { cache ->
+            val solves = cache.hits + cache.misses
+            if (solves > 0) cache.hits * 100 / solves else 0L
+        } ?: 0L
+        return Text.translatable("armorstand.debug_screen.ik", name, iterations, target.loopCount, reused)
+    }
+
+    override fun tick() {
+        drawCountText.message = drawText()
+        cullText.message = cullText()
+        meshLodText.message = meshLodText()
+        for ((index, text) in updateLodTexts.withIndex()) {
+            text.message = updateLodText(UpdateLodScheduler.Bucket.entries[index])
+        }
+        for ((index, text) in ikTexts.withIndex()) {
+            val (name, target) = ikTargets[index]
+            text.message = ikText(name, target)
+        }
+    }
+
     override fun init() {
         val rootLayout = BorderLayout(
             width = width,
@@ -40,6 +131,20 @@ class DebugScreen(parent: Screen? = null) : BaseArmorStandScreen<DebugScreen>(
                 gap = 8
             ).apply {
                 add(debugTip, Positioner.create().apply { alignHorizontalCenter() })
+                updateLodTexts.forEach { text ->
+                    text.width = width
+                    add(text, Positioner.create().apply { alignHorizontalCenter() })
+                }
+                drawCountText.width = width
+                add(drawCountText, Positioner.create().apply { alignHorizontalCenter() })
+                cullText.width = width
+                add(cullText, Positioner.create().apply { alignHorizontalCenter() })
+                meshLodText.width = width
+                add(meshLodText, Positioner.create().apply { alignHorizontalCenter() })
+                ikTexts.forEach { text ->
+                    text.width = width
+                    add(text, Positioner.create().apply { alignHorizontalCenter() })
+                }
                 buttons.forEach { button ->
                     add(button, Positioner.create().apply { alignHorizontalCenter() })
                 }
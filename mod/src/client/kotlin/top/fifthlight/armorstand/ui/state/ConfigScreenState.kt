@@ -12,6 +12,7 @@ data class ConfigScreenState(
     val invertHeadDirection: Boolean = false,
     val sendModelData: Boolean = true,
     val hidePlayerShadow: Boolean = false,
+    val crowdMode: Boolean = false,
     val modelScale: Float = 1f,
     val thirdPersonDistanceScale: Float = 1f,
     val currentModelMetadata: Metadata? = null,
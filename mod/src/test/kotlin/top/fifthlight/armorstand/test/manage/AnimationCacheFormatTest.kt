@@ -0,0 +1,154 @@
+package top.fifthlight.armorstand.test.manage
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList
+import it.unimi.dsi.fastutil.floats.FloatArrayList
+import org.joml.Quaternionf
+import org.joml.Vector3f
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import top.fifthlight.armorstand.manage.AnimationCacheFormat
+import top.fifthlight.blazerod.model.HumanoidTag
+import top.fifthlight.blazerod.model.TransformId
+import top.fifthlight.blazerod.model.animation.*
+import top.fifthlight.blazerod.model.util.MutableFloat
+import top.fifthlight.blazerod.model.vmd.*
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class AnimationCacheFormatTest {
+    companion object {
+        private const val FRAMES = 12
+
+        private fun createAnimation(): Animation {
+            val random = Random(0)
+            val times = FloatArray(FRAMES) { it / 30f }
+            val indexer = ListAnimationKeyFrameIndexer(FloatArrayList.wrap(times))
+            val curveTable = VmdBezierCurveTable()
+            fun curve(channels: Int) = listOf(
+                VmdBezierChannelComponent(
+                    values = ByteArrayList.wrap(ByteArray(FRAMES * 4 * channels) { random.nextInt(128).toByte() }),
+                    frames = FRAMES,
+                    channels = channels,
+                    cameraOrder = false,
+                    curveTable = curveTable,
+                )
+            )
+            val data = AnimationChannel.Type.TransformData(
+                node = AnimationChannel.Type.NodeData(
+                    targetNode = null,
+                    targetNodeName = "bone",
+                    targetHumanoidTag = HumanoidTag.HEAD,
+                ),
+                transformId = TransformId.RELATIVE_ANIMATION,
+            )
+            return Animation(
+                name = "motion",
+                channels = listOf(
+                    SimpleAnimationChannel(
+                        type = AnimationChannel.Type.Translation,
+                        data = data,
+                        indexer = indexer,
+                        keyframeData = AnimationKeyFrameData.ofVector3f(
+                            FloatArray(FRAMES * 3) { random.nextFloat() },
+                            1,
+                        ),
+                        interpolation = VmdBezierInterpolation,
+                        interpolator = VmdBezierVector3fInterpolator(),
+                        components = curve(3),
+                        defaultValue = ::Vector3f,
+                    ),
+                    SimpleAnimationChannel(
+                        type = AnimationChannel.Type.Rotation,
+                        data = data,
+                        indexer = indexer,
+                        keyframeData = AnimationKeyFrameData.ofQuaternionf(
+                            FloatArray(FRAMES * 4) { random.nextFloat() },
+                            1,
+                        ),
+                        interpolation = VmdBezierInterpolation,
+                        interpolator = VmdBezierQuaternionfInterpolator(),
+                        components = curve(1),
+                        defaultValue = ::Quaternionf,
+                    ),
+                    SimpleAnimationChannel(
+                        type = AnimationChannel.Type.Expression,
+                        data = AnimationChannel.Type.ExpressionData(name = "face"),
+                        indexer = ListAnimationKeyFrameIndexer(FloatArrayList.wrap(times)),
+                        keyframeData = AnimationKeyFrameData.ofFloat(FloatArray(FRAMES) { random.nextFloat() }, 1),
+                        interpolation = AnimationInterpolation.linear,
+                    ),
+                ),
+            )
+        }
+
+        private fun <T : Any> AnimationChannel<*, *>.sample(time: Float, result: T) = result.also {
+            @Suppress("UNCHECKED_CAST")
+            (this as AnimationChannel<T, *>).getKeyFrameData(time, it)
+        }
+    }
+
+    @Test
+    fun decodedAnimationSamplesLikeOriginal() {
+        val animation = createAnimation()
+        val bytes = AnimationCacheFormat.encode(listOf(animation))!!
+        val decoded = AnimationCacheFormat.decode(ByteBuffer.wrap(bytes)).single()
+
+        assertEquals(animation.name, decoded.name)
+        assertEquals(animation.channels.map { it.type }, decoded.channels.map { it.type })
+        assertEquals(animation.channels.map { it.data }, decoded.channels.map { it.data })
+        val (translation, rotation, expression) = decoded.channels.map { it as SimpleAnimationChannel<*, *> }
+        // Channels of one bone keep sharing keyframe times
+        assertSame(translation.indexer, rotation.indexer)
+        assertEquals(AnimationInterpolation.linear, expression.interpolation)
+
+        for (step in 0..FRAMES * 4) {
+            val time = step / 120f
+            for ((original, channel) in animation.channels.zip(decoded.channels)) {
+                when (channel.type) {
+                    AnimationChannel.Type.Translation ->
+                        assertEquals(original.sample(time, Vector3f()), channel.sample(time, Vector3f()))
+
+                    AnimationChannel.Type.Rotation ->
+                        assertEquals(original.sample(time, Quaternionf()), channel.sample(time, Quaternionf()))
+
+                    else -> assertEquals(
+                        original.sample(time, MutableFloat()).value,
+                        channel.sample(time, MutableFloat()).value,
+                    )
+                }
+            }
+        }
+    }
+
+    @Test
+    fun unsupportedChannelIsNotEncoded() {
+        val channel = object : AnimationChannel<MutableFloat, AnimationChannel.Type.ExpressionData> {
+            override val type = AnimationChannel.Type.Expression
+            override val data = AnimationChannel.Type.ExpressionData(name = "face")
+            override val duration = 0f
+            override val interpolation = AnimationInterpolation.linear
+            override val interpolator = FloatAnimationInterpolator
+            override fun getKeyFrameData(time: Float, result: MutableFloat) = Unit
+            override fun <T : AnimationChannelComponent.Type<C, T>, C> getComponent(type: T): C? = null
+        }
+        assertNull(AnimationCacheFormat.encode(listOf(Animation(channels = listOf(channel)))))
+    }
+
+    @Test
+    fun corruptFileIsRejected() {
+        val bytes = AnimationCacheFormat.encode(listOf(createAnimation()))!!
+
+        val badMagic = bytes.copyOf().also { it[0] = 0 }
+        assertThrows<IllegalArgumentException> { AnimationCacheFormat.decode(ByteBuffer.wrap(badMagic)) }
+
+        val badVersion = bytes.copyOf().also { it[7] = 0x7F }
+        assertThrows<IllegalArgumentException> { AnimationCacheFormat.decode(ByteBuffer.wrap(badVersion)) }
+
+        // Buffer underflow or out of bounds slice, depending on where the file ends
+        val truncated = bytes.copyOf(bytes.size / 2)
+        assertThrows<RuntimeException> { AnimationCacheFormat.decode(ByteBuffer.wrap(truncated)) }
+    }
+}